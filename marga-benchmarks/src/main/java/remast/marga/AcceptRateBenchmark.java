@@ -0,0 +1,100 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Connections per second for a varying number of acceptor threads. Every operation opens a new
+ * connection, sends one {@code Connection: close} request and reads the response until the server
+ * closes the connection:
+ * <pre>
+ * java -jar marga-benchmarks/target/benchmarks.jar AcceptRateBenchmark -t 16
+ * </pre>
+ * The client threads compete with the server for CPU, so the scaling is only meaningful on a machine
+ * with more cores than acceptors (or with the clients on a second host).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+@Threads(16)
+public class AcceptRateBenchmark {
+    private static final byte[] REQUEST =
+        "GET /ping HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+    @Param({"1", "2", "4"})
+    public int acceptors;
+
+    @Param({"BLOCKING", "NIO"})
+    public ServerEngine engine;
+
+    private HttpRouter router;
+    private Thread serverThread;
+    private InetSocketAddress address;
+
+    @Setup(Level.Trial)
+    public void startServer() throws InterruptedException {
+        var config = Config.builder()
+            .engine(engine)
+            .acceptorThreads(acceptors)
+            .host("127.0.0.1")
+            .port(0)
+            .acceptBacklog(4_096)
+            .build();
+        router = new HttpRouter(config);
+        router.GET("/ping", request -> Response.ok("pong"));
+        serverThread = Thread.ofPlatform().start(() -> {
+            try {
+                router.run();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (router.getPort() == 0) {
+            Thread.sleep(10);
+        }
+        address = new InetSocketAddress("127.0.0.1", router.getPort());
+    }
+
+    @TearDown(Level.Trial)
+    public void stopServer() throws InterruptedException {
+        router.shutdown();
+        serverThread.join(5_000);
+    }
+
+    @Benchmark
+    public int connectRequestClose() throws IOException {
+        try (var socket = new Socket()) {
+            socket.connect(address);
+            socket.setTcpNoDelay(true);
+            socket.getOutputStream().write(REQUEST);
+            var in = socket.getInputStream();
+            var buffer = new byte[512];
+            var total = 0;
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                total += read;
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.FileHandler;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import remast.marga.middleware.AccessLogMiddleware;
+import remast.marga.middleware.LoggingMiddleware;
+
+/**
+ * Requests through a trivial handler from as many threads as there are cores, logged by
+ * {@link LoggingMiddleware} to a JUL file handler or by {@link AccessLogMiddleware} in the common format.
+ * The access log blocks when its ring is full, so both write every record:
+ * <pre>
+ * java -jar marga-benchmarks/target/benchmarks.jar AccessLogBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class AccessLogBenchmark {
+    private Path directory;
+    private FileHandler fileHandler;
+    private AccessLogMiddleware accessLog;
+    private RequestHandler logged;
+    private RequestHandler accessLogged;
+    private Request request;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("marga-access-log");
+        RequestHandler handler = ignored -> Response.ok("ok");
+
+        var logger = Logger.getLogger(LoggingMiddleware.class.getName());
+        fileHandler = new FileHandler(directory.resolve("jul.log").toString());
+        fileHandler.setFormatter(new SimpleFormatter());
+        logger.setUseParentHandlers(false);
+        logger.addHandler(fileHandler);
+        logged = LoggingMiddleware.create().apply(handler);
+
+        accessLog = AccessLogMiddleware.builder()
+            .path(directory.resolve("access.log"))
+            .overflow(AccessLogMiddleware.Overflow.BLOCK)
+            .build();
+        accessLogged = accessLog.create().apply(handler);
+
+        request = new Request("GET", "/users/42");
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        accessLog.close();
+        Logger.getLogger(LoggingMiddleware.class.getName()).removeHandler(fileHandler);
+        fileHandler.close();
+        try (var files = Files.list(directory)) {
+            for (var file : files.toList()) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public Response loggingMiddleware() {
+        return logged.handle(request);
+    }
+
+    @Benchmark
+    public Response accessLogMiddleware() {
+        return accessLogged.handle(request);
+    }
+}
@@ -0,0 +1,62 @@
+package remast.marga;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import remast.marga.middleware.GzipCompressionMiddleware;
+
+/**
+ * A handler wrapped in {@link GzipCompressionMiddleware} for JSON bodies of growing size, requested with
+ * {@code Accept-Encoding: gzip} and without it. The smallest size stays below the compression threshold,
+ * and requests without the header measure the pass-through cost at every size:
+ * <pre>
+ * java -jar marga-benchmarks/target/benchmarks.jar GzipCompressionBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GzipCompressionBenchmark {
+    @Param({"512", "4096", "65536"})
+    public int bodySize;
+
+    private RequestHandler handler;
+    private Request gzipRequest;
+    private Request plainRequest;
+
+    @Setup
+    public void setUp() {
+        var json = new StringBuilder("[");
+        for (var i = 0; json.length() < bodySize - 1; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"name\":\"item-").append(i).append("\"}");
+        }
+        json.setLength(bodySize - 1);
+        var body = json.append(']').toString();
+        handler = new GzipCompressionMiddleware().create().apply(ignored -> Response.json(body));
+        gzipRequest = new Request("GET", "/items", Map.of("Accept-Encoding", "gzip"));
+        plainRequest = new Request("GET", "/items");
+    }
+
+    @Benchmark
+    public Response compress() {
+        return handler.handle(gzipRequest);
+    }
+
+    @Benchmark
+    public Response passThrough() {
+        return handler.handle(plainRequest);
+    }
+}
@@ -0,0 +1,135 @@
+package remast.marga;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+
+/**
+ * Measures the heap retained per idle keep-alive connection for each server engine.
+ *
+ * <p>Every connection sends one request and then stays open without further traffic. The clients run in
+ * a child JVM so their sockets do not show up in the server's heap:
+ * <pre>
+ * java -cp marga-benchmarks/target/benchmarks.jar remast.marga.IdleConnectionMemoryBenchmark [connections] [BLOCKING|NIO]
+ * </pre>
+ */
+public final class IdleConnectionMemoryBenchmark {
+    private static final String CLIENT_MODE = "client";
+    private static final String READY = "ready";
+
+    private IdleConnectionMemoryBenchmark() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 3 && CLIENT_MODE.equals(args[0])) {
+            runClients(Integer.parseInt(args[1]), Integer.parseInt(args[2]));
+            return;
+        }
+
+        var connections = args.length > 0 ? Integer.parseInt(args[0]) : 5_000;
+        var engines = args.length > 1 ? new ServerEngine[] {ServerEngine.valueOf(args[1])} : ServerEngine.values();
+        System.out.printf("%-10s %12s %18s %18s%n", "engine", "connections", "heap/conn (bytes)", "platform threads");
+        for (var engine : engines) {
+            measure(engine, connections);
+        }
+    }
+
+    private static void measure(ServerEngine engine, int connections) throws Exception {
+        var config = Config.builder()
+            .engine(engine)
+            .host("127.0.0.1")
+            .port(0)
+            .readTimeoutMs(600_000)
+            .keepAliveTimeoutMs(600_000)
+            .acceptBacklog(connections)
+            .build();
+        var router = new HttpRouter(config);
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        var serverThread = Thread.ofPlatform().start(() -> {
+            try {
+                router.run();
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        while (router.getPort() == 0) {
+            Thread.sleep(10);
+        }
+
+        var baselineHeap = usedHeapAfterGc();
+        var threads = ManagementFactory.getThreadMXBean();
+        var baselineThreads = threads.getThreadCount();
+
+        var client = startClientProcess(router.getPort(), connections);
+        try {
+            var heapPerConnection = (usedHeapAfterGc() - baselineHeap) / connections;
+            var extraThreads = threads.getThreadCount() - baselineThreads;
+            System.out.printf("%-10s %12d %18d %18d%n", engine, connections, heapPerConnection, extraThreads);
+        } finally {
+            client.destroy();
+            client.waitFor();
+            router.shutdown();
+            serverThread.join(5_000);
+            // Let the closed connections drain so they do not skew the next engine's baseline.
+            Thread.sleep(2_000);
+        }
+    }
+
+    private static Process startClientProcess(int port, int connections) throws IOException {
+        var java = Path.of(System.getProperty("java.home"), "bin", "java").toString();
+        var process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+            IdleConnectionMemoryBenchmark.class.getName(), CLIENT_MODE, String.valueOf(port), String.valueOf(connections))
+            .redirectError(ProcessBuilder.Redirect.INHERIT)
+            .start();
+        var reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.US_ASCII));
+        var line = reader.readLine();
+        if (!READY.equals(line)) {
+            process.destroy();
+            throw new IllegalStateException("Client process failed to open connections");
+        }
+        return process;
+    }
+
+    private static void runClients(int port, int connections) throws Exception {
+        var request = "GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+        var sockets = new ArrayList<Socket>(connections);
+        for (var i = 0; i < connections; i++) {
+            var socket = new Socket("127.0.0.1", port);
+            socket.getOutputStream().write(request);
+            readUntilBody(socket);
+            sockets.add(socket);
+        }
+        System.out.println(READY);
+        System.out.flush();
+        // Keep the connections open until the parent destroys this process.
+        Thread.sleep(Long.MAX_VALUE);
+    }
+
+    private static void readUntilBody(Socket socket) throws IOException {
+        var in = socket.getInputStream();
+        var tail = 0;
+        var expected = ('p' << 24) | ('o' << 16) | ('n' << 8) | 'g';
+        while (tail != expected) {
+            var b = in.read();
+            if (b == -1) {
+                throw new IOException("Connection closed before response was read");
+            }
+            tail = (tail << 8) | b;
+        }
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        var memory = ManagementFactory.getMemoryMXBean();
+        for (var i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(200);
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
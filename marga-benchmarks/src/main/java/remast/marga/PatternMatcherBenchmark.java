@@ -0,0 +1,50 @@
+package remast.marga;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matching a single pattern with {@link PatternMatcher#matchInto(String, Request)}, including the
+ * captured parameters written into the request:
+ * <pre>
+ * java -jar marga-benchmarks/target/benchmarks.jar PatternMatcherBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PatternMatcherBenchmark {
+    private final PatternMatcher singleParameter = new PatternMatcher("/users/${id}");
+    private final PatternMatcher threeParameters = new PatternMatcher("/orgs/${org}/repos/${repo}/issues/${number}");
+
+    @Benchmark
+    public Request singleParameterMatch() {
+        var request = new Request("GET", "/users/42");
+        singleParameter.matchInto(request.getPath(), request);
+        return request;
+    }
+
+    @Benchmark
+    public Request threeParameterMatch() {
+        var request = new Request("GET", "/orgs/remast/repos/marga/issues/17");
+        threeParameters.matchInto(request.getPath(), request);
+        return request;
+    }
+
+    @Benchmark
+    public boolean mismatchInLastSegment() {
+        var request = new Request("GET", "/orgs/remast/repos/marga/pulls/17");
+        return threeParameters.matchInto(request.getPath(), request);
+    }
+}
@@ -0,0 +1,97 @@
+package remast.marga;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import remast.marga.middleware.RateLimitMiddleware;
+
+/**
+ * Token checks of one shared {@link RateLimitMiddleware} from as many threads as there are cores: all
+ * threads on the same key (a single contended bucket), one key per thread, and keys spread over a
+ * large population of clients, once within {@code maxKeys} and once with four times as many clients
+ * as {@code maxKeys}, so that buckets are dropped all the time. The rate is high enough that no check
+ * is rejected:
+ * <pre>
+ * java -jar marga-benchmarks/target/benchmarks.jar RateLimitBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class RateLimitBenchmark {
+    private static final int CLIENTS = 10_000;
+
+    private RateLimitMiddleware limiter;
+    private RateLimitMiddleware boundedLimiter;
+    private String[] clients;
+
+    @Setup
+    public void setUp() {
+        limiter = RateLimitMiddleware.builder()
+            .rate(1_000_000_000, Duration.ofSeconds(1))
+            .burst(1_000_000)
+            .maxKeys(CLIENTS * 2)
+            .build();
+        // Buckets that do not refill during the run, so that none is dropped for being full.
+        boundedLimiter = RateLimitMiddleware.builder()
+            .rate(1, Duration.ofSeconds(100))
+            .burst(1_000_000)
+            .maxKeys(CLIENTS / 4)
+            .build();
+        clients = new String[CLIENTS];
+        for (var i = 0; i < CLIENTS; i++) {
+            clients[i] = "10.0." + (i / 256) + "." + (i % 256);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadKey {
+        private static int threads;
+
+        final String key;
+        int next;
+
+        public ThreadKey() {
+            synchronized (ThreadKey.class) {
+                key = "thread-" + threads++;
+                next = threads * 7919;
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean sameKey() {
+        return limiter.tryAcquire("shared");
+    }
+
+    @Benchmark
+    public boolean keyPerThread(ThreadKey thread) {
+        return limiter.tryAcquire(thread.key);
+    }
+
+    @Benchmark
+    public boolean manyClients(ThreadKey thread) {
+        thread.next = (thread.next + 1) % CLIENTS;
+        return limiter.tryAcquire(clients[thread.next]);
+    }
+
+    @Benchmark
+    public boolean clientsBeyondMaxKeys(ThreadKey thread) {
+        thread.next = (thread.next + 1) % CLIENTS;
+        return boundedLimiter.tryAcquire(clients[thread.next]);
+    }
+}
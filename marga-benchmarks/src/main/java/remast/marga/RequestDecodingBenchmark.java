@@ -0,0 +1,100 @@
+package remast.marga;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Turning a large request head (34 headers, a long query string) into a {@link Request} and routing it.
+ * {@code eagerDecoding} decodes headers and query parameters up front like the server did before; the
+ * others leave the decoding to the first access, which a 404 or a handler ignoring them never makes.
+ * <pre>
+ * java -jar marga-benchmarks/target/benchmarks.jar RequestDecodingBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestDecodingBenchmark {
+    private static final byte[] NO_BODY = new byte[0];
+
+    private byte[] found;
+    private byte[] missing;
+    private HttpRequestParser parser;
+    private Router router;
+
+    @Setup
+    public void setUp() {
+        found = head("/api/search").getBytes(StandardCharsets.ISO_8859_1);
+        missing = head("/api/missing").getBytes(StandardCharsets.ISO_8859_1);
+        parser = new HttpRequestParser(Config.defaults());
+        router = new Router();
+        router.GET("/api/search", request -> Response.ok("ok"));
+    }
+
+    @Benchmark
+    public Response notFound() throws HttpParseException {
+        return router.handleRequest(parse(missing));
+    }
+
+    @Benchmark
+    public Response handlerIgnoringHeaders() throws HttpParseException {
+        return router.handleRequest(parse(found));
+    }
+
+    @Benchmark
+    public void handlerReadingEverything(Blackhole blackhole) throws HttpParseException {
+        var request = parse(found);
+        blackhole.consume(router.handleRequest(request));
+        blackhole.consume(request.getHeadersView());
+        blackhole.consume(request.getQueryParamsView());
+    }
+
+    @Benchmark
+    public void eagerDecoding(Blackhole blackhole) throws HttpParseException {
+        var request = parse(missing);
+        blackhole.consume(request.getHeadersView());
+        blackhole.consume(request.getQueryParamsView());
+        blackhole.consume(router.handleRequest(request));
+    }
+
+    private Request parse(byte[] head) throws HttpParseException {
+        parser.reset();
+        parser.parse(head, 0, head.length);
+        return parser.newRequest(NO_BODY);
+    }
+
+    private static String head(String path) {
+        var query = new StringBuilder("?q=java%20http%20server%20performance&sort=relevance&page=3&size=50");
+        for (var i = 0; i < 20; i++) {
+            query.append("&filter").append(i).append("=category%3Dbooks%2Cformat%3Dpaper");
+        }
+        var head = new StringBuilder("GET ").append(path).append(query).append(" HTTP/1.1\r\n")
+            .append("Host: shop.example.com\r\n")
+            .append("User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n")
+            .append("Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n")
+            .append("Accept-Language: en-US,en;q=0.5\r\n")
+            .append("Accept-Encoding: gzip, deflate, br\r\n")
+            .append("Connection: keep-alive\r\n")
+            .append("Cookie: session=3f9a1c2d7e6b4a5f8c0d1e2f3a4b5c6d; theme=dark\r\n")
+            .append("Cache-Control: max-age=0\r\n")
+            .append("X-Request-ID: 9b2f6c1e-4d3a-4f8e-9a7b-2c5d8e1f0a3b\r\n");
+        for (var i = 0; i < 25; i++) {
+            head.append("X-Forwarded-Meta-").append(i).append(": region=eu-central-1; zone=b; hop=").append(i).append("\r\n");
+        }
+        return head.append("\r\n").toString();
+    }
+}
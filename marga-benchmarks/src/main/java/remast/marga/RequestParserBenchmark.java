@@ -0,0 +1,161 @@
+package remast.marga;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Request head parsing: {@link HttpRequestParser} against the byte-at-a-time line reader it replaced.
+ * Run with {@code -prof gc} to compare the allocation per request as well:
+ * <pre>
+ * java -jar marga-benchmarks/target/benchmarks.jar RequestParserBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParserBenchmark {
+    private static final String MINIMAL = "GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n";
+    private static final String BROWSER = "GET /api/users/42/orders?page=2&size=20 HTTP/1.1\r\n"
+        + "Host: shop.example.com\r\n"
+        + "User-Agent: Mozilla/5.0 (X11; Linux x86_64; rv:128.0) Gecko/20100101 Firefox/128.0\r\n"
+        + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+        + "Accept-Language: en-US,en;q=0.5\r\n"
+        + "Accept-Encoding: gzip, deflate, br\r\n"
+        + "Referer: https://shop.example.com/api/users/42\r\n"
+        + "Connection: keep-alive\r\n"
+        + "Cookie: session=3f9a1c2d7e6b4a5f8c0d1e2f3a4b5c6d; theme=dark\r\n"
+        + "Cache-Control: max-age=0\r\n"
+        + "X-Request-ID: 9b2f6c1e-4d3a-4f8e-9a7b-2c5d8e1f0a3b\r\n"
+        + "\r\n";
+
+    @Param({"minimal", "browser"})
+    public String request;
+
+    private byte[] bytes;
+    private HttpRequestParser parser;
+    private BufferedInputStream legacyInput;
+
+    @Setup
+    public void setUp() {
+        bytes = ("minimal".equals(request) ? MINIMAL : BROWSER).getBytes(StandardCharsets.ISO_8859_1);
+        parser = new HttpRequestParser(Config.defaults());
+        // Like a keep-alive connection, the stream and its buffer outlive the individual requests.
+        legacyInput = new BufferedInputStream(new RepeatingInputStream(bytes), 16 * 1024);
+    }
+
+    @Benchmark
+    public void byteParser(Blackhole blackhole) throws HttpParseException {
+        parser.reset();
+        parser.parse(bytes, 0, bytes.length);
+        blackhole.consume(parser.method());
+        blackhole.consume(parser.target());
+        blackhole.consume(parser.version());
+        blackhole.consume(parser.headers());
+    }
+
+    @Benchmark
+    public void legacyLineReader(Blackhole blackhole) throws IOException {
+        LegacyParser.parse(legacyInput, blackhole);
+    }
+
+    /**
+     * The request line and header parsing of the blocking engine before {@link HttpRequestParser}.
+     */
+    static final class LegacyParser {
+        private LegacyParser() {
+        }
+
+        static void parse(BufferedInputStream in, Blackhole blackhole) throws IOException {
+            var requestLine = readLine(in);
+            var requestParts = requestLine.split(" ");
+            var method = requestParts[0];
+            var target = requestParts[1];
+            var version = requestParts.length > 2 ? requestParts[2] : "HTTP/1.0";
+            var headers = new HashMap<String, String>();
+            while (true) {
+                var headerLine = readLine(in);
+                if (headerLine == null || headerLine.isEmpty()) {
+                    break;
+                }
+                var colonIndex = headerLine.indexOf(':');
+                if (colonIndex > 0) {
+                    headers.put(headerLine.substring(0, colonIndex).trim(), headerLine.substring(colonIndex + 1).trim());
+                }
+            }
+            blackhole.consume(method);
+            blackhole.consume(target);
+            blackhole.consume(version);
+            blackhole.consume(headers);
+        }
+
+        private static String readLine(BufferedInputStream in) throws IOException {
+            var line = new StringBuilder();
+            int current;
+            var sawCarriageReturn = false;
+            while ((current = in.read()) != -1) {
+                if (current == '\r') {
+                    sawCarriageReturn = true;
+                    continue;
+                }
+                if (current == '\n') {
+                    break;
+                }
+                if (sawCarriageReturn) {
+                    line.append('\r');
+                    sawCarriageReturn = false;
+                }
+                line.append((char) current);
+            }
+            if (current == -1 && line.isEmpty()) {
+                return null;
+            }
+            return line.toString();
+        }
+    }
+
+    /**
+     * Delivers the same request over and over, in reads of at most {@code chunk.length} bytes.
+     */
+    static final class RepeatingInputStream extends InputStream {
+        private final byte[] chunk;
+        private int position;
+
+        RepeatingInputStream(byte[] chunk) {
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            var value = chunk[position] & 0xFF;
+            position = (position + 1) % chunk.length;
+            return value;
+        }
+
+        @Override
+        public int read(byte[] target, int offset, int length) {
+            var count = Math.min(length, chunk.length - position);
+            System.arraycopy(chunk, position, target, offset, count);
+            position = (position + count) % chunk.length;
+            return count;
+        }
+    }
+}
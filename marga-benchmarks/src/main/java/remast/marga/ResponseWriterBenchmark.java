@@ -0,0 +1,97 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Serializing responses with {@link HttpResponseWriter} into a connection's {@link ChannelOutput}
+ * backed by a channel that discards the bytes, so only the writer's own work and allocation are measured:
+ * <pre>
+ * java -jar marga-benchmarks/target/benchmarks.jar ResponseWriterBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ResponseWriterBenchmark {
+    private final HttpResponseWriter writer = new HttpResponseWriter();
+    private final ChannelOutput out = new ChannelOutput(new DiscardingChannel(), () -> { });
+
+    private Response plainText;
+    private Response jsonWithHeaders;
+
+    @Setup
+    public void setUp() {
+        plainText = Response.ok("pong");
+        var json = new StringBuilder("[");
+        for (var i = 0; i < 100; i++) {
+            json.append(i == 0 ? "" : ",").append("{\"id\":").append(i).append(",\"name\":\"item-").append(i).append("\"}");
+        }
+        jsonWithHeaders = Response.json(json.append(']').toString())
+            .header(HttpHeader.CACHE_CONTROL, "no-cache")
+            .header(HttpHeader.X_REQUEST_ID, "9b2f6c1e-4d3a-4f8e-9a7b-2c5d8e1f0a3b")
+            .header(HttpHeader.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+    }
+
+    @Benchmark
+    public boolean plainTextKeepAlive() throws IOException {
+        var keepAlive = writer.write(out, plainText, true);
+        out.flush();
+        return keepAlive;
+    }
+
+    @Benchmark
+    public boolean jsonWithHeadersKeepAlive() throws IOException {
+        var keepAlive = writer.write(out, jsonWithHeaders, true);
+        out.flush();
+        return keepAlive;
+    }
+
+    private static final class DiscardingChannel implements GatheringByteChannel {
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            var written = 0L;
+            for (var i = offset; i < offset + length; i++) {
+                written += sources[i].remaining();
+                sources[i].position(sources[i].limit());
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            var written = source.remaining();
+            source.position(source.limit());
+            return written;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package remast.marga;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Route lookup through {@link Router#handleRequest(String, String)} for tables of growing size. Half of
+ * the routes are exact paths, half carry two path parameters. The lookups target the last route
+ * registered, the worst case for a table scanned in order:
+ * <pre>
+ * java -jar marga-benchmarks/target/benchmarks.jar RouterBenchmark -prof gc
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RouterBenchmark {
+    @Param({"10", "100", "1000"})
+    public int routes;
+
+    private Router router;
+    private String exactPath;
+    private String parameterizedPath;
+
+    @Setup
+    public void setUp() {
+        router = new Router();
+        var handler = (RequestHandler) request -> Response.ok("ok");
+        var half = routes / 2;
+        for (var i = 0; i < half; i++) {
+            router.GET("/static/section" + i + "/index", handler);
+            router.GET("/api/resource" + i + "/${id}/items/${itemId}", handler);
+        }
+        exactPath = "/static/section" + (half - 1) + "/index";
+        parameterizedPath = "/api/resource" + (half - 1) + "/42/items/7";
+        // Serve one request so the middleware chain is frozen before measuring.
+        router.handleRequest("GET", exactPath);
+    }
+
+    @Benchmark
+    public Response exactMatch() {
+        return router.handleRequest("GET", exactPath);
+    }
+
+    @Benchmark
+    public Response parameterizedMatch() {
+        return router.handleRequest("GET", parameterizedPath);
+    }
+
+    @Benchmark
+    public Response notFound() {
+        return router.handleRequest("GET", "/unknown/path/with/segments");
+    }
+
+    @Benchmark
+    public Response methodNotAllowed() {
+        return router.handleRequest("DELETE", parameterizedPath);
+    }
+}
@@ -0,0 +1,127 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.logging.Logger;
+
+/**
+ * The listening side of a server engine: one or more acceptor threads handing accepted connections to the engine.
+ *
+ * <p>With more than one acceptor and {@code SO_REUSEPORT} available (Linux), every acceptor owns its own
+ * listening channel bound to the same port, so the kernel load-balances incoming connections across them
+ * instead of all acceptors contending for one queue. Without {@code SO_REUSEPORT} the acceptors share a
+ * single channel.
+ */
+final class AcceptorGroup {
+    private static final Logger logger = Logger.getLogger(AcceptorGroup.class.getName());
+
+    private final int acceptorThreads;
+    private final List<ServerSocketChannel> channels;
+    private volatile boolean open;
+
+    private AcceptorGroup(int acceptorThreads, List<ServerSocketChannel> channels) {
+        this.acceptorThreads = acceptorThreads;
+        this.channels = channels;
+        this.open = true;
+    }
+
+    static AcceptorGroup bind(Config config) throws IOException {
+        var acceptorThreads = config.getAcceptorThreads();
+        var channels = new ArrayList<ServerSocketChannel>();
+        try {
+            var first = ServerSocketChannel.open();
+            channels.add(first);
+            var reusePort = acceptorThreads > 1 && first.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+            if (reusePort) {
+                first.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            } else if (acceptorThreads > 1) {
+                logger.info("SO_REUSEPORT is not supported, " + acceptorThreads + " acceptors share one listening socket");
+            }
+            first.bind(new InetSocketAddress(config.getHost(), config.getPort()), config.getAcceptBacklog());
+
+            if (reusePort) {
+                // Bind the remaining channels to the resolved port so an ephemeral port (0) is shared too.
+                var address = new InetSocketAddress(config.getHost(), ((InetSocketAddress) first.getLocalAddress()).getPort());
+                for (var i = 1; i < acceptorThreads; i++) {
+                    var channel = ServerSocketChannel.open();
+                    channels.add(channel);
+                    channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+                    channel.bind(address, config.getAcceptBacklog());
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            for (var channel : channels) {
+                closeQuietly(channel);
+            }
+            throw e;
+        }
+        return new AcceptorGroup(acceptorThreads, List.copyOf(channels));
+    }
+
+    /**
+     * Accepts connections until {@link #close()} is called. The calling thread becomes the first acceptor;
+     * the others run on dedicated platform threads.
+     */
+    void run(Consumer<SocketChannel> handler) {
+        for (var i = 1; i < acceptorThreads; i++) {
+            var channel = channelFor(i);
+            Thread.ofPlatform().name("marga-acceptor-" + i).daemon(true).start(() -> acceptLoop(channel, handler));
+        }
+        acceptLoop(channelFor(0), handler);
+    }
+
+    void close() {
+        open = false;
+        for (var channel : channels) {
+            closeQuietly(channel);
+        }
+    }
+
+    int getBoundPort() {
+        var channel = channels.get(0);
+        if (channel.isOpen()) {
+            try {
+                if (channel.getLocalAddress() instanceof InetSocketAddress address) {
+                    return address.getPort();
+                }
+            } catch (IOException e) {
+                logger.fine("Failed to read bound port: " + e.getMessage());
+            }
+        }
+        return -1;
+    }
+
+    int listeningSockets() {
+        return channels.size();
+    }
+
+    private ServerSocketChannel channelFor(int acceptorIndex) {
+        return channels.get(acceptorIndex % channels.size());
+    }
+
+    private void acceptLoop(ServerSocketChannel channel, Consumer<SocketChannel> handler) {
+        while (open) {
+            try {
+                handler.accept(channel.accept());
+            } catch (IOException e) {
+                if (open) {
+                    logger.warning("Exception while accepting connection: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    private static void closeQuietly(ServerSocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.fine("Failed to close server channel: " + e.getMessage());
+        }
+    }
+}
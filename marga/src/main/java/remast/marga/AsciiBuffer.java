@@ -0,0 +1,113 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer for text that is written as bytes, such as access log lines and metrics
+ * expositions. Numbers are formatted without building Strings. Not thread-safe; owners reuse one
+ * buffer by resetting it.
+ * <p>
+ * Internal to the server and its bundled middleware, public only so that they can share it across
+ * packages; it is not part of the supported API and may change without notice.
+ */
+public final class AsciiBuffer {
+    private final byte[] digits = new byte[20];
+    private byte[] bytes;
+    private int length;
+
+    public AsciiBuffer(int initialCapacity) {
+        if (initialCapacity < 1) {
+            throw new IllegalArgumentException("initialCapacity must be positive");
+        }
+        this.bytes = new byte[initialCapacity];
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public void reset() {
+        length = 0;
+    }
+
+    /**
+     * Drops the content after the first {@code length} bytes, for example a partly appended line.
+     */
+    public void truncate(int length) {
+        if (length < 0 || length > this.length) {
+            throw new IllegalArgumentException("length must be between 0 and the current length");
+        }
+        this.length = length;
+    }
+
+    public void append(byte[] source) {
+        ensureCapacity(source.length);
+        System.arraycopy(source, 0, bytes, length, source.length);
+        length += source.length;
+    }
+
+    public void append(byte value) {
+        ensureCapacity(1);
+        bytes[length++] = value;
+    }
+
+    /**
+     * Appends the text, which must be ASCII, one byte per character.
+     */
+    public void appendAscii(String text) {
+        ensureCapacity(text.length());
+        for (var i = 0; i < text.length(); i++) {
+            bytes[length++] = (byte) text.charAt(i);
+        }
+    }
+
+    public void appendLong(long value) {
+        if (value == Long.MIN_VALUE) {
+            appendAscii("-9223372036854775808");
+            return;
+        }
+        if (value < 0) {
+            append((byte) '-');
+            value = -value;
+        }
+        var position = digits.length;
+        do {
+            digits[--position] = (byte) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        ensureCapacity(digits.length - position);
+        System.arraycopy(digits, position, bytes, length, digits.length - position);
+        length += digits.length - position;
+    }
+
+    /**
+     * Returns a copy of the content.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, length);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, length);
+    }
+
+    /**
+     * Writes the whole content to the channel, which may take several writes.
+     */
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        var buffer = ByteBuffer.wrap(bytes, 0, length);
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+        }
+    }
+}
@@ -0,0 +1,16 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Produces a response body on the fly by writing it to the connection, see {@link Response#stream(BodyWriter, MediaType)}.
+ * The body is sent with chunked transfer encoding, so it may be of any size and is never held in memory as a whole,
+ * unless its length is given upfront with {@link Response#stream(BodyWriter, long, MediaType)}.
+ * Closing the stream is not required and does not close the connection. A writer that is also
+ * {@link java.io.Closeable} is closed once the response has been sent, or given up without being sent.
+ */
+@FunctionalInterface
+public interface BodyWriter {
+    void writeTo(OutputStream out) throws IOException;
+}
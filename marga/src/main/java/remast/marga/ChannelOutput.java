@@ -0,0 +1,179 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Buffered response output of a connection, used by both engines. Small responses are collected in
+ * the buffer so pipelined responses share one write on flush. A response that does not fit goes out
+ * together with the buffered bytes in a single gathering write, and file bodies are sent with
+ * {@link FileChannel#transferTo}. On a non-blocking channel the stall callback waits until the
+ * socket is writable again.
+ */
+final class ChannelOutput extends OutputStream implements ResponseOutput, FileTransferTarget {
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    private final GatheringByteChannel channel;
+    private final FileTransferTarget.Stall onStall;
+    private final LongAdder bytesSent;
+    private final ResponseHead head;
+    private final ByteBuffer[] gather;
+    private byte[] bytes;
+    private ByteBuffer buffered;
+    private int count;
+    // Bytes given to this output, whether sent yet or still buffered.
+    private long written;
+
+    ChannelOutput(GatheringByteChannel channel, FileTransferTarget.Stall onStall) {
+        this(channel, onStall, new LongAdder());
+    }
+
+    /**
+     * Creates an output that adds the number of bytes it writes to the channel to {@code bytesSent}.
+     */
+    ChannelOutput(GatheringByteChannel channel, FileTransferTarget.Stall onStall, LongAdder bytesSent) {
+        this.channel = channel;
+        this.onStall = onStall;
+        this.bytesSent = bytesSent;
+        this.head = new ResponseHead();
+        this.gather = new ByteBuffer[3];
+    }
+
+    @Override
+    public ResponseHead responseHead() {
+        return head;
+    }
+
+    @Override
+    public void writeResponse(ResponseHead head, byte[] body, int offset, int length) throws IOException {
+        ensureBuffer();
+        written += head.length() + length;
+        if (head.length() + length <= bytes.length - count) {
+            System.arraycopy(head.bytes(), 0, bytes, count, head.length());
+            count += head.length();
+            System.arraycopy(body, offset, bytes, count, length);
+            count += length;
+            return;
+        }
+        gather[0] = buffered.limit(count).position(0);
+        gather[1] = ByteBuffer.wrap(head.bytes(), 0, head.length());
+        gather[2] = ByteBuffer.wrap(body, offset, length);
+        try {
+            writeFully(gather, 3);
+        } finally {
+            gather[0] = gather[1] = gather[2] = null;
+            count = 0;
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureBuffer();
+        written++;
+        if (count == bytes.length) {
+            flush();
+        }
+        bytes[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] source, int offset, int length) throws IOException {
+        ensureBuffer();
+        written += length;
+        if (length <= bytes.length - count) {
+            System.arraycopy(source, offset, bytes, count, length);
+            count += length;
+            return;
+        }
+        if (length < BUFFER_SIZE) {
+            flush();
+            System.arraycopy(source, offset, bytes, 0, length);
+            count = length;
+            return;
+        }
+        gather[0] = buffered.limit(count).position(0);
+        gather[1] = ByteBuffer.wrap(source, offset, length);
+        try {
+            writeFully(gather, 2);
+        } finally {
+            gather[0] = gather[1] = null;
+            count = 0;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (count > 0) {
+            gather[0] = buffered.limit(count).position(0);
+            try {
+                writeFully(gather, 1);
+            } finally {
+                gather[0] = null;
+                count = 0;
+            }
+        }
+    }
+
+    /**
+     * Flushes, but leaves the channel open; the connection closes it.
+     */
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+
+    @Override
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+        flush();
+        FileTransferTarget.transfer(file, position, count, channel, onStall);
+        bytesSent.add(count);
+        written += count;
+    }
+
+    /**
+     * Returns the number of bytes written to this output so far, including those still buffered.
+     */
+    long written() {
+        return written;
+    }
+
+    /**
+     * Drops the buffer while the connection is idle; it is allocated again by the next response.
+     */
+    void release() {
+        if (count == 0) {
+            bytes = null;
+            buffered = null;
+        }
+    }
+
+    private void ensureBuffer() {
+        if (bytes == null) {
+            bytes = new byte[BUFFER_SIZE];
+            buffered = ByteBuffer.wrap(bytes);
+        }
+    }
+
+    private void writeFully(ByteBuffer[] buffers, int length) throws IOException {
+        while (remaining(buffers, length)) {
+            var written = channel.write(buffers, 0, length);
+            if (written == 0) {
+                onStall.await();
+            }
+            bytesSent.add(written);
+        }
+    }
+
+    private static boolean remaining(ByteBuffer[] buffers, int length) {
+        for (var i = 0; i < length; i++) {
+            if (buffers[i].hasRemaining()) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
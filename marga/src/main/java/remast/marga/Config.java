@@ -6,12 +6,33 @@ public final class Config {
     private static final int DEFAULT_READ_TIMEOUT_MS = 30_000;
     private static final int DEFAULT_ACCEPT_BACKLOG = 0;
     private static final int DEFAULT_MAX_REQUEST_BODY_BYTES = 1_048_576;
+    private static final int DEFAULT_KEEP_ALIVE_TIMEOUT_MS = 15_000;
+    private static final int DEFAULT_MAX_REQUESTS_PER_CONNECTION = 1_000;
+    private static final ServerEngine DEFAULT_ENGINE = ServerEngine.BLOCKING;
+    private static final int DEFAULT_ACCEPTOR_THREADS = 1;
+    private static final int DEFAULT_MAX_HEADER_LINE_BYTES = 8_192;
+    private static final int DEFAULT_MAX_HEADER_COUNT = 100;
+    private static final int DEFAULT_MAX_IN_FLIGHT_REQUESTS = 0;
+    private static final int DEFAULT_REQUEST_QUEUE_SIZE = 0;
+    private static final int DEFAULT_REQUEST_QUEUE_TIMEOUT_MS = 1_000;
+    private static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
 
     private final String host;
     private final int port;
     private final int readTimeoutMs;
     private final int acceptBacklog;
     private final int maxRequestBodyBytes;
+    private final int keepAliveTimeoutMs;
+    private final int maxRequestsPerConnection;
+    private final ServerEngine engine;
+    private final int eventLoopThreads;
+    private final int acceptorThreads;
+    private final int maxHeaderLineBytes;
+    private final int maxHeaderCount;
+    private final int maxInFlightRequests;
+    private final int requestQueueSize;
+    private final int requestQueueTimeoutMs;
+    private final int retryAfterSeconds;
 
     public Config() {
         this(builder());
@@ -23,6 +44,17 @@ public final class Config {
         this.readTimeoutMs = requirePositive(builder.readTimeoutMs, "readTimeoutMs");
         this.acceptBacklog = requireNonNegative(builder.acceptBacklog, "acceptBacklog");
         this.maxRequestBodyBytes = requirePositive(builder.maxRequestBodyBytes, "maxRequestBodyBytes");
+        this.keepAliveTimeoutMs = requirePositive(builder.keepAliveTimeoutMs, "keepAliveTimeoutMs");
+        this.maxRequestsPerConnection = requirePositive(builder.maxRequestsPerConnection, "maxRequestsPerConnection");
+        this.engine = requireEngine(builder.engine);
+        this.eventLoopThreads = requirePositive(builder.eventLoopThreads, "eventLoopThreads");
+        this.acceptorThreads = requirePositive(builder.acceptorThreads, "acceptorThreads");
+        this.maxHeaderLineBytes = requirePositive(builder.maxHeaderLineBytes, "maxHeaderLineBytes");
+        this.maxHeaderCount = requirePositive(builder.maxHeaderCount, "maxHeaderCount");
+        this.maxInFlightRequests = requireNonNegative(builder.maxInFlightRequests, "maxInFlightRequests");
+        this.requestQueueSize = requireNonNegative(builder.requestQueueSize, "requestQueueSize");
+        this.requestQueueTimeoutMs = requirePositive(builder.requestQueueTimeoutMs, "requestQueueTimeoutMs");
+        this.retryAfterSeconds = requirePositive(builder.retryAfterSeconds, "retryAfterSeconds");
     }
 
     public static Config defaults() {
@@ -40,6 +72,17 @@ public final class Config {
         var readTimeout = System.getenv("MARGA_READ_TIMEOUT_MS");
         var acceptBacklog = System.getenv("MARGA_ACCEPT_BACKLOG");
         var maxRequestBodyBytes = System.getenv("MARGA_MAX_REQUEST_BODY_BYTES");
+        var keepAliveTimeout = System.getenv("MARGA_KEEP_ALIVE_TIMEOUT_MS");
+        var maxRequestsPerConnection = System.getenv("MARGA_MAX_REQUESTS_PER_CONNECTION");
+        var engine = System.getenv("MARGA_ENGINE");
+        var eventLoopThreads = System.getenv("MARGA_EVENT_LOOP_THREADS");
+        var acceptorThreads = System.getenv("MARGA_ACCEPTOR_THREADS");
+        var maxHeaderLineBytes = System.getenv("MARGA_MAX_HEADER_LINE_BYTES");
+        var maxHeaderCount = System.getenv("MARGA_MAX_HEADER_COUNT");
+        var maxInFlightRequests = System.getenv("MARGA_MAX_IN_FLIGHT_REQUESTS");
+        var requestQueueSize = System.getenv("MARGA_REQUEST_QUEUE_SIZE");
+        var requestQueueTimeout = System.getenv("MARGA_REQUEST_QUEUE_TIMEOUT_MS");
+        var retryAfterSeconds = System.getenv("MARGA_RETRY_AFTER_SECONDS");
 
         if (host != null && !host.isBlank()) {
             builder.host(host);
@@ -56,6 +99,39 @@ public final class Config {
         if (maxRequestBodyBytes != null && !maxRequestBodyBytes.isBlank()) {
             builder.maxRequestBodyBytes(Integer.parseInt(maxRequestBodyBytes));
         }
+        if (keepAliveTimeout != null && !keepAliveTimeout.isBlank()) {
+            builder.keepAliveTimeoutMs(Integer.parseInt(keepAliveTimeout));
+        }
+        if (maxRequestsPerConnection != null && !maxRequestsPerConnection.isBlank()) {
+            builder.maxRequestsPerConnection(Integer.parseInt(maxRequestsPerConnection));
+        }
+        if (engine != null && !engine.isBlank()) {
+            builder.engine(ServerEngine.valueOf(engine.trim().toUpperCase()));
+        }
+        if (eventLoopThreads != null && !eventLoopThreads.isBlank()) {
+            builder.eventLoopThreads(Integer.parseInt(eventLoopThreads));
+        }
+        if (acceptorThreads != null && !acceptorThreads.isBlank()) {
+            builder.acceptorThreads(Integer.parseInt(acceptorThreads));
+        }
+        if (maxHeaderLineBytes != null && !maxHeaderLineBytes.isBlank()) {
+            builder.maxHeaderLineBytes(Integer.parseInt(maxHeaderLineBytes));
+        }
+        if (maxHeaderCount != null && !maxHeaderCount.isBlank()) {
+            builder.maxHeaderCount(Integer.parseInt(maxHeaderCount));
+        }
+        if (maxInFlightRequests != null && !maxInFlightRequests.isBlank()) {
+            builder.maxInFlightRequests(Integer.parseInt(maxInFlightRequests));
+        }
+        if (requestQueueSize != null && !requestQueueSize.isBlank()) {
+            builder.requestQueueSize(Integer.parseInt(requestQueueSize));
+        }
+        if (requestQueueTimeout != null && !requestQueueTimeout.isBlank()) {
+            builder.requestQueueTimeoutMs(Integer.parseInt(requestQueueTimeout));
+        }
+        if (retryAfterSeconds != null && !retryAfterSeconds.isBlank()) {
+            builder.retryAfterSeconds(Integer.parseInt(retryAfterSeconds));
+        }
 
         return builder.build();
     }
@@ -80,6 +156,57 @@ public final class Config {
         return maxRequestBodyBytes;
     }
 
+    public int getKeepAliveTimeoutMs() {
+        return keepAliveTimeoutMs;
+    }
+
+    public int getMaxRequestsPerConnection() {
+        return maxRequestsPerConnection;
+    }
+
+    public ServerEngine getEngine() {
+        return engine;
+    }
+
+    public int getEventLoopThreads() {
+        return eventLoopThreads;
+    }
+
+    public int getAcceptorThreads() {
+        return acceptorThreads;
+    }
+
+    public int getMaxHeaderLineBytes() {
+        return maxHeaderLineBytes;
+    }
+
+    public int getMaxHeaderCount() {
+        return maxHeaderCount;
+    }
+
+    /**
+     * Returns how many requests may be handled at the same time; 0 means no limit.
+     */
+    public int getMaxInFlightRequests() {
+        return maxInFlightRequests;
+    }
+
+    /**
+     * Returns how many requests may wait for a free slot once {@link #getMaxInFlightRequests()} is reached.
+     * Requests beyond that are answered with 503 right away.
+     */
+    public int getRequestQueueSize() {
+        return requestQueueSize;
+    }
+
+    public int getRequestQueueTimeoutMs() {
+        return requestQueueTimeoutMs;
+    }
+
+    public int getRetryAfterSeconds() {
+        return retryAfterSeconds;
+    }
+
     public String getServerUrl() {
         return "http://" + host + ":" + port;
     }
@@ -91,12 +218,26 @@ public final class Config {
     @Override
     public String toString() {
         return String.format(
-            "Config{host='%s', port=%d, readTimeoutMs=%d, acceptBacklog=%d, maxRequestBodyBytes=%d}",
+            "Config{host='%s', port=%d, readTimeoutMs=%d, acceptBacklog=%d, maxRequestBodyBytes=%d, "
+                + "keepAliveTimeoutMs=%d, maxRequestsPerConnection=%d, engine=%s, eventLoopThreads=%d, "
+                + "acceptorThreads=%d, maxHeaderLineBytes=%d, maxHeaderCount=%d, maxInFlightRequests=%d, "
+                + "requestQueueSize=%d, requestQueueTimeoutMs=%d, retryAfterSeconds=%d}",
             host,
             port,
             readTimeoutMs,
             acceptBacklog,
-            maxRequestBodyBytes
+            maxRequestBodyBytes,
+            keepAliveTimeoutMs,
+            maxRequestsPerConnection,
+            engine,
+            eventLoopThreads,
+            acceptorThreads,
+            maxHeaderLineBytes,
+            maxHeaderCount,
+            maxInFlightRequests,
+            requestQueueSize,
+            requestQueueTimeoutMs,
+            retryAfterSeconds
         );
     }
 
@@ -114,6 +255,13 @@ public final class Config {
         return port;
     }
 
+    private static ServerEngine requireEngine(ServerEngine engine) {
+        if (engine == null) {
+            throw new IllegalArgumentException("engine cannot be null");
+        }
+        return engine;
+    }
+
     private static int requirePositive(int value, String fieldName) {
         if (value <= 0) {
             throw new IllegalArgumentException(fieldName + " must be > 0");
@@ -134,6 +282,17 @@ public final class Config {
         private int readTimeoutMs = DEFAULT_READ_TIMEOUT_MS;
         private int acceptBacklog = DEFAULT_ACCEPT_BACKLOG;
         private int maxRequestBodyBytes = DEFAULT_MAX_REQUEST_BODY_BYTES;
+        private int keepAliveTimeoutMs = DEFAULT_KEEP_ALIVE_TIMEOUT_MS;
+        private int maxRequestsPerConnection = DEFAULT_MAX_REQUESTS_PER_CONNECTION;
+        private ServerEngine engine = DEFAULT_ENGINE;
+        private int eventLoopThreads = Runtime.getRuntime().availableProcessors();
+        private int acceptorThreads = DEFAULT_ACCEPTOR_THREADS;
+        private int maxHeaderLineBytes = DEFAULT_MAX_HEADER_LINE_BYTES;
+        private int maxHeaderCount = DEFAULT_MAX_HEADER_COUNT;
+        private int maxInFlightRequests = DEFAULT_MAX_IN_FLIGHT_REQUESTS;
+        private int requestQueueSize = DEFAULT_REQUEST_QUEUE_SIZE;
+        private int requestQueueTimeoutMs = DEFAULT_REQUEST_QUEUE_TIMEOUT_MS;
+        private int retryAfterSeconds = DEFAULT_RETRY_AFTER_SECONDS;
 
         private Builder() {
         }
@@ -163,6 +322,61 @@ public final class Config {
             return this;
         }
 
+        public Builder keepAliveTimeoutMs(int keepAliveTimeoutMs) {
+            this.keepAliveTimeoutMs = keepAliveTimeoutMs;
+            return this;
+        }
+
+        public Builder maxRequestsPerConnection(int maxRequestsPerConnection) {
+            this.maxRequestsPerConnection = maxRequestsPerConnection;
+            return this;
+        }
+
+        public Builder engine(ServerEngine engine) {
+            this.engine = engine;
+            return this;
+        }
+
+        public Builder eventLoopThreads(int eventLoopThreads) {
+            this.eventLoopThreads = eventLoopThreads;
+            return this;
+        }
+
+        public Builder acceptorThreads(int acceptorThreads) {
+            this.acceptorThreads = acceptorThreads;
+            return this;
+        }
+
+        public Builder maxHeaderLineBytes(int maxHeaderLineBytes) {
+            this.maxHeaderLineBytes = maxHeaderLineBytes;
+            return this;
+        }
+
+        public Builder maxHeaderCount(int maxHeaderCount) {
+            this.maxHeaderCount = maxHeaderCount;
+            return this;
+        }
+
+        public Builder maxInFlightRequests(int maxInFlightRequests) {
+            this.maxInFlightRequests = maxInFlightRequests;
+            return this;
+        }
+
+        public Builder requestQueueSize(int requestQueueSize) {
+            this.requestQueueSize = requestQueueSize;
+            return this;
+        }
+
+        public Builder requestQueueTimeoutMs(int requestQueueTimeoutMs) {
+            this.requestQueueTimeoutMs = requestQueueTimeoutMs;
+            return this;
+        }
+
+        public Builder retryAfterSeconds(int retryAfterSeconds) {
+            this.retryAfterSeconds = retryAfterSeconds;
+            return this;
+        }
+
         public Config build() {
             return new Config(this);
         }
@@ -0,0 +1,41 @@
+package remast.marga;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A response output that can send a file region straight to the socket with
+ * {@link FileChannel#transferTo}, which the kernel serves as sendfile without copying the bytes
+ * through the heap. Implemented by the engines' connection outputs.
+ */
+interface FileTransferTarget {
+
+    /**
+     * Sends exactly {@code count} bytes of the file starting at {@code position}, after any buffered bytes.
+     */
+    void transferFrom(FileChannel file, long position, long count) throws IOException;
+
+    /**
+     * Transfers the region to the channel, calling {@code onStall} whenever a non-blocking channel takes no bytes.
+     */
+    static void transfer(FileChannel file, long position, long count, WritableByteChannel target, Stall onStall) throws IOException {
+        var end = position + count;
+        while (position < end) {
+            var transferred = file.transferTo(position, end - position, target);
+            if (transferred > 0) {
+                position += transferred;
+            } else if (position >= file.size()) {
+                throw new EOFException("File ended " + (end - position) + " bytes before its declared length");
+            } else {
+                onStall.await();
+            }
+        }
+    }
+
+    @FunctionalInterface
+    interface Stall {
+        void await() throws IOException;
+    }
+}
@@ -0,0 +1,436 @@
+package remast.marga;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The header fields of a request or response in the order they were added.
+ *
+ * <p>Names are compared ignoring ASCII case, as HTTP requires. Names of well-known headers are stored
+ * in the canonical spelling of their {@link HttpHeader} constant, other names as first given. A name may
+ * carry several values (e.g. {@code Set-Cookie}); they are kept as separate fields. Lookups go through a
+ * small open-addressing index keyed by a case-insensitive hash, and fields of well-known headers carry
+ * their {@link HttpHeader} ordinal, so looking one up by constant compares ordinals instead of characters.
+ * The fields live in parallel arrays, so a header set costs a handful of allocations however many fields it has.
+ *
+ * <p>Not thread-safe; a request or response is handled by one thread at a time.
+ */
+final class Headers {
+    private static final int INITIAL_CAPACITY = 8;
+    private static final int UNKNOWN = -1;
+    private static final HttpHeader[] KNOWN = HttpHeader.values();
+    private static final int[] KNOWN_HASHES = knownHashes();
+    // Well-known headers by case-insensitive hash, for canonicalizing names given as Strings.
+    private static final HttpHeader[] KNOWN_TABLE = knownTable();
+
+    private String[] names;
+    private String[] values;
+    private int[] ordinals;
+    private int size;
+    // Open-addressing index from the hash of a name to 1 + the position of its first field; 0 is free.
+    private int[] index;
+
+    Headers() {
+        this(INITIAL_CAPACITY);
+    }
+
+    Headers(int capacity) {
+        var fields = Math.max(capacity, 1);
+        names = new String[fields];
+        values = new String[fields];
+        ordinals = new int[fields];
+        index = new int[tableSize(fields)];
+    }
+
+    /**
+     * Copies the map; a null value is skipped.
+     */
+    static Headers of(Map<String, String> map) {
+        var headers = new Headers(map.size());
+        for (var entry : map.entrySet()) {
+            headers.add(entry.getKey(), entry.getValue());
+        }
+        return headers;
+    }
+
+    /**
+     * Returns the well-known header with this name ignoring case, or null.
+     */
+    static HttpHeader known(String name) {
+        var mask = KNOWN_TABLE.length - 1;
+        for (var slot = hash(name) & mask; KNOWN_TABLE[slot] != null; slot = (slot + 1) & mask) {
+            if (equalsIgnoreCase(KNOWN_TABLE[slot].getValue(), name)) {
+                return KNOWN_TABLE[slot];
+            }
+        }
+        return null;
+    }
+
+    int size() {
+        return size;
+    }
+
+    String name(int field) {
+        return names[field];
+    }
+
+    String value(int field) {
+        return values[field];
+    }
+
+    /**
+     * Returns the well-known header of the field, or null if its name is not one.
+     */
+    HttpHeader knownHeader(int field) {
+        return ordinals[field] == UNKNOWN ? null : KNOWN[ordinals[field]];
+    }
+
+    /**
+     * Returns the first value of the header, or null.
+     */
+    String get(String name) {
+        var field = first(name);
+        return field < 0 ? null : values[field];
+    }
+
+    String get(HttpHeader header) {
+        var field = first(header);
+        return field < 0 ? null : values[field];
+    }
+
+    /**
+     * Returns all values of the header in the order they were added.
+     */
+    List<String> getAll(String name) {
+        var first = first(name);
+        if (first < 0) {
+            return List.of();
+        }
+        var result = new ArrayList<String>(2);
+        for (var field = first; field < size; field++) {
+            if (equalsIgnoreCase(names[field], name)) {
+                result.add(values[field]);
+            }
+        }
+        return result;
+    }
+
+    List<String> getAll(HttpHeader header) {
+        return getAll(header.getValue());
+    }
+
+    boolean contains(String name) {
+        return first(name) >= 0;
+    }
+
+    boolean contains(HttpHeader header) {
+        return first(header) >= 0;
+    }
+
+    /**
+     * Adds a field, keeping those already there under the same name. A null value is ignored.
+     */
+    void add(String name, String value) {
+        if (name == null) {
+            throw new IllegalArgumentException("Header name cannot be null");
+        }
+        if (value == null) {
+            return;
+        }
+        var known = known(name);
+        if (known != null) {
+            append(known.getValue(), value, known.ordinal(), KNOWN_HASHES[known.ordinal()]);
+        } else {
+            append(name, value, UNKNOWN, hash(name));
+        }
+    }
+
+    void add(HttpHeader header, String value) {
+        if (value != null) {
+            append(header.getValue(), value, header.ordinal(), KNOWN_HASHES[header.ordinal()]);
+        }
+    }
+
+    /**
+     * Replaces all fields of the name with one holding the value, or removes them if the value is null.
+     */
+    void set(String name, String value) {
+        if (name == null) {
+            throw new IllegalArgumentException("Header name cannot be null");
+        }
+        var field = first(name);
+        if (field >= 0 && value != null && isLast(field)) {
+            values[field] = value;
+            return;
+        }
+        if (field >= 0) {
+            remove(name);
+        }
+        add(name, value);
+    }
+
+    void set(HttpHeader header, String value) {
+        set(header.getValue(), value);
+    }
+
+    /**
+     * Replaces the fields of every name in {@code other} with its fields.
+     */
+    void setAll(Headers other) {
+        for (var field = 0; field < other.size; field++) {
+            if (other.first(other.names[field]) == field) {
+                remove(other.names[field]);
+            }
+        }
+        for (var field = 0; field < other.size; field++) {
+            append(other.names[field], other.values[field], other.ordinals[field], hash(other.names[field]));
+        }
+    }
+
+    /**
+     * Removes all fields of the name. Returns true if there were any.
+     */
+    boolean remove(String name) {
+        if (first(name) < 0) {
+            return false;
+        }
+        var kept = 0;
+        for (var field = 0; field < size; field++) {
+            if (!equalsIgnoreCase(names[field], name)) {
+                names[kept] = names[field];
+                values[kept] = values[field];
+                ordinals[kept] = ordinals[field];
+                kept++;
+            }
+        }
+        for (var field = kept; field < size; field++) {
+            names[field] = null;
+            values[field] = null;
+        }
+        size = kept;
+        rebuildIndex(index.length);
+        return true;
+    }
+
+    boolean remove(HttpHeader header) {
+        return remove(header.getValue());
+    }
+
+    /**
+     * Returns a read-only live view with one entry per name. Several values of a name are joined with
+     * ", ", the list form HTTP allows for most headers; use {@link #getAll} to keep them apart.
+     * {@code get} and {@code containsKey} ignore case.
+     */
+    Map<String, String> asMap() {
+        return new MapView();
+    }
+
+    @Override
+    public String toString() {
+        return asMap().toString();
+    }
+
+    private int first(String name) {
+        if (name == null) {
+            return -1;
+        }
+        var mask = index.length - 1;
+        for (var slot = hash(name) & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            var field = index[slot] - 1;
+            if (equalsIgnoreCase(names[field], name)) {
+                return field;
+            }
+        }
+        return -1;
+    }
+
+    private int first(HttpHeader header) {
+        var ordinal = header.ordinal();
+        var mask = index.length - 1;
+        for (var slot = KNOWN_HASHES[ordinal] & mask; index[slot] != 0; slot = (slot + 1) & mask) {
+            var field = index[slot] - 1;
+            if (ordinals[field] == ordinal) {
+                return field;
+            }
+        }
+        return -1;
+    }
+
+    private boolean isLast(int field) {
+        for (var later = field + 1; later < size; later++) {
+            if (ordinals[later] == ordinals[field] && equalsIgnoreCase(names[later], names[field])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void append(String name, String value, int ordinal, int hash) {
+        if (size == names.length) {
+            var capacity = names.length * 2;
+            names = Arrays.copyOf(names, capacity);
+            values = Arrays.copyOf(values, capacity);
+            ordinals = Arrays.copyOf(ordinals, capacity);
+            rebuildIndex(tableSize(capacity));
+        }
+        var field = size++;
+        names[field] = name;
+        values[field] = value;
+        ordinals[field] = ordinal;
+        indexFirst(field, hash);
+    }
+
+    /**
+     * Enters the field into the index unless an earlier field of the same name is there already.
+     */
+    private void indexFirst(int field, int hash) {
+        var mask = index.length - 1;
+        var slot = hash & mask;
+        for (; index[slot] != 0; slot = (slot + 1) & mask) {
+            if (equalsIgnoreCase(names[index[slot] - 1], names[field])) {
+                return;
+            }
+        }
+        index[slot] = field + 1;
+    }
+
+    private void rebuildIndex(int tableSize) {
+        index = new int[tableSize];
+        for (var field = 0; field < size; field++) {
+            indexFirst(field, ordinals[field] == UNKNOWN ? hash(names[field]) : KNOWN_HASHES[ordinals[field]]);
+        }
+    }
+
+    private static int tableSize(int fields) {
+        return Integer.highestOneBit(fields * 2 - 1) << 1;
+    }
+
+    /**
+     * A String hash over the lower-cased ASCII letters, so names differing only in case hash alike.
+     */
+    private static int hash(String name) {
+        var hash = 0;
+        for (var i = 0; i < name.length(); i++) {
+            hash = 31 * hash + toLowerCase(name.charAt(i));
+        }
+        return hash ^ (hash >>> 16);
+    }
+
+    private static boolean equalsIgnoreCase(String a, String b) {
+        if (a == b) {
+            return true;
+        }
+        if (a.length() != b.length()) {
+            return false;
+        }
+        for (var i = 0; i < a.length(); i++) {
+            if (toLowerCase(a.charAt(i)) != toLowerCase(b.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static char toLowerCase(char c) {
+        return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+    }
+
+    private static int[] knownHashes() {
+        var hashes = new int[KNOWN.length];
+        for (var header : KNOWN) {
+            hashes[header.ordinal()] = hash(header.getValue());
+        }
+        return hashes;
+    }
+
+    private static HttpHeader[] knownTable() {
+        var table = new HttpHeader[tableSize(KNOWN.length) * 2];
+        var mask = table.length - 1;
+        for (var header : KNOWN) {
+            var slot = KNOWN_HASHES[header.ordinal()] & mask;
+            while (table[slot] != null) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = header;
+        }
+        return table;
+    }
+
+    private final class MapView extends AbstractMap<String, String> {
+        @Override
+        public String get(Object key) {
+            return key instanceof String name ? joined(first(name)) : null;
+        }
+
+        @Override
+        public boolean containsKey(Object key) {
+            return key instanceof String name && first(name) >= 0;
+        }
+
+        @Override
+        public Set<Entry<String, String>> entrySet() {
+            return new AbstractSet<>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator() {
+                    return new Iterator<>() {
+                        private int next = advance(0);
+
+                        @Override
+                        public boolean hasNext() {
+                            return next < size;
+                        }
+
+                        @Override
+                        public Entry<String, String> next() {
+                            if (next >= size) {
+                                throw new NoSuchElementException();
+                            }
+                            var field = next;
+                            next = advance(field + 1);
+                            return new SimpleImmutableEntry<>(names[field], joined(field));
+                        }
+                    };
+                }
+
+                @Override
+                public int size() {
+                    var distinct = 0;
+                    for (var field = advance(0); field < Headers.this.size; field = advance(field + 1)) {
+                        distinct++;
+                    }
+                    return distinct;
+                }
+            };
+        }
+
+        /**
+         * Returns the position of the next field at or after {@code field} that is the first of its name.
+         */
+        private int advance(int field) {
+            while (field < size && first(names[field]) != field) {
+                field++;
+            }
+            return field;
+        }
+
+        private String joined(int first) {
+            if (first < 0) {
+                return null;
+            }
+            String result = values[first];
+            for (var field = first + 1; field < size; field++) {
+                if (equalsIgnoreCase(names[field], names[first])) {
+                    result = result + ", " + values[field];
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -18,6 +18,7 @@ public enum HttpHeader {
     
     // Caching headers
     CACHE_CONTROL("Cache-Control"),
+    AGE("Age"),
     ETAG("ETag"),
     EXPIRES("Expires"),
     LAST_MODIFIED("Last-Modified"),
@@ -51,6 +52,7 @@ public enum HttpHeader {
     REFERER("Referer"),
     HOST("Host"),
     ORIGIN("Origin"),
+    COOKIE("Cookie"),
     
     // Response headers
     DATE("Date"),
@@ -60,10 +62,12 @@ public enum HttpHeader {
     RETRY_AFTER("Retry-After"),
     SERVER("Server"),
     VARY("Vary"),
+    SET_COOKIE("Set-Cookie"),
     
     // Connection headers
     CONNECTION("Connection"),
     KEEP_ALIVE("Keep-Alive"),
+    TRANSFER_ENCODING("Transfer-Encoding"),
     UPGRADE("Upgrade"),
     
     // Security headers
@@ -115,12 +119,6 @@ public enum HttpHeader {
         if (headerName == null) {
             return null;
         }
-        
-        for (HttpHeader header : values()) {
-            if (header.value.equalsIgnoreCase(headerName)) {
-                return header;
-            }
-        }
-        return null;
+        return Headers.known(headerName);
     }
 }
@@ -0,0 +1,24 @@
+package remast.marga;
+
+/**
+ * Signals a request head that cannot be served. The connection is answered with {@link #getStatus()}
+ * and closed, as the rest of the stream can no longer be trusted.
+ */
+final class HttpParseException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final HttpStatus status;
+
+    HttpParseException(HttpStatus status, String message) {
+        super(message, null, false, false);
+        this.status = status;
+    }
+
+    HttpStatus getStatus() {
+        return status;
+    }
+
+    Response toResponse() {
+        return new Response(status.getCode() + " - " + status.getReasonPhrase(), status);
+    }
+}
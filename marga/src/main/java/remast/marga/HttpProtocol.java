@@ -0,0 +1,126 @@
+package remast.marga;
+
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
+import java.nio.charset.UnsupportedCharsetException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * HTTP/1.x request parsing helpers shared by the server engines.
+ */
+final class HttpProtocol {
+    private static final Logger logger = Logger.getLogger(HttpProtocol.class.getName());
+
+    static final String HTTP_1_0 = "HTTP/1.0";
+    static final String CLOSE = "close";
+    static final String KEEP_ALIVE = "keep-alive";
+
+    private HttpProtocol() {
+    }
+
+    static Request newRequest(String method, String target, RawHeaders headers, byte[] body) {
+        var charset = parseCharset(headers.get(HttpHeader.CONTENT_TYPE.getValue()));
+        var questionMarkIndex = target.indexOf('?');
+        var path = questionMarkIndex != -1 ? target.substring(0, questionMarkIndex) : target;
+        var query = questionMarkIndex != -1 ? target.substring(questionMarkIndex + 1) : null;
+        // The parser hands over fresh headers and arrays, so the request can own them. Headers and
+        // query parameters are decoded when the handler first asks for them.
+        return Request.owning(normalizeMethod(method), path, headers, query, body, charset);
+    }
+
+    static Map<String, String> parseQueryString(String queryString) {
+        var queryParams = new HashMap<String, String>();
+        if (queryString.isEmpty()) {
+            return queryParams;
+        }
+
+        var pairs = queryString.split("&");
+        for (var pair : pairs) {
+            var equalIndex = pair.indexOf('=');
+            if (equalIndex != -1) {
+                var key = pair.substring(0, equalIndex);
+                var value = pair.substring(equalIndex + 1);
+                queryParams.put(urlDecode(key), urlDecode(value));
+            } else if (!pair.isEmpty()) {
+                queryParams.put(urlDecode(pair), "");
+            }
+        }
+
+        return queryParams;
+    }
+
+    private static String urlDecode(String encoded) {
+        try {
+            return java.net.URLDecoder.decode(encoded, StandardCharsets.UTF_8);
+        } catch (Exception e) {
+            return encoded;
+        }
+    }
+
+    static int parseContentLength(RawHeaders headers) {
+        var value = headers.get(HttpHeader.CONTENT_LENGTH.getValue());
+        if (value == null || value.isBlank()) {
+            return 0;
+        }
+        try {
+            var parsed = Integer.parseInt(value.trim());
+            return Math.max(parsed, 0);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    static Charset parseCharset(String contentType) {
+        if (contentType == null) {
+            return StandardCharsets.UTF_8;
+        }
+        var lower = contentType.toLowerCase();
+        var idx = lower.indexOf("charset=");
+        if (idx < 0) {
+            return StandardCharsets.UTF_8;
+        }
+        var charsetName = contentType.substring(idx + "charset=".length()).trim();
+        var semi = charsetName.indexOf(';');
+        if (semi >= 0) {
+            charsetName = charsetName.substring(0, semi).trim();
+        }
+        if (charsetName.startsWith("\"") && charsetName.endsWith("\"") && charsetName.length() >= 2) {
+            charsetName = charsetName.substring(1, charsetName.length() - 1);
+        }
+        try {
+            return Charset.forName(charsetName);
+        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
+            logger.warning("Unsupported charset '" + charsetName + "', falling back to UTF-8");
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    static boolean isKeepAliveRequested(String version, String connection) {
+        if (HTTP_1_0.equalsIgnoreCase(version)) {
+            return hasConnectionToken(connection, KEEP_ALIVE);
+        }
+        return !hasConnectionToken(connection, CLOSE);
+    }
+
+    static boolean hasConnectionToken(String connection, String token) {
+        if (connection == null) {
+            return false;
+        }
+        for (var part : connection.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static String normalizeMethod(String method) {
+        if (method == null || method.isBlank()) {
+            return "GET";
+        }
+        return method.trim().toUpperCase();
+    }
+}
@@ -0,0 +1,253 @@
+package remast.marga;
+
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Incremental parser for HTTP/1.x request heads working directly on the received bytes.
+ *
+ * <p>Each call consumes the complete lines available in the given range and remembers where the head
+ * stands, so a head arriving in fragments is never scanned twice and the caller may drop consumed bytes
+ * between calls. Lines end with CRLF or a bare LF. Known methods, versions and header names are matched
+ * byte by byte and returned as shared constants; only the request target is decoded into a new String.
+ * Header fields are copied as bytes into {@link RawHeaders} and decoded when the request is handled.
+ * One parser is reused for all requests of a connection via {@link #reset()} and passes the client's
+ * address on to each of them.
+ */
+final class HttpRequestParser {
+    private static final String HTTP_1_1 = "HTTP/1.1";
+    private static final String[] KNOWN_METHODS = {"GET", "POST", "PUT", "DELETE", "PATCH", "HEAD", "OPTIONS", "TRACE", "CONNECT"};
+    private static final String[] KNOWN_VERSIONS = {HTTP_1_1, HttpProtocol.HTTP_1_0};
+
+    private final int maxLineBytes;
+    private final int maxHeaderCount;
+    private final int maxBodyBytes;
+    private final InetSocketAddress remoteAddress;
+
+    private String method;
+    private String target;
+    private String version;
+    private RawHeaders headers;
+    private int headerCount;
+    private int contentLength;
+    private boolean complete;
+    private boolean blank;
+
+    HttpRequestParser(Config config) {
+        this(config, null);
+    }
+
+    HttpRequestParser(Config config, InetSocketAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+        this.maxLineBytes = config.getMaxHeaderLineBytes();
+        this.maxHeaderCount = config.getMaxHeaderCount();
+        this.maxBodyBytes = config.getMaxRequestBodyBytes();
+    }
+
+    /**
+     * Parses the complete lines in {@code data[from, to)} and returns the index just past the last
+     * consumed byte. Once {@link #isComplete()} returns true, the bytes from the returned index on belong
+     * to the body or to the next request.
+     */
+    int parse(byte[] data, int from, int to) throws HttpParseException {
+        var position = from;
+        while (!complete) {
+            var lineEnd = indexOf(data, position, to, (byte) '\n');
+            if (lineEnd < 0) {
+                if (to - position > maxLineBytes) {
+                    throw lineTooLong();
+                }
+                return position;
+            }
+            var contentEnd = lineEnd > position && data[lineEnd - 1] == '\r' ? lineEnd - 1 : lineEnd;
+            if (contentEnd - position > maxLineBytes) {
+                throw lineTooLong();
+            }
+
+            if (method == null) {
+                if (contentEnd == position) {
+                    blank = true;
+                    complete = true;
+                } else {
+                    parseRequestLine(data, position, contentEnd);
+                }
+            } else if (contentEnd == position) {
+                finishHead();
+            } else {
+                parseHeaderLine(data, position, contentEnd);
+            }
+            position = lineEnd + 1;
+        }
+        return position;
+    }
+
+    void reset() {
+        method = null;
+        target = null;
+        version = null;
+        headers = null;
+        headerCount = 0;
+        contentLength = 0;
+        complete = false;
+        blank = false;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    /**
+     * True if the head has started but is not complete yet.
+     */
+    boolean isInProgress() {
+        return method != null && !complete;
+    }
+
+    /**
+     * True if the request line was empty, which this server takes as the client ending the connection.
+     */
+    boolean isBlank() {
+        return blank;
+    }
+
+    String method() {
+        return method;
+    }
+
+    String target() {
+        return target;
+    }
+
+    String version() {
+        return version;
+    }
+
+    RawHeaders headers() {
+        return headers;
+    }
+
+    int contentLength() {
+        return contentLength;
+    }
+
+    Request newRequest(byte[] body) {
+        var request = HttpProtocol.newRequest(method, target, headers, body);
+        request.remoteAddress(remoteAddress);
+        return request;
+    }
+
+    private void parseRequestLine(byte[] data, int from, int to) throws HttpParseException {
+        var methodEnd = indexOf(data, from, to, (byte) ' ');
+        if (methodEnd <= from) {
+            throw new HttpParseException(HttpStatus.BAD_REQUEST, "Malformed request line");
+        }
+        var targetStart = methodEnd + 1;
+        var targetEnd = indexOf(data, targetStart, to, (byte) ' ');
+        if (targetEnd < 0) {
+            targetEnd = to;
+        }
+        if (targetEnd == targetStart) {
+            throw new HttpParseException(HttpStatus.BAD_REQUEST, "Malformed request line");
+        }
+
+        method = intern(KNOWN_METHODS, data, from, methodEnd);
+        target = latin1(data, targetStart, targetEnd);
+        version = HttpProtocol.HTTP_1_0;
+        if (targetEnd < to) {
+            var versionStart = targetEnd + 1;
+            var versionEnd = indexOf(data, versionStart, to, (byte) ' ');
+            if (versionEnd < 0) {
+                versionEnd = to;
+            }
+            if (versionEnd > versionStart) {
+                version = intern(KNOWN_VERSIONS, data, versionStart, versionEnd);
+            }
+        }
+        headers = new RawHeaders();
+    }
+
+    private void parseHeaderLine(byte[] data, int from, int to) throws HttpParseException {
+        if (++headerCount > maxHeaderCount) {
+            throw new HttpParseException(HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE, "Too many header fields");
+        }
+        var colon = indexOf(data, from, to, (byte) ':');
+        if (colon < 0) {
+            return;
+        }
+        var nameStart = skipWhitespace(data, from, colon);
+        var nameEnd = trimWhitespace(data, nameStart, colon);
+        if (nameEnd == nameStart) {
+            return;
+        }
+        var valueStart = skipWhitespace(data, colon + 1, to);
+        var valueEnd = trimWhitespace(data, valueStart, to);
+        headers.add(data, nameStart, nameEnd, valueStart, valueEnd);
+    }
+
+    private void finishHead() throws HttpParseException {
+        contentLength = HttpProtocol.parseContentLength(headers);
+        if (contentLength > maxBodyBytes) {
+            throw new HttpParseException(HttpStatus.PAYLOAD_TOO_LARGE, "Request body exceeds " + maxBodyBytes + " bytes");
+        }
+        complete = true;
+    }
+
+    private HttpParseException lineTooLong() {
+        if (method == null) {
+            return new HttpParseException(HttpStatus.URI_TOO_LONG, "Request line exceeds " + maxLineBytes + " bytes");
+        }
+        return new HttpParseException(HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE, "Header line exceeds " + maxLineBytes + " bytes");
+    }
+
+    /**
+     * Returns the candidate spelled exactly like {@code data[from, to)}, or a new String if none is.
+     */
+    private static String intern(String[] candidates, byte[] data, int from, int to) {
+        for (var candidate : candidates) {
+            if (matches(candidate, data, from, to)) {
+                return candidate;
+            }
+        }
+        return latin1(data, from, to);
+    }
+
+    private static boolean matches(String candidate, byte[] data, int from, int to) {
+        if (candidate.length() != to - from) {
+            return false;
+        }
+        for (var i = 0; i < candidate.length(); i++) {
+            if (candidate.charAt(i) != (data[from + i] & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String latin1(byte[] data, int from, int to) {
+        return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private static int indexOf(byte[] data, int from, int to, byte value) {
+        for (var i = from; i < to; i++) {
+            if (data[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Whitespace as understood by String.trim(), which the line-based parsing used before.
+    private static int skipWhitespace(byte[] data, int from, int to) {
+        while (from < to && (data[from] & 0xFF) <= ' ') {
+            from++;
+        }
+        return from;
+    }
+
+    private static int trimWhitespace(byte[] data, int from, int to) {
+        while (to > from && (data[to - 1] & 0xFF) <= ' ') {
+            to--;
+        }
+        return to;
+    }
+}
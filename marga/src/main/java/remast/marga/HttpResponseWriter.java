@@ -2,104 +2,287 @@ package remast.marga;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.time.Instant;
 import java.time.ZoneOffset;
-import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Locale;
 
+/**
+ * Serializes a {@link Response} onto the connection's output stream. The writer never flushes;
+ * the server decides when buffered responses are sent so pipelined responses can share one write.
+ *
+ * <p>The head is assembled in the connection's reused {@link ResponseHead} from pre-encoded status
+ * lines and header lines, and the Date line is encoded once per second. A {@link ResponseOutput}
+ * receives head and body together so they can leave in one gathering write.
+ */
 final class HttpResponseWriter {
     private static final String CRLF = "\r\n";
+    private static final byte[] CRLF_BYTES = ascii(CRLF);
+    private static final byte[] HEADER_SEPARATOR = ascii(": ");
+    private static final byte[] CONTENT_LENGTH = ascii(HttpHeader.CONTENT_LENGTH.getValue() + ": ");
+    private static final byte[] TRANSFER_ENCODING_CHUNKED = ascii(HttpHeader.TRANSFER_ENCODING.getValue() + ": chunked" + CRLF);
+    private static final byte[] CONNECTION_KEEP_ALIVE = ascii(HttpHeader.CONNECTION.getValue() + ": keep-alive" + CRLF);
+    private static final byte[] CONNECTION_CLOSE = ascii(HttpHeader.CONNECTION.getValue() + ": close" + CRLF);
+    private static final byte[] CHARSET_PARAMETER = ascii("; charset=");
+    private static final byte[][] STATUS_LINES = statusLines();
+    // IMF-fixdate; DateTimeFormatter.RFC_1123_DATE_TIME would not pad single-digit days.
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US).withZone(ZoneOffset.UTC);
 
-    void write(OutputStream outputStream, Response response) throws IOException {
-        var bodyBytes = response.getBodyBytes();
-        var headers = new HashMap<>(response.getHeaders());
+    private static volatile DateLine dateLine = new DateLine(Long.MIN_VALUE, null);
 
-        if (!containsHeader(headers, HttpHeader.CONTENT_TYPE.getValue()) && response.getMediaType() != null) {
-            headers.put(HttpHeader.CONTENT_TYPE.getValue(), response.getMediaType().getValue());
-        }
+    boolean write(OutputStream outputStream, Response response, boolean keepAlive) throws IOException {
+        return write(outputStream, response, keepAlive, true, false);
+    }
 
-        appendCharsetIfNeeded(headers, response);
-        headers.put(HttpHeader.CONTENT_LENGTH.getValue(), String.valueOf(bodyBytes.length));
-        headers.putIfAbsent(HttpHeader.CONNECTION.getValue(), "close");
-        headers.putIfAbsent(HttpHeader.DATE.getValue(), rfc1123Now());
+    /**
+     * Writes the response and returns whether the connection may be kept alive. That is {@code keepAlive}
+     * unless a streamed body of unknown length cannot be chunked because the client does not support it,
+     * in which case the body ends with the connection. The answer to a HEAD request carries the framing
+     * headers the body would have had, but not the body. Neither has a 204 or 304 response, which also
+     * goes without {@code Content-Length}.
+     */
+    boolean write(OutputStream outputStream, Response response, boolean keepAlive, boolean chunkedAllowed, boolean headRequest) throws IOException {
+        var responseOutput = outputStream instanceof ResponseOutput output ? output : null;
+        var head = responseOutput != null ? responseOutput.responseHead() : new ResponseHead();
 
-        for (var entry : headers.entrySet()) {
-            validateHeaderValue(entry.getKey(), entry.getValue());
+        var streamingBody = response.getStreamingBody();
+        if (streamingBody == null) {
+            var body = response.body();
+            writeHead(head, response, keepAlive, body.length, false);
+            var bodyLength = headRequest || isBodiless(response.getStatusCode()) ? 0 : body.length;
+            if (responseOutput != null) {
+                responseOutput.writeResponse(head, body, 0, bodyLength);
+            } else {
+                outputStream.write(head.bytes(), 0, head.length());
+                outputStream.write(body, 0, bodyLength);
+            }
+            return keepAlive;
         }
 
-        writeAsciiLine(outputStream, buildStatusLine(response.getStatusCode()));
-        for (var entry : headers.entrySet()) {
-            writeAsciiLine(outputStream, entry.getKey() + ": " + entry.getValue());
+        try (streamingBody) {
+            var length = streamingBody.length();
+            var chunked = length < 0 && chunkedAllowed;
+            // Like the answer to HEAD, a 204 or 304 response ends with its head, whatever the body would be.
+            if (headRequest || isBodiless(response.getStatusCode())) {
+                writeHead(head, response, keepAlive, length, chunked);
+                outputStream.write(head.bytes(), 0, head.length());
+                return keepAlive;
+            }
+            var persistent = keepAlive && (length >= 0 || chunked);
+            writeHead(head, response, persistent, length, chunked);
+            outputStream.write(head.bytes(), 0, head.length());
+
+            var bodyStream = new BodyOutputStream(outputStream, chunked);
+            try {
+                streamingBody.writeTo(bodyStream);
+            } catch (RuntimeException e) {
+                // The head is already out, so there is no way to answer with an error; the connection must be dropped.
+                throw new IOException("Failed to write streaming response body", e);
+            }
+            bodyStream.finish();
+            return persistent;
         }
-        writeAsciiLine(outputStream, "");
-        outputStream.write(bodyBytes);
-        outputStream.flush();
     }
 
-    private static String buildStatusLine(int statusCode) {
-        var status = HttpStatus.fromCode(statusCode);
-        if (status != null) {
-            return "HTTP/1.1 " + status;
+    /**
+     * Assembles the head. Framing and connection headers are the writer's business, so handler-supplied
+     * values for them are replaced. Nothing is written if a header value is invalid.
+     */
+    private static void writeHead(ResponseHead head, Response response, boolean keepAlive, long contentLength, boolean chunked) {
+        head.reset();
+        head.append(statusLine(response.getStatusCode()));
+        var hasDate = false;
+        var headers = response.headers();
+        for (var field = 0; field < headers.size(); field++) {
+            var known = headers.knownHeader(field);
+            if (known == HttpHeader.CONTENT_LENGTH || known == HttpHeader.TRANSFER_ENCODING || known == HttpHeader.CONNECTION) {
+                continue;
+            }
+            hasDate |= known == HttpHeader.DATE;
+            var name = headers.name(field);
+            var value = headers.value(field);
+            try {
+                head.appendText(name);
+                head.append(HEADER_SEPARATOR);
+                head.appendText(value);
+                if (known == HttpHeader.CONTENT_TYPE && needsCharset(value)) {
+                    head.append(CHARSET_PARAMETER);
+                    head.appendText(response.getCharset().name());
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("Invalid header value for '" + name + "': " + e.getMessage());
+            }
+            head.append(CRLF_BYTES);
+        }
+
+        if (isBodiless(response.getStatusCode())) {
+            // The response ends with its head, so it needs no framing.
+        } else if (chunked) {
+            head.append(TRANSFER_ENCODING_CHUNKED);
+        } else if (contentLength >= 0) {
+            head.append(CONTENT_LENGTH);
+            head.appendDecimal(contentLength);
+            head.append(CRLF_BYTES);
         }
-        return "HTTP/1.1 " + statusCode + " Status";
+        head.append(keepAlive ? CONNECTION_KEEP_ALIVE : CONNECTION_CLOSE);
+        if (!hasDate) {
+            head.append(currentDateLine());
+        }
+        head.append(CRLF_BYTES);
     }
 
-    private static void writeAsciiLine(OutputStream outputStream, String line) throws IOException {
-        outputStream.write(line.getBytes(StandardCharsets.US_ASCII));
-        outputStream.write(CRLF.getBytes(StandardCharsets.US_ASCII));
+    private static boolean isBodiless(int statusCode) {
+        return statusCode == 204 || statusCode == 304;
     }
 
-    private static void appendCharsetIfNeeded(Map<String, String> headers, Response response) {
-        var headerName = findHeaderName(headers, HttpHeader.CONTENT_TYPE.getValue());
-        if (headerName == null) {
-            return;
+    /**
+     * Textual types (text/*, JSON, XML) get the response charset unless the handler named one.
+     */
+    private static boolean needsCharset(String contentType) {
+        if (contentType.contains("charset=")) {
+            return false;
+        }
+        var end = contentType.indexOf(';');
+        if (end < 0) {
+            end = contentType.length();
         }
+        return contentType.regionMatches(true, 0, "text/", 0, 5)
+            || containsIgnoreCase(contentType, end, "json")
+            || containsIgnoreCase(contentType, end, "xml");
+    }
 
-        var contentType = headers.get(headerName);
-        if (contentType == null || contentType.contains("charset=")) {
-            return;
+    private static boolean containsIgnoreCase(String text, int end, String part) {
+        for (var i = 0; i + part.length() <= end; i++) {
+            if (text.regionMatches(true, i, part, 0, part.length())) {
+                return true;
+            }
         }
+        return false;
+    }
 
-        var mediaType = response.getMediaType();
-        if (mediaType == null) {
-            return;
+    private static byte[] statusLine(int statusCode) {
+        var line = statusCode >= 0 && statusCode < STATUS_LINES.length ? STATUS_LINES[statusCode] : null;
+        return line != null ? line : ascii("HTTP/1.1 " + statusCode + " Status" + CRLF);
+    }
+
+    private static byte[][] statusLines() {
+        var lines = new byte[600][];
+        for (var status : HttpStatus.values()) {
+            lines[status.getCode()] = ascii("HTTP/1.1 " + status + CRLF);
         }
+        return lines;
+    }
 
-        var value = mediaType.value().toLowerCase();
-        var addCharset = value.startsWith("text/") || value.contains("json") || value.contains("xml");
-        if (addCharset) {
-            headers.put(headerName, contentType + "; charset=" + response.getCharset().name());
+    /**
+     * Returns the encoded Date line, formatting it again only when the second has changed.
+     */
+    private static byte[] currentDateLine() {
+        var second = System.currentTimeMillis() / 1000;
+        var cached = dateLine;
+        if (cached.second() != second) {
+            var formatted = HTTP_DATE.format(Instant.ofEpochSecond(second));
+            cached = new DateLine(second, ascii(HttpHeader.DATE.getValue() + ": " + formatted + CRLF));
+            dateLine = cached;
         }
+        return cached.bytes();
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
     }
 
-    private static boolean containsHeader(Map<String, String> headers, String expectedName) {
-        return findHeaderName(headers, expectedName) != null;
+    private record DateLine(long second, byte[] bytes) {
     }
 
-    private static String findHeaderName(Map<String, String> headers, String expectedName) {
-        for (var name : headers.keySet()) {
-            if (name.equalsIgnoreCase(expectedName)) {
-                return name;
+    /**
+     * The stream handed to a streaming body. In chunked mode writes are collected and sent as chunks
+     * of up to {@link #CHUNK_SIZE} bytes, so many small writes do not each carry a chunk header.
+     * Closing it does not close the connection. File regions bypass it when the body is not chunked
+     * and the connection supports {@link FileTransferTarget}.
+     */
+    private static final class BodyOutputStream extends OutputStream implements FileTransferTarget {
+        private static final int CHUNK_SIZE = 8 * 1024;
+        private static final byte[] LAST_CHUNK = ("0" + CRLF + CRLF).getBytes(StandardCharsets.US_ASCII);
+
+        private final OutputStream out;
+        private final byte[] chunk;
+        private int count;
+
+        BodyOutputStream(OutputStream out, boolean chunked) {
+            this.out = out;
+            this.chunk = chunked ? new byte[CHUNK_SIZE] : null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (chunk == null) {
+                out.write(b);
+                return;
+            }
+            if (count == chunk.length) {
+                writeChunk();
             }
+            chunk[count++] = (byte) b;
         }
-        return null;
-    }
 
-    private static String rfc1123Now() {
-        return DateTimeFormatter.RFC_1123_DATE_TIME.format(ZonedDateTime.now(ZoneOffset.UTC));
-    }
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (chunk == null) {
+                out.write(bytes, offset, length);
+                return;
+            }
+            while (length > 0) {
+                if (count == chunk.length) {
+                    writeChunk();
+                }
+                var copied = Math.min(length, chunk.length - count);
+                System.arraycopy(bytes, offset, chunk, count, copied);
+                count += copied;
+                offset += copied;
+                length -= copied;
+            }
+        }
 
-    private static void validateHeaderValue(String name, String value) {
-        if (value == null) {
-            return;
+        @Override
+        public void flush() throws IOException {
+            if (chunk != null) {
+                writeChunk();
+            }
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) throws IOException {
+            if (chunk == null && out instanceof FileTransferTarget target) {
+                target.transferFrom(file, position, count);
+            } else {
+                FileTransferTarget.transfer(file, position, count, Channels.newChannel(this), () -> { });
+            }
         }
-        for (var i = 0; i < value.length(); i++) {
-            var c = value.charAt(i);
-            if (c == '\r' || c == '\n') {
-                throw new IllegalArgumentException("Invalid header value for '" + name + "': contains CR/LF");
+
+        void finish() throws IOException {
+            if (chunk != null) {
+                writeChunk();
+                out.write(LAST_CHUNK);
+            }
+        }
+
+        private void writeChunk() throws IOException {
+            if (count == 0) {
+                return;
             }
+            out.write(Integer.toHexString(count).getBytes(StandardCharsets.US_ASCII));
+            out.write(CRLF_BYTES);
+            out.write(chunk, 0, count);
+            out.write(CRLF_BYTES);
+            count = 0;
         }
     }
 }
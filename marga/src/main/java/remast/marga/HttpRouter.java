@@ -6,7 +6,7 @@ import java.util.function.Function;
 
 public class HttpRouter {
     private final Router router;
-    private final HttpServer server;
+    private final Server server;
 
     public HttpRouter() {
         this(Config.defaults());
@@ -14,7 +14,7 @@ public class HttpRouter {
 
     public HttpRouter(Config config) {
         this.router = new Router();
-        this.server = new HttpServer(router, config);
+        this.server = Server.create(router, config);
         Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
     }
 
@@ -110,6 +110,14 @@ public class HttpRouter {
         router.OPTIONS(path, handler, description);
     }
 
+    public void mount(String prefix, RequestHandler handler) {
+        router.mount(prefix, handler);
+    }
+
+    public void mount(String prefix, RequestHandler handler, String description) {
+        router.mount(prefix, handler, description);
+    }
+
     public void use(Function<RequestHandler, RequestHandler> middleware) {
         router.use(middleware);
     }
@@ -143,6 +151,13 @@ public class HttpRouter {
         return server.getBoundPort();
     }
 
+    /**
+     * Returns the live counters of the server, such as requests rejected because it was saturated.
+     */
+    public ServerStats getStats() {
+        return server.getStats();
+    }
+
     public void shutdown() {
         server.shutdown();
     }
@@ -1,279 +1,287 @@
 package remast.marga;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.nio.charset.Charset;
-import java.nio.charset.IllegalCharsetNameException;
-import java.nio.charset.StandardCharsets;
-import java.nio.charset.UnsupportedCharsetException;
-import java.util.HashMap;
-import java.util.Map;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
-final class HttpServer {
+/**
+ * Blocking server engine: one virtual thread per connection reading through socket streams.
+ */
+final class HttpServer implements Server {
     private static final Logger logger = Logger.getLogger(HttpServer.class.getName());
+    private static final int IO_BUFFER_SIZE = 16 * 1024;
 
-    private final Router router;
     private final Config config;
     private final ExecutorService executor;
-    private final HttpResponseWriter responseWriter;
+    private final RequestDispatcher dispatcher;
     private final AtomicBoolean running;
+    // Connections currently waiting for a request line; closed on shutdown so idle keep-alive
+    // connections do not hold the server open until their timeout expires.
+    private final Set<Socket> idleConnections;
 
-    private ServerSocket serverSocket;
+    private volatile AcceptorGroup acceptors;
 
     HttpServer(Router router, Config config) {
-        this.router = router;
         this.config = config;
         this.executor = Executors.newVirtualThreadPerTaskExecutor();
-        this.responseWriter = new HttpResponseWriter();
+        this.dispatcher = new RequestDispatcher(router, config);
         this.running = new AtomicBoolean(false);
+        this.idleConnections = ConcurrentHashMap.newKeySet();
     }
 
-    void run() throws IOException {
+    @Override
+    public void run() throws IOException {
         if (!running.compareAndSet(false, true)) {
             throw new IllegalStateException("Server is already running");
         }
 
         try {
-            serverSocket = new ServerSocket();
-            serverSocket.bind(new InetSocketAddress(config.getHost(), config.getPort()), config.getAcceptBacklog());
-            logger.info("HTTP Server running on " + config.getServerUrl(serverSocket.getLocalPort()));
-
-            while (running.get()) {
-                try {
-                    var clientSocket = serverSocket.accept();
-                    executor.submit(() -> handleSocketRequest(clientSocket));
-                } catch (SocketException e) {
-                    if (running.get()) {
-                        logger.warning("Socket exception while accepting connection: " + e.getMessage());
-                    }
-                }
+            var group = AcceptorGroup.bind(config);
+            acceptors = group;
+            if (!running.get()) {
+                // Shut down while binding.
+                return;
             }
+            logger.info("HTTP Server running on " + config.getServerUrl(group.getBoundPort())
+                + " (" + config.getAcceptorThreads() + " acceptors)");
+
+            group.run(channel -> executor.submit(() -> handleConnection(channel.socket())));
         } finally {
             running.set(false);
-            closeServerSocket();
+            closeAcceptors();
             executor.shutdown();
         }
     }
 
-    void shutdown() {
+    @Override
+    public void shutdown() {
         running.set(false);
-        closeServerSocket();
+        closeAcceptors();
+        closeIdleConnections();
         executor.shutdown();
     }
 
-    int getBoundPort() {
-        if (serverSocket != null && serverSocket.isBound() && !serverSocket.isClosed()) {
-            return serverSocket.getLocalPort();
+    @Override
+    public int getBoundPort() {
+        var group = acceptors;
+        if (group != null) {
+            var port = group.getBoundPort();
+            if (port != -1) {
+                return port;
+            }
         }
         return config.getPort();
     }
 
-    private void closeServerSocket() {
-        if (serverSocket != null && !serverSocket.isClosed()) {
+    @Override
+    public ServerStats getStats() {
+        return dispatcher.stats();
+    }
+
+    private void closeAcceptors() {
+        var group = acceptors;
+        if (group != null) {
+            group.close();
+        }
+    }
+
+    private void closeIdleConnections() {
+        for (var socket : idleConnections) {
             try {
-                serverSocket.close();
+                socket.close();
             } catch (IOException e) {
-                logger.fine("Failed to close server socket: " + e.getMessage());
+                logger.fine("Failed to close idle connection: " + e.getMessage());
             }
         }
     }
 
-    private void handleSocketRequest(Socket clientSocket) {
-        try (clientSocket; var in = new BufferedInputStream(clientSocket.getInputStream()); var out = clientSocket.getOutputStream()) {
+    private void handleConnection(Socket clientSocket) {
+        var stats = dispatcher.stats();
+        stats.connectionOpened();
+        ServerEvents.connectionAccepted(ServerEngine.BLOCKING, clientSocket.getRemoteSocketAddress());
+        try (clientSocket;
+             var in = clientSocket.getInputStream();
+             var out = new ChannelOutput(clientSocket.getChannel(), () -> { }, stats.bytesSent())) {
             clientSocket.setSoTimeout(config.getReadTimeoutMs());
+            var input = new InputBuffer(in, stats.bytesReceived());
+            var parser = new HttpRequestParser(config, (InetSocketAddress) clientSocket.getRemoteSocketAddress());
+            var requestCount = 0;
+            var keepAlive = true;
+            while (keepAlive && running.get()) {
+                // A pipelined request already waiting is answered before flushing, so
+                // consecutive responses leave the socket in a single write.
+                if (!input.hasRemaining() && in.available() == 0) {
+                    out.flush();
+                    if (!awaitRequest(clientSocket, input, requestCount)) {
+                        return;
+                    }
+                }
 
-            var requestLine = readLine(in);
-            if (requestLine == null || requestLine.isBlank()) {
-                return;
-            }
-
-            var requestParts = requestLine.split(" ");
-            if (requestParts.length < 2) {
-                responseWriter.write(out, Response.badRequest("400 - Bad Request"));
-                return;
-            }
-
-            var method = requestParts[0];
-            var fullPath = requestParts[1];
-            var path = extractPath(fullPath);
-            var queryParams = parseQueryParameters(fullPath);
-            var headers = parseHeaders(in);
-
-            var contentLength = parseContentLength(headers);
-            if (contentLength > config.getMaxRequestBodyBytes()) {
-                responseWriter.write(out, new Response("413 - Payload Too Large", HttpStatus.PAYLOAD_TOO_LARGE));
-                return;
-            }
-
-            var body = contentLength > 0 ? in.readNBytes(contentLength) : new byte[0];
-            var charset = parseCharset(headers.get(HttpHeader.CONTENT_TYPE.getValue()));
-            var request = new Request(normalizeMethod(method), path, headers, queryParams, body, charset);
-
-            Response response;
-            try {
-                response = router.handleRequest(request);
-            } catch (Throwable t) {
-                logger.severe("Unhandled exception while handling request: " + t.getMessage());
-                response = Response.serverError("500 - Internal Server Error");
-            }
-
-            try {
-                responseWriter.write(out, response);
-            } catch (IllegalArgumentException e) {
-                logger.severe("Invalid response headers, returning 500: " + e.getMessage());
-                responseWriter.write(out, Response.serverError("500 - Internal Server Error"));
+                requestCount++;
+                keepAlive = handleRequest(input, parser, out, requestCount);
             }
         } catch (SocketException e) {
             logger.fine("Socket closed while handling request: " + e.getMessage());
         } catch (IOException e) {
             logger.warning("Error handling socket request: " + e.getMessage());
+        } finally {
+            stats.connectionClosed();
         }
     }
 
-    private Map<String, String> parseHeaders(BufferedInputStream in) throws IOException {
-        var headers = new HashMap<String, String>();
-        while (true) {
-            var headerLine = readLine(in);
-            if (headerLine == null || headerLine.isEmpty()) {
-                break;
-            }
-
-            var colonIndex = headerLine.indexOf(':');
-            if (colonIndex > 0) {
-                var headerName = headerLine.substring(0, colonIndex).trim();
-                var headerValue = headerLine.substring(colonIndex + 1).trim();
-                headers.put(headerName, headerValue);
+    /**
+     * Blocks until the next request starts to arrive. The first request gets the regular read timeout;
+     * between requests the connection is idle and only waits as long as the keep-alive timeout allows.
+     * Returns false if the connection was closed or timed out while idle.
+     */
+    private boolean awaitRequest(Socket clientSocket, InputBuffer input, int requestCount) throws IOException {
+        var idle = requestCount > 0;
+        if (idle) {
+            clientSocket.setSoTimeout(config.getKeepAliveTimeoutMs());
+        }
+        idleConnections.add(clientSocket);
+        try {
+            return input.fill();
+        } catch (SocketTimeoutException e) {
+            logger.fine("Closing idle connection after " + requestCount + " request(s)");
+            return false;
+        } finally {
+            idleConnections.remove(clientSocket);
+            if (idle && !clientSocket.isClosed()) {
+                clientSocket.setSoTimeout(config.getReadTimeoutMs());
             }
         }
-        return headers;
     }
 
-    private String readLine(BufferedInputStream in) throws IOException {
-        var line = new StringBuilder();
-        int current;
-        var sawCarriageReturn = false;
-
-        while ((current = in.read()) != -1) {
-            if (current == '\r') {
-                sawCarriageReturn = true;
-                continue;
-            }
-            if (current == '\n') {
-                break;
-            }
-            if (sawCarriageReturn) {
-                line.append('\r');
-                sawCarriageReturn = false;
+    /**
+     * Reads and answers a single request. Returns true if the connection may be reused for another request.
+     */
+    private boolean handleRequest(InputBuffer input, HttpRequestParser parser, ChannelOutput out, int requestCount) throws IOException {
+        parser.reset();
+        var event = new ServerEvents.RequestParse();
+        event.begin();
+        var consumed = input.consumed();
+        try {
+            while (!input.parse(parser)) {
+                if (!input.fill()) {
+                    return false;
+                }
             }
-            line.append((char) current);
-        }
-
-        if (current == -1 && line.isEmpty()) {
-            return null;
+        } catch (HttpParseException e) {
+            // The rest of the head or an oversized body is never read, so the stream must not be reused.
+            dispatcher.reject(out, e.toResponse());
+            return false;
         }
-
-        return line.toString();
-    }
-
-    private String extractPath(String fullPath) {
-        var questionMarkIndex = fullPath.indexOf('?');
-        return questionMarkIndex != -1 ? fullPath.substring(0, questionMarkIndex) : fullPath;
-    }
-
-    private Map<String, String> parseQueryParameters(String fullPath) {
-        var queryParams = new HashMap<String, String>();
-        var questionMarkIndex = fullPath.indexOf('?');
-        if (questionMarkIndex == -1) {
-            return queryParams;
+        if (parser.isBlank()) {
+            return false;
         }
 
-        var queryString = fullPath.substring(questionMarkIndex + 1);
-        if (queryString.isEmpty()) {
-            return queryParams;
+        var body = input.readBody(parser.contentLength());
+        if (body == null) {
+            return false;
         }
-
-        var pairs = queryString.split("&");
-        for (var pair : pairs) {
-            var equalIndex = pair.indexOf('=');
-            if (equalIndex != -1) {
-                var key = pair.substring(0, equalIndex);
-                var value = pair.substring(equalIndex + 1);
-                queryParams.put(urlDecode(key), urlDecode(value));
-            } else if (!pair.isEmpty()) {
-                queryParams.put(urlDecode(pair), "");
-            }
+        var request = parser.newRequest(body);
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = request.getMethod();
+            event.path = request.getPath();
+            event.bytes = input.consumed() - consumed;
+            event.commit();
         }
-
-        return queryParams;
+        var lastRequest = !running.get() || requestCount >= config.getMaxRequestsPerConnection();
+        return dispatcher.serve(request, parser.version(), out, lastRequest);
     }
 
-    private String urlDecode(String encoded) {
-        try {
-            return java.net.URLDecoder.decode(encoded, StandardCharsets.UTF_8);
-        } catch (Exception e) {
-            return encoded;
+    /**
+     * Bytes received on a connection but not consumed yet. Request heads are parsed in place; the buffer
+     * only grows if a single head line does not fit, which the parser's line limit bounds.
+     */
+    private static final class InputBuffer {
+        private static final byte[] EMPTY_BODY = new byte[0];
+
+        private final InputStream in;
+        private final LongAdder bytesReceived;
+        private byte[] bytes;
+        private int start;
+        private int end;
+        private long consumed;
+
+        InputBuffer(InputStream in, LongAdder bytesReceived) {
+            this.in = in;
+            this.bytesReceived = bytesReceived;
+            this.bytes = new byte[IO_BUFFER_SIZE];
         }
-    }
 
-    private static int parseContentLength(Map<String, String> headers) {
-        var value = findHeaderValue(headers, HttpHeader.CONTENT_LENGTH.getValue());
-        if (value == null || value.isBlank()) {
-            return 0;
-        }
-        try {
-            var parsed = Integer.parseInt(value.trim());
-            return Math.max(parsed, 0);
-        } catch (NumberFormatException e) {
-            return 0;
+        boolean hasRemaining() {
+            return start < end;
         }
-    }
 
-    private static Charset parseCharset(String contentType) {
-        if (contentType == null) {
-            return StandardCharsets.UTF_8;
-        }
-        var lower = contentType.toLowerCase();
-        var idx = lower.indexOf("charset=");
-        if (idx < 0) {
-            return StandardCharsets.UTF_8;
-        }
-        var charsetName = contentType.substring(idx + "charset=".length()).trim();
-        var semi = charsetName.indexOf(';');
-        if (semi >= 0) {
-            charsetName = charsetName.substring(0, semi).trim();
+        boolean parse(HttpRequestParser parser) throws HttpParseException {
+            var next = parser.parse(bytes, start, end);
+            consumed += next - start;
+            start = next;
+            return parser.isComplete();
         }
-        if (charsetName.startsWith("\"") && charsetName.endsWith("\"") && charsetName.length() >= 2) {
-            charsetName = charsetName.substring(1, charsetName.length() - 1);
-        }
-        try {
-            return Charset.forName(charsetName);
-        } catch (IllegalCharsetNameException | UnsupportedCharsetException e) {
-            logger.warning("Unsupported charset '" + charsetName + "', falling back to UTF-8");
-            return StandardCharsets.UTF_8;
+
+        /**
+         * Returns the number of bytes taken from the buffer as request heads and bodies so far.
+         */
+        long consumed() {
+            return consumed;
         }
-    }
 
-    private static String findHeaderValue(Map<String, String> headers, String name) {
-        for (var entry : headers.entrySet()) {
-            if (entry.getKey().equalsIgnoreCase(name)) {
-                return entry.getValue();
+        /**
+         * Reads more bytes behind the unconsumed ones. Returns false at the end of the stream.
+         */
+        boolean fill() throws IOException {
+            if (start == end) {
+                start = 0;
+                end = 0;
+            } else if (end == bytes.length) {
+                if (start > 0) {
+                    System.arraycopy(bytes, start, bytes, 0, end - start);
+                    end -= start;
+                    start = 0;
+                } else {
+                    bytes = Arrays.copyOf(bytes, bytes.length * 2);
+                }
+            }
+            var read = in.read(bytes, end, bytes.length - end);
+            if (read < 0) {
+                return false;
             }
+            bytesReceived.add(read);
+            end += read;
+            return true;
         }
-        return null;
-    }
 
-    private static String normalizeMethod(String method) {
-        if (method == null || method.isBlank()) {
-            return "GET";
+        /**
+         * Takes the body from the buffered bytes and reads the rest from the stream.
+         * Returns null if the stream ends before the body is complete.
+         */
+        byte[] readBody(int length) throws IOException {
+            if (length == 0) {
+                return EMPTY_BODY;
+            }
+            var body = new byte[length];
+            var buffered = Math.min(length, end - start);
+            System.arraycopy(bytes, start, body, 0, buffered);
+            start += buffered;
+            var read = buffered < length ? in.readNBytes(body, buffered, length - buffered) : 0;
+            bytesReceived.add(read);
+            consumed += buffered + read;
+            return buffered + read == length ? body : null;
         }
-        return method.trim().toUpperCase();
     }
 }
@@ -9,8 +9,13 @@ public enum HttpStatus {
     FORBIDDEN(403, "Forbidden"),
     METHOD_NOT_ALLOWED(405, "Method Not Allowed"),
     PAYLOAD_TOO_LARGE(413, "Payload Too Large"),
+    URI_TOO_LONG(414, "URI Too Long"),
+    TOO_MANY_REQUESTS(429, "Too Many Requests"),
+    REQUEST_HEADER_FIELDS_TOO_LARGE(431, "Request Header Fields Too Large"),
+    SERVICE_UNAVAILABLE(503, "Service Unavailable"),
     CREATED(201, "Created"),
-    NO_CONTENT(204, "No Content");
+    NO_CONTENT(204, "No Content"),
+    NOT_MODIFIED(304, "Not Modified");
     
     private final int code;
     private final String reasonPhrase;
@@ -1,5 +1,7 @@
 package remast.marga;
 
+import java.util.Map;
+
 public record MediaType(String value) {
     public static final MediaType TEXT_PLAIN = new MediaType("text/plain");
     public static final MediaType TEXT_HTML = new MediaType("text/html");
@@ -9,11 +11,36 @@ public record MediaType(String value) {
     public static final MediaType APPLICATION_XML = new MediaType("application/xml");
     public static final MediaType APPLICATION_PDF = new MediaType("application/pdf");
     public static final MediaType APPLICATION_GZIP = new MediaType("application/gzip");
+    public static final MediaType APPLICATION_OCTET_STREAM = new MediaType("application/octet-stream");
     public static final MediaType IMAGE_JPEG = new MediaType("image/jpeg");
     public static final MediaType IMAGE_PNG = new MediaType("image/png");
     public static final MediaType IMAGE_GIF = new MediaType("image/gif");
     public static final MediaType IMAGE_SVG = new MediaType("image/svg+xml");
 
+    private static final Map<String, MediaType> BY_FILE_EXTENSION = Map.ofEntries(
+        Map.entry("txt", TEXT_PLAIN),
+        Map.entry("html", TEXT_HTML),
+        Map.entry("htm", TEXT_HTML),
+        Map.entry("css", TEXT_CSS),
+        Map.entry("js", TEXT_JAVASCRIPT),
+        Map.entry("mjs", TEXT_JAVASCRIPT),
+        Map.entry("csv", new MediaType("text/csv")),
+        Map.entry("json", APPLICATION_JSON),
+        Map.entry("map", APPLICATION_JSON),
+        Map.entry("xml", APPLICATION_XML),
+        Map.entry("pdf", APPLICATION_PDF),
+        Map.entry("gz", APPLICATION_GZIP),
+        Map.entry("wasm", new MediaType("application/wasm")),
+        Map.entry("jpg", IMAGE_JPEG),
+        Map.entry("jpeg", IMAGE_JPEG),
+        Map.entry("png", IMAGE_PNG),
+        Map.entry("gif", IMAGE_GIF),
+        Map.entry("svg", IMAGE_SVG),
+        Map.entry("webp", new MediaType("image/webp")),
+        Map.entry("ico", new MediaType("image/x-icon")),
+        Map.entry("woff", new MediaType("font/woff")),
+        Map.entry("woff2", new MediaType("font/woff2")));
+
     public MediaType {
         if (value == null || value.trim().isEmpty()) {
             throw new IllegalArgumentException("Media type value cannot be null or empty");
@@ -24,4 +51,16 @@ public record MediaType(String value) {
     public String getValue() {
         return value;
     }
+
+    /**
+     * Guesses the media type from the file name's extension, falling back to {@link #APPLICATION_OCTET_STREAM}.
+     */
+    public static MediaType forFileName(String fileName) {
+        var dot = fileName.lastIndexOf('.');
+        if (dot < 0 || dot == fileName.length() - 1) {
+            return APPLICATION_OCTET_STREAM;
+        }
+        var mediaType = BY_FILE_EXTENSION.get(fileName.substring(dot + 1).toLowerCase());
+        return mediaType != null ? mediaType : APPLICATION_OCTET_STREAM;
+    }
 }
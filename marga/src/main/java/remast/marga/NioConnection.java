@@ -0,0 +1,302 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * State of one connection served by the NIO engine.
+ *
+ * <p>While reading, the connection is owned by its event loop: bytes are accumulated and parsed until a
+ * request is complete. The connection then becomes busy, stops reading and is handed to a virtual thread
+ * which routes the request, answers any further pipelined requests already buffered and writes the
+ * responses. Once done, the worker hands the connection back to the event loop to wait for more input.
+ */
+final class NioConnection {
+    private static final Logger logger = Logger.getLogger(NioConnection.class.getName());
+    private static final int INITIAL_BUFFER_SIZE = 4 * 1024;
+    private static final Exchange CLOSE = new Exchange(null, null, null);
+
+    private final NioHttpServer server;
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final ChannelOutput output;
+    private final HttpRequestParser parser;
+    private final long readTimeoutNanos;
+    private final long keepAliveTimeoutNanos;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    private SelectionKey key;
+
+    // Received bytes not yet consumed; released while the connection is idle and empty.
+    private byte[] buffer;
+    private int start;
+    private int end;
+    private int requestCount;
+    private boolean busy;
+    private long deadline;
+    // The parse of the current request while a flight recording wants it; it may span several reads.
+    private ServerEvents.RequestParse parseEvent;
+
+    private volatile Thread blockedWriter;
+    private volatile boolean writable;
+
+    NioConnection(NioHttpServer server, NioEventLoop loop, SocketChannel channel) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.output = new ChannelOutput(channel, this::awaitWritable, server.dispatcher().stats().bytesSent());
+        this.parser = new HttpRequestParser(server.config(), remoteAddress(channel));
+        this.readTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(server.config().getReadTimeoutMs());
+        this.keepAliveTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(server.config().getKeepAliveTimeoutMs());
+        this.deadline = System.nanoTime() + readTimeoutNanos;
+    }
+
+    void attach(SelectionKey key) {
+        this.key = key;
+    }
+
+    boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    boolean isBusy() {
+        return busy;
+    }
+
+    boolean isExpired(long now) {
+        return !busy && now - deadline >= 0;
+    }
+
+    void onReadable(ByteBuffer readBuffer) {
+        readBuffer.clear();
+        int read;
+        try {
+            read = channel.read(readBuffer);
+        } catch (IOException e) {
+            logger.fine("Read failed: " + e.getMessage());
+            close();
+            return;
+        }
+        if (read < 0) {
+            close();
+            return;
+        }
+        if (read == 0) {
+            return;
+        }
+
+        server.dispatcher().stats().bytesReceived().add(read);
+        deadline = System.nanoTime() + readTimeoutNanos;
+        append(readBuffer.array(), read);
+        var exchange = nextExchange();
+        if (exchange != null) {
+            busy = true;
+            key.interestOps(0);
+            server.executor().execute(() -> serve(exchange));
+        }
+    }
+
+    void onWritable() {
+        key.interestOps(0);
+        writable = true;
+        var writer = blockedWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.fine("Failed to close connection: " + e.getMessage());
+        }
+        // Both the event loop and the worker may close the connection.
+        if (closed.compareAndSet(false, true)) {
+            server.dispatcher().stats().connectionClosed();
+        }
+        var writer = blockedWriter;
+        if (writer != null) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    private void serve(Exchange first) {
+        try {
+            var keepAlive = false;
+            var exchange = first;
+            while (exchange != null) {
+                if (exchange == CLOSE) {
+                    keepAlive = false;
+                    break;
+                }
+                if (exchange.rejection() != null) {
+                    server.dispatcher().reject(output, exchange.rejection());
+                    keepAlive = false;
+                    break;
+                }
+                requestCount++;
+                var lastRequest = !server.isRunning() || requestCount >= server.config().getMaxRequestsPerConnection();
+                keepAlive = server.dispatcher().serve(exchange.request(), exchange.version(), output, lastRequest);
+                if (!keepAlive) {
+                    break;
+                }
+                // Pipelined requests already buffered are answered before the responses are flushed.
+                exchange = nextExchange();
+            }
+            output.flush();
+            if (keepAlive) {
+                loop.execute(this::resume);
+            } else {
+                close();
+            }
+        } catch (IOException e) {
+            logger.fine("Connection failed while writing response: " + e.getMessage());
+            close();
+        }
+    }
+
+    private void resume() {
+        busy = false;
+        if (!server.isRunning() || !channel.isOpen()) {
+            close();
+            return;
+        }
+        output.release();
+        if (start == end) {
+            buffer = null;
+            start = 0;
+            end = 0;
+        }
+        var idle = buffer == null && !parser.isInProgress();
+        deadline = System.nanoTime() + (idle ? keepAliveTimeoutNanos : readTimeoutNanos);
+        try {
+            key.interestOps(SelectionKey.OP_READ);
+        } catch (CancelledKeyException e) {
+            close();
+        }
+    }
+
+    /**
+     * Takes the next complete request from the buffered bytes. Returns null while more input is needed.
+     */
+    private Exchange nextExchange() {
+        if (!parser.isComplete()) {
+            if (parseEvent == null && start < end) {
+                var event = new ServerEvents.RequestParse();
+                if (event.isEnabled()) {
+                    event.begin();
+                    parseEvent = event;
+                }
+            }
+            var from = start;
+            try {
+                start = parser.parse(buffer, start, end);
+            } catch (HttpParseException e) {
+                parseEvent = null;
+                return new Exchange(null, null, e.toResponse());
+            }
+            if (parseEvent != null) {
+                parseEvent.bytes += start - from;
+            }
+            if (!parser.isComplete()) {
+                return null;
+            }
+            if (parser.isBlank()) {
+                parseEvent = null;
+                return CLOSE;
+            }
+        }
+
+        var contentLength = parser.contentLength();
+        if (end - start < contentLength) {
+            return null;
+        }
+        var body = contentLength > 0 ? Arrays.copyOfRange(buffer, start, start + contentLength) : new byte[0];
+        start += contentLength;
+        var exchange = new Exchange(parser.newRequest(body), parser.version(), null);
+        parser.reset();
+        if (parseEvent != null) {
+            commitParseEvent(exchange.request(), contentLength);
+        }
+        return exchange;
+    }
+
+    private void commitParseEvent(Request request, int bodyBytes) {
+        var event = parseEvent;
+        parseEvent = null;
+        event.end();
+        if (event.shouldCommit()) {
+            event.method = request.getMethod();
+            event.path = request.getPath();
+            event.bytes += bodyBytes;
+            event.commit();
+        }
+    }
+
+    private void append(byte[] source, int length) {
+        if (buffer == null) {
+            buffer = new byte[Math.max(INITIAL_BUFFER_SIZE, length)];
+        } else if (end + length > buffer.length) {
+            if (start > 0) {
+                System.arraycopy(buffer, start, buffer, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            if (end + length > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, end + length));
+            }
+        }
+        System.arraycopy(source, 0, buffer, end, length);
+        end += length;
+    }
+
+    /**
+     * Parks the writing virtual thread until the event loop reports the socket writable again.
+     */
+    private void awaitWritable() throws IOException {
+        writable = false;
+        blockedWriter = Thread.currentThread();
+        loop.execute(() -> {
+            if (key.isValid()) {
+                key.interestOps(SelectionKey.OP_WRITE);
+            }
+        });
+        var writeDeadline = System.nanoTime() + readTimeoutNanos;
+        try {
+            while (!writable) {
+                if (!channel.isOpen()) {
+                    throw new ClosedChannelException();
+                }
+                var remaining = writeDeadline - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("Timed out waiting for the connection to become writable");
+                }
+                LockSupport.parkNanos(this, remaining);
+            }
+        } finally {
+            blockedWriter = null;
+        }
+    }
+
+    private static InetSocketAddress remoteAddress(SocketChannel channel) {
+        try {
+            return (InetSocketAddress) channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private record Exchange(Request request, String version, Response rejection) {
+    }
+}
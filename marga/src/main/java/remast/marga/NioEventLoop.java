@@ -0,0 +1,175 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * A selector thread owning a subset of the NIO engine's connections. All selection-key changes happen
+ * on this thread; other threads submit them through {@link #execute(Runnable)}.
+ */
+final class NioEventLoop implements Runnable {
+    private static final Logger logger = Logger.getLogger(NioEventLoop.class.getName());
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+    private static final long MIN_SWEEP_INTERVAL_MS = 10;
+    private static final long MAX_SWEEP_INTERVAL_MS = 1_000;
+
+    private final NioHttpServer server;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks;
+    private final Set<NioConnection> connections;
+    // Shared by all connections of this loop; bytes are copied out before the next read.
+    private final ByteBuffer readBuffer;
+    private final long sweepIntervalMs;
+
+    private volatile boolean running;
+    // Set once the select loop has ended; tasks submitted afterwards run on the submitting thread.
+    private volatile boolean terminated;
+
+    NioEventLoop(NioHttpServer server, int index) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.thread = Thread.ofPlatform().name("marga-event-loop-" + index).daemon(true).unstarted(this);
+        this.tasks = new ConcurrentLinkedQueue<>();
+        this.connections = new HashSet<>();
+        this.readBuffer = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        var config = server.config();
+        var shortestTimeout = Math.min(config.getReadTimeoutMs(), config.getKeepAliveTimeoutMs());
+        this.sweepIntervalMs = Math.clamp(shortestTimeout / 4, MIN_SWEEP_INTERVAL_MS, MAX_SWEEP_INTERVAL_MS);
+    }
+
+    void start() {
+        running = true;
+        thread.start();
+    }
+
+    void stop() {
+        running = false;
+        selector.wakeup();
+    }
+
+    void register(SocketChannel channel) {
+        execute(() -> open(channel));
+    }
+
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (terminated) {
+            runTasks();
+        } else {
+            selector.wakeup();
+        }
+    }
+
+    @Override
+    public void run() {
+        try {
+            var nextSweep = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sweepIntervalMs);
+            while (running) {
+                selector.select(this::processKey, sweepIntervalMs);
+                runTasks();
+                var now = System.nanoTime();
+                if (now - nextSweep >= 0) {
+                    sweep(now);
+                    nextSweep = now + TimeUnit.MILLISECONDS.toNanos(sweepIntervalMs);
+                }
+            }
+        } catch (IOException e) {
+            logger.severe("Event loop failed: " + e.getMessage());
+        } finally {
+            // Channels still waiting to be registered are closed and connections handed back by their
+            // worker close themselves, instead of staying open and counted as active.
+            terminated = true;
+            runTasks();
+            closeIdleConnections();
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.fine("Failed to close selector: " + e.getMessage());
+            }
+        }
+    }
+
+    void remove(NioConnection connection) {
+        connections.remove(connection);
+    }
+
+    private void open(SocketChannel channel) {
+        if (terminated) {
+            close(channel);
+            return;
+        }
+        try {
+            channel.configureBlocking(false);
+            var connection = new NioConnection(server, this, channel);
+            connection.attach(channel.register(selector, SelectionKey.OP_READ, connection));
+            connections.add(connection);
+            server.dispatcher().stats().connectionOpened();
+            ServerEvents.connectionAccepted(ServerEngine.NIO, channel.getRemoteAddress());
+        } catch (IOException e) {
+            logger.fine("Failed to register connection: " + e.getMessage());
+            close(channel);
+        }
+    }
+
+    private static void close(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            logger.fine("Failed to close connection: " + e.getMessage());
+        }
+    }
+
+    private void processKey(SelectionKey key) {
+        var connection = (NioConnection) key.attachment();
+        if (key.isValid() && key.isWritable()) {
+            connection.onWritable();
+        }
+        if (key.isValid() && key.isReadable()) {
+            connection.onReadable(readBuffer);
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.warning("Event loop task failed: " + e.getMessage());
+            }
+        }
+    }
+
+    private void sweep(long now) {
+        var iterator = connections.iterator();
+        while (iterator.hasNext()) {
+            var connection = iterator.next();
+            if (!connection.isOpen()) {
+                iterator.remove();
+            } else if (connection.isExpired(now)) {
+                iterator.remove();
+                connection.close();
+            }
+        }
+    }
+
+    private void closeIdleConnections() {
+        // Busy connections are left to their worker, which closes them once the response is written.
+        for (var connection : connections) {
+            if (!connection.isBusy()) {
+                connection.close();
+            }
+        }
+        connections.clear();
+    }
+}
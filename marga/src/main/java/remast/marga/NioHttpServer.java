@@ -0,0 +1,128 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * Non-blocking server engine. The acceptors hand new connections round-robin to a fixed set of
+ * selector event loops which read and parse requests without blocking; only complete requests are
+ * served on virtual threads. An idle keep-alive connection costs a selection key and a small
+ * connection object instead of a parked thread with its stream buffers.
+ */
+final class NioHttpServer implements Server {
+    private static final Logger logger = Logger.getLogger(NioHttpServer.class.getName());
+
+    private final Config config;
+    private final ExecutorService executor;
+    private final RequestDispatcher dispatcher;
+    private final AtomicBoolean running;
+
+    private final AtomicInteger nextEventLoop;
+
+    private volatile AcceptorGroup acceptors;
+    private volatile NioEventLoop[] eventLoops;
+
+    NioHttpServer(Router router, Config config) {
+        this.config = config;
+        this.executor = Executors.newVirtualThreadPerTaskExecutor();
+        this.dispatcher = new RequestDispatcher(router, config);
+        this.running = new AtomicBoolean(false);
+        this.nextEventLoop = new AtomicInteger();
+    }
+
+    @Override
+    public void run() throws IOException {
+        if (!running.compareAndSet(false, true)) {
+            throw new IllegalStateException("Server is already running");
+        }
+
+        try {
+            var group = AcceptorGroup.bind(config);
+            acceptors = group;
+            if (!running.get()) {
+                // Shut down while binding.
+                return;
+            }
+
+            var loops = new NioEventLoop[config.getEventLoopThreads()];
+            for (var i = 0; i < loops.length; i++) {
+                loops[i] = new NioEventLoop(this, i);
+                loops[i].start();
+            }
+            eventLoops = loops;
+            logger.info("HTTP Server running on " + config.getServerUrl(group.getBoundPort())
+                + " (NIO engine, " + config.getAcceptorThreads() + " acceptors, " + loops.length + " event loops)");
+
+            group.run(channel -> loops[Math.floorMod(nextEventLoop.getAndIncrement(), loops.length)].register(channel));
+        } finally {
+            running.set(false);
+            closeAcceptors();
+            stopEventLoops();
+            executor.shutdown();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        running.set(false);
+        closeAcceptors();
+        stopEventLoops();
+        executor.shutdown();
+    }
+
+    @Override
+    public int getBoundPort() {
+        var group = acceptors;
+        if (group != null) {
+            var port = group.getBoundPort();
+            if (port != -1) {
+                return port;
+            }
+        }
+        return config.getPort();
+    }
+
+    @Override
+    public ServerStats getStats() {
+        return dispatcher.stats();
+    }
+
+    boolean isRunning() {
+        return running.get();
+    }
+
+    Config config() {
+        return config;
+    }
+
+    RequestDispatcher dispatcher() {
+        return dispatcher;
+    }
+
+    ExecutorService executor() {
+        return executor;
+    }
+
+    private void closeAcceptors() {
+        var group = acceptors;
+        if (group != null) {
+            group.close();
+        }
+    }
+
+    private void stopEventLoops() {
+        var loops = eventLoops;
+        if (loops == null) {
+            return;
+        }
+        for (var loop : loops) {
+            if (loop != null) {
+                loop.stop();
+            }
+        }
+    }
+}
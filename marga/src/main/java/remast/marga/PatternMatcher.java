@@ -122,6 +122,18 @@ public class PatternMatcher {
         return true;
     }
 
+    /**
+     * Writes the parameters of a path already known to match, given the bounds of its segments.
+     */
+    void captureInto(String path, int[] starts, int[] ends, Request request) {
+        for (var i = 0; i < segmentCount; i++) {
+            var paramName = parameterAtIndex[i];
+            if (paramName != null) {
+                request.addPathParam(paramName, path.substring(starts[i], ends[i]));
+            }
+        }
+    }
+
     private boolean matchSegments(String path, Map<String, String> captures) {
         var length = path.length();
         var cursor = (length > 0 && path.charAt(0) == '/') ? 1 : 0;
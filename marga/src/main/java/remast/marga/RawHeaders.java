@@ -0,0 +1,158 @@
+package remast.marga;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The header fields of a request as received: names and values are kept as bytes in one array and only
+ * decoded into Strings when asked for. The parser fills it while reading the head; the request decodes
+ * it into {@link Headers} the first time a handler looks at its headers, so requests that are answered
+ * without reading them never pay for the decoding.
+ */
+final class RawHeaders {
+    // Header names in their canonical and lower-case spelling, indexed by length.
+    private static final String[][] KNOWN_NAMES = knownNamesByLength();
+    private static final int FIELDS = 4;
+
+    private byte[] bytes = new byte[256];
+    private int length;
+    // For each header: name start, name end, value start, value end in bytes.
+    private int[] offsets = new int[16 * FIELDS];
+    private int count;
+
+    /**
+     * Appends the header with the name {@code data[nameStart, nameEnd)} and the value {@code data[valueStart, valueEnd)}.
+     */
+    void add(byte[] data, int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        var nameLength = nameEnd - nameStart;
+        var valueLength = valueEnd - valueStart;
+        ensureCapacity(nameLength + valueLength);
+        if (count * FIELDS == offsets.length) {
+            var grown = new int[offsets.length * 2];
+            System.arraycopy(offsets, 0, grown, 0, offsets.length);
+            offsets = grown;
+        }
+        var slot = count * FIELDS;
+        offsets[slot] = length;
+        System.arraycopy(data, nameStart, bytes, length, nameLength);
+        length += nameLength;
+        offsets[slot + 1] = length;
+        offsets[slot + 2] = length;
+        System.arraycopy(data, valueStart, bytes, length, valueLength);
+        length += valueLength;
+        offsets[slot + 3] = length;
+        count++;
+    }
+
+    void add(String name, String value) {
+        var data = (name + value).getBytes(StandardCharsets.ISO_8859_1);
+        add(data, 0, name.length(), name.length(), data.length);
+    }
+
+    int size() {
+        return count;
+    }
+
+    /**
+     * Returns the value of the first header whose name equals {@code name} ignoring case, or null.
+     * Only the value found is decoded.
+     */
+    String get(String name) {
+        for (var i = 0; i < count; i++) {
+            var slot = i * FIELDS;
+            if (equalsIgnoreCase(name, offsets[slot], offsets[slot + 1])) {
+                return latin1(offsets[slot + 2], offsets[slot + 3]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Decodes all headers in the order received. Known names are matched on the bytes, so they are not decoded.
+     */
+    Headers toHeaders() {
+        var headers = new Headers(count);
+        for (var i = 0; i < count; i++) {
+            var slot = i * FIELDS;
+            headers.add(name(offsets[slot], offsets[slot + 1]), latin1(offsets[slot + 2], offsets[slot + 3]));
+        }
+        return headers;
+    }
+
+    @Override
+    public String toString() {
+        return toHeaders().toString();
+    }
+
+    private String name(int from, int to) {
+        var nameLength = to - from;
+        if (nameLength < KNOWN_NAMES.length) {
+            for (var candidate : KNOWN_NAMES[nameLength]) {
+                if (equals(candidate, from, to)) {
+                    return candidate;
+                }
+            }
+        }
+        return latin1(from, to);
+    }
+
+    private boolean equals(String candidate, int from, int to) {
+        if (candidate.length() != to - from) {
+            return false;
+        }
+        for (var i = 0; i < candidate.length(); i++) {
+            if (candidate.charAt(i) != (bytes[from + i] & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean equalsIgnoreCase(String name, int from, int to) {
+        if (name.length() != to - from) {
+            return false;
+        }
+        for (var i = 0; i < name.length(); i++) {
+            var expected = name.charAt(i);
+            var actual = (char) (bytes[from + i] & 0xFF);
+            if (expected != actual && Character.toLowerCase(expected) != Character.toLowerCase(actual)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private String latin1(int from, int to) {
+        return new String(bytes, from, to - from, StandardCharsets.ISO_8859_1);
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > bytes.length) {
+            var grown = new byte[Math.max(bytes.length * 2, length + additional)];
+            System.arraycopy(bytes, 0, grown, 0, length);
+            bytes = grown;
+        }
+    }
+
+    private static String[][] knownNamesByLength() {
+        var maxLength = 0;
+        for (var header : HttpHeader.values()) {
+            maxLength = Math.max(maxLength, header.getValue().length());
+        }
+        var byLength = new ArrayList<List<String>>();
+        for (var i = 0; i <= maxLength; i++) {
+            byLength.add(new ArrayList<>());
+        }
+        for (var header : HttpHeader.values()) {
+            var name = header.getValue();
+            byLength.get(name.length()).add(name);
+            byLength.get(name.length()).add(name.toLowerCase());
+        }
+        var table = new String[maxLength + 1][];
+        for (var i = 0; i <= maxLength; i++) {
+            table[i] = byLength.get(i).toArray(String[]::new);
+        }
+        return table;
+    }
+}
@@ -1,9 +1,15 @@
 package remast.marga;
 
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Request {
@@ -12,10 +18,17 @@ public class Request {
     private final String method;
     private final String path;
     private final Map<String, String> pathParams;
-    private final Map<String, String> headers;
-    private final Map<String, String> queryParams;
+    // A parsed request keeps its headers and query string as received and decodes them on first access,
+    // so requests answered without looking at them skip the decoding. A request is handled by one
+    // thread at a time, like its path parameters, so the caching needs no synchronization.
+    private RawHeaders rawHeaders;
+    private Headers headers;
+    private String rawQuery;
+    private Map<String, String> queryParams;
     private final byte[] body;
     private final Charset charset;
+    private InetSocketAddress remoteAddress;
+    private String routePattern;
 
     public Request(String method, String path) {
         this(method, path, Map.of(), Map.of(), EMPTY_BODY, StandardCharsets.UTF_8);
@@ -30,15 +43,34 @@ public class Request {
     }
 
     public Request(String method, String path, Map<String, String> headers, Map<String, String> queryParams, byte[] body, Charset charset) {
+        this(method, path, body == null ? null : Arrays.copyOf(body, body.length), charset);
+        this.headers = Headers.of(headers);
+        this.queryParams = new HashMap<>(queryParams);
+    }
+
+    private Request(String method, String path, byte[] body, Charset charset) {
         this.method = method;
         this.path = path;
         this.pathParams = new HashMap<>();
-        this.headers = new HashMap<>(headers);
-        this.queryParams = new HashMap<>(queryParams);
-        this.body = body == null ? EMPTY_BODY : Arrays.copyOf(body, body.length);
+        this.body = body == null ? EMPTY_BODY : body;
         this.charset = charset == null ? StandardCharsets.UTF_8 : charset;
     }
 
+    /**
+     * Creates a request that takes ownership of the headers and the body instead of copying them and
+     * decodes the headers and the query string (without the '?', null if there was none) only when they
+     * are first asked for. The caller must not modify the headers or the body afterwards.
+     */
+    static Request owning(String method, String path, RawHeaders headers, String query, byte[] body, Charset charset) {
+        var request = new Request(method, path, body, charset);
+        request.rawHeaders = headers;
+        request.rawQuery = query;
+        if (query == null) {
+            request.queryParams = new HashMap<>();
+        }
+        return request;
+    }
+
     public String getMethod() {
         return method;
     }
@@ -55,46 +87,139 @@ public class Request {
         pathParams.put(name, value);
     }
 
+    /**
+     * Returns the address of the client connection, or null if the request was not received by a server.
+     * Behind a proxy this is the address of the proxy.
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    void remoteAddress(InetSocketAddress remoteAddress) {
+        this.remoteAddress = remoteAddress;
+    }
+
+    /**
+     * Returns the path template of the route that matched the request, such as {@code /users/${id}}, or
+     * null if no route matched. Unlike the path it takes few distinct values, which suits it for
+     * grouping requests in logs and metrics.
+     */
+    public String getRoutePattern() {
+        return routePattern;
+    }
+
+    void routePattern(String routePattern) {
+        this.routePattern = routePattern;
+    }
+
     public Map<String, String> getPathParams() {
         return new HashMap<>(pathParams);
     }
 
+    /**
+     * Returns a read-only view of the path parameters; unlike {@link #getPathParams()} nothing is copied.
+     */
+    public Map<String, String> getPathParamsView() {
+        return Collections.unmodifiableMap(pathParams);
+    }
+
+    /**
+     * Returns the first value of the header, whose name is matched ignoring case, or null.
+     */
     public String header(String name) {
-        return headers.get(name);
+        return headers().get(name);
     }
 
     public String header(HttpHeader header) {
-        return headers.get(header.getValue());
+        return headers().get(header);
+    }
+
+    /**
+     * Returns all values of a header the client sent more than once, in the order received.
+     */
+    public List<String> headerValues(String name) {
+        return headers().getAll(name);
     }
 
+    public List<String> headerValues(HttpHeader header) {
+        return headers().getAll(header);
+    }
+
+    /**
+     * Returns a copy of the headers with one entry per name; the values of a repeated header are joined with ", ".
+     */
     public Map<String, String> getHeaders() {
-        return new HashMap<>(headers);
+        return new HashMap<>(headers().asMap());
+    }
+
+    /**
+     * Returns a read-only view of the headers; unlike {@link #getHeaders()} nothing is copied, and
+     * lookups ignore the case of the name.
+     */
+    public Map<String, String> getHeadersView() {
+        return headers().asMap();
     }
 
     public boolean hasHeader(String name) {
-        return headers.containsKey(name);
+        return headers().contains(name);
     }
 
     public boolean hasHeader(HttpHeader header) {
-        return headers.containsKey(header.getValue());
+        return headers().contains(header);
+    }
+
+    /**
+     * Looks up a header ignoring the case of its name without decoding the other headers.
+     */
+    String findHeader(String name) {
+        return headers != null ? headers.get(name) : rawHeaders.get(name);
     }
 
     public String queryParam(String name) {
-        return queryParams.get(name);
+        return queryParams().get(name);
     }
 
     public Map<String, String> getQueryParams() {
-        return new HashMap<>(queryParams);
+        return new HashMap<>(queryParams());
+    }
+
+    /**
+     * Returns a read-only view of the query parameters; unlike {@link #getQueryParams()} nothing is copied.
+     */
+    public Map<String, String> getQueryParamsView() {
+        return Collections.unmodifiableMap(queryParams());
     }
 
     public boolean hasQueryParam(String name) {
-        return queryParams.containsKey(name);
+        return queryParams().containsKey(name);
+    }
+
+    /**
+     * Returns the query string as received, without the '?', or null if the target had no '?' or the
+     * request was not read from a connection. A target ending in '?' has an empty query string.
+     */
+    public String getRawQuery() {
+        return rawQuery;
     }
 
     public byte[] getBodyBytes() {
         return Arrays.copyOf(body, body.length);
     }
 
+    /**
+     * Returns a read-only view of the body; unlike {@link #getBodyBytes()} the bytes are not copied.
+     */
+    public ByteBuffer getBodyBuffer() {
+        return ByteBuffer.wrap(body).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the body to the stream without copying it first.
+     */
+    public void writeBodyTo(OutputStream out) throws IOException {
+        out.write(body);
+    }
+
     public String getBody() {
         return new String(body, charset);
     }
@@ -107,13 +232,28 @@ public class Request {
         return body.length;
     }
 
+    private Headers headers() {
+        if (headers == null) {
+            headers = rawHeaders.toHeaders();
+            rawHeaders = null;
+        }
+        return headers;
+    }
+
+    private Map<String, String> queryParams() {
+        if (queryParams == null) {
+            queryParams = HttpProtocol.parseQueryString(rawQuery);
+        }
+        return queryParams;
+    }
+
     @Override
     public String toString() {
         return "Request{method=" + method
             + ", path=" + path
             + ", pathParams=" + pathParams
-            + ", queryParams=" + queryParams
-            + ", headers=" + headers
+            + ", queryParams=" + queryParams()
+            + ", headers=" + headers()
             + ", contentLength=" + body.length
             + ", charset=" + charset
             + "}";
@@ -0,0 +1,108 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.util.logging.Logger;
+
+/**
+ * Engine-independent part of serving a request: admission, routing, error fallback, the keep-alive
+ * decision and writing the response. Both server engines hand fully read requests to it.
+ */
+final class RequestDispatcher {
+    private static final Logger logger = Logger.getLogger(RequestDispatcher.class.getName());
+
+    private final Router router;
+    private final HttpResponseWriter responseWriter;
+    private final ServerStats stats;
+    private final RequestLimiter limiter;
+    private final String retryAfter;
+
+    RequestDispatcher(Router router, Config config) {
+        this.router = router;
+        this.responseWriter = new HttpResponseWriter();
+        this.stats = new ServerStats();
+        this.limiter = new RequestLimiter(config, stats);
+        this.retryAfter = String.valueOf(config.getRetryAfterSeconds());
+    }
+
+    ServerStats stats() {
+        return stats;
+    }
+
+    /**
+     * Routes the request and writes the response without flushing.
+     * Returns true if the connection may be reused for another request.
+     */
+    boolean serve(Request request, String version, ChannelOutput out, boolean lastRequest) throws IOException {
+        if (!limiter.acquire()) {
+            // Closing the connection as well lets the client retry elsewhere or reconnect once load drops.
+            responseWriter.write(out, Response.serviceUnavailable("503 - Service Unavailable")
+                .header(HttpHeader.RETRY_AFTER, retryAfter), false);
+            return false;
+        }
+        try {
+            return route(request, version, out, lastRequest);
+        } finally {
+            limiter.release();
+        }
+    }
+
+    private boolean route(Request request, String version, ChannelOutput out, boolean lastRequest) throws IOException {
+        Response response;
+        try {
+            response = router.handleRequest(request);
+        } catch (Throwable t) {
+            logger.severe("Unhandled exception while handling request: " + t.getMessage());
+            response = Response.serverError("500 - Internal Server Error");
+        }
+
+        var keepAlive = !lastRequest
+            && HttpProtocol.isKeepAliveRequested(version, request.findHeader(HttpHeader.CONNECTION.getValue()))
+            && !HttpProtocol.hasConnectionToken(response.headers().get(HttpHeader.CONNECTION), HttpProtocol.CLOSE)
+            // Chunked request bodies are not decoded, so their bytes would be misread as the next request.
+            && request.findHeader(HttpHeader.TRANSFER_ENCODING.getValue()) == null;
+
+        // HTTP/1.0 clients cannot decode chunked bodies.
+        var chunkedAllowed = !HttpProtocol.HTTP_1_0.equalsIgnoreCase(version);
+        var headRequest = "HEAD".equals(request.getMethod());
+        var event = new ServerEvents.ResponseWrite();
+        event.begin();
+        var written = out.written();
+        var status = response.getStatusCode();
+        try {
+            return responseWriter.write(out, response, keepAlive, chunkedAllowed, headRequest);
+        } catch (IllegalArgumentException e) {
+            logger.severe("Invalid response headers, returning 500: " + e.getMessage());
+            status = HttpStatus.INTERNAL_SERVER_ERROR.getCode();
+            return responseWriter.write(out, Response.serverError("500 - Internal Server Error"), keepAlive);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.method = request.getMethod();
+                event.route = request.getRoutePattern();
+                event.status = status;
+                event.bytes = out.written() - written;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Writes a response for a request that could not be read completely; the connection must be closed afterwards.
+     */
+    void reject(ChannelOutput out, Response response) throws IOException {
+        stats.requestRejected(response.getStatusCode());
+        var event = new ServerEvents.ResponseWrite();
+        event.begin();
+        var written = out.written();
+        try {
+            responseWriter.write(out, response, false);
+        } finally {
+            event.end();
+            if (event.shouldCommit()) {
+                event.status = response.getStatusCode();
+                event.bytes = out.written() - written;
+                event.commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package remast.marga;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds the number of requests handled at the same time, see {@link Config#getMaxInFlightRequests()}.
+ * A request finding all slots taken waits in a bounded queue for at most the queue timeout; once the
+ * queue is full it is turned away at once. Shedding early keeps the latency of admitted requests
+ * steady instead of slowing every request down and letting the heap fill up with half-served ones.
+ */
+final class RequestLimiter {
+    private final Semaphore slots;
+    private final int queueSize;
+    private final long queueTimeoutNanos;
+    private final ServerStats stats;
+
+    RequestLimiter(Config config, ServerStats stats) {
+        var maxInFlight = config.getMaxInFlightRequests();
+        // Fair, so waiting requests get slots in arrival order and new arrivals cannot overtake them.
+        this.slots = maxInFlight > 0 ? new Semaphore(maxInFlight, true) : null;
+        this.queueSize = config.getRequestQueueSize();
+        this.queueTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(config.getRequestQueueTimeoutMs());
+        this.stats = stats;
+    }
+
+    /**
+     * Takes a slot for a request. Returns false if the request must be rejected; otherwise
+     * {@link #release()} must be called once it has been answered.
+     */
+    boolean acquire() {
+        if (slots != null && !takeSlot()) {
+            stats.rejectedRequests().increment();
+            return false;
+        }
+        stats.inFlightRequests().increment();
+        return true;
+    }
+
+    void release() {
+        stats.inFlightRequests().decrement();
+        if (slots != null) {
+            slots.release();
+        }
+    }
+
+    private boolean takeSlot() {
+        var waiting = stats.waitingRequests();
+        try {
+            // The timed variant honours fairness, unlike tryAcquire(), so it fails while others wait.
+            if (slots.tryAcquire(0, TimeUnit.NANOSECONDS)) {
+                return true;
+            }
+            if (waiting.incrementAndGet() > queueSize) {
+                waiting.decrementAndGet();
+                return false;
+            }
+            stats.queuedRequests().increment();
+            try {
+                return slots.tryAcquire(queueTimeoutNanos, TimeUnit.NANOSECONDS);
+            } finally {
+                waiting.decrementAndGet();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+}
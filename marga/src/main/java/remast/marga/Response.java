@@ -1,17 +1,24 @@
 package remast.marga;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class Response {
     private final byte[] body;
     private final int statusCode;
-    private final Map<String, String> headers;
+    private final Headers headers;
     private final Charset charset;
     private final boolean binary;
+    private final StreamingBody streamingBody;
     
     public Response(String body, HttpStatus status) {
         this(body, status.getCode(), MediaType.TEXT_PLAIN);
@@ -41,10 +48,11 @@ public class Response {
         this.charset = charset == null ? StandardCharsets.UTF_8 : charset;
         this.body = body == null ? new byte[0] : body.getBytes(this.charset);
         this.binary = false;
+        this.streamingBody = null;
         this.statusCode = statusCode;
-        this.headers = new HashMap<>();
+        this.headers = new Headers();
         if (mediaType != null) {
-            this.headers.put(HttpHeader.CONTENT_TYPE.getValue(), mediaType.getValue());
+            this.headers.add(HttpHeader.CONTENT_TYPE, mediaType.getValue());
         }
     }
      
@@ -53,19 +61,38 @@ public class Response {
     }
 
     public Response(byte[] body, int statusCode, MediaType mediaType, Charset charset) {
+        this(body == null ? null : Arrays.copyOf(body, body.length), null, statusCode, mediaType, charset);
+    }
+
+    /**
+     * Creates a response whose body is written by the callback while the response is sent, see {@link BodyWriter}.
+     */
+    public Response(BodyWriter body, int statusCode, MediaType mediaType) {
+        this(StreamingBody.of(body), statusCode, mediaType);
+    }
+
+    private Response(StreamingBody streamingBody, int statusCode, MediaType mediaType) {
+        this(null, streamingBody, statusCode, mediaType, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Creates a binary response with either a body, taken as it is, or a streaming body.
+     */
+    private Response(byte[] body, StreamingBody streamingBody, int statusCode, MediaType mediaType, Charset charset) {
         this.charset = charset == null ? StandardCharsets.UTF_8 : charset;
-        this.body = body == null ? new byte[0] : Arrays.copyOf(body, body.length);
+        this.body = body == null ? new byte[0] : body;
         this.binary = true;
+        this.streamingBody = streamingBody;
         this.statusCode = statusCode;
-        this.headers = new HashMap<>();
+        this.headers = new Headers();
         if (mediaType != null) {
-            this.headers.put(HttpHeader.CONTENT_TYPE.getValue(), mediaType.getValue());
+            this.headers.add(HttpHeader.CONTENT_TYPE, mediaType.getValue());
         }
     }
 
     public Response mediaType(MediaType mediaType) {
         if (mediaType != null) {
-            this.headers.put(HttpHeader.CONTENT_TYPE.getValue(), mediaType.getValue());
+            this.headers.set(HttpHeader.CONTENT_TYPE, mediaType.getValue());
         }
         return this;
     }
@@ -77,17 +104,81 @@ public class Response {
     public byte[] getBodyBytes() {
         return Arrays.copyOf(body, body.length);
     }
+
+    /**
+     * Returns a read-only view of the body; unlike {@link #getBodyBytes()} the bytes are not copied.
+     */
+    public ByteBuffer getBodyBuffer() {
+        return ByteBuffer.wrap(body).asReadOnlyBuffer();
+    }
+
+    /**
+     * Writes the in-memory body to the stream without copying it first. A streaming response writes nothing.
+     */
+    public void writeBodyTo(OutputStream out) throws IOException {
+        out.write(body);
+    }
+
+    public int getBodyLength() {
+        return body.length;
+    }
+
+    /**
+     * Returns the number of body bytes the response will send, or -1 if it streams a body whose length
+     * is only known once it has been written.
+     */
+    public long getContentLength() {
+        if (streamingBody == null) {
+            return body.length;
+        }
+        try {
+            return streamingBody.length();
+        } catch (IOException e) {
+            return -1;
+        }
+    }
      
     public boolean isBinary() {
         return binary;
     }
+
+    /**
+     * Returns true if the body is streamed while the response is sent. Such a response has no
+     * in-memory body: {@link #getBody()} is empty, and it can be sent only once.
+     */
+    public boolean isStreaming() {
+        return streamingBody != null;
+    }
+
+    /**
+     * Returns the streamed body for middleware that transforms it, such as compression, or null if the
+     * body is in memory. The writer writes the body once and is {@link java.io.Closeable}; closing it
+     * releases the body's source, such as an open file. Once its body is taken, the response itself must
+     * not be sent; the body belongs to the response that replaces it.
+     */
+    public BodyWriter getBodyWriter() {
+        return streamingBody;
+    }
+
+    // Internal views for the response writer, which only reads them.
+    byte[] body() {
+        return body;
+    }
+
+    Headers headers() {
+        return headers;
+    }
+
+    StreamingBody getStreamingBody() {
+        return streamingBody;
+    }
     
     public int getStatusCode() {
         return statusCode;
     }
     
     public MediaType getMediaType() {
-        String contentType = this.headers.get(HttpHeader.CONTENT_TYPE.getValue());
+        String contentType = this.headers.get(HttpHeader.CONTENT_TYPE);
         if (contentType == null) {
             return null;
         }
@@ -99,17 +190,52 @@ public class Response {
         return charset;
     }
     
+    /**
+     * Returns a copy of the headers with one entry per name; the values of a repeated header are joined with ", ".
+     */
     public Map<String, String> getHeaders() {
-        return new HashMap<>(headers);
+        return new HashMap<>(headers.asMap());
+    }
+
+    /**
+     * Returns a read-only view of the headers; unlike {@link #getHeaders()} nothing is copied, and
+     * lookups ignore the case of the name.
+     */
+    public Map<String, String> getHeadersView() {
+        return headers.asMap();
     }
     
+    /**
+     * Sets the header, replacing any value it had; the name is matched ignoring case. A null value removes it.
+     */
     public Response header(String name, String value) {
-        this.headers.put(name, value);
+        this.headers.set(name, value);
         return this;
     }
     
     public Response header(HttpHeader header, String value) {
-        this.headers.put(header.getValue(), value);
+        this.headers.set(header, value);
+        return this;
+    }
+
+    /**
+     * Adds a value to the header, keeping those it has, for headers sent once per value such as {@code Set-Cookie}.
+     */
+    public Response addHeader(String name, String value) {
+        this.headers.add(name, value);
+        return this;
+    }
+
+    public Response addHeader(HttpHeader header, String value) {
+        this.headers.add(header, value);
+        return this;
+    }
+
+    /**
+     * Replaces the headers named in the other response with all of its values for them.
+     */
+    public Response headersFrom(Response other) {
+        this.headers.setAll(other.headers);
         return this;
     }
     
@@ -118,7 +244,15 @@ public class Response {
     }
     
     public String getHeader(HttpHeader header) {
-        return this.headers.get(header.getValue());
+        return this.headers.get(header);
+    }
+
+    public List<String> getHeaderValues(String name) {
+        return this.headers.getAll(name);
+    }
+
+    public List<String> getHeaderValues(HttpHeader header) {
+        return this.headers.getAll(header);
     }
     
     public static Response ok(String body) {
@@ -148,6 +282,14 @@ public class Response {
     public static Response methodNotAllowed(String body) {
         return new Response(body, HttpStatus.METHOD_NOT_ALLOWED);
     }
+
+    public static Response tooManyRequests(String body) {
+        return new Response(body, HttpStatus.TOO_MANY_REQUESTS);
+    }
+
+    public static Response serviceUnavailable(String body) {
+        return new Response(body, HttpStatus.SERVICE_UNAVAILABLE);
+    }
     
     public static Response created(String body) {
         return new Response(body, HttpStatus.CREATED);
@@ -168,4 +310,54 @@ public class Response {
     public static Response html(String body) {
         return new Response(body, HttpStatus.OK, MediaType.TEXT_HTML);
     }
+
+    /**
+     * Creates a binary response that takes ownership of the body instead of copying it.
+     * The caller must not modify the array afterwards.
+     */
+    public static Response wrap(byte[] body, int statusCode, MediaType mediaType) {
+        return wrap(body, statusCode, mediaType, StandardCharsets.UTF_8);
+    }
+
+    public static Response wrap(byte[] body, int statusCode, MediaType mediaType, Charset charset) {
+        return new Response(body, null, statusCode, mediaType, charset);
+    }
+
+    /**
+     * Streams the input stream as body with chunked transfer encoding. The stream is closed once the response is sent.
+     */
+    public static Response stream(InputStream body, MediaType mediaType) {
+        return new Response(StreamingBody.of(body, -1), HttpStatus.OK.getCode(), mediaType);
+    }
+
+    /**
+     * Streams exactly {@code contentLength} bytes of the input stream as body. The stream is closed once the response is sent.
+     */
+    public static Response stream(InputStream body, long contentLength, MediaType mediaType) {
+        if (contentLength < 0) {
+            throw new IllegalArgumentException("contentLength must not be negative");
+        }
+        return new Response(StreamingBody.of(body, contentLength), HttpStatus.OK.getCode(), mediaType);
+    }
+
+    public static Response stream(BodyWriter body, MediaType mediaType) {
+        return new Response(body, HttpStatus.OK.getCode(), mediaType);
+    }
+
+    /**
+     * Streams a body of which the writer writes exactly {@code contentLength} bytes, sent with a Content-Length.
+     */
+    public static Response stream(BodyWriter body, long contentLength, MediaType mediaType) {
+        if (contentLength < 0) {
+            throw new IllegalArgumentException("contentLength must not be negative");
+        }
+        return new Response(StreamingBody.of(body, contentLength), HttpStatus.OK.getCode(), mediaType);
+    }
+
+    /**
+     * Streams the file as body. It is opened, and its length taken, only when the response is sent.
+     */
+    public static Response file(Path path, MediaType mediaType) {
+        return new Response(StreamingBody.of(path), HttpStatus.OK.getCode(), mediaType);
+    }
 }
@@ -0,0 +1,68 @@
+package remast.marga;
+
+import java.util.Arrays;
+
+/**
+ * Growable byte buffer a response head is assembled in. A connection reuses one for all its responses.
+ */
+final class ResponseHead {
+    private static final int INITIAL_CAPACITY = 512;
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int length;
+
+    void reset() {
+        length = 0;
+    }
+
+    byte[] bytes() {
+        return bytes;
+    }
+
+    int length() {
+        return length;
+    }
+
+    void append(byte[] source) {
+        ensureCapacity(source.length);
+        System.arraycopy(source, 0, bytes, length, source.length);
+        length += source.length;
+    }
+
+    /**
+     * Appends the text as ASCII; other characters become '?'. Line breaks are rejected since they would end the header early.
+     */
+    void appendText(String text) {
+        var textLength = text.length();
+        ensureCapacity(textLength);
+        for (var i = 0; i < textLength; i++) {
+            var c = text.charAt(i);
+            if (c == '\r' || c == '\n') {
+                throw new IllegalArgumentException("contains CR/LF");
+            }
+            bytes[length++] = c < 0x80 ? (byte) c : (byte) '?';
+        }
+    }
+
+    void appendDecimal(long value) {
+        if (value < 0) {
+            throw new IllegalArgumentException("Negative value: " + value);
+        }
+        var digits = 1;
+        for (var rest = value / 10; rest > 0; rest /= 10) {
+            digits++;
+        }
+        ensureCapacity(digits);
+        for (var i = length + digits - 1; i >= length; i--) {
+            bytes[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        length += digits;
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + additional));
+        }
+    }
+}
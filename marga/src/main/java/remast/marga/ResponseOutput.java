@@ -0,0 +1,20 @@
+package remast.marga;
+
+import java.io.IOException;
+
+/**
+ * Connection output that lets {@link HttpResponseWriter} assemble heads in a reused buffer and hand
+ * over head and body together, so they can leave in a single write.
+ */
+interface ResponseOutput {
+
+    /**
+     * Returns the connection's head buffer. Its content is not preserved between responses.
+     */
+    ResponseHead responseHead();
+
+    /**
+     * Writes the head followed by the body region, after any bytes buffered before.
+     */
+    void writeResponse(ResponseHead head, byte[] body, int offset, int length) throws IOException;
+}
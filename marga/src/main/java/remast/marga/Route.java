@@ -8,6 +8,7 @@ class Route {
     private final int staticSegmentCount;
     private final int parameterSegmentCount;
     private final int firstParameterIndex;
+    private String routePattern;
     private RequestHandler wrappedHandler;
     
     public Route(String method, RequestHandler handler, String description, String pattern) {
@@ -18,6 +19,7 @@ class Route {
         this.staticSegmentCount = countStaticSegments(pattern);
         this.parameterSegmentCount = countParameterSegments(pattern);
         this.firstParameterIndex = findFirstParameterIndex(pattern);
+        this.routePattern = pattern;
     }
 
     public Route(RequestHandler handler, String description, String pattern) {
@@ -50,6 +52,12 @@ class Route {
         return patternMatcher.matchInto(path, request);
     }
 
+    void captureInto(String path, int[] starts, int[] ends, Request request) {
+        if (patternMatcher != null) {
+            patternMatcher.captureInto(path, starts, ends, request);
+        }
+    }
+
     public void extractParameters(String path, Request request) {
         if (patternMatcher == null) {
             return;
@@ -89,6 +97,18 @@ class Route {
         return patternMatcher != null ? patternMatcher.getPattern() : null;
     }
 
+    /**
+     * Returns the path template requests matching this route are reported under: the pattern, the
+     * path of an exact route or the prefix of a mount followed by "/*".
+     */
+    String getRoutePattern() {
+        return routePattern;
+    }
+
+    void setRoutePattern(String routePattern) {
+        this.routePattern = routePattern;
+    }
+
     public int getStaticSegmentCount() {
         return staticSegmentCount;
     }
@@ -0,0 +1,233 @@
+package remast.marga;
+
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Segment trie holding the parameterized routes. Every node stands for one path segment: literal
+ * segments are children looked up by their text, a {@code ${name}} segment is the node's single
+ * parameter child, whatever the parameter is called. A node reached by the last segment holds the
+ * routes of that shape keyed by method.
+ *
+ * <p>A lookup walks the segments of the path once, trying the literal child before the parameter
+ * child. Since a route with more literal segments further down may still beat a literal match near
+ * the root, all matching branches are visited and the most specific route wins, as decided by the
+ * router's specificity order. The cost grows with the number of path segments, not with the number
+ * of routes.
+ */
+final class RouteTree {
+    private final Comparator<Route> specificity;
+    private final Node root;
+
+    RouteTree(Comparator<Route> specificity) {
+        this.specificity = specificity;
+        this.root = new Node();
+    }
+
+    /**
+     * Adds a route, replacing one with the same method and pattern. Returns the replaced route or null.
+     */
+    Route add(Route route) {
+        var pattern = route.getPattern();
+        var bounds = segmentBounds(pattern);
+        var node = root;
+        for (var i = 0; i < bounds.count(); i++) {
+            var start = bounds.starts()[i];
+            var end = bounds.ends()[i];
+            if (isParameterSegment(pattern, start, end)) {
+                if (node.parameterChild == null) {
+                    node.parameterChild = new Node();
+                }
+                node = node.parameterChild;
+            } else {
+                node = node.staticChildren().getOrCreate(pattern.substring(start, end));
+            }
+        }
+
+        if (node.routesByMethod == null) {
+            node.routesByMethod = new LinkedHashMap<>();
+        }
+        var existing = node.routesByMethod.get(route.getMethod());
+        // Patterns differing only in parameter names share a node; the one the specificity order prefers is kept.
+        if (existing == null || existing.getPattern().equals(pattern) || specificity.compare(route, existing) > 0) {
+            node.routesByMethod.put(route.getMethod(), route);
+        }
+        return existing != null && existing.getPattern().equals(pattern) ? existing : null;
+    }
+
+    /**
+     * Finds the most specific route for the method and path and writes its path parameters into the request.
+     */
+    Route find(String method, String path, SegmentBounds bounds, Request request) {
+        var route = find(root, method, path, bounds, 0);
+        if (route != null) {
+            route.captureInto(path, bounds.starts(), bounds.ends(), request);
+        }
+        return route;
+    }
+
+    /**
+     * Adds the methods of all routes matching the path.
+     */
+    void collectAllowedMethods(String path, SegmentBounds bounds, Set<String> allowedMethods) {
+        collectAllowedMethods(root, path, bounds, 0, allowedMethods);
+    }
+
+    private Route find(Node node, String method, String path, SegmentBounds bounds, int depth) {
+        if (depth == bounds.count()) {
+            return node.routesByMethod != null ? node.routesByMethod.get(method) : null;
+        }
+        var start = bounds.starts()[depth];
+        var end = bounds.ends()[depth];
+
+        Route best = null;
+        var staticChild = node.staticChildren != null ? node.staticChildren.get(path, start, end) : null;
+        if (staticChild != null) {
+            best = find(staticChild, method, path, bounds, depth + 1);
+        }
+        if (node.parameterChild != null && end > start) {
+            var candidate = find(node.parameterChild, method, path, bounds, depth + 1);
+            if (candidate != null && (best == null || specificity.compare(candidate, best) > 0)) {
+                best = candidate;
+            }
+        }
+        return best;
+    }
+
+    private static void collectAllowedMethods(Node node, String path, SegmentBounds bounds, int depth, Set<String> allowedMethods) {
+        if (depth == bounds.count()) {
+            if (node.routesByMethod != null) {
+                allowedMethods.addAll(node.routesByMethod.keySet());
+            }
+            return;
+        }
+        var start = bounds.starts()[depth];
+        var end = bounds.ends()[depth];
+        var staticChild = node.staticChildren != null ? node.staticChildren.get(path, start, end) : null;
+        if (staticChild != null) {
+            collectAllowedMethods(staticChild, path, bounds, depth + 1, allowedMethods);
+        }
+        if (node.parameterChild != null && end > start) {
+            collectAllowedMethods(node.parameterChild, path, bounds, depth + 1, allowedMethods);
+        }
+    }
+
+    /**
+     * Splits like {@link PatternMatcher}: an optional leading slash is skipped, every further slash
+     * starts a new segment, so a trailing slash yields a trailing empty segment.
+     */
+    static SegmentBounds segmentBounds(String path) {
+        var length = path.length();
+        var cursor = length > 0 && path.charAt(0) == '/' ? 1 : 0;
+        var count = 1;
+        for (var i = cursor; i < length; i++) {
+            if (path.charAt(i) == '/') {
+                count++;
+            }
+        }
+        var starts = new int[count];
+        var ends = new int[count];
+        for (var i = 0; i < count; i++) {
+            var next = path.indexOf('/', cursor);
+            var end = next < 0 ? length : next;
+            starts[i] = cursor;
+            ends[i] = end;
+            cursor = end + 1;
+        }
+        return new SegmentBounds(starts, ends, count);
+    }
+
+    private static boolean isParameterSegment(String pattern, int start, int end) {
+        return end - start >= 3 && pattern.startsWith("${", start) && pattern.charAt(end - 1) == '}';
+    }
+
+    record SegmentBounds(int[] starts, int[] ends, int count) {
+    }
+
+    private static final class Node {
+        private StaticChildren staticChildren;
+        private Node parameterChild;
+        private Map<String, Route> routesByMethod;
+
+        StaticChildren staticChildren() {
+            if (staticChildren == null) {
+                staticChildren = new StaticChildren();
+            }
+            return staticChildren;
+        }
+    }
+
+    /**
+     * Open-addressing table of literal children that is probed with a region of the request path, so
+     * looking up a segment does not allocate a substring.
+     */
+    private static final class StaticChildren {
+        private String[] keys = new String[4];
+        private Node[] nodes = new Node[4];
+        private int shift = Integer.SIZE - 2;
+        private int size;
+
+        Node get(String path, int start, int end) {
+            var mask = keys.length - 1;
+            for (var index = indexFor(hash(path, start, end)); keys[index] != null; index = (index + 1) & mask) {
+                if (keys[index].length() == end - start && keys[index].regionMatches(0, path, start, end - start)) {
+                    return nodes[index];
+                }
+            }
+            return null;
+        }
+
+        Node getOrCreate(String segment) {
+            var existing = get(segment, 0, segment.length());
+            if (existing != null) {
+                return existing;
+            }
+            if ((size + 1) * 2 > keys.length) {
+                resize();
+            }
+            var node = new Node();
+            insert(segment, node);
+            size++;
+            return node;
+        }
+
+        private void insert(String segment, Node node) {
+            var mask = keys.length - 1;
+            var index = indexFor(hash(segment, 0, segment.length()));
+            while (keys[index] != null) {
+                index = (index + 1) & mask;
+            }
+            keys[index] = segment;
+            nodes[index] = node;
+        }
+
+        private void resize() {
+            var oldKeys = keys;
+            var oldNodes = nodes;
+            keys = new String[oldKeys.length * 2];
+            nodes = new Node[oldNodes.length * 2];
+            shift--;
+            for (var i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != null) {
+                    insert(oldKeys[i], oldNodes[i]);
+                }
+            }
+        }
+
+        // Fibonacci hashing: segments like "v1", "v2" have consecutive hashes, which would form long
+        // probe runs if the low bits were used directly.
+        private int indexFor(int hash) {
+            return (hash * 0x9E3779B9) >>> shift;
+        }
+
+        private static int hash(String path, int start, int end) {
+            var hash = 0;
+            for (var i = start; i < end; i++) {
+                hash = 31 * hash + path.charAt(i);
+            }
+            return hash;
+        }
+    }
+}
@@ -12,6 +12,11 @@ import java.util.logging.Logger;
 import remast.marga.handlers.DefaultNotFoundHandler;
 
 public class Router {
+    /**
+     * Path parameter holding the part of the path below the prefix of a {@link #mount mounted} handler.
+     */
+    public static final String MOUNTED_PATH = "*";
+
     private static final Logger logger = Logger.getLogger(Router.class.getName());
     private static final Comparator<Route> ROUTE_SPECIFICITY = Router::compareSpecificity;
     private static final Comparator<Route> ROUTE_SPECIFICITY_DESC = ROUTE_SPECIFICITY.reversed();
@@ -29,8 +34,11 @@ public class Router {
     // makes 405 allowed-method collection O(1) for the exact-route portion.
     private final Map<String, Map<String, Route>> exactRoutesByPath;
     // Parameterized routes, partitioned by method and pre-sorted by specificity (most specific first).
-    // First-match-wins during lookup replaces the prior stream/filter/max-per-request.
+    // Only used for listing; lookups go through the segment trie.
     private final Map<String, List<Route>> parameterizedByMethod;
+    private final RouteTree parameterizedRoutes;
+    // Prefix mounts, longest prefix first. Consulted only when no route matches.
+    private final List<Mount> mounts;
     private final List<Function<RequestHandler, RequestHandler>> middleware;
     private RequestHandler notFoundHandler;
 
@@ -45,6 +53,8 @@ public class Router {
     public Router() {
         this.exactRoutesByPath = new LinkedHashMap<>();
         this.parameterizedByMethod = new HashMap<>();
+        this.parameterizedRoutes = new RouteTree(ROUTE_SPECIFICITY);
+        this.mounts = new ArrayList<>();
         this.middleware = new ArrayList<>();
         this.notFoundHandler = new DefaultNotFoundHandler();
     }
@@ -73,6 +83,40 @@ public class Router {
             freezeMiddleware();
         }
 
+        var routing = new ServerEvents.Routing();
+        routing.begin();
+        var handler = findHandler(request);
+        routing.end();
+        if (routing.shouldCommit()) {
+            routing.method = request.getMethod();
+            routing.path = request.getPath();
+            routing.route = request.getRoutePattern();
+            routing.commit();
+        }
+
+        var execution = new ServerEvents.HandlerExecution();
+        execution.begin();
+        Response response = null;
+        try {
+            response = handler.handle(request);
+            return response;
+        } finally {
+            execution.end();
+            if (execution.shouldCommit()) {
+                execution.method = request.getMethod();
+                execution.route = request.getRoutePattern();
+                // A handler that threw is answered with 500 by the server.
+                execution.status = response != null ? response.getStatusCode() : HttpStatus.INTERNAL_SERVER_ERROR.getCode();
+                execution.commit();
+            }
+        }
+    }
+
+    /**
+     * Returns the wrapped handler of the route matching the request, or the 405 or not-found handler,
+     * and records the matched route pattern on the request.
+     */
+    private RequestHandler findHandler(Request request) {
         var method = request.getMethod();
         var path = request.getPath();
 
@@ -80,26 +124,33 @@ public class Router {
         if (methodsForPath != null) {
             var exactRoute = methodsForPath.get(method);
             if (exactRoute != null) {
-                return exactRoute.getWrappedHandler().handle(request);
+                request.routePattern(exactRoute.getRoutePattern());
+                return exactRoute.getWrappedHandler();
             }
         }
 
-        var candidates = parameterizedByMethod.get(method);
-        if (candidates != null) {
-            for (var route : candidates) {
-                if (route.matchInto(path, request)) {
-                    return route.getWrappedHandler().handle(request);
-                }
+        var segments = RouteTree.segmentBounds(path);
+        var parameterizedRoute = parameterizedRoutes.find(method, path, segments, request);
+        if (parameterizedRoute != null) {
+            request.routePattern(parameterizedRoute.getRoutePattern());
+            return parameterizedRoute.getWrappedHandler();
+        }
+
+        for (var mount : mounts) {
+            var remainder = mount.remainder(path);
+            if (remainder != null) {
+                request.addPathParam(MOUNTED_PATH, remainder);
+                request.routePattern(mount.route().getRoutePattern());
+                return mount.route().getWrappedHandler();
             }
         }
 
-        var allowedMethods = collectAllowedMethodsForPath(path);
+        var allowedMethods = collectAllowedMethodsForPath(path, segments);
         if (!allowedMethods.isEmpty()) {
-            var allowValue = String.join(", ", allowedMethods);
-            return wrappedMethodNotAllowedHandler(allowValue).handle(request);
+            return wrappedMethodNotAllowedHandler(String.join(", ", allowedMethods));
         }
 
-        return wrappedNotFoundHandler.handle(request);
+        return wrappedNotFoundHandler;
     }
 
     public void addRoute(String method, String path, RequestHandler handler) {
@@ -114,6 +165,7 @@ public class Router {
         }
 
         var route = new Route(normalizedMethod, handler, description);
+        route.setRoutePattern(path);
         wrapIfFrozen(route);
         var methodsForPath = exactRoutesByPath.computeIfAbsent(path, ignored -> new LinkedHashMap<>());
         var existing = methodsForPath.put(normalizedMethod, route);
@@ -130,6 +182,7 @@ public class Router {
         var normalizedMethod = normalizeMethod(method);
         var route = new Route(normalizedMethod, handler, description, pattern);
         wrapIfFrozen(route);
+        parameterizedRoutes.add(route);
         var routes = parameterizedByMethod.computeIfAbsent(normalizedMethod, ignored -> new ArrayList<>());
         for (var i = 0; i < routes.size(); i++) {
             var existing = routes.get(i);
@@ -208,6 +261,37 @@ public class Router {
         addRoute("OPTIONS", path, handler, description);
     }
 
+    public void mount(String prefix, RequestHandler handler) {
+        mount(prefix, handler, null);
+    }
+
+    /**
+     * Hands every request below the path prefix, whatever its method, to the handler unless a route
+     * matches it. The path below the prefix, starting with a slash, is the {@link #MOUNTED_PATH} parameter.
+     * A longer prefix takes precedence.
+     */
+    public void mount(String prefix, RequestHandler handler, String description) {
+        if (prefix == null || !prefix.startsWith("/")) {
+            throw new IllegalArgumentException("Mount prefix must start with '/'");
+        }
+        if (handler == null) {
+            throw new IllegalArgumentException("handler cannot be null");
+        }
+        var normalizedPrefix = prefix.endsWith("/") ? prefix.substring(0, prefix.length() - 1) : prefix;
+        var route = new Route("*", handler, description);
+        route.setRoutePattern(normalizedPrefix + "/" + MOUNTED_PATH);
+        wrapIfFrozen(route);
+        mounts.removeIf(mount -> {
+            var replaced = mount.prefix().equals(normalizedPrefix);
+            if (replaced) {
+                logger.warning("Replacing duplicate mount: " + prefix);
+            }
+            return replaced;
+        });
+        mounts.add(new Mount(normalizedPrefix, route));
+        mounts.sort(Comparator.comparingInt((Mount mount) -> mount.prefix().length()).reversed());
+    }
+
     public void setNotFoundHandler(RequestHandler notFoundHandler) {
         if (notFoundHandler == null) {
             throw new IllegalArgumentException("notFoundHandler cannot be null");
@@ -274,6 +358,9 @@ public class Router {
         for (var route : sortedParameterizedRoutes) {
             logger.info(String.format("  %s %s - %s", route.getMethod(), route.getPattern(), route.getDescriptionOrDefault()));
         }
+        for (var mount : mounts) {
+            logger.info(String.format("  * %s/* - %s", mount.prefix(), mount.route().getDescriptionOrDefault()));
+        }
     }
 
     private void freezeMiddleware() {
@@ -293,6 +380,11 @@ public class Router {
                 }
             }
         }
+        for (var mount : mounts) {
+            if (mount.route().getWrappedHandler() == null) {
+                mount.route().setWrappedHandler(applyMiddleware(mount.route().getHandler()));
+            }
+        }
     }
 
     private void wrapIfFrozen(Route route) {
@@ -328,20 +420,13 @@ public class Router {
         }
     }
 
-    private TreeSet<String> collectAllowedMethodsForPath(String path) {
+    private TreeSet<String> collectAllowedMethodsForPath(String path, RouteTree.SegmentBounds segments) {
         var allowedMethods = new TreeSet<String>();
         var methodsForPath = exactRoutesByPath.get(path);
         if (methodsForPath != null) {
             allowedMethods.addAll(methodsForPath.keySet());
         }
-        for (var entry : parameterizedByMethod.entrySet()) {
-            for (var route : entry.getValue()) {
-                if (route.matches(path)) {
-                    allowedMethods.add(entry.getKey());
-                    break;
-                }
-            }
-        }
+        parameterizedRoutes.collectAllowedMethods(path, segments, allowedMethods);
         return allowedMethods;
     }
 
@@ -397,4 +482,19 @@ public class Router {
         var rightPattern = right.getPattern() == null ? "" : right.getPattern();
         return leftPattern.compareTo(rightPattern);
     }
+
+    private record Mount(String prefix, Route route) {
+        /**
+         * Returns the path below the prefix, or null if the path is not below it.
+         */
+        String remainder(String path) {
+            if (!path.startsWith(prefix)) {
+                return null;
+            }
+            if (path.length() == prefix.length()) {
+                return "/";
+            }
+            return path.charAt(prefix.length()) == '/' ? path.substring(prefix.length()) : null;
+        }
+    }
 }
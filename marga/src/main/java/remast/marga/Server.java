@@ -0,0 +1,23 @@
+package remast.marga;
+
+import java.io.IOException;
+
+/**
+ * A server engine accepting connections and feeding requests to a {@link Router}.
+ */
+interface Server {
+    void run() throws IOException;
+
+    void shutdown();
+
+    int getBoundPort();
+
+    ServerStats getStats();
+
+    static Server create(Router router, Config config) {
+        return switch (config.getEngine()) {
+            case BLOCKING -> new HttpServer(router, config);
+            case NIO -> new NioHttpServer(router, config);
+        };
+    }
+}
@@ -0,0 +1,19 @@
+package remast.marga;
+
+/**
+ * Selects how the server performs connection I/O. Both engines share the same router and middleware.
+ */
+public enum ServerEngine {
+    /**
+     * One virtual thread per connection doing blocking reads and writes. Simple and fast for
+     * short-lived or busy connections.
+     */
+    BLOCKING,
+
+    /**
+     * A small set of selector event loops doing non-blocking reads and request parsing; only
+     * complete requests are handed to virtual threads. Keeps the footprint of idle keep-alive
+     * connections low.
+     */
+    NIO
+}
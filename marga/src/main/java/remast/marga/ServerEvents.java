@@ -0,0 +1,125 @@
+package remast.marga;
+
+import java.net.SocketAddress;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * JDK Flight Recorder events for the phases of a request. They are created and committed with the
+ * usual {@code begin()}, {@code shouldCommit()}, {@code commit()} pattern, so the fields are only filled
+ * in when a recording wants the event; with no recording running the JIT removes them entirely.
+ * The duration events come with a threshold of 20 ms like the JDK's socket events, so the default
+ * profile shows slow phases only; set it to 0 ms to record every request:
+ * <pre>
+ * java -XX:StartFlightRecording:remast.marga.HandlerExecution#threshold=0ms ...
+ * </pre>
+ */
+final class ServerEvents {
+    private static final String CATEGORY = "Marga";
+    private static final String HTTP = "HTTP";
+
+    private ServerEvents() {
+    }
+
+    static void connectionAccepted(ServerEngine engine, SocketAddress remoteAddress) {
+        var event = new ConnectionAccepted();
+        if (event.shouldCommit()) {
+            event.engine = engine.name();
+            event.remoteAddress = String.valueOf(remoteAddress);
+            event.commit();
+        }
+    }
+
+    @Name("remast.marga.ConnectionAccepted")
+    @Label("Connection Accepted")
+    @Description("A connection was accepted and handed to a server engine")
+    @Category({CATEGORY, HTTP})
+    @StackTrace(false)
+    static final class ConnectionAccepted extends Event {
+        @Label("Remote Address")
+        String remoteAddress;
+
+        @Label("Engine")
+        String engine;
+    }
+
+    @Name("remast.marga.RequestParse")
+    @Label("Request Parse")
+    @Description("Reading and parsing a request head and body, from its first bytes until it is complete")
+    @Category({CATEGORY, HTTP})
+    @StackTrace(false)
+    @Threshold("20 ms")
+    static final class RequestParse extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("remast.marga.Routing")
+    @Label("Routing")
+    @Description("Choosing the handler of a request")
+    @Category({CATEGORY, HTTP})
+    @StackTrace(false)
+    @Threshold("20 ms")
+    static final class Routing extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Path")
+        String path;
+
+        @Label("Route")
+        @Description("The route pattern that matched, or null if none did")
+        String route;
+    }
+
+    @Name("remast.marga.HandlerExecution")
+    @Label("Handler Execution")
+    @Description("Running the middleware and handler of a request")
+    @Category({CATEGORY, HTTP})
+    @StackTrace(false)
+    @Threshold("20 ms")
+    static final class HandlerExecution extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Route")
+        String route;
+
+        @Label("Status")
+        int status;
+    }
+
+    @Name("remast.marga.ResponseWrite")
+    @Label("Response Write")
+    @Description("Writing a response into the connection's output; small responses may still be buffered afterwards")
+    @Category({CATEGORY, HTTP})
+    @StackTrace(false)
+    @Threshold("20 ms")
+    static final class ResponseWrite extends Event {
+        @Label("Method")
+        String method;
+
+        @Label("Route")
+        String route;
+
+        @Label("Status")
+        int status;
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
@@ -0,0 +1,142 @@
+package remast.marga;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters the server keeps while it runs, see {@link HttpRouter#getStats()}. They are updated without
+ * locking from all connections, so a set of readings taken one after another is not an atomic snapshot.
+ */
+public final class ServerStats {
+    private final LongAdder inFlightRequests = new LongAdder();
+    private final LongAdder queuedRequests = new LongAdder();
+    private final AtomicInteger waitingRequests = new AtomicInteger();
+    private final LongAdder rejectedRequests = new LongAdder();
+    private final LongAdder acceptedConnections = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder parseErrors = new LongAdder();
+    private final LongAdder payloadTooLarge = new LongAdder();
+
+    ServerStats() {
+    }
+
+    /**
+     * Returns the number of requests being handled or written right now.
+     */
+    public long getInFlightRequests() {
+        return inFlightRequests.sum();
+    }
+
+    /**
+     * Returns the number of requests waiting for a free slot right now.
+     */
+    public long getWaitingRequests() {
+        return waitingRequests.get();
+    }
+
+    /**
+     * Returns how many requests had to wait for a free slot since the server started, including rejected ones.
+     */
+    public long getQueuedRequests() {
+        return queuedRequests.sum();
+    }
+
+    /**
+     * Returns how many requests were answered with 503 because the server was saturated.
+     */
+    public long getRejectedRequests() {
+        return rejectedRequests.sum();
+    }
+
+    public long getAcceptedConnections() {
+        return acceptedConnections.sum();
+    }
+
+    /**
+     * Returns the number of open connections right now.
+     */
+    public long getActiveConnections() {
+        return activeConnections.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    /**
+     * Returns how many requests were rejected because their head was malformed or exceeded a limit,
+     * not counting bodies that were too large.
+     */
+    public long getParseErrors() {
+        return parseErrors.sum();
+    }
+
+    /**
+     * Returns how many requests were answered with 413 because their body exceeded the limit.
+     */
+    public long getPayloadTooLargeRejections() {
+        return payloadTooLarge.sum();
+    }
+
+    LongAdder inFlightRequests() {
+        return inFlightRequests;
+    }
+
+    AtomicInteger waitingRequests() {
+        return waitingRequests;
+    }
+
+    LongAdder queuedRequests() {
+        return queuedRequests;
+    }
+
+    LongAdder rejectedRequests() {
+        return rejectedRequests;
+    }
+
+    LongAdder bytesReceived() {
+        return bytesReceived;
+    }
+
+    LongAdder bytesSent() {
+        return bytesSent;
+    }
+
+    void connectionOpened() {
+        acceptedConnections.increment();
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    void requestRejected(int statusCode) {
+        if (statusCode == HttpStatus.PAYLOAD_TOO_LARGE.getCode()) {
+            payloadTooLarge.increment();
+        } else {
+            parseErrors.increment();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ServerStats{inFlightRequests=" + getInFlightRequests()
+            + ", waitingRequests=" + getWaitingRequests()
+            + ", queuedRequests=" + getQueuedRequests()
+            + ", rejectedRequests=" + getRejectedRequests()
+            + ", acceptedConnections=" + getAcceptedConnections()
+            + ", activeConnections=" + getActiveConnections()
+            + ", bytesReceived=" + getBytesReceived()
+            + ", bytesSent=" + getBytesSent()
+            + ", parseErrors=" + getParseErrors()
+            + ", payloadTooLargeRejections=" + getPayloadTooLargeRejections()
+            + "}";
+    }
+}
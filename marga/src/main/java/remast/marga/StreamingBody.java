@@ -0,0 +1,137 @@
+package remast.marga;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A response body written to the connection when the response is sent instead of being held in memory.
+ * It can be written once; {@link #close()} releases its source whether or not it was written.
+ */
+interface StreamingBody extends BodyWriter, Closeable {
+    int COPY_BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Returns the body length in bytes, or -1 if it is only known once the body has been written.
+     */
+    long length() throws IOException;
+
+    /**
+     * Writes the body. A body of known length writes exactly {@link #length()} bytes or fails.
+     */
+    @Override
+    void writeTo(OutputStream out) throws IOException;
+
+    @Override
+    default void close() throws IOException {
+    }
+
+    static StreamingBody of(InputStream in, long length) {
+        return new InputStreamBody(in, length);
+    }
+
+    static StreamingBody of(Path path) {
+        return new PathBody(path);
+    }
+
+    static StreamingBody of(BodyWriter writer) {
+        return new WriterBody(writer, -1);
+    }
+
+    static StreamingBody of(BodyWriter writer, long length) {
+        return new WriterBody(writer, length);
+    }
+
+    static void copy(InputStream in, OutputStream out, long length) throws IOException {
+        var buffer = new byte[(int) Math.min(COPY_BUFFER_SIZE, Math.max(length, 1))];
+        var remaining = length;
+        while (remaining > 0) {
+            var read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+                throw new EOFException("Body ended " + remaining + " bytes before its declared length");
+            }
+            out.write(buffer, 0, read);
+            remaining -= read;
+        }
+    }
+
+    record InputStreamBody(InputStream in, long length) implements StreamingBody {
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            if (length < 0) {
+                in.transferTo(out);
+            } else {
+                copy(in, out, length);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * A file body. The file is opened when its length is first asked for, so the announced length and
+     * the bytes sent come from the same open file even if the path is replaced in between.
+     */
+    final class PathBody implements StreamingBody {
+        private final Path path;
+        private FileChannel channel;
+        private long length;
+
+        PathBody(Path path) {
+            this.path = path;
+        }
+
+        Path path() {
+            return path;
+        }
+
+        @Override
+        public long length() throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+                length = channel.size();
+            }
+            return length;
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            var count = length();
+            if (out instanceof FileTransferTarget target) {
+                target.transferFrom(channel, 0, count);
+            } else {
+                copy(Channels.newInputStream(channel.position(0)), out, count);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    record WriterBody(BodyWriter writer, long length) implements StreamingBody {
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            writer.writeTo(out);
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (writer instanceof Closeable closeable) {
+                closeable.close();
+            }
+        }
+    }
+}
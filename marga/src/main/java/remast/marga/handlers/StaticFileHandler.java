@@ -0,0 +1,414 @@
+package remast.marga.handlers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+import remast.marga.HttpHeader;
+import remast.marga.HttpStatus;
+import remast.marga.MediaType;
+import remast.marga.Request;
+import remast.marga.RequestHandler;
+import remast.marga.Response;
+import remast.marga.Router;
+import remast.marga.middleware.GzipCompressionMiddleware;
+
+/**
+ * Serves the files below a root directory. Mount it on a path prefix:
+ * <pre>
+ * router.mount("/assets", new StaticFileHandler(Path.of("public")));
+ * </pre>
+ * Files are streamed with {@link Response#file}, which the server sends with
+ * {@code FileChannel.transferTo}, so their bytes never pass through the heap. A directory serves its
+ * {@code index.html}. Paths leading outside the root, also through symbolic links, are not found.
+ *
+ * <p>Clients accepting gzip or deflate get a compressed variant, so {@link GzipCompressionMiddleware}
+ * has nothing left to do per request. A {@code .gz} file next to the requested one, and not older than
+ * it, is sent for gzip as it is. Otherwise text-like files are compressed once, at the best level, when
+ * first asked for, and kept in memory keyed by path, size and modification time, so a changed file is
+ * compressed again and the variants of a deleted one are dropped. Compressing happens outside the map;
+ * concurrent requests for the same variant wait for it without holding a lock. Variants that would not
+ * save a tenth are not kept, and neither are any beyond the cache size; those files go out uncompressed.
+ * Every variant has its own strong {@code ETag}, and {@code If-None-Match} or {@code If-Modified-Since}
+ * are answered with {@code 304 Not Modified}.
+ */
+public class StaticFileHandler implements RequestHandler {
+    private static final Logger logger = Logger.getLogger(StaticFileHandler.class.getName());
+    private static final String INDEX_FILE = "index.html";
+    private static final String GZIP_SUFFIX = ".gz";
+    private static final long DEFAULT_CACHE_BYTES = 32L * 1024 * 1024;
+
+    private final Path root;
+    private final RequestHandler notFoundHandler;
+    private final long maxCacheBytes;
+    private final ConcurrentHashMap<VariantKey, CompletableFuture<Variant>> variants = new ConcurrentHashMap<>();
+    private final AtomicLong cachedBytes = new AtomicLong();
+
+    public StaticFileHandler(Path root) {
+        this(root, DEFAULT_CACHE_BYTES);
+    }
+
+    /**
+     * Creates a handler keeping compressed variants of up to {@code maxCacheBytes} in memory; 0 compresses
+     * nothing in memory, but {@code .gz} files are still sent.
+     */
+    public StaticFileHandler(Path root, long maxCacheBytes) {
+        if (root == null) {
+            throw new IllegalArgumentException("root cannot be null");
+        }
+        if (maxCacheBytes < 0) {
+            throw new IllegalArgumentException("maxCacheBytes cannot be negative");
+        }
+        try {
+            this.root = root.toRealPath();
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Static file root does not exist: " + root, e);
+        }
+        if (!Files.isDirectory(this.root)) {
+            throw new IllegalArgumentException("Static file root is not a directory: " + root);
+        }
+        this.notFoundHandler = new DefaultNotFoundHandler();
+        this.maxCacheBytes = maxCacheBytes;
+    }
+
+    @Override
+    public Response handle(Request request) {
+        var method = request.getMethod();
+        if (!"GET".equals(method) && !"HEAD".equals(method)) {
+            return Response.methodNotAllowed("405 - Method Not Allowed").header(HttpHeader.ALLOW, "GET, HEAD");
+        }
+
+        var file = resolve(request);
+        if (file == null) {
+            return notFoundHandler.handle(request);
+        }
+        if (Files.isDirectory(file)) {
+            file = realPath(file.resolve(INDEX_FILE));
+            if (file == null) {
+                return notFoundHandler.handle(request);
+            }
+        }
+        try {
+            if (!Files.isRegularFile(file) || !Files.isReadable(file)) {
+                evict(file);
+                return notFoundHandler.handle(request);
+            }
+            return serve(request, file, Files.readAttributes(file, BasicFileAttributes.class));
+        } catch (IOException e) {
+            evict(file);
+            return notFoundHandler.handle(request);
+        }
+    }
+
+    private Response serve(Request request, Path file, BasicFileAttributes attributes) throws IOException {
+        var mediaType = MediaType.forFileName(file.getFileName().toString());
+        var compressible = GzipCompressionMiddleware.isCompressible(mediaType);
+        var gzipFile = gzipSibling(file, attributes);
+        var coding = compressible || gzipFile != null ? GzipCompressionMiddleware.negotiate(request.header(HttpHeader.ACCEPT_ENCODING)) : null;
+
+        Response response = null;
+        String etag = null;
+        if (GzipCompressionMiddleware.GZIP.equals(coding) && gzipFile != null) {
+            var gzipAttributes = Files.readAttributes(gzipFile, BasicFileAttributes.class);
+            response = Response.file(gzipFile, mediaType);
+            etag = etag(gzipAttributes, GzipCompressionMiddleware.GZIP);
+        } else if (coding != null && compressible) {
+            var variant = variant(file, attributes, coding);
+            if (variant != null) {
+                response = Response.wrap(variant.bytes(), HttpStatus.OK.getCode(), mediaType);
+                etag = etag(attributes, coding);
+            }
+        }
+        if (response == null) {
+            coding = null;
+            response = Response.file(file, mediaType);
+            etag = etag(attributes, null);
+        }
+
+        var lastModified = httpDate(attributes.lastModifiedTime());
+        if (isNotModified(request, etag, attributes.lastModifiedTime())) {
+            // Only the validators and Vary, so that caches can update their copy; no Content-Type.
+            response = Response.wrap(new byte[0], HttpStatus.NOT_MODIFIED.getCode(), null);
+        } else if (coding != null) {
+            response.header(HttpHeader.CONTENT_ENCODING, coding);
+        }
+        response.header(HttpHeader.LAST_MODIFIED, lastModified).header(HttpHeader.ETAG, etag);
+        if (compressible || gzipFile != null) {
+            response.header(HttpHeader.VARY, "Accept-Encoding");
+        }
+        return response;
+    }
+
+    /**
+     * Returns the {@code .gz} file next to the given one if it lies below the root and is not older, or null.
+     */
+    private Path gzipSibling(Path file, BasicFileAttributes attributes) {
+        var sibling = file.resolveSibling(file.getFileName() + GZIP_SUFFIX);
+        try {
+            var gzipFile = sibling.toRealPath();
+            if (!gzipFile.startsWith(root) || !Files.isRegularFile(gzipFile) || !Files.isReadable(gzipFile)) {
+                return null;
+            }
+            return Files.getLastModifiedTime(gzipFile).compareTo(attributes.lastModifiedTime()) >= 0 ? gzipFile : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the cached variant of the file in the content coding, compressing it if it is missing or
+     * stale, or null if compression does not pay off or the cache is full.
+     */
+    private Variant variant(Path file, BasicFileAttributes attributes, String coding) {
+        var size = attributes.size();
+        var modified = attributes.lastModifiedTime().toMillis();
+        var key = new VariantKey(file, coding);
+        while (true) {
+            var pending = variants.get(key);
+            if (pending == null) {
+                var own = new CompletableFuture<Variant>();
+                pending = variants.putIfAbsent(key, own);
+                if (pending == null) {
+                    return compress(key, own, size, modified);
+                }
+            }
+            // Concurrent first requests wait for one result; the future holds no lock, so they unmount.
+            var variant = pending.join();
+            if (variant.isFor(size, modified)) {
+                return variant.bytes() != null ? variant : null;
+            }
+            // The file has changed since; drop the old variant and compress it again.
+            drop(key, pending);
+        }
+    }
+
+    /**
+     * Compresses the file outside the map and completes the future with the result. The variant stays
+     * in the map only if its bytes fit into the cache, which is reserved before the variant is published.
+     */
+    private Variant compress(VariantKey key, CompletableFuture<Variant> own, long size, long modified) {
+        Variant variant = null;
+        try {
+            var maxLength = GzipCompressionMiddleware.maxCompressedLength(size);
+            if (cachedBytes.get() + maxLength > maxCacheBytes) {
+                return null;
+            }
+            var bytes = compress(key.file(), key.coding(), size);
+            var compressed = new Variant(size, modified, bytes.length <= maxLength ? bytes : null);
+            if (!reserve(compressed.cost())) {
+                return null;
+            }
+            logger.fine(() -> "Compressed " + key.file() + " with " + key.coding() + " from " + size + " to " + bytes.length + " bytes");
+            variant = compressed;
+            own.complete(variant);
+            return variant.bytes() != null ? variant : null;
+        } catch (UncheckedIOException e) {
+            logger.warning("Failed to compress " + key.file() + ": " + e.getCause().getMessage());
+            return null;
+        } finally {
+            if (variant == null) {
+                // Nothing is kept; waiting requests send the file uncompressed.
+                variants.remove(key, own);
+                own.complete(new Variant(size, modified, null));
+            }
+        }
+    }
+
+    private boolean reserve(long cost) {
+        while (true) {
+            var current = cachedBytes.get();
+            if (current + cost > maxCacheBytes) {
+                return false;
+            }
+            if (cachedBytes.compareAndSet(current, current + cost)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Removes the variant from the map and gives back its bytes once it is complete.
+     */
+    private void drop(VariantKey key, CompletableFuture<Variant> pending) {
+        if (variants.remove(key, pending)) {
+            pending.thenAccept(variant -> cachedBytes.addAndGet(-variant.cost()));
+        }
+    }
+
+    /**
+     * Drops the variants of a file that no longer exists or can no longer be served.
+     */
+    private void evict(Path file) {
+        for (var coding : new String[] {GzipCompressionMiddleware.GZIP, GzipCompressionMiddleware.DEFLATE}) {
+            var key = new VariantKey(file, coding);
+            var pending = variants.get(key);
+            if (pending != null) {
+                drop(key, pending);
+            }
+        }
+    }
+
+    private static byte[] compress(Path file, String coding, long size) {
+        var bytes = new ByteArrayOutputStream((int) Math.min(size / 4 + 64, Integer.MAX_VALUE - 8));
+        var gzip = GzipCompressionMiddleware.GZIP.equals(coding);
+        var deflater = gzip ? null : new Deflater(Deflater.BEST_COMPRESSION);
+        try (var in = Files.newInputStream(file);
+             OutputStream out = gzip ? new BestGzipOutputStream(bytes) : new DeflaterOutputStream(bytes, deflater)) {
+            in.transferTo(out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Whether the client's copy is current: its {@code If-None-Match} holds the entity tag, or without
+     * that header, {@code If-Modified-Since} is not before the modification time.
+     */
+    private static boolean isNotModified(Request request, String etag, FileTime lastModified) {
+        var ifNoneMatch = request.header(HttpHeader.IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            var opaque = opaqueTag(etag);
+            for (var candidate : ifNoneMatch.split(",")) {
+                var tag = candidate.trim();
+                if (tag.equals("*") || opaqueTag(tag).equals(opaque)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+        var ifModifiedSince = request.header(HttpHeader.IF_MODIFIED_SINCE);
+        if (ifModifiedSince == null) {
+            return false;
+        }
+        try {
+            var since = ZonedDateTime.parse(ifModifiedSince.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            return !lastModified.toInstant().truncatedTo(ChronoUnit.SECONDS).isAfter(since);
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Drops the weakness indicator: {@code If-None-Match} compares entity tags weakly.
+     */
+    private static String opaqueTag(String tag) {
+        return tag.startsWith("W/") ? tag.substring(2) : tag;
+    }
+
+    private static String etag(BasicFileAttributes attributes, String coding) {
+        var tag = Long.toHexString(attributes.size()) + "-" + Long.toHexString(attributes.lastModifiedTime().toMillis());
+        return "\"" + (coding != null ? tag + "-" + coding : tag) + "\"";
+    }
+
+    /**
+     * Maps the request path to a file below the root, or returns null if it does not exist or lies outside.
+     */
+    private Path resolve(Request request) {
+        var path = request.pathParam(Router.MOUNTED_PATH);
+        var decoded = decodePath(path != null ? path : request.getPath());
+        if (decoded == null || decoded.indexOf('\0') >= 0) {
+            return null;
+        }
+        try {
+            return realPath(root.resolve(decoded.startsWith("/") ? decoded.substring(1) : decoded).normalize());
+        } catch (InvalidPathException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the real path of the file if it exists below the root, or null. The variants of a file
+     * that has gone are dropped.
+     */
+    private Path realPath(Path file) {
+        try {
+            var realFile = file.toRealPath();
+            return realFile.startsWith(root) ? realFile : null;
+        } catch (NoSuchFileException e) {
+            evict(file);
+            return null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Decodes percent-escapes as UTF-8. Unlike form decoding, '+' stays a plus sign. Returns null for a malformed escape.
+     */
+    private static String decodePath(String path) {
+        if (path.indexOf('%') < 0) {
+            return path;
+        }
+        var bytes = new ByteArrayOutputStream(path.length());
+        for (var i = 0; i < path.length(); i++) {
+            var c = path.charAt(i);
+            if (c != '%') {
+                bytes.writeBytes(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+                continue;
+            }
+            if (i + 2 >= path.length()) {
+                return null;
+            }
+            var high = Character.digit(path.charAt(i + 1), 16);
+            var low = Character.digit(path.charAt(i + 2), 16);
+            if (high < 0 || low < 0) {
+                return null;
+            }
+            bytes.write(high << 4 | low);
+            i += 2;
+        }
+        return bytes.toString(StandardCharsets.UTF_8);
+    }
+
+    private static String httpDate(FileTime time) {
+        return DateTimeFormatter.RFC_1123_DATE_TIME.format(time.toInstant().truncatedTo(ChronoUnit.SECONDS).atOffset(ZoneOffset.UTC));
+    }
+
+    private record VariantKey(Path file, String coding) {
+    }
+
+    /**
+     * Compressed bytes of a file with the given size and modification time, or null bytes if compressing
+     * it did not pay off.
+     */
+    private record Variant(long size, long modified, byte[] bytes) {
+        boolean isFor(long size, long modified) {
+            return this.size == size && this.modified == modified;
+        }
+
+        long cost() {
+            return bytes != null ? bytes.length : 0;
+        }
+    }
+
+    private static final class BestGzipOutputStream extends GZIPOutputStream {
+        BestGzipOutputStream(OutputStream out) throws IOException {
+            super(out, 8192);
+            def.setLevel(Deflater.BEST_COMPRESSION);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package remast.marga.metrics;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histogram of durations in nanoseconds with log-linear buckets: every power of two from about a
+ * microsecond to about a minute is split into {@value #SUB_BUCKETS} equal buckets, so a bucket is never
+ * wider than an eighth of its lower bound. Shorter durations share the first bucket, longer ones the last.
+ *
+ * <p>Every bucket is a {@link LongAdder}, so recording from many threads at once does not contend; a
+ * {@link #snapshot()} taken meanwhile may miss recordings in flight but never sees partial ones.
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // 2^10 ns is about a microsecond, 2^36 ns about 69 seconds.
+    private static final int MIN_EXPONENT = 10;
+    private static final int MAX_EXPONENT = 36;
+    static final int BUCKETS = 2 + (MAX_EXPONENT - MIN_EXPONENT) * SUB_BUCKETS;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    public LatencyHistogram() {
+        for (var i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * Records a duration; negative durations count as zero.
+     */
+    public void record(long nanos) {
+        var value = Math.max(0, nanos);
+        buckets[bucketIndex(value)].increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    public Snapshot snapshot() {
+        var counts = new long[BUCKETS];
+        for (var i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return new Snapshot(counts, sum.sum(), max.get());
+    }
+
+    /**
+     * Copies the bucket counts into the array and returns the sum, for rendering without a snapshot.
+     */
+    long countsInto(long[] counts) {
+        for (var i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return sum.sum();
+    }
+
+    static int bucketIndex(long nanos) {
+        if (nanos < 1L << MIN_EXPONENT) {
+            return 0;
+        }
+        var exponent = 63 - Long.numberOfLeadingZeros(nanos);
+        if (exponent >= MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        var subBucket = (int) (nanos >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return 1 + (exponent - MIN_EXPONENT) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * Returns the exclusive upper bound of a bucket in nanoseconds, or {@link Long#MAX_VALUE} for the last.
+     */
+    static long upperBound(int index) {
+        if (index == 0) {
+            return 1L << MIN_EXPONENT;
+        }
+        if (index >= BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        var exponent = MIN_EXPONENT + (index - 1) / SUB_BUCKETS;
+        var subBucket = (index - 1) % SUB_BUCKETS;
+        return (long) (SUB_BUCKETS + subBucket + 1) << (exponent - SUB_BUCKET_BITS);
+    }
+
+    /**
+     * The counts of a histogram at one point in time.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long sum, long max) {
+            this.counts = counts;
+            var total = 0L;
+            for (var bucketCount : counts) {
+                total += bucketCount;
+            }
+            this.count = total;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * Returns the sum of all recorded durations in nanoseconds.
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        public long getMax() {
+            return max;
+        }
+
+        public double getMean() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        /**
+         * Returns how many durations were at most the bound. Buckets are counted whole, so durations in the
+         * bucket containing the bound count even where they are slightly longer.
+         */
+        public long countAtMost(long nanos) {
+            if (nanos < 0) {
+                return 0;
+            }
+            var last = bucketIndex(nanos);
+            var total = 0L;
+            for (var i = 0; i <= last; i++) {
+                total += counts[i];
+            }
+            return total;
+        }
+
+        /**
+         * Returns an upper estimate of the duration the given fraction of requests stayed below,
+         * for example 0.99 for the 99th percentile, or 0 if nothing was recorded.
+         */
+        public long getPercentile(double fraction) {
+            if (fraction < 0.0 || fraction > 1.0) {
+                throw new IllegalArgumentException("fraction must be between 0 and 1");
+            }
+            if (count == 0) {
+                return 0;
+            }
+            var rank = Math.max(1, (long) Math.ceil(fraction * count));
+            var seen = 0L;
+            for (var i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i), max);
+                }
+            }
+            return max;
+        }
+    }
+}
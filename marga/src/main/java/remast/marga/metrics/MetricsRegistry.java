@@ -0,0 +1,95 @@
+package remast.marga.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Request metrics per route and method. Requests are grouped by the route pattern they matched rather
+ * than their path, and methods other than the standard ones are grouped as {@value #OTHER_METHOD}, so
+ * the number of series stays bounded by the routes of the application whatever clients send.
+ * Recording takes two map lookups and a few {@link java.util.concurrent.atomic.LongAdder} updates.
+ * <pre>
+ * var metrics = new MetricsRegistry();
+ * router.use(MetricsMiddleware.create(metrics));
+ * </pre>
+ */
+public final class MetricsRegistry {
+    /**
+     * Route name of requests that matched no route.
+     */
+    public static final String UNMATCHED = "unmatched";
+    public static final String OTHER_METHOD = "OTHER";
+
+    private static final Set<String> METHODS = Set.of("GET", "HEAD", "POST", "PUT", "DELETE", "PATCH", "OPTIONS", "TRACE", "CONNECT");
+
+    // route -> method -> metrics; keeps the lookup free of allocations.
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, RouteMetrics>> routes = new ConcurrentHashMap<>();
+    // The same metrics in creation order, for reading them all without walking the maps.
+    private final List<RouteMetrics> all = new CopyOnWriteArrayList<>();
+
+    /**
+     * Marks a request as started and returns the metrics to {@link #completed complete} it on.
+     * A null route stands for a request that matched no route.
+     */
+    public RouteMetrics started(String method, String route) {
+        var metrics = route(method, route);
+        metrics.started();
+        return metrics;
+    }
+
+    /**
+     * Records the outcome of a request returned by {@link #started}.
+     */
+    public void completed(RouteMetrics metrics, int statusCode, long nanos) {
+        metrics.completed(statusCode, nanos);
+    }
+
+    /**
+     * Returns the metrics of a route and method, creating them if needed.
+     */
+    public RouteMetrics route(String method, String route) {
+        var routeName = route == null ? UNMATCHED : route;
+        var methodName = method != null && METHODS.contains(method) ? method : OTHER_METHOD;
+        var byMethod = routes.get(routeName);
+        if (byMethod == null) {
+            byMethod = routes.computeIfAbsent(routeName, ignored -> new ConcurrentHashMap<>());
+        }
+        var metrics = byMethod.get(methodName);
+        if (metrics == null) {
+            metrics = byMethod.computeIfAbsent(methodName, ignored -> {
+                var created = new RouteMetrics(methodName, routeName);
+                all.add(created);
+                return created;
+            });
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the metrics of all routes that have served requests, ordered by route and method.
+     */
+    public List<RouteMetrics> getRoutes() {
+        var sorted = new ArrayList<>(all);
+        sorted.sort(Comparator.comparing(RouteMetrics::getRoute).thenComparing(RouteMetrics::getMethod));
+        return sorted;
+    }
+
+    List<RouteMetrics> routesInCreationOrder() {
+        return all;
+    }
+
+    /**
+     * Returns the number of requests in flight across all routes.
+     */
+    public long getInFlight() {
+        var total = 0L;
+        for (var metrics : all) {
+            total += metrics.getInFlight();
+        }
+        return total;
+    }
+}
@@ -0,0 +1,272 @@
+package remast.marga.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+import remast.marga.AsciiBuffer;
+import remast.marga.HttpStatus;
+import remast.marga.MediaType;
+import remast.marga.Request;
+import remast.marga.RequestHandler;
+import remast.marga.Response;
+import remast.marga.ServerStats;
+
+/**
+ * Serves the metrics of a {@link MetricsRegistry}, and optionally the server's {@link ServerStats}, in the
+ * OpenMetrics text format that Prometheus scrapes:
+ * <pre>
+ * router.GET("/metrics", new OpenMetricsHandler(metrics, router.getStats()));
+ * </pre>
+ * Latency histograms are exposed with bucket bounds at powers of two from about 65 microseconds to
+ * about 34 seconds; these are bounds of the recorded buckets as well, so the cumulative counts are exact.
+ *
+ * <p>The text is rendered into a byte buffer that is kept for the next scrape, without building Strings
+ * for the numbers or the labels; a response gets one array of exactly its length and a Content-Length.
+ * Concurrent scrapes get a buffer of their own.
+ */
+public final class OpenMetricsHandler implements RequestHandler {
+    public static final MediaType OPENMETRICS_TEXT = new MediaType("application/openmetrics-text; version=1.0.0; charset=utf-8");
+
+    // Histogram bounds: 2^16 to 2^35 nanoseconds.
+    private static final int FIRST_BOUND_EXPONENT = 16;
+    private static final int LAST_BOUND_EXPONENT = 35;
+
+    private static final byte[] REQUESTS = ascii("""
+        # TYPE marga_http_requests counter
+        # HELP marga_http_requests Completed HTTP requests by route, method and status class.
+        """);
+    private static final byte[] REQUESTS_TOTAL = ascii("marga_http_requests_total");
+    private static final byte[] IN_FLIGHT = ascii("""
+        # TYPE marga_http_requests_in_flight gauge
+        # HELP marga_http_requests_in_flight HTTP requests being handled.
+        """);
+    private static final byte[] IN_FLIGHT_NAME = ascii("marga_http_requests_in_flight");
+    private static final byte[] DURATION = ascii("""
+        # TYPE marga_http_request_duration_seconds histogram
+        # UNIT marga_http_request_duration_seconds seconds
+        # HELP marga_http_request_duration_seconds Time spent in the handler.
+        """);
+    private static final byte[] DURATION_BUCKET = ascii("marga_http_request_duration_seconds_bucket");
+    private static final byte[] DURATION_COUNT = ascii("marga_http_request_duration_seconds_count");
+    private static final byte[] DURATION_SUM = ascii("marga_http_request_duration_seconds_sum");
+    private static final byte[][] STATUS_LABELS = {ascii(",status=\"1xx\""), ascii(",status=\"2xx\""),
+        ascii(",status=\"3xx\""), ascii(",status=\"4xx\""), ascii(",status=\"5xx\"")};
+    private static final byte[] LE_LABEL = ascii(",le=\"");
+    private static final byte[] INFINITY_LABEL = ascii(",le=\"+Inf\"");
+    private static final byte[] EOF = ascii("# EOF\n");
+    private static final byte[][] BOUND_LABELS = boundLabels();
+
+    private final MetricsRegistry registry;
+    private final ServerStats stats;
+    private final AtomicReference<Exposition> spare = new AtomicReference<>();
+
+    public OpenMetricsHandler(MetricsRegistry registry) {
+        this(registry, null);
+    }
+
+    /**
+     * Creates a handler that exposes the server counters as well, see {@link remast.marga.HttpRouter#getStats()}.
+     */
+    public OpenMetricsHandler(MetricsRegistry registry, ServerStats stats) {
+        if (registry == null) {
+            throw new IllegalArgumentException("registry cannot be null");
+        }
+        this.registry = registry;
+        this.stats = stats;
+    }
+
+    @Override
+    public Response handle(Request request) {
+        var exposition = render();
+        try {
+            // A copy of exactly the text: the buffer is back for the next scrape even if the body is never
+            // written, as for HEAD or a client that has gone.
+            return Response.wrap(exposition.text.toByteArray(), HttpStatus.OK.getCode(), OPENMETRICS_TEXT);
+        } finally {
+            spare.set(exposition);
+        }
+    }
+
+    /**
+     * Writes the current metrics in the OpenMetrics text format to the stream.
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        var exposition = render();
+        try {
+            exposition.text.writeTo(out);
+        } finally {
+            spare.set(exposition);
+        }
+    }
+
+    private Exposition render() {
+        var exposition = spare.getAndSet(null);
+        if (exposition == null) {
+            exposition = new Exposition();
+        }
+        exposition.text.reset();
+        var routes = registry.routesInCreationOrder();
+
+        exposition.text.append(REQUESTS);
+        for (var route : routes) {
+            for (var statusClass = 1; statusClass <= STATUS_LABELS.length; statusClass++) {
+                var count = route.getRequests(statusClass);
+                if (count > 0) {
+                    exposition.sample(REQUESTS_TOTAL, route.labels(), STATUS_LABELS[statusClass - 1], count);
+                }
+            }
+        }
+
+        exposition.text.append(IN_FLIGHT);
+        for (var route : routes) {
+            exposition.sample(IN_FLIGHT_NAME, route.labels(), null, route.getInFlight());
+        }
+
+        exposition.text.append(DURATION);
+        var counts = exposition.counts;
+        for (var route : routes) {
+            var sum = route.getLatency().countsInto(counts);
+            var cumulative = 0L;
+            var bucket = 0;
+            for (var exponent = FIRST_BOUND_EXPONENT; exponent <= LAST_BOUND_EXPONENT; exponent++) {
+                // Durations below 2^exponent fill exactly the buckets up to the one holding 2^exponent - 1.
+                var last = LatencyHistogram.bucketIndex((1L << exponent) - 1);
+                for (; bucket <= last; bucket++) {
+                    cumulative += counts[bucket];
+                }
+                exposition.sample(DURATION_BUCKET, route.labels(), BOUND_LABELS[exponent - FIRST_BOUND_EXPONENT], cumulative);
+            }
+            for (; bucket < counts.length; bucket++) {
+                cumulative += counts[bucket];
+            }
+            exposition.sample(DURATION_BUCKET, route.labels(), INFINITY_LABEL, cumulative);
+            exposition.sample(DURATION_COUNT, route.labels(), null, cumulative);
+            exposition.name(DURATION_SUM, route.labels(), null);
+            exposition.appendSeconds(sum);
+            exposition.text.append((byte) '\n');
+        }
+
+        if (stats != null) {
+            renderServerStats(exposition, stats);
+        }
+        exposition.text.append(EOF);
+        return exposition;
+    }
+
+    private static void renderServerStats(Exposition exposition, ServerStats stats) {
+        exposition.family("marga_server_connections_accepted", "counter", null, "Connections accepted.", stats.getAcceptedConnections());
+        exposition.family("marga_server_connections_active", "gauge", null, "Connections open.", stats.getActiveConnections());
+        exposition.family("marga_server_received_bytes", "counter", "bytes", "Bytes read from connections.", stats.getBytesReceived());
+        exposition.family("marga_server_sent_bytes", "counter", "bytes", "Bytes written to connections.", stats.getBytesSent());
+        exposition.family("marga_server_parse_errors", "counter", null, "Requests rejected as malformed or over a head limit.",
+            stats.getParseErrors());
+        exposition.family("marga_server_payload_too_large", "counter", null, "Requests rejected with 413 for their body size.",
+            stats.getPayloadTooLargeRejections());
+        exposition.family("marga_server_requests_in_flight", "gauge", null, "Requests being handled or written.",
+            stats.getInFlightRequests());
+        exposition.family("marga_server_requests_queued", "counter", null, "Requests that waited for a free slot.",
+            stats.getQueuedRequests());
+        exposition.family("marga_server_requests_rejected", "counter", null, "Requests rejected with 503 under overload.",
+            stats.getRejectedRequests());
+    }
+
+    private static byte[][] boundLabels() {
+        var labels = new byte[LAST_BOUND_EXPONENT - FIRST_BOUND_EXPONENT + 1][];
+        for (var exponent = FIRST_BOUND_EXPONENT; exponent <= LAST_BOUND_EXPONENT; exponent++) {
+            var label = new Exposition();
+            label.text.append(LE_LABEL);
+            label.appendSeconds(1L << exponent);
+            label.text.append((byte) '"');
+            labels[exponent - FIRST_BOUND_EXPONENT] = label.text.toByteArray();
+        }
+        return labels;
+    }
+
+    private static byte[] ascii(String text) {
+        return text.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * A growable buffer with the few formatting operations the exposition needs.
+     */
+    private static final class Exposition {
+        private static final int INITIAL_SIZE = 16 * 1024;
+
+        private final AsciiBuffer text = new AsciiBuffer(INITIAL_SIZE);
+        private final long[] counts = new long[LatencyHistogram.BUCKETS];
+
+        void family(String name, String type, String unit, String help, long value) {
+            var total = "counter".equals(type);
+            text.appendAscii("# TYPE ");
+            text.appendAscii(name);
+            text.append((byte) ' ');
+            text.appendAscii(type);
+            text.append((byte) '\n');
+            if (unit != null) {
+                text.appendAscii("# UNIT ");
+                text.appendAscii(name);
+                text.append((byte) ' ');
+                text.appendAscii(unit);
+                text.append((byte) '\n');
+            }
+            text.appendAscii("# HELP ");
+            text.appendAscii(name);
+            text.append((byte) ' ');
+            text.appendAscii(help);
+            text.append((byte) '\n');
+            text.appendAscii(name);
+            if (total) {
+                text.appendAscii("_total");
+            }
+            text.append((byte) ' ');
+            text.appendLong(value);
+            text.append((byte) '\n');
+        }
+
+        void sample(byte[] name, byte[] labels, byte[] extraLabel, long value) {
+            name(name, labels, extraLabel);
+            text.appendLong(value);
+            text.append((byte) '\n');
+        }
+
+        void name(byte[] name, byte[] labels, byte[] extraLabel) {
+            text.append(name);
+            text.append((byte) '{');
+            text.append(labels);
+            if (extraLabel != null) {
+                text.append(extraLabel);
+            }
+            text.append((byte) '}');
+            text.append((byte) ' ');
+        }
+
+        /**
+         * Appends nanoseconds as seconds in decimal notation, without trailing zeros.
+         */
+        void appendSeconds(long nanos) {
+            text.appendLong(nanos / 1_000_000_000);
+            var fraction = nanos % 1_000_000_000;
+            if (fraction == 0) {
+                return;
+            }
+            text.append((byte) '.');
+            var width = 9;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                width--;
+            }
+            for (var divisor = pow10(width - 1); divisor > 0; divisor /= 10) {
+                text.append((byte) ('0' + fraction / divisor % 10));
+            }
+        }
+
+        private static long pow10(int exponent) {
+            var result = 1L;
+            for (var i = 0; i < exponent; i++) {
+                result *= 10;
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package remast.marga.metrics;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters of one route and method: requests by status class, requests in flight and their latency.
+ */
+public final class RouteMetrics {
+    private static final int STATUS_CLASSES = 5;
+
+    private final String method;
+    private final String route;
+    private final LongAdder inFlight = new LongAdder();
+    private final LongAdder[] statusClasses = new LongAdder[STATUS_CLASSES];
+    private final LatencyHistogram latency = new LatencyHistogram();
+    // The series labels, encoded once for the exposition.
+    private final byte[] labels;
+
+    RouteMetrics(String method, String route) {
+        this.method = method;
+        this.route = route;
+        this.labels = ("method=\"" + escapeLabelValue(method) + "\",route=\"" + escapeLabelValue(route) + "\"")
+            .getBytes(StandardCharsets.UTF_8);
+        for (var i = 0; i < STATUS_CLASSES; i++) {
+            statusClasses[i] = new LongAdder();
+        }
+    }
+
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     * Returns the route pattern, or {@link MetricsRegistry#UNMATCHED} for requests no route matched.
+     */
+    public String getRoute() {
+        return route;
+    }
+
+    void started() {
+        inFlight.increment();
+    }
+
+    void completed(int statusCode, long nanos) {
+        inFlight.decrement();
+        var statusClass = statusCode / 100;
+        // Codes outside 1xx to 5xx cannot be sent, so they are counted as server errors.
+        statusClasses[statusClass >= 1 && statusClass <= STATUS_CLASSES ? statusClass - 1 : STATUS_CLASSES - 1].increment();
+        latency.record(nanos);
+    }
+
+    public long getRequests() {
+        var total = 0L;
+        for (var statusClass : statusClasses) {
+            total += statusClass.sum();
+        }
+        return total;
+    }
+
+    /**
+     * Returns how many completed requests had a status code in the class, 1 for 1xx up to 5 for 5xx.
+     */
+    public long getRequests(int statusClass) {
+        if (statusClass < 1 || statusClass > STATUS_CLASSES) {
+            throw new IllegalArgumentException("statusClass must be between 1 and 5");
+        }
+        return statusClasses[statusClass - 1].sum();
+    }
+
+    public long getInFlight() {
+        return inFlight.sum();
+    }
+
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+
+    byte[] labels() {
+        return labels;
+    }
+
+    private static String escapeLabelValue(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+
+    @Override
+    public String toString() {
+        return "RouteMetrics{method=" + method
+            + ", route=" + route
+            + ", requests=" + getRequests()
+            + ", inFlight=" + getInFlight()
+            + "}";
+    }
+}
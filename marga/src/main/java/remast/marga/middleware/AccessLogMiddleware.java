@@ -0,0 +1,553 @@
+package remast.marga.middleware;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.logging.Logger;
+import remast.marga.AsciiBuffer;
+import remast.marga.HttpHeader;
+import remast.marga.Request;
+import remast.marga.RequestHandler;
+import remast.marga.Response;
+
+/**
+ * Middleware that writes an access log line per request to a file, in the common or combined log format
+ * or as JSON lines, with the response size and the time the handler took.
+ *
+ * <p>The request thread only copies a few references and numbers into a slot of a bounded ring buffer,
+ * claimed with a compare-and-set; it neither formats nor locks. A background thread formats the records
+ * and appends them to the file in batches with {@link FileChannel} writes, so under load many lines share
+ * one write. If requests outpace the disk and the ring fills up, records are dropped and counted by
+ * default, or with {@link Overflow#BLOCK} the request threads wait for free slots.
+ * <pre>
+ * var accessLog = AccessLogMiddleware.builder()
+ *     .path(Path.of("access.log"))
+ *     .format(AccessLogMiddleware.Format.COMBINED)
+ *     .build();
+ * router.use(accessLog.create());
+ * ...
+ * accessLog.close();
+ * </pre>
+ * The size is the length of the body as it is sent: 0 for HEAD requests and statuses without a body,
+ * and "-" for streamed bodies, whose length is only known once the server has written them.
+ * The common and combined formats append the handler time in microseconds like Apache's {@code %D},
+ * and log the request line without the protocol version, which the request does not carry.
+ */
+public final class AccessLogMiddleware implements Closeable {
+    private static final Logger logger = Logger.getLogger(AccessLogMiddleware.class.getName());
+    private static final int BATCH_BYTES = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    private static final int SERVER_ERROR = 500;
+
+    /**
+     * Layout of the log lines.
+     */
+    public enum Format {
+        /**
+         * {@code 127.0.0.1 - - [17/Oct/2026:13:55:36 +0200] "GET /users?page=2" 200 2326 1532}
+         */
+        COMMON,
+        /**
+         * The common format with the quoted {@code Referer} and {@code User-Agent} before the duration.
+         */
+        COMBINED,
+        /**
+         * One JSON object per line, with the time in UTC and {@code duration_us}.
+         */
+        JSON
+    }
+
+    /**
+     * What request threads do when the ring buffer is full.
+     */
+    public enum Overflow {
+        /**
+         * Drop the record and count it, see {@link #getDropped()}.
+         */
+        DROP,
+        /**
+         * Wait until the writer has freed a slot.
+         */
+        BLOCK
+    }
+
+    private final FileChannel channel;
+    private final Format format;
+    private final Overflow overflow;
+    private final boolean requestHeaders;
+    private final Slot[] slots;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    private final LongAdder dropped = new LongAdder();
+    private final Thread writer;
+    private final LineWriter lines;
+
+    private volatile boolean writerIdle;
+    private volatile boolean closed;
+
+    private AccessLogMiddleware(Builder builder, FileChannel channel) {
+        this.channel = channel;
+        this.format = builder.format;
+        this.overflow = builder.overflow;
+        this.requestHeaders = builder.format != Format.COMMON;
+        this.slots = new Slot[builder.capacity];
+        for (var i = 0; i < slots.length; i++) {
+            slots[i] = new Slot(i);
+        }
+        this.mask = slots.length - 1;
+        this.lines = new LineWriter(builder.zone);
+        this.writer = Thread.ofPlatform().daemon().name("marga-access-log").start(this::drain);
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates the middleware function.
+     */
+    public Function<RequestHandler, RequestHandler> create() {
+        return handler -> request -> {
+            var time = System.currentTimeMillis();
+            var start = System.nanoTime();
+            Response response = null;
+            try {
+                response = handler.handle(request);
+                return response;
+            } finally {
+                var nanos = System.nanoTime() - start;
+                if (response == null) {
+                    offer(request, SERVER_ERROR, -1, time, nanos);
+                } else {
+                    offer(request, response.getStatusCode(), bodyBytes(request, response), time, nanos);
+                }
+            }
+        };
+    }
+
+    /**
+     * Returns the size of the body sent for the response, or -1 if it is streamed. Asking a streamed body
+     * for its length could open a file on this thread, and the body may not be sent as it is.
+     */
+    private static long bodyBytes(Request request, Response response) {
+        var status = response.getStatusCode();
+        if ("HEAD".equals(request.getMethod()) || status < 200 || status == 204 || status == 304) {
+            return 0;
+        }
+        return response.isStreaming() ? -1 : response.getBodyLength();
+    }
+
+    /**
+     * Returns how many records were dropped because the ring buffer was full, the log was closed or the
+     * record could not be formatted.
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Writes the records still in the ring buffer, stops the writer thread and closes the file.
+     * Records of requests completing afterwards are dropped.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    private void offer(Request request, int status, long bytes, long time, long nanos) {
+        while (!closed) {
+            var position = tail.get();
+            var slot = slots[(int) (position & mask)];
+            var difference = slot.sequence - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    slot.fill(request, requestHeaders, status, bytes, time, nanos);
+                    // Publishes the record to the writer.
+                    slot.sequence = position + 1;
+                    if (writerIdle) {
+                        LockSupport.unpark(writer);
+                    }
+                    return;
+                }
+            } else if (difference < 0) {
+                // The slot still holds the record from one lap earlier: the ring is full. Nothing will free
+                // it once the writer thread has died, so blocking gives up then.
+                if (overflow == Overflow.DROP || !writer.isAlive()) {
+                    break;
+                }
+                LockSupport.parkNanos(this, FULL_PARK_NANOS);
+            }
+            // Otherwise another request claimed the slot first.
+        }
+        dropped.increment();
+    }
+
+    private void drain() {
+        var head = 0L;
+        while (true) {
+            var slot = slots[(int) (head & mask)];
+            if (slot.sequence == head + 1) {
+                var mark = lines.text.length();
+                try {
+                    lines.write(slot, format);
+                } catch (RuntimeException e) {
+                    // One record that cannot be formatted must not stop the writer, or blocked requests
+                    // would wait forever.
+                    lines.text.truncate(mark);
+                    dropped.increment();
+                    logger.warning("Failed to format access log record: " + e);
+                }
+                slot.clear();
+                // Hands the slot to the request that is one lap ahead.
+                slot.sequence = head + slots.length;
+                head++;
+                if (lines.text.length() >= BATCH_BYTES) {
+                    flush();
+                }
+                continue;
+            }
+            flush();
+            if (closed) {
+                // A record published before the log was closed may not have been visible above.
+                if (slot.sequence == head + 1) {
+                    continue;
+                }
+                return;
+            }
+            writerIdle = true;
+            if (slot.sequence != head + 1 && !closed) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            writerIdle = false;
+        }
+    }
+
+    private void flush() {
+        if (lines.text.length() == 0) {
+            return;
+        }
+        try {
+            lines.text.writeTo(channel);
+        } catch (IOException e) {
+            logger.warning("Failed to write access log: " + e.getMessage());
+        }
+        lines.text.reset();
+    }
+
+    /**
+     * A record in the ring buffer. The request thread that claimed it fills it and then publishes it by
+     * advancing {@link #sequence}; the writer reads it only after seeing the new sequence.
+     */
+    private static final class Slot {
+        private volatile long sequence;
+        private long time;
+        private InetSocketAddress remoteAddress;
+        private String method;
+        private String path;
+        private String query;
+        private String referer;
+        private String userAgent;
+        private int status;
+        private long bytes;
+        private long nanos;
+
+        Slot(long sequence) {
+            this.sequence = sequence;
+        }
+
+        void fill(Request request, boolean withHeaders, int status, long bytes, long time, long nanos) {
+            this.time = time;
+            this.remoteAddress = request.getRemoteAddress();
+            this.method = request.getMethod();
+            this.path = request.getPath();
+            var query = request.getRawQuery();
+            // A target ending in '?' is logged as if it had no query.
+            this.query = query == null || query.isEmpty() ? null : query;
+            if (withHeaders) {
+                this.referer = request.header(HttpHeader.REFERER);
+                this.userAgent = request.header(HttpHeader.USER_AGENT);
+            }
+            this.status = status;
+            this.bytes = bytes;
+            this.nanos = nanos;
+        }
+
+        void clear() {
+            remoteAddress = null;
+            method = null;
+            path = null;
+            query = null;
+            referer = null;
+            userAgent = null;
+        }
+    }
+
+    /**
+     * Formats records into a growable byte buffer. Used by the writer thread only.
+     */
+    private static final class LineWriter {
+        private static final DateTimeFormatter COMMON_TIME = DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.ROOT);
+        private static final DateTimeFormatter JSON_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss", Locale.ROOT);
+        private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+        private final AsciiBuffer text = new AsciiBuffer(BATCH_BYTES + 4 * 1024);
+        private final ZoneId zone;
+        // The formatted time is reused for all records of the same second.
+        private long second = Long.MIN_VALUE;
+        private Format timeFormat;
+        private byte[] time;
+
+        LineWriter(ZoneId zone) {
+            this.zone = zone;
+        }
+
+        void write(Slot slot, Format format) {
+            if (format == Format.JSON) {
+                writeJson(slot);
+            } else {
+                writeCommon(slot, format == Format.COMBINED);
+            }
+        }
+
+        private void writeCommon(Slot slot, boolean combined) {
+            text.appendAscii(slot.remoteAddress != null ? slot.remoteAddress.getHostString() : "-");
+            text.appendAscii(" - - [");
+            text.append(time(slot.time, Format.COMMON));
+            text.appendAscii("] \"");
+            appendEscaped(slot.method, false);
+            text.append((byte) ' ');
+            appendEscaped(slot.path, false);
+            if (slot.query != null) {
+                text.append((byte) '?');
+                appendEscaped(slot.query, false);
+            }
+            text.appendAscii("\" ");
+            text.appendLong(slot.status);
+            text.append((byte) ' ');
+            if (slot.bytes < 0) {
+                text.append((byte) '-');
+            } else {
+                text.appendLong(slot.bytes);
+            }
+            if (combined) {
+                appendQuotedOrDash(slot.referer);
+                appendQuotedOrDash(slot.userAgent);
+            }
+            text.append((byte) ' ');
+            text.appendLong(slot.nanos / 1_000);
+            text.append((byte) '\n');
+        }
+
+        private void appendQuotedOrDash(String value) {
+            text.appendAscii(" \"");
+            if (value == null) {
+                text.append((byte) '-');
+            } else {
+                appendEscaped(value, false);
+            }
+            text.append((byte) '"');
+        }
+
+        private void writeJson(Slot slot) {
+            text.appendAscii("{\"time\":\"");
+            text.append(time(slot.time, Format.JSON));
+            text.append((byte) '.');
+            var millis = slot.time % 1_000;
+            text.append((byte) ('0' + millis / 100));
+            text.append((byte) ('0' + millis / 10 % 10));
+            text.append((byte) ('0' + millis % 10));
+            text.appendAscii("Z\"");
+            if (slot.remoteAddress != null) {
+                appendJsonField("remote", slot.remoteAddress.getHostString());
+            }
+            appendJsonField("method", slot.method);
+            appendJsonField("path", slot.path);
+            if (slot.query != null) {
+                appendJsonField("query", slot.query);
+            }
+            text.appendAscii(",\"status\":");
+            text.appendLong(slot.status);
+            text.appendAscii(",\"bytes\":");
+            if (slot.bytes < 0) {
+                text.appendAscii("null");
+            } else {
+                text.appendLong(slot.bytes);
+            }
+            text.appendAscii(",\"duration_us\":");
+            text.appendLong(slot.nanos / 1_000);
+            if (slot.referer != null) {
+                appendJsonField("referer", slot.referer);
+            }
+            if (slot.userAgent != null) {
+                appendJsonField("user_agent", slot.userAgent);
+            }
+            text.appendAscii("}\n");
+        }
+
+        private void appendJsonField(String name, String value) {
+            text.appendAscii(",\"");
+            text.appendAscii(name);
+            text.appendAscii("\":\"");
+            appendEscaped(value, true);
+            text.append((byte) '"');
+        }
+
+        private byte[] time(long millis, Format format) {
+            var currentSecond = Math.floorDiv(millis, 1_000);
+            if (currentSecond != second || format != timeFormat) {
+                var instant = Instant.ofEpochSecond(currentSecond);
+                var text = format == Format.JSON
+                    ? JSON_TIME.format(instant.atOffset(ZoneOffset.UTC))
+                    : COMMON_TIME.format(instant.atZone(zone));
+                time = text.getBytes(StandardCharsets.US_ASCII);
+                second = currentSecond;
+                timeFormat = format;
+            }
+            return time;
+        }
+
+        /**
+         * Appends the text as UTF-8, escaping quotes, backslashes and control characters. The log formats
+         * escape the other bytes outside printable ASCII as {@code \xhh} like Apache does, JSON keeps them.
+         */
+        private void appendEscaped(String value, boolean json) {
+            for (var i = 0; i < value.length(); i++) {
+                var c = value.charAt(i);
+                if (c >= 0x20 && c < 0x7f && c != '"' && c != '\\') {
+                    text.append((byte) c);
+                } else if (c == '"' || c == '\\') {
+                    text.append((byte) '\\');
+                    text.append((byte) c);
+                } else if (c < 0x80) {
+                    if (json) {
+                        text.appendAscii("\\u00");
+                    } else {
+                        text.appendAscii("\\x");
+                    }
+                    text.append(HEX[c >> 4]);
+                    text.append(HEX[c & 0xf]);
+                } else {
+                    var codePoint = Character.codePointAt(value, i);
+                    if (Character.isSupplementaryCodePoint(codePoint)) {
+                        i++;
+                    } else if (Character.isSurrogate(c)) {
+                        codePoint = '?';
+                    }
+                    appendUtf8(codePoint, json);
+                }
+            }
+        }
+
+        private void appendUtf8(int codePoint, boolean json) {
+            if (codePoint < 0x80) {
+                appendByte(codePoint, json);
+            } else if (codePoint < 0x800) {
+                appendByte(0xc0 | codePoint >> 6, json);
+                appendByte(0x80 | codePoint & 0x3f, json);
+            } else if (codePoint < 0x10000) {
+                appendByte(0xe0 | codePoint >> 12, json);
+                appendByte(0x80 | codePoint >> 6 & 0x3f, json);
+                appendByte(0x80 | codePoint & 0x3f, json);
+            } else {
+                appendByte(0xf0 | codePoint >> 18, json);
+                appendByte(0x80 | codePoint >> 12 & 0x3f, json);
+                appendByte(0x80 | codePoint >> 6 & 0x3f, json);
+                appendByte(0x80 | codePoint & 0x3f, json);
+            }
+        }
+
+        private void appendByte(int value, boolean raw) {
+            if (raw || value < 0x80) {
+                text.append((byte) value);
+            } else {
+                text.appendAscii("\\x");
+                text.append(HEX[value >> 4]);
+                text.append(HEX[value & 0xf]);
+            }
+        }
+    }
+
+    public static final class Builder {
+        private Path path;
+        private Format format = Format.COMMON;
+        private Overflow overflow = Overflow.DROP;
+        private int capacity = 8192;
+        private ZoneId zone = ZoneId.systemDefault();
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the log file; it is created if needed and appended to.
+         */
+        public Builder path(Path path) {
+            this.path = path;
+            return this;
+        }
+
+        public Builder format(Format format) {
+            this.format = format;
+            return this;
+        }
+
+        public Builder overflow(Overflow overflow) {
+            this.overflow = overflow;
+            return this;
+        }
+
+        /**
+         * Sets how many records the ring buffer holds, a power of two. Defaults to 8192.
+         */
+        public Builder capacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * Sets the time zone of the common and combined formats. Defaults to the system time zone.
+         */
+        public Builder zone(ZoneId zone) {
+            this.zone = zone;
+            return this;
+        }
+
+        /**
+         * Opens the log file and starts the writer thread.
+         */
+        public AccessLogMiddleware build() throws IOException {
+            if (path == null) {
+                throw new IllegalArgumentException("path must not be null");
+            }
+            if (format == null || overflow == null || zone == null) {
+                throw new IllegalArgumentException("format, overflow and zone must not be null");
+            }
+            if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+                throw new IllegalArgumentException("capacity must be a power of two");
+            }
+            var channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            return new AccessLogMiddleware(this, channel);
+        }
+    }
+}
@@ -0,0 +1,255 @@
+package remast.marga.middleware;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import remast.marga.HttpHeader;
+import remast.marga.RequestHandler;
+import remast.marga.Response;
+
+/**
+ * Middleware that limits how many requests run at once and adapts the limit to the latency it observes,
+ * so the same setting fits fast and slow hosts. Requests beyond the limit are answered with
+ * {@code 503 Service Unavailable} right away instead of queueing.
+ *
+ * <p>Handler latencies are averaged over short sample windows. A long-term average, which follows them
+ * slowly, serves as the latency the handlers have when they are not overloaded. When a window is slower
+ * than that (beyond a tolerance), requests are queueing somewhere downstream and the limit shrinks in
+ * proportion; otherwise it grows by roughly its square root per window. This is the gradient approach
+ * of TCP Vegas-style congestion control. The limit does not grow while fewer than half of its slots are
+ * used, since such windows say nothing about higher concurrency.
+ *
+ * <p>Admission is a single atomic increment; samples go into {@link LongAdder}s, and whichever request
+ * completes a window recomputes the limit after winning a compare-and-set, so there are no locks.
+ * <pre>
+ * router.use(AdaptiveConcurrencyMiddleware.builder().initialLimit(50).maxLimit(500).build().create());
+ * </pre>
+ */
+public final class AdaptiveConcurrencyMiddleware {
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long windowNanos;
+    private final int minWindowSamples;
+    private final double rttTolerance;
+    private final double smoothing;
+    private final int longWindow;
+    private final LongSupplier clock;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder windowRttNanos = new LongAdder();
+    private final LongAdder windowSamples = new LongAdder();
+    private final AtomicInteger windowPeakInFlight = new AtomicInteger();
+    private final AtomicLong windowStart;
+    // Written only by the request that closed the current window.
+    private volatile double limit;
+    private volatile double longRttNanos;
+
+    public AdaptiveConcurrencyMiddleware() {
+        this(builder());
+    }
+
+    private AdaptiveConcurrencyMiddleware(Builder builder) {
+        if (builder.minLimit <= 0) {
+            throw new IllegalArgumentException("minLimit must be > 0");
+        }
+        if (builder.maxLimit < builder.minLimit) {
+            throw new IllegalArgumentException("maxLimit must be >= minLimit");
+        }
+        if (builder.initialLimit < builder.minLimit || builder.initialLimit > builder.maxLimit) {
+            throw new IllegalArgumentException("initialLimit must be between minLimit and maxLimit");
+        }
+        if (builder.window == null || builder.window.isNegative() || builder.window.isZero()) {
+            throw new IllegalArgumentException("window must be positive");
+        }
+        if (builder.minWindowSamples <= 0) {
+            throw new IllegalArgumentException("minWindowSamples must be > 0");
+        }
+        if (builder.rttTolerance < 1.0) {
+            throw new IllegalArgumentException("rttTolerance must be >= 1.0");
+        }
+        if (builder.smoothing <= 0.0 || builder.smoothing > 1.0) {
+            throw new IllegalArgumentException("smoothing must be in (0, 1]");
+        }
+        if (builder.longWindow <= 0) {
+            throw new IllegalArgumentException("longWindow must be > 0");
+        }
+        this.minLimit = builder.minLimit;
+        this.maxLimit = builder.maxLimit;
+        this.windowNanos = builder.window.toNanos();
+        this.minWindowSamples = builder.minWindowSamples;
+        this.rttTolerance = builder.rttTolerance;
+        this.smoothing = builder.smoothing;
+        this.longWindow = builder.longWindow;
+        this.clock = builder.clock;
+        this.limit = builder.initialLimit;
+        this.windowStart = new AtomicLong(clock.getAsLong());
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates the middleware function. All handlers it wraps share this limiter.
+     */
+    public Function<RequestHandler, RequestHandler> create() {
+        return handler -> request -> {
+            var running = inFlight.incrementAndGet();
+            if (running > (int) limit) {
+                inFlight.decrementAndGet();
+                rejected.increment();
+                return Response.serviceUnavailable("503 - Service Unavailable")
+                    .header(HttpHeader.RETRY_AFTER, RETRY_AFTER_SECONDS);
+            }
+            if (running > windowPeakInFlight.get()) {
+                windowPeakInFlight.accumulateAndGet(running, Math::max);
+            }
+            var start = clock.getAsLong();
+            try {
+                return handler.handle(request);
+            } finally {
+                inFlight.decrementAndGet();
+                sample(start, clock.getAsLong());
+            }
+        };
+    }
+
+    /**
+     * Returns the number of requests currently allowed to run at once.
+     */
+    public int getLimit() {
+        return (int) limit;
+    }
+
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * Returns how many requests were rejected because the limit was reached.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    private void sample(long start, long end) {
+        windowRttNanos.add(end - start);
+        windowSamples.increment();
+        var started = windowStart.get();
+        if (end - started >= windowNanos && windowSamples.sum() >= minWindowSamples && windowStart.compareAndSet(started, end)) {
+            // Samples added while the window is being reset count towards the next one.
+            var samples = windowSamples.sumThenReset();
+            var rttNanos = windowRttNanos.sumThenReset();
+            var peak = windowPeakInFlight.getAndSet(inFlight.get());
+            if (samples > 0) {
+                updateLimit((double) rttNanos / samples, peak);
+            }
+        }
+    }
+
+    private void updateLimit(double shortRtt, int peakInFlight) {
+        var shortRttNanos = Math.max(shortRtt, 1.0);
+        var longRtt = longRttNanos;
+        if (longRtt == 0.0) {
+            longRtt = shortRttNanos;
+        } else {
+            longRtt += (shortRttNanos - longRtt) / longWindow;
+            // After a slow phase, let the baseline catch up with a recovered latency quickly.
+            if (longRtt > 2 * shortRttNanos) {
+                longRtt *= 0.95;
+            }
+        }
+        longRttNanos = longRtt;
+
+        var current = limit;
+        var gradient = Math.max(0.5, Math.min(1.0, rttTolerance * longRtt / shortRttNanos));
+        var target = current * gradient + Math.sqrt(current);
+        if (peakInFlight < current / 2) {
+            target = Math.min(target, current);
+        }
+        var next = current * (1 - smoothing) + target * smoothing;
+        limit = Math.max(minLimit, Math.min(maxLimit, next));
+    }
+
+    public static final class Builder {
+        private int initialLimit = 20;
+        private int minLimit = 1;
+        private int maxLimit = 1_000;
+        private Duration window = Duration.ofMillis(100);
+        private int minWindowSamples = 10;
+        private double rttTolerance = 1.5;
+        private double smoothing = 0.2;
+        private int longWindow = 100;
+        private LongSupplier clock = System::nanoTime;
+
+        private Builder() {
+        }
+
+        public Builder initialLimit(int initialLimit) {
+            this.initialLimit = initialLimit;
+            return this;
+        }
+
+        public Builder minLimit(int minLimit) {
+            this.minLimit = minLimit;
+            return this;
+        }
+
+        public Builder maxLimit(int maxLimit) {
+            this.maxLimit = maxLimit;
+            return this;
+        }
+
+        /**
+         * Sets the minimum length of a sample window; the limit is recomputed at most once per window.
+         */
+        public Builder window(Duration window) {
+            this.window = window;
+            return this;
+        }
+
+        public Builder minWindowSamples(int minWindowSamples) {
+            this.minWindowSamples = minWindowSamples;
+            return this;
+        }
+
+        /**
+         * Sets by how much a window's latency may exceed the long-term latency before the limit shrinks.
+         */
+        public Builder rttTolerance(double rttTolerance) {
+            this.rttTolerance = rttTolerance;
+            return this;
+        }
+
+        /**
+         * Sets how far the limit moves towards a newly computed value per window, between 0 and 1.
+         */
+        public Builder smoothing(double smoothing) {
+            this.smoothing = smoothing;
+            return this;
+        }
+
+        /**
+         * Sets over how many windows the long-term latency is averaged.
+         */
+        public Builder longWindow(int longWindow) {
+            this.longWindow = longWindow;
+            return this;
+        }
+
+        Builder clock(LongSupplier clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public AdaptiveConcurrencyMiddleware build() {
+            return new AdaptiveConcurrencyMiddleware(this);
+        }
+    }
+}
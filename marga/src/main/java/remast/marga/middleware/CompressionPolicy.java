@@ -0,0 +1,65 @@
+package remast.marga.middleware;
+
+import java.util.zip.Deflater;
+import remast.marga.MediaType;
+
+/**
+ * Chooses the deflate level {@link GzipCompressionMiddleware} compresses a response with, or that it
+ * sends the response as it is. The policy is asked for every response the middleware would compress:
+ * successful, of a compressible media type and not below the minimum size.
+ */
+@FunctionalInterface
+public interface CompressionPolicy {
+    /**
+     * Level meaning the response is sent uncompressed; any level below 1 does the same.
+     */
+    int SKIP = 0;
+
+    /**
+     * Returns the level from {@link Deflater#BEST_SPEED} (1) to {@link Deflater#BEST_COMPRESSION} (9),
+     * or {@link #SKIP}.
+     */
+    int level(Candidate candidate);
+
+    /**
+     * What is known about a response when deciding on its compression.
+     *
+     * @param mediaType the response's media type
+     * @param length the body length, or -1 for a streamed body of unknown length
+     * @param expectedRatio the compressed size relative to the original observed for the media type
+     *        recently, or NaN if too few responses were compressed yet or this one is to be sampled anyway
+     * @param cpuLoad the recent CPU usage of the machine from 0 to 1
+     * @param inFlight the number of responses being compressed right now
+     */
+    record Candidate(MediaType mediaType, long length, double expectedRatio, double cpuLoad, int inFlight) {
+    }
+
+    /**
+     * Compresses at the given level, except media types that did not shrink by a tenth recently.
+     */
+    static CompressionPolicy fixed(int level) {
+        if (level < Deflater.BEST_SPEED || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("level must be between 1 and 9");
+        }
+        return candidate -> candidate.expectedRatio() > GzipCompressionMiddleware.MAX_COMPRESSION_RATIO ? SKIP : level;
+    }
+
+    /**
+     * Backs off as the machine gets busy: compresses at the default level, or at level 4 for bodies of
+     * 1 MB and more, drops to the fastest level when the CPU load reaches 70% or more compressions run
+     * than there are processors, and sends responses uncompressed from 90% on. Media types that did not
+     * shrink by a tenth recently are not compressed either.
+     */
+    static CompressionPolicy adaptive() {
+        var processors = Runtime.getRuntime().availableProcessors();
+        return candidate -> {
+            if (candidate.expectedRatio() > GzipCompressionMiddleware.MAX_COMPRESSION_RATIO || candidate.cpuLoad() >= 0.9) {
+                return SKIP;
+            }
+            if (candidate.cpuLoad() >= 0.7 || candidate.inFlight() > processors) {
+                return Deflater.BEST_SPEED;
+            }
+            return candidate.length() >= 1024 * 1024 ? 4 : 6;
+        };
+    }
+}
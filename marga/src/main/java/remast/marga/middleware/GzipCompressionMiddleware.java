@@ -1,110 +1,632 @@
 package remast.marga.middleware;
 
+import remast.marga.BodyWriter;
 import remast.marga.HttpHeader;
+import remast.marga.MediaType;
 import remast.marga.RequestHandler;
 import remast.marga.Response;
 
-import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.logging.Logger;
-import java.util.zip.GZIPOutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 /**
- * Middleware that compresses response bodies using gzip compression.
- * Only compresses responses that are larger than a minimum threshold
- * and have compressible content types.
+ * Middleware that compresses response bodies with gzip or deflate, whichever the request's
+ * {@code Accept-Encoding} prefers by q-value; gzip wins ties, and requests without the header get the
+ * body as it is. Successful responses of a compressible media type are compressed, text as well as
+ * binary formats such as fonts or WebAssembly, and get {@code Vary: Accept-Encoding} whether or not this
+ * client accepted an encoding.
+ *
+ * <p>In-memory bodies are compressed from their bytes into a buffer that may grow to 90% of the body
+ * size; if that does not suffice the body is sent uncompressed. Streamed bodies of unknown length, or at
+ * least the minimum size, are compressed while they are written, with flushes passed through. The
+ * {@link Deflater}s and their buffers are reused from a bounded pool instead of being allocated, with
+ * their native memory, per response.
+ *
+ * <p>A {@link CompressionPolicy} picks the level for each response, or skips it, from its media type and
+ * size, the CPU load and the number of responses being compressed. It also gets the compression ratio
+ * recently achieved for the media type, a moving average over the compressed responses, so content that
+ * does not shrink is no longer tried; every 32nd such response is compressed anyway to notice a change.
+ * The default policy compresses at the default level, {@link CompressionPolicy#adaptive()} backs off under load.
  */
 public class GzipCompressionMiddleware {
     private static final Logger logger = Logger.getLogger(GzipCompressionMiddleware.class.getName());
-    private static final String GZIP_ENCODING = "gzip";
+    public static final String GZIP = "gzip";
+    public static final String DEFLATE = "deflate";
     private static final int MIN_COMPRESSION_SIZE = 1024; // 1KB minimum
-    
+    static final double MAX_COMPRESSION_RATIO = 0.9;
+    private static final int POOL_SIZE = 2 * Runtime.getRuntime().availableProcessors();
+    private static final String VARY_VALUE = "Accept-Encoding";
+    private static final int DEFAULT_LEVEL = 6;
+    private static final int MAX_TRACKED_TYPES = 64;
+    private static final CpuLoad CPU_LOAD = new CpuLoad();
+
+    // Media types outside text/*, *+json and *+xml that compress well.
+    private static final Set<String> COMPRESSIBLE_TYPES = Set.of(
+        "application/json", "application/xml", "application/javascript", "application/x-javascript",
+        "application/ecmascript", "application/x-ndjson", "application/x-www-form-urlencoded",
+        "application/openmetrics-text", "application/wasm", "application/vnd.ms-fontobject",
+        "application/x-font-ttf", "font/ttf", "font/otf", "font/collection",
+        "image/bmp", "image/x-icon", "image/vnd.microsoft.icon");
+
     private final int minCompressionSize;
-    
+    private final CompressionPolicy policy;
+    private final CompressorPool gzipPool;
+    private final CompressorPool deflatePool;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentHashMap<String, RatioStats> ratios = new ConcurrentHashMap<>();
+
     public GzipCompressionMiddleware() {
         this(MIN_COMPRESSION_SIZE);
     }
-    
+
     public GzipCompressionMiddleware(int minCompressionSize) {
+        this(minCompressionSize, CompressionPolicy.fixed(DEFAULT_LEVEL));
+    }
+
+    public GzipCompressionMiddleware(int minCompressionSize, CompressionPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("policy cannot be null");
+        }
         this.minCompressionSize = minCompressionSize;
+        this.policy = policy;
+        this.gzipPool = new CompressorPool(true, POOL_SIZE);
+        this.deflatePool = new CompressorPool(false, POOL_SIZE);
     }
-    
+
     /**
      * Creates a gzip compression middleware function.
      * @return A function that takes a RequestHandler and returns a RequestHandler with compression
      */
-    public java.util.function.Function<RequestHandler, RequestHandler> create() {
+    public Function<RequestHandler, RequestHandler> create() {
         return handler -> request -> {
             var response = handler.handle(request);
-
-            if (response.isBinary()) {
+            if (!isEligible(response)) {
                 return response;
             }
-            
-            // Only compress if response is successful and has a body
-            if (response.getStatusCode() >= 200 && response.getStatusCode() < 300
-                && !response.getBody().isEmpty()) {
-                
-                var originalBody = response.getBody();
-                var originalSize = originalBody.getBytes(StandardCharsets.UTF_8).length;
-                
-                // Only compress if body is large enough and content type is compressible
-                if (originalSize >= minCompressionSize && isCompressible(response.getMediaType())) {
-                    try {
-                        var compressedBody = compress(originalBody);
-                        var compressionRatio = (double) compressedBody.length / originalSize;
-                        
-                        // Only use compression if it actually reduces size significantly
-                        if (compressionRatio < 0.9) {
-                            logger.fine(String.format("Compressed response from %d to %d bytes (%.1f%% reduction)", 
-                                originalSize, compressedBody.length, (1 - compressionRatio) * 100));
-                            
-                            return new Response(compressedBody, response.getStatusCode(), response.getMediaType())
-                                .header(HttpHeader.CONTENT_ENCODING, GZIP_ENCODING);
-                        }
-                    } catch (IOException e) {
-                        logger.warning("Failed to compress response: " + e.getMessage());
-                    }
-                }
+            // Caches must keep the variants apart even if this client gets the body as it is.
+            addVary(response);
+            var coding = negotiate(request.header(HttpHeader.ACCEPT_ENCODING));
+            if (coding == null) {
+                return response;
             }
-            
-            return response;
+            var stats = ratioStats(response.getMediaType());
+            var level = policy.level(new CompressionPolicy.Candidate(response.getMediaType(), response.getContentLength(),
+                stats != null ? stats.expected() : Double.NaN, CPU_LOAD.get(), inFlight.get()));
+            if (level < Deflater.BEST_SPEED) {
+                return response;
+            }
+            var pool = GZIP.equals(coding) ? gzipPool : deflatePool;
+            var compression = new Compression(pool, Math.min(level, Deflater.BEST_COMPRESSION), stats, inFlight);
+            var compressed = response.isStreaming() ? compressStream(response, compression) : compressBody(response, compression);
+            if (compressed == null) {
+                return response;
+            }
+            compressed.headersFrom(response).header(HttpHeader.CONTENT_ENCODING, coding);
+            var etag = response.getHeader(HttpHeader.ETAG);
+            if (etag != null && !etag.startsWith("W/")) {
+                // The compressed bytes differ from those the strong validator was made for.
+                compressed.header(HttpHeader.ETAG, "W/" + etag);
+            }
+            return compressed;
         };
     }
-    
-    private boolean isCompressible(remast.marga.MediaType mediaType) {
-        if (mediaType == null) return true;
-        
-        var type = mediaType.value().toLowerCase();
-        
-        // Don't compress already compressed formats
-        if (type.contains("gzip") || type.contains("deflate") || type.contains("br") ||
-            type.contains("zip") || type.contains("7z") || type.contains("rar") ||
-            type.contains("tar") || type.contains("gz")) {
+
+    private boolean isEligible(Response response) {
+        var status = response.getStatusCode();
+        // 204 has no body and 206 carries a range of the uncompressed one.
+        if (status < 200 || status >= 300 || status == 204 || status == 206) {
             return false;
         }
-        
-        // Don't compress images, videos, audio (usually already compressed)
-        if (type.startsWith("image/") || type.startsWith("video/") || type.startsWith("audio/")) {
+        if (response.getHeader(HttpHeader.CONTENT_ENCODING) != null || !isCompressible(response.getMediaType())) {
+            return false;
+        }
+        var length = response.getContentLength();
+        return response.isStreaming() ? length < 0 || length >= minCompressionSize : length > 0 && length >= minCompressionSize;
+    }
+
+    private Response compressBody(Response response, Compression compression) {
+        var length = response.getBodyLength();
+        var sink = new BoundedSink(length, (int) maxCompressedLength(length));
+        var compressor = compression.start();
+        var ratio = Double.NaN;
+        try {
+            compressor.start(sink);
+            // Hands the body's array to the compressor without copying it.
+            response.writeBodyTo(compressor);
+            compressor.finish();
+            ratio = (double) sink.count / length;
+        } catch (NotSmaller e) {
+            ratio = 1.0;
+            return null;
+        } catch (IOException e) {
+            logger.warning("Failed to compress response: " + e.getMessage());
+            return null;
+        } finally {
+            compression.end(compressor, ratio);
+        }
+        logger.fine(() -> "Compressed response from " + length + " to " + sink.count + " bytes");
+        return Response.wrap(sink.toByteArray(), response.getStatusCode(), response.getMediaType(), response.getCharset());
+    }
+
+    private Response compressStream(Response response, Compression compression) {
+        return new Response(new CompressingWriter(response.getBodyWriter(), compression), response.getStatusCode(), null);
+    }
+
+    /**
+     * Returns the ratio statistics for the media type, or null once too many types are tracked.
+     */
+    private RatioStats ratioStats(MediaType mediaType) {
+        var key = mediaType.value();
+        var stats = ratios.get(key);
+        if (stats == null && ratios.size() < MAX_TRACKED_TYPES) {
+            stats = ratios.computeIfAbsent(key, ignored -> new RatioStats());
+        }
+        return stats;
+    }
+
+    /**
+     * Returns the content coding the Accept-Encoding header prefers, gzip or deflate, or null if it
+     * accepts neither or is missing.
+     */
+    public static String negotiate(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return null;
+        }
+        var gzip = -1;
+        var deflate = -1;
+        var any = -1;
+        var position = 0;
+        var length = acceptEncoding.length();
+        while (position < length) {
+            var end = acceptEncoding.indexOf(',', position);
+            if (end < 0) {
+                end = length;
+            }
+            var parameters = acceptEncoding.indexOf(';', position);
+            if (parameters < 0 || parameters > end) {
+                parameters = end;
+            }
+            var start = skipSpaces(acceptEncoding, position, parameters);
+            var tokenEnd = parameters;
+            while (tokenEnd > start && acceptEncoding.charAt(tokenEnd - 1) == ' ') {
+                tokenEnd--;
+            }
+            var q = parameters < end ? qValue(acceptEncoding, parameters + 1, end) : 1000;
+            if (matches(acceptEncoding, start, tokenEnd, GZIP) || matches(acceptEncoding, start, tokenEnd, "x-gzip")) {
+                gzip = q;
+            } else if (matches(acceptEncoding, start, tokenEnd, DEFLATE)) {
+                deflate = q;
+            } else if (matches(acceptEncoding, start, tokenEnd, "*")) {
+                any = q;
+            }
+            position = end + 1;
+        }
+        // Codings not listed by name are as acceptable as "*".
+        gzip = gzip < 0 ? Math.max(any, 0) : gzip;
+        deflate = deflate < 0 ? Math.max(any, 0) : deflate;
+        if (gzip == 0 && deflate == 0) {
+            return null;
+        }
+        return gzip >= deflate ? GZIP : DEFLATE;
+    }
+
+    /**
+     * Returns the q parameter among the parameters in {@code [from, to)} in thousandths, 1000 if there
+     * is none, and 0 if it is malformed.
+     */
+    private static int qValue(String header, int from, int to) {
+        var position = from;
+        while (position < to) {
+            var end = header.indexOf(';', position);
+            if (end < 0 || end > to) {
+                end = to;
+            }
+            var start = skipSpaces(header, position, end);
+            if (end - start >= 2 && (header.charAt(start) == 'q' || header.charAt(start) == 'Q') && header.charAt(start + 1) == '=') {
+                return parseQ(header, start + 2, end);
+            }
+            position = end + 1;
+        }
+        return 1000;
+    }
+
+    private static int parseQ(String header, int from, int to) {
+        while (to > from && header.charAt(to - 1) == ' ') {
+            to--;
+        }
+        if (from >= to || (header.charAt(from) != '0' && header.charAt(from) != '1')) {
+            return 0;
+        }
+        var value = (header.charAt(from) - '0') * 1000;
+        if (from + 1 < to) {
+            if (header.charAt(from + 1) != '.' || to - from - 2 > 3) {
+                return 0;
+            }
+            var scale = 100;
+            for (var i = from + 2; i < to; i++, scale /= 10) {
+                var c = header.charAt(i);
+                if (c < '0' || c > '9') {
+                    return 0;
+                }
+                value += (c - '0') * scale;
+            }
+        }
+        return Math.min(value, 1000);
+    }
+
+    private static int skipSpaces(String text, int from, int to) {
+        while (from < to && (text.charAt(from) == ' ' || text.charAt(from) == '\t')) {
+            from++;
+        }
+        return from;
+    }
+
+    private static boolean matches(String header, int from, int to, String token) {
+        return to - from == token.length() && header.regionMatches(true, from, token, 0, token.length());
+    }
+
+    /**
+     * Returns the longest compressed form of a body of the given length that is worth sending: one that
+     * saves less than a tenth is not, and the body goes out as it is.
+     */
+    public static long maxCompressedLength(long length) {
+        return (long) (length * MAX_COMPRESSION_RATIO);
+    }
+
+    /**
+     * Returns whether bodies of the media type are worth compressing: text, JSON, XML and the like.
+     */
+    public static boolean isCompressible(MediaType mediaType) {
+        if (mediaType == null) {
             return false;
         }
-        
-        // Compress text-based content
-        return type.startsWith("text/") || 
-               type.contains("json") || 
-               type.contains("xml") || 
-               type.contains("html") || 
-               type.contains("css") || 
-               type.contains("javascript") ||
-               type.contains("application/");
-    }
-    
-    private byte[] compress(String data) throws IOException {
-        var outputStream = new ByteArrayOutputStream();
-        try (var gzipStream = new GZIPOutputStream(outputStream)) {
-            gzipStream.write(data.getBytes(StandardCharsets.UTF_8));
-        }
-        return outputStream.toByteArray();
+        var value = mediaType.value();
+        var parameters = value.indexOf(';');
+        var type = (parameters < 0 ? value : value.substring(0, parameters)).trim().toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.endsWith("+json") || type.endsWith("+xml") || COMPRESSIBLE_TYPES.contains(type);
+    }
+
+    private static void addVary(Response response) {
+        var vary = response.getHeader(HttpHeader.VARY);
+        if (vary == null) {
+            response.header(HttpHeader.VARY, VARY_VALUE);
+            return;
+        }
+        for (var field : vary.split(",")) {
+            var name = field.trim();
+            if (name.equals("*") || name.equalsIgnoreCase(VARY_VALUE)) {
+                return;
+            }
+        }
+        response.header(HttpHeader.VARY, vary + ", " + VARY_VALUE);
+    }
+
+    /**
+     * The compression of one response: where its compressor comes from, the level, and where the
+     * achieved ratio and the number of running compressions are kept.
+     */
+    private record Compression(CompressorPool pool, int level, RatioStats stats, AtomicInteger inFlight) {
+        Compressor start() {
+            inFlight.incrementAndGet();
+            return pool.take(level);
+        }
+
+        /**
+         * Records the ratio unless it is NaN and returns the compressor to the pool.
+         */
+        void end(Compressor compressor, double ratio) {
+            inFlight.decrementAndGet();
+            if (stats != null && !Double.isNaN(ratio)) {
+                stats.record(ratio);
+            }
+            pool.release(compressor);
+        }
+    }
+
+    /**
+     * Compresses a streamed body while it is written, with a compressor taken from the pool for that time.
+     */
+    private record CompressingWriter(BodyWriter body, Compression compression) implements BodyWriter, Closeable {
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            var compressor = compression.start();
+            var ratio = Double.NaN;
+            try {
+                compressor.start(out);
+                body.writeTo(compressor);
+                compressor.finish();
+                ratio = compressor.ratio();
+            } finally {
+                compression.end(compressor, ratio);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (body instanceof Closeable closeable) {
+                closeable.close();
+            }
+        }
+    }
+
+    /**
+     * Compressors ready for reuse, at most {@code capacity}; more are created when all are in use and
+     * ended instead of returned when the pool is full.
+     */
+    private static final class CompressorPool {
+        private final boolean gzip;
+        private final ArrayBlockingQueue<Compressor> idle;
+
+        CompressorPool(boolean gzip, int capacity) {
+            this.gzip = gzip;
+            this.idle = new ArrayBlockingQueue<>(capacity);
+        }
+
+        Compressor take(int level) {
+            var compressor = idle.poll();
+            if (compressor == null) {
+                compressor = new Compressor(gzip);
+            }
+            compressor.level(level);
+            return compressor;
+        }
+
+        void release(Compressor compressor) {
+            compressor.reset();
+            if (!idle.offer(compressor)) {
+                compressor.end();
+            }
+        }
+    }
+
+    /**
+     * A stream that deflates what is written to it into the target stream, framed as gzip (RFC 1952)
+     * or zlib, which is what the deflate content coding means (RFC 1950). Closing it does nothing; the
+     * body is completed by {@link #finish()}.
+     */
+    private static final class Compressor extends OutputStream {
+        private static final int BUFFER_SIZE = 8 * 1024;
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+
+        private final boolean gzip;
+        private final Deflater deflater;
+        private final CRC32 crc = new CRC32();
+        private final byte[] buffer = new byte[BUFFER_SIZE];
+        private final byte[] single = new byte[1];
+        private OutputStream out;
+        private int level = DEFAULT_LEVEL;
+
+        Compressor(boolean gzip) {
+            this.gzip = gzip;
+            // gzip brings its own header and trailer, so the deflater writes raw deflate data for it.
+            this.deflater = new Deflater(level, gzip);
+        }
+
+        /**
+         * Sets the level for the next body. The deflater is fresh or reset, so no input is pending that
+         * would still be compressed at the previous level.
+         */
+        void level(int level) {
+            if (level != this.level) {
+                deflater.setLevel(level);
+                this.level = level;
+            }
+        }
+
+        void start(OutputStream out) throws IOException {
+            this.out = out;
+            if (gzip) {
+                out.write(GZIP_HEADER);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            single[0] = (byte) b;
+            write(single, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return;
+            }
+            if (gzip) {
+                crc.update(bytes, offset, length);
+            }
+            deflater.setInput(bytes, offset, length);
+            while (!deflater.needsInput()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
+
+        /**
+         * Sends everything written so far, so a streamed body can deliver partial output.
+         */
+        @Override
+        public void flush() throws IOException {
+            int count;
+            do {
+                // A full buffer means there may be more.
+                count = deflate(Deflater.SYNC_FLUSH);
+            } while (count == buffer.length);
+            out.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        void finish() throws IOException {
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate(Deflater.NO_FLUSH);
+            }
+            if (gzip) {
+                putIntLittleEndian(buffer, 0, (int) crc.getValue());
+                putIntLittleEndian(buffer, 4, (int) deflater.getBytesRead());
+                out.write(buffer, 0, 8);
+            }
+        }
+
+        /**
+         * Returns the size of the compressed data relative to the input so far, or NaN without input.
+         */
+        double ratio() {
+            var read = deflater.getBytesRead();
+            return read > 0 ? (double) deflater.getBytesWritten() / read : Double.NaN;
+        }
+
+        void reset() {
+            deflater.reset();
+            crc.reset();
+            out = null;
+        }
+
+        void end() {
+            deflater.end();
+        }
+
+        private int deflate(int flush) throws IOException {
+            var count = deflater.deflate(buffer, 0, buffer.length, flush);
+            if (count > 0) {
+                out.write(buffer, 0, count);
+            }
+            return count;
+        }
+
+        private static void putIntLittleEndian(byte[] bytes, int offset, int value) {
+            bytes[offset] = (byte) value;
+            bytes[offset + 1] = (byte) (value >> 8);
+            bytes[offset + 2] = (byte) (value >> 16);
+            bytes[offset + 3] = (byte) (value >> 24);
+        }
+    }
+
+    /**
+     * A moving average of the compression ratio achieved for one media type.
+     */
+    private static final class RatioStats {
+        private static final int MIN_SAMPLES = 8;
+        private static final int PROBE_INTERVAL = 32;
+        private static final double WEIGHT = 1.0 / 8;
+
+        private final AtomicInteger samples = new AtomicInteger();
+        private final AtomicLong requests = new AtomicLong();
+        // Concurrent updates may overwrite each other, which a moving average can afford.
+        private volatile double ratio;
+
+        /**
+         * Returns the average, or NaN with too few samples and for every 32nd request, so that content
+         * which stopped being compressed is sampled again now and then.
+         */
+        double expected() {
+            if (samples.get() < MIN_SAMPLES || requests.incrementAndGet() % PROBE_INTERVAL == 0) {
+                return Double.NaN;
+            }
+            return ratio;
+        }
+
+        void record(double sample) {
+            var current = ratio;
+            ratio = samples.getAndIncrement() == 0 ? sample : current + (sample - current) * WEIGHT;
+        }
+    }
+
+    /**
+     * The share of the machine's CPU time in use recently, read at most every 250 ms. Where the JVM
+     * cannot tell, the load average per processor stands in for it.
+     */
+    private static final class CpuLoad {
+        private static final long INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(250);
+
+        private final OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        private volatile long sampledAt = System.nanoTime() - INTERVAL_NANOS;
+        private volatile double load;
+
+        double get() {
+            var now = System.nanoTime();
+            if (now - sampledAt >= INTERVAL_NANOS) {
+                sampledAt = now;
+                load = sample();
+            }
+            return load;
+        }
+
+        private double sample() {
+            if (os instanceof com.sun.management.OperatingSystemMXBean platform) {
+                var cpuLoad = platform.getCpuLoad();
+                if (cpuLoad >= 0) {
+                    return cpuLoad;
+                }
+            }
+            var loadAverage = os.getSystemLoadAverage();
+            return loadAverage < 0 ? 0 : Math.min(1, loadAverage / os.getAvailableProcessors());
+        }
+    }
+
+    /**
+     * Collects a compressed body and gives up once it would reach the limit.
+     */
+    private static final class BoundedSink extends OutputStream {
+        private final int limit;
+        private byte[] bytes;
+        private int count;
+
+        BoundedSink(int bodyLength, int limit) {
+            this.limit = limit;
+            // Text commonly shrinks to between a fifth and a tenth; the buffer grows if needed.
+            this.bytes = new byte[Math.min(limit, Math.max(bodyLength / 8, 1024))];
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] source, int offset, int length) throws IOException {
+            if (count + length > limit) {
+                throw NotSmaller.INSTANCE;
+            }
+            if (count + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.min(limit, Math.max(bytes.length * 2, count + length)));
+            }
+            System.arraycopy(source, offset, bytes, count, length);
+            count += length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, count);
+        }
+    }
+
+    /**
+     * Thrown by the sink when compression does not pay off. It is thrown often for incompressible
+     * content and carries no information, so one instance without a stack trace is reused.
+     */
+    private static final class NotSmaller extends IOException {
+        private static final long serialVersionUID = 1L;
+        static final NotSmaller INSTANCE = new NotSmaller();
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
     }
 }
@@ -0,0 +1,280 @@
+package remast.marga.middleware;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import remast.marga.HttpHeader;
+import remast.marga.Request;
+import remast.marga.RequestHandler;
+import remast.marga.Response;
+
+/**
+ * Middleware that limits the request rate per client. Each key (by default the client's IP address) gets a
+ * token bucket that refills at a steady rate and holds up to a burst of requests; requests finding their
+ * bucket empty are answered with {@code 429 Too Many Requests} and a {@code Retry-After} telling when the
+ * next one will pass. Requests for which the key extractor returns null are not limited.
+ *
+ * <p>A bucket is a single {@link AtomicLong} holding the time at which it will be full again (the
+ * generic cell rate algorithm). Refill is computed from the clock when a request arrives, so there are no
+ * timer threads, and taking a token is one compare-and-set. Buckets live in a {@link ConcurrentHashMap},
+ * whose bins spread contention across keys. A bucket that has refilled completely carries no state and
+ * is dropped when new keys are added and the map has grown past {@code maxKeys}, or at the latest after
+ * one full refill period; should active buckets alone exceed {@code maxKeys}, arbitrary ones are dropped,
+ * which hands those clients a full bucket again. A sweep over {@code maxKeys} leaves at most three
+ * quarters of them, so that clients sending ever new keys cost a pass over the map only every
+ * {@code maxKeys / 4} keys rather than on each one.
+ * <pre>
+ * router.use(RateLimitMiddleware.builder()
+ *     .rate(100, Duration.ofSeconds(1))
+ *     .burst(20)
+ *     .key(RateLimitMiddleware.header("X-Api-Key"))
+ *     .build()
+ *     .create());
+ * </pre>
+ */
+public final class RateLimitMiddleware {
+    private final Function<Request, ?> keyExtractor;
+    private final long intervalNanos;
+    private final long toleranceNanos;
+    private final int maxKeys;
+    private final int lowWaterKeys;
+    private final LongSupplier clock;
+
+    private final ConcurrentHashMap<Object, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final AtomicBoolean sweeping = new AtomicBoolean();
+    private final AtomicLong nextSweep;
+    private final LongAdder rejected = new LongAdder();
+
+    private RateLimitMiddleware(Builder builder) {
+        if (builder.permits <= 0) {
+            throw new IllegalArgumentException("permits must be > 0");
+        }
+        if (builder.period == null || builder.period.isNegative() || builder.period.isZero()) {
+            throw new IllegalArgumentException("period must be positive");
+        }
+        if (builder.burst <= 0) {
+            throw new IllegalArgumentException("burst must be > 0");
+        }
+        if (builder.maxKeys <= 0) {
+            throw new IllegalArgumentException("maxKeys must be > 0");
+        }
+        if (builder.keyExtractor == null) {
+            throw new IllegalArgumentException("key extractor must not be null");
+        }
+        this.keyExtractor = builder.keyExtractor;
+        this.intervalNanos = Math.max(1, builder.period.toNanos() / builder.permits);
+        this.toleranceNanos = intervalNanos * (builder.burst - 1);
+        this.maxKeys = builder.maxKeys;
+        this.lowWaterKeys = builder.maxKeys - Math.max(1, builder.maxKeys / 4);
+        this.clock = builder.clock;
+        this.nextSweep = new AtomicLong(clock.getAsLong() + refillNanos());
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Keys requests by the IP address of the connection. Behind a reverse proxy this is the proxy's address.
+     */
+    public static Function<Request, ?> clientAddress() {
+        return request -> {
+            var address = request.getRemoteAddress();
+            return address == null ? null : address.getAddress();
+        };
+    }
+
+    /**
+     * Keys requests by the first address in {@code X-Forwarded-For}, falling back to the connection's
+     * address. Clients can send any value in that header, so only use this behind a proxy that sets it.
+     */
+    public static Function<Request, ?> forwardedFor() {
+        return request -> {
+            var forwarded = request.header(HttpHeader.X_FORWARDED_FOR);
+            if (forwarded != null) {
+                var comma = forwarded.indexOf(',');
+                var client = (comma < 0 ? forwarded : forwarded.substring(0, comma)).trim();
+                if (!client.isEmpty()) {
+                    return client;
+                }
+            }
+            var address = request.getRemoteAddress();
+            return address == null ? null : address.getAddress().getHostAddress();
+        };
+    }
+
+    /**
+     * Keys requests by the value of a header such as an API key. Requests without it are not limited.
+     */
+    public static Function<Request, ?> header(String name) {
+        return request -> request.header(name);
+    }
+
+    /**
+     * Creates the middleware function. All handlers it wraps share the buckets of this limiter.
+     */
+    public Function<RequestHandler, RequestHandler> create() {
+        return handler -> request -> {
+            var key = keyExtractor.apply(request);
+            if (key == null) {
+                return handler.handle(request);
+            }
+            var waitNanos = acquire(key);
+            if (waitNanos > 0) {
+                rejected.increment();
+                return Response.tooManyRequests("429 - Too Many Requests")
+                    .header(HttpHeader.RETRY_AFTER, String.valueOf(retryAfterSeconds(waitNanos)));
+            }
+            return handler.handle(request);
+        };
+    }
+
+    /**
+     * Takes a token from the key's bucket. Returns false if the bucket is empty.
+     */
+    public boolean tryAcquire(Object key) {
+        return acquire(key) == 0;
+    }
+
+    /**
+     * Returns the number of keys that currently have a bucket.
+     */
+    public int getTrackedKeys() {
+        return buckets.size();
+    }
+
+    /**
+     * Returns how many requests were rejected because their bucket was empty.
+     */
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    /**
+     * Takes a token and returns 0, or returns how many nanoseconds remain until the next token is available.
+     */
+    private long acquire(Object key) {
+        var now = clock.getAsLong();
+        var bucket = buckets.get(key);
+        if (bucket == null) {
+            bucket = addBucket(key, now);
+        }
+        while (true) {
+            var full = bucket.get();
+            // Time at which the bucket is full again; a bucket full in the past holds no more than a burst.
+            var base = full - now > 0 ? full : now;
+            var wait = base - now - toleranceNanos;
+            if (wait > 0) {
+                return wait;
+            }
+            if (bucket.compareAndSet(full, base + intervalNanos)) {
+                return 0;
+            }
+        }
+    }
+
+    private AtomicLong addBucket(Object key, long now) {
+        var bucket = buckets.computeIfAbsent(key, ignored -> new AtomicLong(now));
+        var next = nextSweep.get();
+        var full = buckets.size() > maxKeys;
+        if ((now - next >= 0 || full) && sweeping.compareAndSet(false, true)) {
+            try {
+                nextSweep.compareAndSet(next, now + refillNanos());
+                sweep(now, bucket, full ? lowWaterKeys : maxKeys);
+            } finally {
+                sweeping.set(false);
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Drops refilled buckets, then arbitrary ones until at most {@code limit} are left.
+     */
+    private void sweep(long now, AtomicLong keep, int limit) {
+        // A request racing with the removal of its bucket still gets its token; the next one starts
+        // with a full bucket, which lets through at most one extra request.
+        buckets.forEach((key, bucket) -> {
+            if (bucket != keep && bucket.get() - now <= 0) {
+                buckets.remove(key, bucket);
+            }
+        });
+        var excess = buckets.size() - limit;
+        if (excess > 0) {
+            var iterator = buckets.values().iterator();
+            while (excess > 0 && iterator.hasNext()) {
+                if (iterator.next() != keep) {
+                    iterator.remove();
+                    excess--;
+                }
+            }
+        }
+    }
+
+    private long refillNanos() {
+        return toleranceNanos + intervalNanos;
+    }
+
+    private static long retryAfterSeconds(long waitNanos) {
+        return Math.max(1, (waitNanos + 999_999_999) / 1_000_000_000);
+    }
+
+    public static final class Builder {
+        private long permits = 10;
+        private Duration period = Duration.ofSeconds(1);
+        private int burst = 20;
+        private int maxKeys = 100_000;
+        private Function<Request, ?> keyExtractor = clientAddress();
+        private LongSupplier clock = System::nanoTime;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the sustained rate as a number of requests per period.
+         */
+        public Builder rate(long permits, Duration period) {
+            this.permits = permits;
+            this.period = period;
+            return this;
+        }
+
+        /**
+         * Sets how many requests a key may send at once after being idle.
+         */
+        public Builder burst(int burst) {
+            this.burst = burst;
+            return this;
+        }
+
+        /**
+         * Sets how many keys are tracked before buckets are dropped to bound memory.
+         */
+        public Builder maxKeys(int maxKeys) {
+            this.maxKeys = maxKeys;
+            return this;
+        }
+
+        /**
+         * Sets how the key of a request is derived, see {@link #clientAddress()}, {@link #forwardedFor()} and
+         * {@link #header(String)}. Keys must implement {@code equals} and {@code hashCode}.
+         */
+        public Builder key(Function<Request, ?> keyExtractor) {
+            this.keyExtractor = keyExtractor;
+            return this;
+        }
+
+        Builder clock(LongSupplier clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public RateLimitMiddleware build() {
+            return new RateLimitMiddleware(this);
+        }
+    }
+}
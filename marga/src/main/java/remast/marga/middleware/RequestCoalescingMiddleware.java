@@ -0,0 +1,253 @@
+package remast.marga.middleware;
+
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.Locale;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import remast.marga.HttpHeader;
+import remast.marga.Request;
+import remast.marga.RequestHandler;
+import remast.marga.Response;
+
+/**
+ * Middleware that lets only one of several identical GET or HEAD requests in flight at the same time run
+ * the handler; the others wait for its response and get a copy of it (single flight). When a cached
+ * response expires under load, the handler and whatever is behind it see one request instead of a
+ * stampede. Requests are identical if method, path and query match, as well as the values of the
+ * headers given to {@link Builder#headers(String...)}, such as {@code Accept-Encoding} for handlers that
+ * compress themselves.
+ *
+ * <p>Requests with {@code Authorization} or {@code Cookie} may get responses meant for one user only and
+ * always run the handler, as do non-GET requests. A response with {@code Set-Cookie} or
+ * {@code Cache-Control: private} is not shared either; the waiting requests run the handler themselves.
+ * If the handler throws, the waiting requests throw the same exception. Waiting requests give up after
+ * the timeout with {@code 503 Service Unavailable} and {@code Retry-After}. A streamed body can be sent
+ * only once, so for a streamed response the waiting requests run the handler themselves. Copies share the
+ * leader's body bytes and copy its headers; none are made if no request waited.
+ *
+ * <p>Waiting parks on a {@link CompletableFuture} without holding a monitor, so virtual threads
+ * unmount while they wait. Requests join a flight with a compare-and-set on its follower count, which the
+ * leader closes once it has its response, so that a request either gets that response or starts a new flight.
+ * <pre>
+ * router.use(RequestCoalescingMiddleware.builder()
+ *     .headers("Accept-Language")
+ *     .timeout(Duration.ofSeconds(5))
+ *     .build()
+ *     .create());
+ * </pre>
+ */
+public final class RequestCoalescingMiddleware {
+    private static final String RETRY_AFTER_SECONDS = "1";
+
+    private final String[] headers;
+    private final long timeoutNanos;
+    private final ConcurrentHashMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final LongAdder coalesced = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+
+    private RequestCoalescingMiddleware(Builder builder) {
+        if (builder.timeout == null || builder.timeout.isNegative() || builder.timeout.isZero()) {
+            throw new IllegalArgumentException("timeout must be positive");
+        }
+        this.headers = builder.headers;
+        this.timeoutNanos = builder.timeout.toNanos();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates the middleware function. All handlers it wraps share the requests in flight.
+     */
+    public Function<RequestHandler, RequestHandler> create() {
+        return handler -> request -> {
+            var method = request.getMethod();
+            if ((!"GET".equals(method) && !"HEAD".equals(method)) || request.header(HttpHeader.AUTHORIZATION) != null
+                || request.header(HttpHeader.COOKIE) != null) {
+                return handler.handle(request);
+            }
+            var key = RequestKeys.of(request, null, headers);
+            while (true) {
+                var flight = flights.get(key);
+                if (flight == null) {
+                    var own = new Flight();
+                    flight = flights.putIfAbsent(key, own);
+                    if (flight == null) {
+                        return lead(handler, request, key, own);
+                    }
+                }
+                if (flight.join()) {
+                    return follow(handler, request, flight);
+                }
+                // The flight has landed and left the map; the next round starts or joins a new one.
+            }
+        };
+    }
+
+    /**
+     * Returns how many requests got the response of another instead of running the handler.
+     */
+    public long getCoalesced() {
+        return coalesced.sum();
+    }
+
+    /**
+     * Returns how many waiting requests gave up after the timeout.
+     */
+    public long getTimedOut() {
+        return timedOut.sum();
+    }
+
+    private Response lead(RequestHandler handler, Request request, String key, Flight flight) {
+        Response response;
+        try {
+            response = handler.handle(request);
+        } catch (RuntimeException | Error e) {
+            land(key, flight);
+            flight.result.completeExceptionally(e);
+            throw e;
+        }
+        if (land(key, flight) > 0) {
+            // Copied before the response is returned, while no other middleware has touched it.
+            flight.result.complete(isShareable(response) ? SharedResponse.of(response) : null);
+        }
+        return response;
+    }
+
+    /**
+     * Removes the flight so that later requests start a new one, and closes it. Returns the number of followers.
+     */
+    private int land(String key, Flight flight) {
+        flights.remove(key, flight);
+        return flight.close();
+    }
+
+    private Response follow(RequestHandler handler, Request request, Flight flight) {
+        SharedResponse shared;
+        try {
+            shared = flight.result.get(timeoutNanos, TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            timedOut.increment();
+            return serviceUnavailable();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return serviceUnavailable();
+        } catch (ExecutionException e) {
+            var cause = e.getCause();
+            if (cause instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            if (cause instanceof Error error) {
+                throw error;
+            }
+            throw new IllegalStateException(cause);
+        }
+        if (shared == null) {
+            return handler.handle(request);
+        }
+        coalesced.increment();
+        return shared.toResponse();
+    }
+
+    /**
+     * Returns whether a copy of the response may go to other requests: a streamed body can be sent only
+     * once, and cookies or private responses belong to the leader's user.
+     */
+    private static boolean isShareable(Response response) {
+        if (response.isStreaming() || response.getHeader(HttpHeader.SET_COOKIE) != null) {
+            return false;
+        }
+        var cacheControl = response.getHeader(HttpHeader.CACHE_CONTROL);
+        if (cacheControl == null) {
+            return true;
+        }
+        for (var part : cacheControl.split(",")) {
+            var directive = part.trim().toLowerCase(Locale.ROOT);
+            if (directive.equals("private") || directive.startsWith("private=")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Response serviceUnavailable() {
+        return Response.serviceUnavailable("503 - Service Unavailable").header(HttpHeader.RETRY_AFTER, RETRY_AFTER_SECONDS);
+    }
+
+    /**
+     * One execution of the handler and the requests waiting for it.
+     */
+    private static final class Flight {
+        // Completed with null if the response must not be shared.
+        final CompletableFuture<SharedResponse> result = new CompletableFuture<>();
+        // The number of followers, or -1 once the leader has its response and no one may join any more.
+        private final AtomicInteger followers = new AtomicInteger();
+
+        boolean join() {
+            while (true) {
+                var count = followers.get();
+                if (count < 0) {
+                    return false;
+                }
+                if (followers.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        int close() {
+            return followers.getAndSet(-1);
+        }
+    }
+
+    /**
+     * The leader's response as it was returned by the handler, from which each follower gets its own.
+     */
+    private record SharedResponse(int statusCode, byte[] body, Charset charset, Response headers) {
+        static SharedResponse of(Response response) {
+            var headers = Response.wrap(new byte[0], response.getStatusCode(), null).headersFrom(response);
+            return new SharedResponse(response.getStatusCode(), response.getBodyBytes(), response.getCharset(), headers);
+        }
+
+        Response toResponse() {
+            return Response.wrap(body, statusCode, null, charset).headersFrom(headers);
+        }
+    }
+
+    public static final class Builder {
+        private String[] headers = new String[0];
+        private Duration timeout = Duration.ofSeconds(10);
+
+        private Builder() {
+        }
+
+        /**
+         * Sets the request headers whose values must match, besides method, path and query, for requests
+         * to be identical.
+         */
+        public Builder headers(String... names) {
+            this.headers = names.clone();
+            return this;
+        }
+
+        /**
+         * Sets how long a request waits for the response of an identical one before it gives up with 503.
+         */
+        public Builder timeout(Duration timeout) {
+            this.timeout = timeout;
+            return this;
+        }
+
+        public RequestCoalescingMiddleware build() {
+            return new RequestCoalescingMiddleware(this);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package remast.marga.middleware;
+
+import java.util.TreeMap;
+import remast.marga.Request;
+
+/**
+ * Builds the keys under which middleware treats requests as identical. Paths, parameters and header
+ * values are length-prefixed, so that no request can produce the key of another.
+ */
+final class RequestKeys {
+    private RequestKeys() {
+    }
+
+    /**
+     * Returns a key from method, path and query, followed by the values of the given headers. With
+     * {@code queryParams} only those parameters count; otherwise the whole query does.
+     */
+    static String of(Request request, String[] queryParams, String[] headers) {
+        var path = request.getPath();
+        var key = new StringBuilder(request.getMethod()).append(' ').append(path.length()).append(':').append(path);
+        if (queryParams == null) {
+            var query = request.getRawQuery();
+            if (query != null) {
+                if (!query.isEmpty()) {
+                    key.append('?').append(query);
+                }
+            } else if (!request.getQueryParamsView().isEmpty()) {
+                // A request built in code has its parameters but no query string.
+                new TreeMap<>(request.getQueryParamsView()).forEach((name, value) -> appendParam(key, name, value));
+            }
+        } else {
+            for (var name : queryParams) {
+                var value = request.queryParam(name);
+                if (value != null) {
+                    appendParam(key, name, value);
+                }
+            }
+        }
+        for (var header : headers) {
+            var value = request.header(header);
+            key.append('\n');
+            if (value != null) {
+                key.append(value.length()).append(':').append(value);
+            }
+        }
+        return key.toString();
+    }
+
+    private static void appendParam(StringBuilder key, String name, String value) {
+        key.append('&').append(name.length()).append(':').append(name).append('=').append(value.length()).append(':').append(value);
+    }
+}
@@ -0,0 +1,402 @@
+package remast.marga.middleware;
+
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import remast.marga.HttpHeader;
+import remast.marga.Request;
+import remast.marga.RequestHandler;
+import remast.marga.Response;
+
+/**
+ * Middleware that keeps responses to GET and HEAD requests in memory and answers repeated requests from
+ * there without calling the handler. A response is cached for as long as its {@code Cache-Control}
+ * allows, {@code s-maxage} taking precedence over {@code max-age}; responses without either are cached for
+ * the default TTL, which is zero unless configured. Responses marked {@code no-store}, {@code no-cache} or
+ * {@code private}, with {@code Set-Cookie} or {@code Vary: *}, streamed bodies and statuses that are not
+ * cacheable by default are passed through, as are requests with {@code Authorization}, {@code Cookie} or
+ * {@code Cache-Control: no-store}. A request with {@code Cache-Control: no-cache} goes to the handler and
+ * refreshes the cached response.
+ *
+ * <p>Responses are keyed by method, path and query; {@link Builder#queryParams(String...)} restricts the
+ * query to the parameters that select the content, so that tracking parameters do not split the cache.
+ * For each key up to eight variants are kept apart by the request headers the response's {@code Vary}
+ * names, such as {@code Accept-Encoding}. Add the cache before {@link GzipCompressionMiddleware} so that it
+ * keeps the compressed variants and hits skip compression as well.
+ *
+ * <p>Hits share the body bytes, encoded once, and copy the headers, adding {@code Age}. The cache is split
+ * into stripes by key hash, each an access-ordered map under its own lock with an equal share of the size
+ * limit. A stripe evicts its least recently used keys once the body bytes it holds, plus an allowance of
+ * {@value #ENTRY_OVERHEAD} bytes per response for key and headers, exceed its share; larger responses are
+ * not cached. Expired responses are dropped when they are looked up or evicted.
+ * <pre>
+ * router.use(ResponseCacheMiddleware.builder()
+ *     .maxBytes(64 * 1024 * 1024)
+ *     .queryParams("page", "sort")
+ *     .build()
+ *     .create());
+ * </pre>
+ */
+public final class ResponseCacheMiddleware {
+    static final int ENTRY_OVERHEAD = 256;
+    private static final int MAX_VARIANTS = 8;
+    private static final String[] NO_NAMES = new String[0];
+    // Statuses that are cacheable by default (RFC 9110, section 15.1), except 206 for partial content.
+    private static final Set<Integer> CACHEABLE_STATUSES = Set.of(200, 203, 204, 300, 301, 308, 404, 405, 410, 414, 501);
+
+    private final Stripe[] stripes;
+    private final String[] queryParams;
+    private final long defaultTtlNanos;
+    private final LongSupplier clock;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private ResponseCacheMiddleware(Builder builder) {
+        if (builder.maxBytes <= 0) {
+            throw new IllegalArgumentException("maxBytes must be > 0");
+        }
+        if (builder.stripes <= 0 || Integer.bitCount(builder.stripes) != 1) {
+            throw new IllegalArgumentException("stripes must be a power of two");
+        }
+        if (builder.defaultTtl == null || builder.defaultTtl.isNegative()) {
+            throw new IllegalArgumentException("defaultTtl must not be negative");
+        }
+        this.stripes = new Stripe[builder.stripes];
+        for (var i = 0; i < stripes.length; i++) {
+            stripes[i] = new Stripe(builder.maxBytes / builder.stripes);
+        }
+        this.queryParams = builder.queryParams;
+        this.defaultTtlNanos = builder.defaultTtl.toNanos();
+        this.clock = builder.clock;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    /**
+     * Creates the middleware function. All handlers it wraps share this cache.
+     */
+    public Function<RequestHandler, RequestHandler> create() {
+        return handler -> request -> {
+            var method = request.getMethod();
+            if ((!"GET".equals(method) && !"HEAD".equals(method)) || request.header(HttpHeader.AUTHORIZATION) != null
+                || request.header(HttpHeader.COOKIE) != null) {
+                return handler.handle(request);
+            }
+            var requestCacheControl = request.header(HttpHeader.CACHE_CONTROL);
+            if (hasDirective(requestCacheControl, "no-store")) {
+                return handler.handle(request);
+            }
+
+            var key = RequestKeys.of(request, queryParams, NO_NAMES);
+            var stripe = stripes[spread(key.hashCode()) & (stripes.length - 1)];
+            if (!hasDirective(requestCacheControl, "no-cache")) {
+                var now = clock.getAsLong();
+                var cached = stripe.get(key, request, now);
+                if (cached != null) {
+                    hits.increment();
+                    return cached.toResponse(now);
+                }
+            }
+            misses.increment();
+
+            var response = handler.handle(request);
+            var ttlNanos = ttlNanos(response);
+            if (ttlNanos > 0) {
+                var now = clock.getAsLong();
+                stripe.put(key, CachedResponse.of(request, response, now, now + ttlNanos));
+            }
+            return response;
+        };
+    }
+
+    /**
+     * Returns how many requests were answered from the cache.
+     */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /**
+     * Returns how many cacheable requests went to the handler.
+     */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of bytes the cached responses account for, overhead included.
+     */
+    public long getBytes() {
+        var bytes = 0L;
+        for (var stripe : stripes) {
+            bytes += stripe.bytes();
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops all cached responses.
+     */
+    public void clear() {
+        for (var stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    /**
+     * Returns how long the response may be cached in nanoseconds, 0 if it must not be.
+     */
+    private long ttlNanos(Response response) {
+        if (response.isStreaming() || !CACHEABLE_STATUSES.contains(response.getStatusCode())
+            || response.getHeader(HttpHeader.SET_COOKIE) != null) {
+            return 0;
+        }
+        var vary = response.getHeader(HttpHeader.VARY);
+        if (vary != null && Arrays.stream(vary.split(",")).anyMatch(name -> name.trim().equals("*"))) {
+            return 0;
+        }
+        var cacheControl = response.getHeader(HttpHeader.CACHE_CONTROL);
+        if (cacheControl == null) {
+            return defaultTtlNanos;
+        }
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+        for (var part : cacheControl.split(",")) {
+            var directive = part.trim().toLowerCase(Locale.ROOT);
+            if (directive.equals("no-store") || directive.equals("private") || directive.startsWith("no-cache")) {
+                return 0;
+            }
+            if (directive.startsWith("s-maxage=")) {
+                sharedMaxAge = seconds(directive.substring("s-maxage=".length()));
+            } else if (directive.startsWith("max-age=")) {
+                maxAge = seconds(directive.substring("max-age=".length()));
+            }
+        }
+        var seconds = sharedMaxAge >= 0 ? sharedMaxAge : maxAge;
+        return seconds >= 0 ? TimeUnit.SECONDS.toNanos(seconds) : defaultTtlNanos;
+    }
+
+    /**
+     * Parses delta-seconds, possibly quoted, or returns -1 if malformed.
+     */
+    private static long seconds(String value) {
+        var digits = value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"") ? value.substring(1, value.length() - 1) : value;
+        if (digits.isEmpty() || digits.length() > 10) {
+            return -1;
+        }
+        for (var i = 0; i < digits.length(); i++) {
+            if (digits.charAt(i) < '0' || digits.charAt(i) > '9') {
+                return -1;
+            }
+        }
+        return Long.parseLong(digits);
+    }
+
+    private static boolean hasDirective(String cacheControl, String directive) {
+        if (cacheControl == null) {
+            return false;
+        }
+        for (var part : cacheControl.split(",")) {
+            if (part.trim().equalsIgnoreCase(directive)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+
+    /**
+     * A cached response: its body, a response holding its headers, and the values the request had for
+     * the headers the response varies by.
+     */
+    private record CachedResponse(String[] varyNames, String[] varyValues, int statusCode, byte[] body, Charset charset,
+                                  Response headers, long storedAt, long expiresAt) {
+        static CachedResponse of(Request request, Response response, long now, long expiresAt) {
+            var vary = response.getHeader(HttpHeader.VARY);
+            var varyNames = NO_NAMES;
+            if (vary != null) {
+                varyNames = Arrays.stream(vary.split(",")).map(String::trim).filter(name -> !name.isEmpty()).toArray(String[]::new);
+            }
+            var varyValues = new String[varyNames.length];
+            for (var i = 0; i < varyNames.length; i++) {
+                varyValues[i] = request.header(varyNames[i]);
+            }
+            var body = response.getBodyBytes();
+            var headers = Response.wrap(new byte[0], response.getStatusCode(), null).headersFrom(response);
+            return new CachedResponse(varyNames, varyValues, response.getStatusCode(), body, response.getCharset(), headers, now, expiresAt);
+        }
+
+        boolean matches(Request request) {
+            for (var i = 0; i < varyNames.length; i++) {
+                if (!Objects.equals(request.header(varyNames[i]), varyValues[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        boolean sameVariant(CachedResponse other) {
+            return Arrays.equals(varyNames, other.varyNames) && Arrays.equals(varyValues, other.varyValues);
+        }
+
+        boolean isExpired(long now) {
+            return now - expiresAt >= 0;
+        }
+
+        long cost() {
+            return body.length + ENTRY_OVERHEAD;
+        }
+
+        Response toResponse(long now) {
+            return Response.wrap(body, statusCode, null, charset)
+                .headersFrom(headers)
+                .header(HttpHeader.AGE, String.valueOf(TimeUnit.NANOSECONDS.toSeconds(now - storedAt)));
+        }
+    }
+
+    /**
+     * One part of the cache: keys in access order, each with its variants, under one lock.
+     */
+    private static final class Stripe {
+        private final long maxBytes;
+        private final LinkedHashMap<String, List<CachedResponse>> entries = new LinkedHashMap<>(16, 0.75f, true);
+        private long bytes;
+
+        Stripe(long maxBytes) {
+            this.maxBytes = maxBytes;
+        }
+
+        synchronized CachedResponse get(String key, Request request, long now) {
+            var variants = entries.get(key);
+            if (variants == null) {
+                return null;
+            }
+            for (var iterator = variants.iterator(); iterator.hasNext(); ) {
+                var variant = iterator.next();
+                if (variant.isExpired(now)) {
+                    iterator.remove();
+                    bytes -= variant.cost();
+                } else if (variant.matches(request)) {
+                    return variant;
+                }
+            }
+            if (variants.isEmpty()) {
+                entries.remove(key);
+            }
+            return null;
+        }
+
+        synchronized void put(String key, CachedResponse response) {
+            if (response.cost() > maxBytes) {
+                return;
+            }
+            var variants = entries.computeIfAbsent(key, ignored -> new ArrayList<>(1));
+            for (var iterator = variants.iterator(); iterator.hasNext(); ) {
+                var variant = iterator.next();
+                if (variant.sameVariant(response) || variant.isExpired(response.storedAt())) {
+                    iterator.remove();
+                    bytes -= variant.cost();
+                }
+            }
+            if (variants.size() == MAX_VARIANTS) {
+                bytes -= variants.remove(0).cost();
+            }
+            variants.add(response);
+            bytes += response.cost();
+
+            var eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes) {
+                var entry = eldest.next();
+                if (entry.getValue() == variants) {
+                    // The key just stored is the most recently used and comes last; only its older variants remain to evict.
+                    while (bytes > maxBytes) {
+                        bytes -= variants.remove(0).cost();
+                    }
+                    break;
+                }
+                for (var variant : entry.getValue()) {
+                    bytes -= variant.cost();
+                }
+                eldest.remove();
+            }
+        }
+
+        synchronized long bytes() {
+            return bytes;
+        }
+
+        synchronized void clear() {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    public static final class Builder {
+        private long maxBytes = 64L * 1024 * 1024;
+        private int stripes = 16;
+        private Duration defaultTtl = Duration.ZERO;
+        private String[] queryParams;
+        private LongSupplier clock = System::nanoTime;
+
+        private Builder() {
+        }
+
+        /**
+         * Sets how many bytes the cached responses may take, bodies plus a fixed allowance each.
+         */
+        public Builder maxBytes(long maxBytes) {
+            this.maxBytes = maxBytes;
+            return this;
+        }
+
+        /**
+         * Sets the number of independently locked stripes, a power of two. Each may hold responses up to
+         * its share of the size limit.
+         */
+        public Builder stripes(int stripes) {
+            this.stripes = stripes;
+            return this;
+        }
+
+        /**
+         * Sets how long responses without {@code max-age} or {@code s-maxage} are cached; zero, the
+         * default, caches only responses that ask for it.
+         */
+        public Builder defaultTtl(Duration defaultTtl) {
+            this.defaultTtl = defaultTtl;
+            return this;
+        }
+
+        /**
+         * Restricts the query parameters that are part of the key to these; by default the whole query is.
+         */
+        public Builder queryParams(String... names) {
+            this.queryParams = names.clone();
+            return this;
+        }
+
+        Builder clock(LongSupplier clock) {
+            this.clock = clock;
+            return this;
+        }
+
+        public ResponseCacheMiddleware build() {
+            return new ResponseCacheMiddleware(this);
+        }
+    }
+}
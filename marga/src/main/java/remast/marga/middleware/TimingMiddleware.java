@@ -18,9 +18,9 @@ public class TimingMiddleware {
      */
     public static java.util.function.Function<RequestHandler, RequestHandler> create() {
         return handler -> request -> {
-            var startTime = System.currentTimeMillis();
+            var startTime = System.nanoTime();
             var response = handler.handle(request);
-            var duration = System.currentTimeMillis() - startTime;
+            var duration = (System.nanoTime() - startTime) / 1_000_000;
 
             response.header(TIMING_HEADER, duration + "ms");
             logger.info(String.format("Request to %s %s took %dms", 
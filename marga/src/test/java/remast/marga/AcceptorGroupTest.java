@@ -0,0 +1,134 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+class AcceptorGroupTest {
+
+    @Test
+    void singleAcceptorShouldUseOneListeningSocket() throws IOException {
+        var group = AcceptorGroup.bind(config().build());
+        try {
+            assertEquals(1, group.listeningSockets());
+            assertTrue(group.getBoundPort() > 0);
+        } finally {
+            group.close();
+        }
+        assertEquals(-1, group.getBoundPort());
+    }
+
+    @Test
+    void acceptorsShouldEachOwnASocketOnTheSamePortWithReusePort() throws IOException {
+        assumeTrue(supportsReusePort());
+
+        var group = AcceptorGroup.bind(config().acceptorThreads(4).build());
+        try {
+            assertEquals(4, group.listeningSockets());
+            assertTrue(group.getBoundPort() > 0);
+        } finally {
+            group.close();
+        }
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void multipleAcceptorsShouldServeAllConnections(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(config().engine(engine).acceptorThreads(4).build());
+        router.GET("/items/${id}", request -> Response.ok(request.pathParam("id")));
+
+        withServer(router, () -> {
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                var futures = new ArrayList<Future<String>>();
+                for (var i = 0; i < 200; i++) {
+                    var path = "/items/" + i;
+                    futures.add(executor.submit(() -> fetchAndClose(router.getPort(), path)));
+                }
+                for (var i = 0; i < futures.size(); i++) {
+                    var raw = futures.get(i).get();
+                    assertTrue(raw.startsWith("HTTP/1.1 200 OK\r\n"), raw);
+                    assertTrue(raw.endsWith("\r\n\r\n" + i), raw);
+                }
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void shutdownShouldStopAllAcceptorThreads(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(config().engine(engine).acceptorThreads(3).build());
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        withServer(router, () -> assertTrue(fetchAndClose(router.getPort(), "/ping").endsWith("pong")));
+
+        for (var i = 0; i < 100 && acceptorThreadsAlive(); i++) {
+            Thread.sleep(20);
+        }
+        assertFalse(acceptorThreadsAlive());
+    }
+
+    private static boolean acceptorThreadsAlive() {
+        return Thread.getAllStackTraces().keySet().stream()
+            .anyMatch(thread -> thread.getName().startsWith("marga-acceptor-"));
+    }
+
+    private static boolean supportsReusePort() throws IOException {
+        try (var channel = ServerSocketChannel.open()) {
+            return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+        }
+    }
+
+    private static String fetchAndClose(int port, String path) throws IOException {
+        try (var socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5_000);
+            var request = "GET " + path + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n";
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static Config.Builder config() {
+        return Config.builder().host("127.0.0.1").port(0).readTimeoutMs(3_000);
+    }
+
+    private interface ServerAction {
+        void run() throws Exception;
+    }
+
+    private static void withServer(HttpRouter router, ServerAction action) throws Exception {
+        var serverThread = Thread.ofVirtual().start(() -> {
+            try {
+                router.run();
+            } catch (IOException ignored) {
+            }
+        });
+        waitForServerPort(router);
+        try {
+            action.run();
+        } finally {
+            router.shutdown();
+            serverThread.join(2_000);
+        }
+    }
+
+    private static void waitForServerPort(HttpRouter router) throws InterruptedException {
+        for (var i = 0; i < 100; i++) {
+            if (router.getPort() > 0) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Server did not start in time");
+    }
+}
@@ -0,0 +1,52 @@
+package remast.marga;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AsciiBufferTest {
+
+    @Test
+    void appendedTextAndNumbersShouldGrowTheBuffer() {
+        var buffer = new AsciiBuffer(4);
+
+        buffer.appendAscii("count=");
+        buffer.appendLong(1234567890123L);
+        buffer.append((byte) ' ');
+        buffer.appendLong(-42);
+        buffer.append((byte) ' ');
+        buffer.appendLong(0);
+        buffer.append(" end".getBytes(StandardCharsets.US_ASCII));
+        buffer.append((byte) ' ');
+        buffer.appendLong(Long.MIN_VALUE);
+
+        assertEquals("count=1234567890123 -42 0 end -9223372036854775808", text(buffer));
+    }
+
+    @Test
+    void resetShouldStartOverAndCopiesShouldNotShareTheBuffer() throws IOException {
+        var buffer = new AsciiBuffer(16);
+        buffer.appendAscii("first");
+        var copy = buffer.toByteArray();
+
+        buffer.reset();
+        buffer.appendAscii("2nd");
+        var out = new ByteArrayOutputStream();
+        buffer.writeTo(out);
+
+        assertEquals("first", new String(copy, StandardCharsets.US_ASCII));
+        assertEquals("2nd", out.toString(StandardCharsets.US_ASCII));
+        assertEquals(3, buffer.length());
+        buffer.truncate(1);
+        assertEquals("2", text(buffer));
+        assertThrows(IllegalArgumentException.class, () -> buffer.truncate(2));
+        assertThrows(IllegalArgumentException.class, () -> new AsciiBuffer(0));
+    }
+
+    private static String text(AsciiBuffer buffer) {
+        return new String(buffer.toByteArray(), StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,156 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import remast.marga.middleware.GzipCompressionMiddleware;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Checks with the JVM's per-thread allocation counter that bodies are not copied on the request path.
+ * The bodies are large, so a single copy stands out clearly from incidental allocation.
+ */
+class BodyCopyTest {
+    private static final int BODY_SIZE = 4 * 1024 * 1024;
+
+    @Test
+    void parsedRequestShouldOwnItsBodyAndExposeViews() {
+        var body = filledBody();
+        var headers = new RawHeaders();
+        headers.add("Content-Type", "application/json");
+
+        var before = allocatedBytes();
+        var request = HttpProtocol.newRequest("POST", "/upload?x=1", headers, body);
+        var buffer = request.getBodyBuffer();
+        var headersView = request.getHeadersView();
+        var allocated = allocatedBytes() - before;
+
+        assertTrue(allocated < BODY_SIZE / 4, "allocated " + allocated + " bytes");
+        assertTrue(buffer.isReadOnly());
+        assertEquals(BODY_SIZE, buffer.remaining());
+        assertThrows(ReadOnlyBufferException.class, () -> buffer.put(0, (byte) 1));
+        assertThrows(UnsupportedOperationException.class, () -> headersView.put("X", "y"));
+        assertThrows(UnsupportedOperationException.class, () -> request.getQueryParamsView().clear());
+        assertEquals("1", request.getQueryParamsView().get("x"));
+    }
+
+    @Test
+    void publicRequestConstructorShouldStillCopy() {
+        var body = "abc".getBytes(StandardCharsets.UTF_8);
+        var request = new Request("POST", "/", Map.of(), Map.of(), body, StandardCharsets.UTF_8);
+
+        body[0] = 'x';
+
+        assertEquals("abc", request.getBody());
+    }
+
+    @Test
+    void wrappedResponseShouldNotCopyItsBody() {
+        var body = filledBody();
+
+        var before = allocatedBytes();
+        var response = Response.wrap(body, 200, MediaType.APPLICATION_OCTET_STREAM);
+        var buffer = response.getBodyBuffer();
+        var allocated = allocatedBytes() - before;
+
+        assertTrue(allocated < BODY_SIZE / 4, "allocated " + allocated + " bytes");
+        assertEquals(BODY_SIZE, response.getBodyLength());
+        assertTrue(buffer.isReadOnly());
+        assertThrows(UnsupportedOperationException.class, () -> response.getHeadersView().put("X", "y"));
+    }
+
+    @Test
+    void writerShouldSendTheBodyWithoutCopyingIt() throws IOException {
+        var response = Response.wrap(filledBody(), 200, MediaType.APPLICATION_OCTET_STREAM);
+        var output = new ChannelOutput(new CountingChannel(), () -> { });
+        var writer = new HttpResponseWriter();
+        // The first response initializes the date formatter, which allocates on its own.
+        writer.write(output, Response.ok("warm-up"), true);
+
+        var before = allocatedBytes();
+        writer.write(output, response, true);
+        output.flush();
+        var allocated = allocatedBytes() - before;
+
+        assertTrue(allocated < BODY_SIZE / 4, "allocated " + allocated + " bytes");
+    }
+
+    @Test
+    void gzipShouldCompressTheBodyWithoutCopyingIt() {
+        var json = new byte[BODY_SIZE];
+        Arrays.fill(json, (byte) ' ');
+        json[0] = '[';
+        json[BODY_SIZE - 1] = ']';
+        var response = Response.wrap(json, 200, MediaType.APPLICATION_JSON).header(HttpHeader.CACHE_CONTROL, "no-cache");
+        var handler = new GzipCompressionMiddleware().create().apply(ignored -> response);
+        var request = new Request("GET", "/items", Map.of("Accept-Encoding", "gzip"));
+        handler.handle(request);
+
+        var before = allocatedBytes();
+        var compressed = handler.handle(request);
+        var allocated = allocatedBytes() - before;
+
+        assertEquals("gzip", compressed.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertTrue(allocated < BODY_SIZE / 4, "allocated " + allocated + " bytes");
+    }
+
+    @Test
+    void compressedResponseShouldKeepHandlerHeaders() {
+        var text = new Response("x".repeat(4_096), HttpStatus.OK, MediaType.TEXT_PLAIN).header(HttpHeader.CACHE_CONTROL, "no-cache");
+
+        var compressed = new GzipCompressionMiddleware().create().apply(ignored -> text)
+            .handle(new Request("GET", "/", Map.of("Accept-Encoding", "gzip")));
+
+        assertEquals("gzip", compressed.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertEquals("no-cache", compressed.getHeader(HttpHeader.CACHE_CONTROL));
+    }
+
+    private static byte[] filledBody() {
+        var body = new byte[BODY_SIZE];
+        Arrays.fill(body, (byte) 'a');
+        return body;
+    }
+
+    private static long allocatedBytes() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getCurrentThreadAllocatedBytes();
+    }
+
+    private static final class CountingChannel implements GatheringByteChannel {
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            var written = 0L;
+            for (var i = offset; i < offset + length; i++) {
+                written += sources[i].remaining();
+                sources[i].position(sources[i].limit());
+            }
+            return written;
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            return (int) write(new ByteBuffer[] {source});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -14,6 +14,17 @@ class ConfigTest {
         assertEquals(30_000, config.getReadTimeoutMs());
         assertEquals(0, config.getAcceptBacklog());
         assertEquals(1_048_576, config.getMaxRequestBodyBytes());
+        assertEquals(15_000, config.getKeepAliveTimeoutMs());
+        assertEquals(1_000, config.getMaxRequestsPerConnection());
+        assertEquals(ServerEngine.BLOCKING, config.getEngine());
+        assertEquals(Runtime.getRuntime().availableProcessors(), config.getEventLoopThreads());
+        assertEquals(1, config.getAcceptorThreads());
+        assertEquals(8_192, config.getMaxHeaderLineBytes());
+        assertEquals(100, config.getMaxHeaderCount());
+        assertEquals(0, config.getMaxInFlightRequests());
+        assertEquals(0, config.getRequestQueueSize());
+        assertEquals(1_000, config.getRequestQueueTimeoutMs());
+        assertEquals(1, config.getRetryAfterSeconds());
         assertEquals("http://localhost:8080", config.getServerUrl());
     }
 
@@ -26,6 +37,15 @@ class ConfigTest {
         assertTrue(result.contains("port=8080"));
         assertTrue(result.contains("readTimeoutMs=30000"));
         assertTrue(result.contains("acceptBacklog=0"));
+        assertTrue(result.contains("keepAliveTimeoutMs=15000"));
+        assertTrue(result.contains("maxRequestsPerConnection=1000"));
+        assertTrue(result.contains("acceptorThreads=1"));
+        assertTrue(result.contains("maxHeaderLineBytes=8192"));
+        assertTrue(result.contains("maxHeaderCount=100"));
+        assertTrue(result.contains("maxInFlightRequests=0"));
+        assertTrue(result.contains("requestQueueSize=0"));
+        assertTrue(result.contains("requestQueueTimeoutMs=1000"));
+        assertTrue(result.contains("retryAfterSeconds=1"));
     }
 
     @Test
@@ -46,6 +66,17 @@ class ConfigTest {
             .readTimeoutMs(5_000)
             .acceptBacklog(100)
             .maxRequestBodyBytes(2048)
+            .keepAliveTimeoutMs(1_000)
+            .maxRequestsPerConnection(10)
+            .engine(ServerEngine.NIO)
+            .eventLoopThreads(2)
+            .acceptorThreads(4)
+            .maxHeaderLineBytes(1_024)
+            .maxHeaderCount(20)
+            .maxInFlightRequests(64)
+            .requestQueueSize(128)
+            .requestQueueTimeoutMs(250)
+            .retryAfterSeconds(5)
             .build();
 
         assertEquals("127.0.0.1", config.getHost());
@@ -53,6 +84,17 @@ class ConfigTest {
         assertEquals(5_000, config.getReadTimeoutMs());
         assertEquals(100, config.getAcceptBacklog());
         assertEquals(2048, config.getMaxRequestBodyBytes());
+        assertEquals(1_000, config.getKeepAliveTimeoutMs());
+        assertEquals(10, config.getMaxRequestsPerConnection());
+        assertEquals(ServerEngine.NIO, config.getEngine());
+        assertEquals(2, config.getEventLoopThreads());
+        assertEquals(4, config.getAcceptorThreads());
+        assertEquals(1_024, config.getMaxHeaderLineBytes());
+        assertEquals(20, config.getMaxHeaderCount());
+        assertEquals(64, config.getMaxInFlightRequests());
+        assertEquals(128, config.getRequestQueueSize());
+        assertEquals(250, config.getRequestQueueTimeoutMs());
+        assertEquals(5, config.getRetryAfterSeconds());
     }
 
     @Test
@@ -63,5 +105,16 @@ class ConfigTest {
         assertThrows(IllegalArgumentException.class, () -> Config.builder().readTimeoutMs(0).build());
         assertThrows(IllegalArgumentException.class, () -> Config.builder().acceptBacklog(-1).build());
         assertThrows(IllegalArgumentException.class, () -> Config.builder().maxRequestBodyBytes(0).build());
+        assertThrows(IllegalArgumentException.class, () -> Config.builder().keepAliveTimeoutMs(0).build());
+        assertThrows(IllegalArgumentException.class, () -> Config.builder().maxRequestsPerConnection(0).build());
+        assertThrows(IllegalArgumentException.class, () -> Config.builder().engine(null).build());
+        assertThrows(IllegalArgumentException.class, () -> Config.builder().eventLoopThreads(0).build());
+        assertThrows(IllegalArgumentException.class, () -> Config.builder().acceptorThreads(0).build());
+        assertThrows(IllegalArgumentException.class, () -> Config.builder().maxHeaderLineBytes(0).build());
+        assertThrows(IllegalArgumentException.class, () -> Config.builder().maxHeaderCount(0).build());
+        assertThrows(IllegalArgumentException.class, () -> Config.builder().maxInFlightRequests(-1).build());
+        assertThrows(IllegalArgumentException.class, () -> Config.builder().requestQueueSize(-1).build());
+        assertThrows(IllegalArgumentException.class, () -> Config.builder().requestQueueTimeoutMs(0).build());
+        assertThrows(IllegalArgumentException.class, () -> Config.builder().retryAfterSeconds(0).build());
     }
 }
@@ -0,0 +1,153 @@
+package remast.marga;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HeadersTest {
+
+    @Test
+    void lookupShouldIgnoreCaseForKnownAndCustomNames() {
+        var headers = new Headers();
+        headers.add("content-TYPE", "text/plain");
+        headers.add("X-Custom", "a");
+
+        assertEquals("text/plain", headers.get(HttpHeader.CONTENT_TYPE));
+        assertEquals("text/plain", headers.get("CONTENT-TYPE"));
+        assertEquals("a", headers.get("x-custom"));
+        assertTrue(headers.contains("X-CUSTOM"));
+        assertFalse(headers.contains(HttpHeader.ACCEPT));
+        assertNull(headers.get("X-Other"));
+    }
+
+    @Test
+    void knownNamesShouldBeCanonicalAndCustomNamesKeepTheirSpelling() {
+        var headers = new Headers();
+        headers.add("content-type", "text/plain");
+        headers.add("x-lower", "1");
+
+        assertSame(HttpHeader.CONTENT_TYPE.getValue(), headers.name(0));
+        assertEquals(HttpHeader.CONTENT_TYPE, headers.knownHeader(0));
+        assertEquals("x-lower", headers.name(1));
+        assertNull(headers.knownHeader(1));
+    }
+
+    @Test
+    void repeatedNamesShouldKeepEveryValueInOrder() {
+        var headers = new Headers();
+        headers.add(HttpHeader.SET_COOKIE, "a=1");
+        headers.add("X-Other", "x");
+        headers.add("set-cookie", "b=2");
+
+        assertEquals("a=1", headers.get(HttpHeader.SET_COOKIE));
+        assertEquals(List.of("a=1", "b=2"), headers.getAll("Set-Cookie"));
+        assertEquals(3, headers.size());
+        assertEquals(List.of(), headers.getAll("X-Missing"));
+    }
+
+    @Test
+    void setShouldReplaceAllValuesAndNullShouldRemove() {
+        var headers = new Headers();
+        headers.add("Vary", "Accept");
+        headers.add("vary", "Accept-Encoding");
+        headers.add("X-Keep", "k");
+
+        headers.set(HttpHeader.VARY, "Origin");
+        assertEquals(List.of("Origin"), headers.getAll(HttpHeader.VARY));
+        assertEquals("k", headers.get("X-Keep"));
+
+        headers.set("x-keep", "changed");
+        assertEquals("changed", headers.get("X-Keep"));
+
+        headers.set("VARY", null);
+        assertFalse(headers.contains(HttpHeader.VARY));
+        assertEquals(1, headers.size());
+        assertFalse(headers.remove("Vary"));
+    }
+
+    @Test
+    void manyFieldsShouldStayFindable() {
+        var headers = new Headers(1);
+        for (var i = 0; i < 100; i++) {
+            headers.add("X-Field-" + i, String.valueOf(i));
+        }
+        headers.add(HttpHeader.HOST, "localhost");
+
+        for (var i = 0; i < 100; i++) {
+            assertEquals(String.valueOf(i), headers.get("x-field-" + i));
+        }
+        assertEquals("localhost", headers.get(HttpHeader.HOST));
+        headers.remove("X-Field-50");
+        assertNull(headers.get("X-Field-50"));
+        assertEquals("51", headers.get("X-Field-51"));
+        assertEquals("localhost", headers.get("host"));
+    }
+
+    @Test
+    void mapViewShouldJoinRepeatedValuesAndBeReadOnly() {
+        var headers = new Headers();
+        headers.add("Accept", "text/html");
+        headers.add("X-Id", "7");
+        headers.add("accept", "application/json");
+        var view = headers.asMap();
+
+        assertEquals(2, view.size());
+        assertEquals("text/html, application/json", view.get("ACCEPT"));
+        assertTrue(view.containsKey("x-id"));
+        var keys = new ArrayList<>(view.keySet());
+        assertEquals(List.of("Accept", "X-Id"), keys);
+        assertThrows(UnsupportedOperationException.class, () -> view.put("X", "y"));
+
+        headers.add("X-Late", "1");
+        assertEquals("1", view.get("x-late"));
+    }
+
+    @Test
+    void setAllShouldReplaceTheNamesOfTheOtherHeaders() {
+        var target = new Headers();
+        target.add(HttpHeader.CONTENT_TYPE, "text/plain");
+        target.add("X-Kept", "k");
+        var source = Headers.of(Map.of("content-type", "text/html"));
+        source.add(HttpHeader.SET_COOKIE, "a=1");
+        source.add(HttpHeader.SET_COOKIE, "b=2");
+
+        target.setAll(source);
+
+        assertEquals(List.of("text/html"), target.getAll(HttpHeader.CONTENT_TYPE));
+        assertEquals(List.of("a=1", "b=2"), target.getAll(HttpHeader.SET_COOKIE));
+        assertEquals("k", target.get("X-Kept"));
+    }
+
+    @Test
+    void nullNamesShouldBeRejected() {
+        var headers = new Headers();
+
+        assertThrows(IllegalArgumentException.class, () -> headers.add((String) null, "x"));
+        assertThrows(IllegalArgumentException.class, () -> headers.set((String) null, "x"));
+        assertNull(headers.get((String) null));
+    }
+
+    @Test
+    void responseShouldSendEveryValueOfARepeatedHeader() throws IOException {
+        var response = Response.ok("x")
+            .addHeader(HttpHeader.SET_COOKIE, "a=1")
+            .addHeader("set-cookie", "b=2")
+            .header("content-type", "text/csv");
+        var out = new ByteArrayOutputStream();
+
+        new HttpResponseWriter().write(out, response, true);
+
+        var raw = out.toString(StandardCharsets.ISO_8859_1);
+        assertTrue(raw.contains("\r\nSet-Cookie: a=1\r\nSet-Cookie: b=2\r\n"), raw);
+        assertTrue(raw.contains("\r\nContent-Type: text/csv; charset=UTF-8\r\n"), raw);
+        assertEquals(raw.indexOf("Content-Type"), raw.lastIndexOf("Content-Type"), raw);
+        assertEquals(List.of("a=1", "b=2"), response.getHeaderValues("Set-Cookie"));
+        assertEquals("text/csv", response.getHeader("Content-Type"));
+    }
+}
@@ -0,0 +1,230 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpRequestParserTest {
+
+    @Test
+    void shouldParseCompleteHead() throws HttpParseException {
+        var data = bytes("POST /items?id=7 HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\nX-Trace:  abc \r\n\r\nhello");
+        var parser = parser(Config.builder());
+
+        var position = parser.parse(data, 0, data.length);
+
+        assertTrue(parser.isComplete());
+        assertFalse(parser.isBlank());
+        assertEquals("POST", parser.method());
+        assertEquals("/items?id=7", parser.target());
+        assertEquals("HTTP/1.1", parser.version());
+        assertEquals("localhost", parser.headers().get("Host"));
+        assertEquals("abc", parser.headers().get("X-Trace"));
+        assertEquals(5, parser.contentLength());
+        assertEquals("hello", new String(data, position, data.length - position, StandardCharsets.US_ASCII));
+    }
+
+    @Test
+    void knownTokensShouldBeSharedConstants() throws HttpParseException {
+        var data = bytes("GET / HTTP/1.1\r\nHost: a\r\naccept: */*\r\n\r\n");
+        var parser = parser(Config.builder());
+
+        parser.parse(data, 0, data.length);
+
+        assertSame("GET", parser.method());
+        assertSame("HTTP/1.1", parser.version());
+        var headers = parser.headers().toHeaders();
+        assertSame(HttpHeader.HOST.getValue(), headers.name(0));
+        // Known header names are stored in their canonical spelling.
+        assertSame(HttpHeader.ACCEPT.getValue(), headers.name(1));
+    }
+
+    @Test
+    void unknownMethodShouldBeDecoded() throws HttpParseException {
+        var data = bytes("PROPFIND /dav HTTP/1.1\r\n\r\n");
+        var parser = parser(Config.builder());
+
+        parser.parse(data, 0, data.length);
+
+        assertEquals("PROPFIND", parser.method());
+        assertEquals("/dav", parser.target());
+    }
+
+    @Test
+    void headArrivingByteByByteShouldBeAssembled() throws HttpParseException {
+        var data = bytes("GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        var parser = parser(Config.builder());
+
+        var position = 0;
+        for (var to = 1; to <= data.length; to++) {
+            position = parser.parse(data, position, to);
+            assertEquals(to == data.length, parser.isComplete());
+        }
+
+        assertEquals(data.length, position);
+        assertEquals("/slow", parser.target());
+        assertEquals("localhost", parser.headers().get("Host"));
+    }
+
+    @Test
+    void bareLineFeedsAndMissingVersionShouldBeAccepted() throws HttpParseException {
+        var data = bytes("GET /legacy\nHost: localhost\n\n");
+        var parser = parser(Config.builder());
+
+        assertEquals(data.length, parser.parse(data, 0, data.length));
+
+        assertTrue(parser.isComplete());
+        assertEquals(HttpProtocol.HTTP_1_0, parser.version());
+        assertEquals("localhost", parser.headers().get("Host"));
+    }
+
+    @Test
+    void headerLineWithoutColonShouldBeIgnored() throws HttpParseException {
+        var data = bytes("GET / HTTP/1.1\r\nnonsense\r\nHost: localhost\r\n\r\n");
+        var parser = parser(Config.builder());
+
+        parser.parse(data, 0, data.length);
+
+        assertEquals(1, parser.headers().size());
+    }
+
+    @Test
+    void blankRequestLineShouldBeReported() throws HttpParseException {
+        var data = bytes("\r\n");
+        var parser = parser(Config.builder());
+
+        parser.parse(data, 0, data.length);
+
+        assertTrue(parser.isComplete());
+        assertTrue(parser.isBlank());
+    }
+
+    @Test
+    void resetShouldAllowParsingTheNextRequest() throws HttpParseException {
+        var data = bytes("GET /one HTTP/1.1\r\n\r\nGET /two HTTP/1.1\r\n\r\n");
+        var parser = parser(Config.builder());
+
+        var position = parser.parse(data, 0, data.length);
+        assertEquals("/one", parser.target());
+        parser.reset();
+        assertFalse(parser.isInProgress());
+        parser.parse(data, position, data.length);
+
+        assertEquals("/two", parser.target());
+    }
+
+    @Test
+    void malformedRequestLineShouldBeRejected() {
+        assertStatus(HttpStatus.BAD_REQUEST, Config.builder(), "NONSENSE\r\n\r\n");
+        assertStatus(HttpStatus.BAD_REQUEST, Config.builder(), "GET  HTTP/1.1\r\n\r\n");
+    }
+
+    @Test
+    void limitsShouldBeEnforced() {
+        var limits = Config.builder().maxHeaderLineBytes(64).maxHeaderCount(2).maxRequestBodyBytes(10);
+
+        assertStatus(HttpStatus.URI_TOO_LONG, limits, "GET /" + "a".repeat(100) + " HTTP/1.1\r\n\r\n");
+        assertStatus(HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE, limits, "GET / HTTP/1.1\r\nX-Big: " + "b".repeat(100) + "\r\n\r\n");
+        assertStatus(HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE, limits, "GET / HTTP/1.1\r\nA: 1\r\nB: 2\r\nC: 3\r\n\r\n");
+        assertStatus(HttpStatus.PAYLOAD_TOO_LARGE, limits, "POST / HTTP/1.1\r\nContent-Length: 11\r\n\r\n");
+    }
+
+    @Test
+    void overlongLineShouldBeRejectedBeforeItsEndArrives() {
+        var parser = parser(Config.builder().maxHeaderLineBytes(64));
+        var data = bytes("GET /" + "a".repeat(100));
+
+        var exception = assertThrows(HttpParseException.class, () -> parser.parse(data, 0, data.length));
+        assertEquals(HttpStatus.URI_TOO_LONG, exception.getStatus());
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void serverShouldAnswerLimitViolations(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(3_000)
+            .maxHeaderLineBytes(256).maxHeaderCount(4).build());
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        withServer(router, () -> {
+            assertTrue(exchange(router.getPort(), "GET /" + "a".repeat(300) + " HTTP/1.1\r\n\r\n").startsWith("HTTP/1.1 414 "));
+            var manyHeaders = new StringBuilder("GET /ping HTTP/1.1\r\n");
+            for (var i = 0; i < 5; i++) {
+                manyHeaders.append("X-H").append(i).append(": v\r\n");
+            }
+            assertTrue(exchange(router.getPort(), manyHeaders + "\r\n").startsWith("HTTP/1.1 431 "));
+            var ok = exchange(router.getPort(), "GET /ping HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            assertTrue(ok.startsWith("HTTP/1.1 200 OK\r\n"), ok);
+            assertTrue(ok.endsWith("pong"), ok);
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void requestsShouldCarryTheClientAddress(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(3_000).build());
+        router.GET("/whoami", request -> Response.ok(request.getRemoteAddress().getAddress().getHostAddress()));
+
+        withServer(router, () -> {
+            var response = exchange(router.getPort(), "GET /whoami HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+            assertTrue(response.endsWith("\r\n\r\n127.0.0.1"), response);
+        });
+    }
+
+    private static void assertStatus(HttpStatus expected, Config.Builder config, String head) {
+        var parser = parser(config);
+        var data = bytes(head);
+        var exception = assertThrows(HttpParseException.class, () -> parser.parse(data, 0, data.length));
+        assertEquals(expected, exception.getStatus());
+    }
+
+    private static HttpRequestParser parser(Config.Builder config) {
+        return new HttpRequestParser(config.build());
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String exchange(int port, String request) throws IOException {
+        try (var socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5_000);
+            socket.getOutputStream().write(bytes(request));
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private interface ServerAction {
+        void run() throws Exception;
+    }
+
+    private static void withServer(HttpRouter router, ServerAction action) throws Exception {
+        var serverThread = Thread.ofVirtual().start(() -> {
+            try {
+                router.run();
+            } catch (IOException ignored) {
+            }
+        });
+        waitForServerPort(router);
+        try {
+            action.run();
+        } finally {
+            router.shutdown();
+            serverThread.join(2_000);
+        }
+    }
+
+    private static void waitForServerPort(HttpRouter router) throws InterruptedException {
+        for (var i = 0; i < 100; i++) {
+            if (router.getPort() > 0) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Server did not start in time");
+    }
+}
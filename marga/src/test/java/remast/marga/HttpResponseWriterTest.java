@@ -0,0 +1,181 @@
+package remast.marga;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HttpResponseWriterTest {
+    private final HttpResponseWriter writer = new HttpResponseWriter();
+
+    @Test
+    void headShouldUsePreEncodedStatusLinesAndFramingHeaders() throws IOException {
+        var raw = write(Response.json("{}").header(HttpHeader.X_REQUEST_ID, "42"), true);
+
+        assertTrue(raw.startsWith("HTTP/1.1 200 OK\r\n"), raw);
+        assertTrue(raw.contains("\r\nContent-Type: application/json; charset=UTF-8\r\n"), raw);
+        assertTrue(raw.contains("\r\nX-Request-ID: 42\r\n"), raw);
+        assertTrue(raw.contains("\r\nContent-Length: 2\r\n"), raw);
+        assertTrue(raw.contains("\r\nConnection: keep-alive\r\n"), raw);
+        assertTrue(raw.endsWith("\r\n\r\n{}"), raw);
+        assertTrue(write(new Response("", 599), false).startsWith("HTTP/1.1 599 Status\r\n"));
+        assertTrue(write(new Response("", HttpStatus.REQUEST_HEADER_FIELDS_TOO_LARGE), false)
+            .startsWith("HTTP/1.1 431 Request Header Fields Too Large\r\n"));
+    }
+
+    @Test
+    void dateShouldBeAnImfFixdateUnlessTheHandlerSetOne() throws IOException {
+        var raw = write(Response.ok("x"), true);
+        assertTrue(raw.matches("(?s).*\r\nDate: [A-Z][a-z]{2}, \\d{2} [A-Z][a-z]{2} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT\r\n.*"), raw);
+
+        var handlerDate = write(Response.ok("x").header("date", "Tue, 01 Jan 2030 00:00:00 GMT"), true);
+        assertTrue(handlerDate.contains("\r\nDate: Tue, 01 Jan 2030 00:00:00 GMT\r\n"), handlerDate);
+        assertEquals(handlerDate.indexOf("\r\nDate: "), handlerDate.lastIndexOf("\r\nDate: "), handlerDate);
+    }
+
+    @Test
+    void handlerConnectionAndLengthHeadersShouldBeReplaced() throws IOException {
+        var raw = write(Response.ok("abc").header("connection", "keep-alive").header("Content-Length", "99"), false);
+
+        assertTrue(raw.contains("\r\nConnection: close\r\n"), raw);
+        assertTrue(raw.contains("\r\nContent-Length: 3\r\n"), raw);
+        assertFalse(raw.contains("keep-alive"), raw);
+        assertFalse(raw.contains("99"), raw);
+    }
+
+    @Test
+    void explicitCharsetAndBinaryTypesShouldBeLeftAlone() throws IOException {
+        assertTrue(write(Response.ok("x").header(HttpHeader.CONTENT_TYPE, "text/csv; charset=ISO-8859-1"), true)
+            .contains("\r\nContent-Type: text/csv; charset=ISO-8859-1\r\n"));
+        assertTrue(write(new Response(new byte[1], 200, MediaType.IMAGE_PNG), true).contains("\r\nContent-Type: image/png\r\n"));
+        assertTrue(write(new Response("<a/>", 200, new MediaType("application/atom+XML")), true)
+            .contains("\r\nContent-Type: application/atom+XML; charset=UTF-8\r\n"));
+    }
+
+    @Test
+    void invalidHeaderShouldFailBeforeAnythingIsWritten() {
+        var out = new ByteArrayOutputStream();
+        var response = Response.ok("x").header("X-Bad", "a\r\nInjected: yes");
+
+        var e = assertThrows(IllegalArgumentException.class, () -> writer.write(out, response, true));
+
+        assertTrue(e.getMessage().contains("X-Bad"), e.getMessage());
+        assertEquals(0, out.size());
+    }
+
+    @Test
+    void smallResponsesShouldBeBufferedUntilFlush() throws IOException {
+        var channel = new RecordingChannel();
+        var output = new ChannelOutput(channel, () -> { });
+
+        writer.write(output, Response.ok("one"), true);
+        writer.write(output, Response.ok("two"), true);
+        assertEquals(0, channel.writes.size());
+
+        output.flush();
+
+        assertEquals(1, channel.writes.size());
+        var raw = new String(channel.writes.get(0), StandardCharsets.ISO_8859_1);
+        assertTrue(raw.contains("\r\n\r\none") && raw.endsWith("\r\n\r\ntwo"), raw);
+    }
+
+    @Test
+    void largeResponseShouldLeaveWithBufferedBytesInOneGatheringWrite() throws IOException {
+        var channel = new RecordingChannel();
+        var output = new ChannelOutput(channel, () -> { });
+        var body = new byte[64 * 1024];
+        Arrays.fill(body, (byte) 'b');
+
+        writer.write(output, Response.ok("first"), true);
+        writer.write(output, new Response(body, 200, MediaType.APPLICATION_OCTET_STREAM), true);
+
+        assertEquals(1, channel.writes.size());
+        var raw = new String(channel.writes.get(0), StandardCharsets.ISO_8859_1);
+        assertTrue(raw.startsWith("HTTP/1.1 200 OK\r\n"), raw);
+        assertTrue(raw.contains("\r\n\r\nfirstHTTP/1.1 200 OK\r\n"));
+        assertTrue(raw.endsWith("\r\n\r\n" + new String(body, StandardCharsets.ISO_8859_1)));
+    }
+
+    @Test
+    void partialWritesShouldStallUntilEverythingIsWritten() throws IOException {
+        var channel = new RecordingChannel();
+        channel.maxBytesPerWrite = 1_000;
+        var stalls = new int[1];
+        var output = new ChannelOutput(channel, () -> stalls[0]++);
+
+        writer.write(output, new Response(new byte[50_000], 200, MediaType.APPLICATION_OCTET_STREAM), true);
+
+        var total = channel.writes.stream().mapToInt(bytes -> bytes.length).sum();
+        assertTrue(total > 50_000);
+        assertTrue(stalls[0] > 0);
+    }
+
+    @Test
+    void decimalsAndTextShouldBeEncodedInPlace() {
+        var head = new ResponseHead();
+        head.appendDecimal(0);
+        head.appendText(" ");
+        head.appendDecimal(1_234_567_890_123L);
+        head.appendText(" é");
+
+        assertEquals("0 1234567890123 ?", new String(head.bytes(), 0, head.length(), StandardCharsets.US_ASCII));
+        assertThrows(IllegalArgumentException.class, () -> head.appendText("a\nb"));
+    }
+
+    private String write(Response response, boolean keepAlive) throws IOException {
+        var out = new ByteArrayOutputStream();
+        writer.write(out, response, keepAlive);
+        return out.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    /**
+     * Records every write call; every other call takes nothing, once a write limit is set, to simulate a full socket.
+     */
+    private static final class RecordingChannel implements GatheringByteChannel {
+        private final List<byte[]> writes = new ArrayList<>();
+        private int maxBytesPerWrite = Integer.MAX_VALUE;
+        private boolean stalled;
+
+        @Override
+        public long write(ByteBuffer[] sources, int offset, int length) {
+            if (maxBytesPerWrite != Integer.MAX_VALUE && (stalled = !stalled)) {
+                return 0;
+            }
+            var written = new ByteArrayOutputStream();
+            for (var i = offset; i < offset + length && written.size() < maxBytesPerWrite; i++) {
+                var count = Math.min(sources[i].remaining(), maxBytesPerWrite - written.size());
+                var bytes = new byte[count];
+                sources[i].get(bytes);
+                written.writeBytes(bytes);
+            }
+            writes.add(written.toByteArray());
+            return written.size();
+        }
+
+        @Override
+        public long write(ByteBuffer[] sources) {
+            return write(sources, 0, sources.length);
+        }
+
+        @Override
+        public int write(ByteBuffer source) {
+            return (int) write(new ByteBuffer[] {source});
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -33,6 +33,15 @@ class HttpStatusTest {
         
         assertEquals(204, HttpStatus.NO_CONTENT.getCode());
         assertEquals("No Content", HttpStatus.NO_CONTENT.getReasonPhrase());
+        
+        assertEquals(304, HttpStatus.NOT_MODIFIED.getCode());
+        assertEquals("Not Modified", HttpStatus.NOT_MODIFIED.getReasonPhrase());
+        
+        assertEquals(429, HttpStatus.TOO_MANY_REQUESTS.getCode());
+        assertEquals("Too Many Requests", HttpStatus.TOO_MANY_REQUESTS.getReasonPhrase());
+        
+        assertEquals(503, HttpStatus.SERVICE_UNAVAILABLE.getCode());
+        assertEquals("Service Unavailable", HttpStatus.SERVICE_UNAVAILABLE.getReasonPhrase());
     }
 
     @Test
@@ -71,6 +71,7 @@ class HttpWireIntegrationTest {
 
             var request = HttpRequest.newBuilder()
                 .uri(URI.create("http://127.0.0.1:" + router.getPort() + "/gzip"))
+                .header("Accept-Encoding", "gzip")
                 .GET()
                 .build();
 
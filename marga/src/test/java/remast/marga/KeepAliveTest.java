@@ -0,0 +1,200 @@
+package remast.marga;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeepAliveTest {
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void http11ConnectionShouldServeMultipleRequests(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(3_000).build());
+        router.GET("/ping", request -> Response.ok("pong"));
+        router.POST("/echo", request -> Response.ok(request.getBody()));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                send(socket, "GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                var first = readResponse(socket.getInputStream());
+                assertTrue(first.startsWith("HTTP/1.1 200 OK\r\n"), first);
+                assertTrue(first.contains("\r\nConnection: keep-alive\r\n"), first);
+                assertTrue(first.endsWith("pong"), first);
+
+                send(socket, "POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\n\r\nhello");
+                var second = readResponse(socket.getInputStream());
+                assertTrue(second.endsWith("hello"), second);
+
+                send(socket, "GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(readResponse(socket.getInputStream()).endsWith("pong"));
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void connectionCloseShouldCloseAfterResponse(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(3_000).build());
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                send(socket, "GET /ping HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                var response = readResponse(socket.getInputStream());
+                assertTrue(response.contains("\r\nConnection: close\r\n"), response);
+                assertEquals(-1, socket.getInputStream().read());
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void http10ShouldCloseUnlessKeepAliveRequested(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(3_000).build());
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                send(socket, "GET /ping HTTP/1.0\r\n\r\n");
+                var response = readResponse(socket.getInputStream());
+                assertTrue(response.contains("\r\nConnection: close\r\n"), response);
+                assertEquals(-1, socket.getInputStream().read());
+            }
+
+            try (var socket = connect(router.getPort())) {
+                send(socket, "GET /ping HTTP/1.0\r\nConnection: Keep-Alive\r\n\r\n");
+                var first = readResponse(socket.getInputStream());
+                assertTrue(first.contains("\r\nConnection: keep-alive\r\n"), first);
+
+                send(socket, "GET /ping HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+                assertTrue(readResponse(socket.getInputStream()).endsWith("pong"));
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void handlerRequestingCloseShouldCloseConnection(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(3_000).build());
+        router.GET("/bye", request -> Response.ok("bye").header(HttpHeader.CONNECTION, "close"));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                send(socket, "GET /bye HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                var response = readResponse(socket.getInputStream());
+                assertTrue(response.contains("\r\nConnection: close\r\n"), response);
+                assertEquals(-1, socket.getInputStream().read());
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void maxRequestsPerConnectionShouldCloseConnection(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(3_000)
+            .maxRequestsPerConnection(2).build());
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                send(socket, "GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(readResponse(socket.getInputStream()).contains("\r\nConnection: keep-alive\r\n"));
+
+                send(socket, "GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(readResponse(socket.getInputStream()).contains("\r\nConnection: close\r\n"));
+                assertEquals(-1, socket.getInputStream().read());
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void idleConnectionShouldBeClosedAfterKeepAliveTimeout(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(3_000)
+            .keepAliveTimeoutMs(100).build());
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                send(socket, "GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(readResponse(socket.getInputStream()).endsWith("pong"));
+
+                var start = System.nanoTime();
+                assertEquals(-1, socket.getInputStream().read());
+                assertTrue(System.nanoTime() - start < 2_000_000_000L, "idle connection was not closed in time");
+            }
+        });
+    }
+
+    private interface ServerAction {
+        void run() throws Exception;
+    }
+
+    private static void withServer(HttpRouter router, ServerAction action) throws Exception {
+        var serverThread = Thread.ofVirtual().start(() -> {
+            try {
+                router.run();
+            } catch (IOException ignored) {
+            }
+        });
+        waitForServerPort(router);
+        try {
+            action.run();
+        } finally {
+            router.shutdown();
+            serverThread.join(2_000);
+        }
+    }
+
+    private static Socket connect(int port) throws IOException {
+        var socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(5_000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String request) throws IOException {
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+        socket.getOutputStream().flush();
+    }
+
+    /**
+     * Reads exactly one Content-Length delimited response without waiting for the connection to close.
+     */
+    private static String readResponse(InputStream in) throws IOException {
+        var head = new ByteArrayOutputStream();
+        var lastFour = 0;
+        while (lastFour != 0x0D0A0D0A) {
+            var b = in.read();
+            if (b == -1) {
+                fail("connection closed before response head was complete: " + head);
+            }
+            head.write(b);
+            lastFour = (lastFour << 8) | b;
+        }
+        var headText = head.toString(StandardCharsets.ISO_8859_1);
+        var contentLength = 0;
+        for (var line : headText.split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        var body = in.readNBytes(contentLength);
+        return headText + new String(body, StandardCharsets.ISO_8859_1);
+    }
+
+    private static void waitForServerPort(HttpRouter router) throws InterruptedException {
+        for (var i = 0; i < 100; i++) {
+            if (router.getPort() > 0) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Server did not start in time");
+    }
+}
@@ -0,0 +1,114 @@
+package remast.marga;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LazyRequestDecodingTest {
+    private static final int HEADER_COUNT = 40;
+    private static final int VALUE_LENGTH = 200;
+
+    @Test
+    void parsedRequestShouldDecodeHeadersAndQueryOnFirstAccess() throws HttpParseException {
+        var request = parse("GET /search?q=hello%20world&tag=a+b&flag HTTP/1.1\r\nHost: localhost\r\nX-Trace: abc\r\n\r\n");
+
+        assertEquals("/search", request.getPath());
+        assertEquals("hello world", request.queryParam("q"));
+        assertEquals("a b", request.queryParam("tag"));
+        assertEquals("", request.queryParam("flag"));
+        assertEquals("localhost", request.header(HttpHeader.HOST));
+        assertEquals("abc", request.header("X-Trace"));
+        assertEquals(2, request.getHeaders().size());
+    }
+
+    @Test
+    void rawQueryShouldBeNullWithoutQuestionMark() throws HttpParseException {
+        var withoutQuery = parse("GET /users/42 HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        var emptyQuery = parse("GET /users/42? HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+        assertNull(withoutQuery.getRawQuery());
+        assertTrue(withoutQuery.getQueryParamsView().isEmpty());
+        assertEquals("", emptyQuery.getRawQuery());
+        assertTrue(emptyQuery.getQueryParamsView().isEmpty());
+    }
+
+    @Test
+    void headerLookupShouldIgnoreCase() throws HttpParseException {
+        var request = parse("GET / HTTP/1.1\r\nhost: localhost\r\nx-trace: abc\r\n\r\n");
+
+        assertEquals("localhost", request.header("Host"));
+        assertEquals("localhost", request.header(HttpHeader.HOST));
+        assertEquals("abc", request.header("X-TRACE"));
+        assertTrue(request.hasHeader("X-Trace"));
+    }
+
+    @Test
+    void findHeaderShouldIgnoreCaseBeforeAndAfterDecoding() throws HttpParseException {
+        var request = parse("GET / HTTP/1.1\r\ncOnNeCtIoN: close\r\n\r\n");
+
+        assertEquals("close", request.findHeader("Connection"));
+        request.getHeadersView();
+        assertEquals("close", request.findHeader("connection"));
+        assertNull(request.findHeader("Transfer-Encoding"));
+    }
+
+    @Test
+    void repeatedHeaderShouldKeepAllValues() throws HttpParseException {
+        var request = parse("GET / HTTP/1.1\r\nAccept: text/html\r\nX-Id: 1\r\naccept: application/json\r\n\r\n");
+
+        assertEquals("text/html", request.header(HttpHeader.ACCEPT));
+        assertEquals(List.of("text/html", "application/json"), request.headerValues("accept"));
+        assertEquals("text/html, application/json", request.getHeadersView().get("ACCEPT"));
+        assertEquals(2, request.getHeaders().size());
+    }
+
+    @Test
+    void rawHeadersShouldGrowPastTheirInitialCapacity() {
+        var headers = new RawHeaders();
+        for (var i = 0; i < HEADER_COUNT; i++) {
+            headers.add("X-Header-" + i, "v".repeat(VALUE_LENGTH) + i);
+        }
+
+        assertEquals(HEADER_COUNT, headers.size());
+        assertEquals("v".repeat(VALUE_LENGTH) + 0, headers.get("x-header-0"));
+        assertEquals("v".repeat(VALUE_LENGTH) + (HEADER_COUNT - 1), headers.toHeaders().get("X-Header-" + (HEADER_COUNT - 1)));
+    }
+
+    @Test
+    void routingWithoutReadingHeadersShouldLeaveThemUndecoded() throws HttpParseException {
+        var head = new StringBuilder("GET /missing?" + "q=" + "%41".repeat(VALUE_LENGTH) + " HTTP/1.1\r\n");
+        for (var i = 0; i < HEADER_COUNT; i++) {
+            head.append("X-Header-").append(i).append(": ").append("v".repeat(VALUE_LENGTH)).append("\r\n");
+        }
+        var request = parse(head.append("\r\n").toString());
+        var router = new Router();
+        router.addRoute("GET", "/present", r -> Response.ok("ok"));
+
+        assertEquals(404, router.handleRequest(request).getStatusCode());
+
+        // Had the headers been decoded already, this would allocate little more than the view.
+        var before = allocatedBytes();
+        request.getHeadersView();
+        request.getQueryParamsView();
+        var allocated = allocatedBytes() - before;
+
+        assertTrue(allocated > HEADER_COUNT * VALUE_LENGTH, "allocated " + allocated + " bytes");
+        assertEquals("A".repeat(VALUE_LENGTH), request.queryParam("q"));
+    }
+
+    private static Request parse(String head) throws HttpParseException {
+        var parser = new HttpRequestParser(Config.builder().maxHeaderCount(100).build());
+        var data = head.getBytes(StandardCharsets.ISO_8859_1);
+        parser.parse(data, 0, data.length);
+        assertTrue(parser.isComplete());
+        return parser.newRequest(new byte[0]);
+    }
+
+    private static long allocatedBytes() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getCurrentThreadAllocatedBytes();
+    }
+}
@@ -20,6 +20,16 @@ class MediaTypeTest {
         assertEquals("image/svg+xml", MediaType.IMAGE_SVG.getValue());
     }
 
+    @Test
+    void forFileNameUsesExtension() {
+        assertEquals(MediaType.TEXT_HTML, MediaType.forFileName("index.HTML"));
+        assertEquals(MediaType.TEXT_JAVASCRIPT, MediaType.forFileName("app.min.js"));
+        assertEquals("font/woff2", MediaType.forFileName("font.woff2").getValue());
+        assertEquals(MediaType.APPLICATION_OCTET_STREAM, MediaType.forFileName("archive.unknown"));
+        assertEquals(MediaType.APPLICATION_OCTET_STREAM, MediaType.forFileName("Makefile"));
+        assertEquals(MediaType.APPLICATION_OCTET_STREAM, MediaType.forFileName("trailing."));
+    }
+
     @Test
     void toStringReturnsValue() {
         assertEquals("MediaType[value=text/plain]", MediaType.TEXT_PLAIN.toString());
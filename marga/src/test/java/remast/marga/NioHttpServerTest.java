@@ -0,0 +1,214 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class NioHttpServerTest {
+
+    @Test
+    void shouldServeRequestsThroughSharedRouterAndMiddleware() throws Exception {
+        var router = new HttpRouter(nioConfig().build());
+        router.use(handler -> request -> handler.handle(request).header("X-Middleware", "applied"));
+        router.GET("/users/${id}", request -> Response.json("{\"id\":\"" + request.pathParam("id") + "\"}"));
+
+        withServer(router, () -> {
+            var response = client().send(get(router.getPort(), "/users/42?verbose=true"), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertEquals("{\"id\":\"42\"}", response.body());
+            assertEquals("applied", response.headers().firstValue("X-Middleware").orElse(null));
+        });
+    }
+
+    @Test
+    void largeResponseShouldBeWrittenCompletely() throws Exception {
+        var payload = "0123456789abcdef".repeat(512 * 1024);
+        var router = new HttpRouter(nioConfig().build());
+        router.GET("/large", request -> Response.ok(payload));
+
+        withServer(router, () -> {
+            var response = client().send(get(router.getPort(), "/large"), HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertEquals(payload.length(), response.body().length());
+            assertEquals(payload, response.body());
+        });
+    }
+
+    @Test
+    void requestArrivingInFragmentsShouldBeAssembled() throws Exception {
+        var router = new HttpRouter(nioConfig().build());
+        router.POST("/echo", request -> Response.ok(request.getBody()));
+
+        withServer(router, () -> {
+            try (var socket = new Socket("127.0.0.1", router.getPort())) {
+                socket.setSoTimeout(5_000);
+                socket.setTcpNoDelay(true);
+                var out = socket.getOutputStream();
+                for (var fragment : new String[] {"POST /ec", "ho HTTP/1.1\r\nHost: loc", "alhost\r\nContent-Length: 11\r\nConnection: close\r\n", "\r\nhello", " world"}) {
+                    out.write(fragment.getBytes(StandardCharsets.US_ASCII));
+                    out.flush();
+                    Thread.sleep(20);
+                }
+                var raw = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+                assertTrue(raw.startsWith("HTTP/1.1 200 OK\r\n"), raw);
+                assertTrue(raw.endsWith("\r\n\r\nhello world"), raw);
+            }
+        });
+    }
+
+    @Test
+    void oversizedBodyShouldReturn413() throws Exception {
+        var router = new HttpRouter(nioConfig().maxRequestBodyBytes(16).build());
+        router.POST("/echo", request -> Response.ok(request.getBody()));
+
+        withServer(router, () -> {
+            var request = HttpRequest.newBuilder()
+                .uri(URI.create("http://127.0.0.1:" + router.getPort() + "/echo"))
+                .POST(HttpRequest.BodyPublishers.ofString("x".repeat(32)))
+                .build();
+            var response = client().send(request, HttpResponse.BodyHandlers.ofString());
+            assertEquals(413, response.statusCode());
+        });
+    }
+
+    @Test
+    void malformedRequestLineShouldReturn400() throws Exception {
+        var router = new HttpRouter(nioConfig().build());
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        withServer(router, () -> {
+            try (var socket = new Socket("127.0.0.1", router.getPort())) {
+                socket.setSoTimeout(5_000);
+                socket.getOutputStream().write("NONSENSE\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+                var raw = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+                assertTrue(raw.startsWith("HTTP/1.1 400 "), raw);
+            }
+        });
+    }
+
+    @Test
+    void concurrentConnectionsShouldBeServedByFewEventLoops() throws Exception {
+        var router = new HttpRouter(nioConfig().eventLoopThreads(2).build());
+        router.GET("/items/${id}", request -> Response.ok(request.pathParam("id")));
+
+        withServer(router, () -> {
+            var client = client();
+            try (var executor = Executors.newVirtualThreadPerTaskExecutor()) {
+                var futures = new ArrayList<Future<HttpResponse<String>>>();
+                for (var i = 0; i < 200; i++) {
+                    var path = "/items/" + i;
+                    futures.add(executor.submit(() -> client.send(get(router.getPort(), path), HttpResponse.BodyHandlers.ofString())));
+                }
+                for (var i = 0; i < futures.size(); i++) {
+                    assertEquals(String.valueOf(i), futures.get(i).get().body());
+                }
+            }
+        });
+    }
+
+    @Test
+    void shutdownShouldCloseIdleConnections() throws Exception {
+        var router = new HttpRouter(nioConfig().build());
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        var serverThread = Thread.ofVirtual().start(() -> {
+            try {
+                router.run();
+            } catch (IOException ignored) {
+            }
+        });
+        waitForServerPort(router);
+
+        try (var socket = new Socket("127.0.0.1", router.getPort())) {
+            socket.setSoTimeout(5_000);
+            socket.getOutputStream().write("GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            var in = socket.getInputStream();
+            var head = new byte[17];
+            assertEquals(17, in.readNBytes(head, 0, head.length));
+            assertEquals("HTTP/1.1 200 OK\r\n", new String(head, StandardCharsets.US_ASCII));
+
+            router.shutdown();
+            serverThread.join(2_000);
+            // Drain the rest of the response; the idle connection must then be closed by the server.
+            while (in.read() != -1) {
+                // keep reading until EOF
+            }
+        }
+    }
+
+    @Test
+    void connectionsHandedToAStoppedEventLoopShouldBeClosed() throws Exception {
+        var config = nioConfig().build();
+        var server = new NioHttpServer(new Router(), config);
+        var loop = new NioEventLoop(server, 0);
+        loop.start();
+        loop.stop();
+
+        try (var listener = ServerSocketChannel.open().bind(new InetSocketAddress("127.0.0.1", 0));
+             var client = new Socket("127.0.0.1", ((InetSocketAddress) listener.getLocalAddress()).getPort())) {
+            client.setSoTimeout(5_000);
+            var channel = listener.accept();
+            loop.register(channel);
+
+            // Either the ending loop or the registering thread closes the channel.
+            assertEquals(-1, client.getInputStream().read());
+            assertFalse(channel.isOpen());
+            assertEquals(0, server.getStats().getActiveConnections());
+        }
+    }
+
+    private static Config.Builder nioConfig() {
+        return Config.builder().engine(ServerEngine.NIO).host("127.0.0.1").port(0).readTimeoutMs(3_000);
+    }
+
+    private static HttpClient client() {
+        return HttpClient.newBuilder().connectTimeout(Duration.ofSeconds(2)).build();
+    }
+
+    private static HttpRequest get(int port, String path) {
+        return HttpRequest.newBuilder().uri(URI.create("http://127.0.0.1:" + port + path)).GET().build();
+    }
+
+    private interface ServerAction {
+        void run() throws Exception;
+    }
+
+    private static void withServer(HttpRouter router, ServerAction action) throws Exception {
+        var serverThread = Thread.ofVirtual().start(() -> {
+            try {
+                router.run();
+            } catch (IOException ignored) {
+            }
+        });
+        waitForServerPort(router);
+        try {
+            action.run();
+        } finally {
+            router.shutdown();
+            serverThread.join(2_000);
+        }
+    }
+
+    private static void waitForServerPort(HttpRouter router) throws InterruptedException {
+        for (var i = 0; i < 100; i++) {
+            if (router.getPort() > 0) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Server did not start in time");
+    }
+}
@@ -0,0 +1,171 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OverloadSheddingTest {
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void requestsBeyondLimitAndQueueShouldBeRejectedRightAway(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(config(engine).maxInFlightRequests(1).requestQueueSize(1).requestQueueTimeoutMs(10_000)
+            .retryAfterSeconds(3).build());
+        var entered = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        router.GET("/slow", request -> {
+            entered.countDown();
+            await(release);
+            return Response.ok("done");
+        });
+
+        withServer(router, () -> {
+            var stats = router.getStats();
+            try (var first = connect(router.getPort()); var second = connect(router.getPort()); var third = connect(router.getPort())) {
+                send(first, "GET /slow HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(entered.await(5, TimeUnit.SECONDS));
+                send(second, "GET /slow HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                waitFor(() -> stats.getWaitingRequests() == 1);
+
+                send(third, "GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                var rejected = readAll(third);
+                assertTrue(rejected.startsWith("HTTP/1.1 503 Service Unavailable\r\n"), rejected);
+                assertTrue(rejected.contains("\r\nRetry-After: 3\r\n"), rejected);
+                assertTrue(rejected.contains("\r\nConnection: close\r\n"), rejected);
+                assertEquals(1, stats.getInFlightRequests());
+
+                release.countDown();
+                assertTrue(readAll(first).endsWith("done"));
+                assertTrue(readAll(second).endsWith("done"));
+            }
+            waitFor(() -> stats.getInFlightRequests() == 0);
+            assertEquals(1, stats.getQueuedRequests());
+            assertEquals(1, stats.getRejectedRequests());
+            assertEquals(0, stats.getWaitingRequests());
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void queuedRequestShouldBeRejectedAfterQueueTimeout(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(config(engine).maxInFlightRequests(1).requestQueueSize(4).requestQueueTimeoutMs(100).build());
+        var entered = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        router.GET("/slow", request -> {
+            entered.countDown();
+            await(release);
+            return Response.ok("done");
+        });
+
+        withServer(router, () -> {
+            try (var first = connect(router.getPort()); var second = connect(router.getPort())) {
+                send(first, "GET /slow HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+                send(second, "GET /slow HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                var rejected = readAll(second);
+                assertTrue(rejected.startsWith("HTTP/1.1 503 "), rejected);
+                assertTrue(rejected.contains("\r\nRetry-After: 1\r\n"), rejected);
+
+                release.countDown();
+                assertTrue(readAll(first).endsWith("done"));
+            }
+            assertEquals(1, router.getStats().getQueuedRequests());
+            assertEquals(1, router.getStats().getRejectedRequests());
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void withoutLimitRequestsShouldOnlyBeCounted(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(config(engine).build());
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        withServer(router, () -> {
+            for (var i = 0; i < 3; i++) {
+                try (var socket = connect(router.getPort())) {
+                    send(socket, "GET /ping HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                    assertTrue(readAll(socket).endsWith("pong"));
+                }
+            }
+            var stats = router.getStats();
+            waitFor(() -> stats.getInFlightRequests() == 0);
+            assertEquals(0, stats.getRejectedRequests());
+            assertEquals(0, stats.getQueuedRequests());
+        });
+    }
+
+    private static Config.Builder config(ServerEngine engine) {
+        return Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(5_000);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        for (var i = 0; i < 500; i++) {
+            if (condition.getAsBoolean()) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Condition not met in time");
+    }
+
+    private static Socket connect(int port) throws IOException {
+        var socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(10_000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String request) throws IOException {
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+        socket.getOutputStream().flush();
+    }
+
+    private static String readAll(Socket socket) throws IOException {
+        return new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+    }
+
+    private interface ServerAction {
+        void run() throws Exception;
+    }
+
+    private static void withServer(HttpRouter router, ServerAction action) throws Exception {
+        var serverThread = Thread.ofVirtual().start(() -> {
+            try {
+                router.run();
+            } catch (IOException ignored) {
+            }
+        });
+        waitForServerPort(router);
+        try {
+            action.run();
+        } finally {
+            router.shutdown();
+            serverThread.join(2_000);
+        }
+    }
+
+    private static void waitForServerPort(HttpRouter router) throws InterruptedException {
+        for (var i = 0; i < 100; i++) {
+            if (router.getPort() > 0) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Server did not start in time");
+    }
+}
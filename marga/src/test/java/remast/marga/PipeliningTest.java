@@ -0,0 +1,146 @@
+package remast.marga;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PipeliningTest {
+
+    private static final int PIPELINED_REQUESTS = 500;
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void pipelinedRequestsShouldBeAnsweredInOrder(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(3_000).build());
+        router.GET("/items/${id}", request -> Response.ok("item-" + request.pathParam("id")));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                var requests = new StringBuilder();
+                for (var i = 0; i < PIPELINED_REQUESTS; i++) {
+                    requests.append("GET /items/").append(i).append(" HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                }
+                send(socket, requests.toString());
+
+                var in = socket.getInputStream();
+                for (var i = 0; i < PIPELINED_REQUESTS; i++) {
+                    var response = readResponse(in);
+                    assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), response);
+                    assertTrue(response.endsWith("\r\n\r\nitem-" + i), "response " + i + " out of order: " + response);
+                }
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void pipelinedRequestsWithBodiesShouldBeAnsweredInOrder(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(3_000).build());
+        router.POST("/echo", request -> Response.ok(request.getBody()));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                var requests = new StringBuilder();
+                for (var i = 0; i < PIPELINED_REQUESTS; i++) {
+                    var body = "body-" + i;
+                    requests.append("POST /echo HTTP/1.1\r\nHost: localhost\r\nContent-Length: ")
+                        .append(body.length()).append("\r\n\r\n").append(body);
+                }
+                send(socket, requests.toString());
+
+                var in = socket.getInputStream();
+                for (var i = 0; i < PIPELINED_REQUESTS; i++) {
+                    assertTrue(readResponse(in).endsWith("\r\n\r\nbody-" + i));
+                }
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void closeInsidePipelineShouldDropLaterRequests(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(3_000).build());
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                send(socket, "GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n"
+                    + "GET /ping HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n"
+                    + "GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n");
+
+                var in = socket.getInputStream();
+                assertTrue(readResponse(in).contains("\r\nConnection: keep-alive\r\n"));
+                assertTrue(readResponse(in).contains("\r\nConnection: close\r\n"));
+                assertEquals(-1, in.read());
+            }
+        });
+    }
+
+    private interface ServerAction {
+        void run() throws Exception;
+    }
+
+    private static void withServer(HttpRouter router, ServerAction action) throws Exception {
+        var serverThread = Thread.ofVirtual().start(() -> {
+            try {
+                router.run();
+            } catch (IOException ignored) {
+            }
+        });
+        waitForServerPort(router);
+        try {
+            action.run();
+        } finally {
+            router.shutdown();
+            serverThread.join(2_000);
+        }
+    }
+
+    private static Socket connect(int port) throws IOException {
+        var socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(5_000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String request) throws IOException {
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+        socket.getOutputStream().flush();
+    }
+
+    private static String readResponse(InputStream in) throws IOException {
+        var head = new ByteArrayOutputStream();
+        var lastFour = 0;
+        while (lastFour != 0x0D0A0D0A) {
+            var b = in.read();
+            if (b == -1) {
+                fail("connection closed before response head was complete: " + head);
+            }
+            head.write(b);
+            lastFour = (lastFour << 8) | b;
+        }
+        var headText = head.toString(StandardCharsets.ISO_8859_1);
+        var contentLength = 0;
+        for (var line : headText.split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15)) {
+                contentLength = Integer.parseInt(line.substring(15).trim());
+            }
+        }
+        return headText + new String(in.readNBytes(contentLength), StandardCharsets.ISO_8859_1);
+    }
+
+    private static void waitForServerPort(HttpRouter router) throws InterruptedException {
+        for (var i = 0; i < 100; i++) {
+            if (router.getPort() > 0) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Server did not start in time");
+    }
+}
@@ -0,0 +1,125 @@
+package remast.marga;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.TreeSet;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RouteTreeTest {
+
+    @Test
+    void moreLiteralSegmentsDeeperInThePathShouldWin() {
+        var router = new Router();
+        router.GET("/a/${x}/${y}", request -> Response.ok("SHALLOW"));
+        router.GET("/${x}/b/c", request -> Response.ok("DEEP"));
+
+        assertEquals("DEEP", router.handleRequest("GET", "/a/b/c").getBody());
+        assertEquals("SHALLOW", router.handleRequest("GET", "/a/b/d").getBody());
+    }
+
+    @Test
+    void literalChildShouldNotHideParameterBranch() {
+        var router = new Router();
+        router.GET("/files/static/${name}/${revision}", request -> Response.ok("STATIC"));
+        router.GET("/files/${dir}/readme/latest", request -> Response.ok("README:" + request.pathParam("dir")));
+
+        assertEquals("README:static", router.handleRequest("GET", "/files/static/readme/latest").getBody());
+        assertEquals("STATIC", router.handleRequest("GET", "/files/static/logo/latest").getBody());
+        assertEquals("README:docs", router.handleRequest("GET", "/files/docs/readme/latest").getBody());
+    }
+
+    @Test
+    void parameterNamesShouldComeFromTheMatchedRoute() {
+        var router = new Router();
+        router.GET("/users/${userId}", request -> Response.ok("user " + request.pathParam("userId")));
+        router.GET("/users/${id}/posts/${postId}", request -> Response.ok(request.pathParam("id") + "/" + request.pathParam("postId")));
+
+        var request = new Request("GET", "/users/7/posts/9");
+        assertEquals("7/9", router.handleRequest(request).getBody());
+        assertNull(request.pathParam("userId"));
+        assertEquals("user 7", router.handleRequest("GET", "/users/7").getBody());
+    }
+
+    @Test
+    void emptySegmentShouldNotMatchParameter() {
+        var router = new Router();
+        router.GET("/users/${id}", request -> Response.ok("USER"));
+
+        assertEquals(404, router.handleRequest("GET", "/users/").getStatusCode());
+        assertEquals(404, router.handleRequest("GET", "/users//x").getStatusCode());
+    }
+
+    @Test
+    void allowedMethodsShouldCombineAllMatchingShapes() {
+        var router = new Router();
+        router.GET("/items/${id}", request -> Response.ok("GET"));
+        router.PUT("/items/${itemId}", request -> Response.ok("PUT"));
+        router.DELETE("/${collection}/${id}", request -> Response.ok("DELETE"));
+        router.POST("/orders/${id}", request -> Response.ok("POST"));
+
+        var response = router.handleRequest("PATCH", "/items/1");
+
+        assertEquals(405, response.getStatusCode());
+        assertEquals("DELETE, GET, PUT", response.getHeader(HttpHeader.ALLOW));
+    }
+
+    @Test
+    void replacedPatternShouldServeTheNewHandler() {
+        var router = new Router();
+        router.GET("/items/${id}", request -> Response.ok("OLD"));
+        router.GET("/items/${id}", request -> Response.ok("NEW"));
+
+        assertEquals("NEW", router.handleRequest("GET", "/items/1").getBody());
+    }
+
+    @Test
+    void lookupsShouldAgreeWithLinearSpecificityScan() {
+        var random = new Random(42);
+        var specificity = Comparator.comparingInt(Route::getStaticSegmentCount)
+            .thenComparing(Comparator.comparingInt(Route::getParameterSegmentCount).reversed())
+            .thenComparingInt(Route::getFirstParameterIndex)
+            .thenComparing(Route::getPattern);
+        var tree = new RouteTree(specificity);
+        var routes = new ArrayList<Route>();
+        var literals = new String[] {"a", "b", "c"};
+        var patterns = new TreeSet<String>();
+        while (patterns.size() < 200) {
+            var pattern = new StringBuilder();
+            var segments = 1 + random.nextInt(4);
+            for (var i = 0; i < segments; i++) {
+                pattern.append('/').append(random.nextInt(3) == 0 ? "${p" + i + "}" : literals[random.nextInt(literals.length)]);
+            }
+            patterns.add(pattern.toString());
+        }
+        for (var pattern : patterns) {
+            var route = new Route("GET", request -> null, null, pattern);
+            routes.add(route);
+            tree.add(route);
+        }
+        routes.sort(specificity.reversed());
+
+        for (var i = 0; i < 1_000; i++) {
+            var path = new StringBuilder();
+            var segments = 1 + random.nextInt(4);
+            for (var s = 0; s < segments; s++) {
+                path.append('/').append(random.nextInt(5) == 0 ? "x" : literals[random.nextInt(literals.length)]);
+            }
+            var expected = routes.stream().filter(route -> route.matches(path.toString())).findFirst().orElse(null);
+            var found = tree.find("GET", path.toString(), RouteTree.segmentBounds(path.toString()), new Request("GET", path.toString()));
+            assertSame(expected, found, path.toString());
+        }
+    }
+
+    @Test
+    void segmentBoundsShouldFollowPatternSplitting() {
+        var bounds = RouteTree.segmentBounds("/a/bc/");
+
+        assertEquals(3, bounds.count());
+        assertArrayEquals(new int[] {1, 3, 6}, bounds.starts());
+        assertArrayEquals(new int[] {2, 5, 6}, bounds.ends());
+        assertEquals(1, RouteTree.segmentBounds("/").count());
+    }
+}
@@ -0,0 +1,144 @@
+package remast.marga;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.List;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ServerEventsTest {
+    private static final List<String> EVENTS = List.of("remast.marga.ConnectionAccepted", "remast.marga.RequestParse",
+        "remast.marga.Routing", "remast.marga.HandlerExecution", "remast.marga.ResponseWrite");
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void requestPhasesShouldBeRecorded(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(3_000).build());
+        router.POST("/users/${id}", request -> Response.ok("saved " + request.getPathParams().get("id")));
+        var request = "POST /users/42 HTTP/1.1\r\nHost: localhost\r\nContent-Length: 5\r\nConnection: close\r\n\r\nhello";
+
+        var response = new String[2];
+        var events = record(() -> withServer(router, () -> {
+            response[0] = exchange(router.getPort(), request);
+            response[1] = exchange(router.getPort(), "BROKEN\r\n\r\n");
+        }));
+
+        var accepted = events.stream()
+            .filter(event -> event.getEventType().getName().equals("remast.marga.ConnectionAccepted"))
+            .filter(event -> event.getString("engine").equals(engine.name()))
+            .toList();
+        assertEquals(2, accepted.size(), events.toString());
+        assertTrue(accepted.get(0).getString("remoteAddress").contains("127.0.0.1"), accepted.toString());
+
+        var parse = only(events, "remast.marga.RequestParse", "/users/42");
+        assertEquals("POST", parse.getString("method"));
+        assertEquals(request.length(), parse.getLong("bytes"));
+
+        var routing = only(events, "remast.marga.Routing", "/users/42");
+        assertEquals("/users/${id}", routing.getString("route"));
+
+        var execution = only(events, "remast.marga.HandlerExecution", "/users/${id}");
+        assertEquals(200, execution.getInt("status"));
+
+        var write = only(events, "remast.marga.ResponseWrite", "/users/${id}");
+        assertEquals(200, write.getInt("status"));
+        assertEquals(response[0].length(), write.getLong("bytes"));
+
+        var rejection = events.stream()
+            .filter(event -> event.getEventType().getName().equals("remast.marga.ResponseWrite"))
+            .filter(event -> event.getInt("status") == 400)
+            .toList();
+        assertEquals(1, rejection.size(), events.toString());
+        assertEquals(response[1].length(), rejection.get(0).getLong("bytes"));
+        assertNull(rejection.get(0).getString("method"));
+    }
+
+    @Test
+    void routingShouldBeRecordedForUnmatchedRequests() throws Exception {
+        var router = new Router();
+        router.addRoute("GET", "/users", request -> Response.ok("users"));
+
+        var events = record(() -> router.handleRequest("DELETE", "/users"));
+
+        var routing = only(events, "remast.marga.Routing", "/users");
+        assertEquals("DELETE", routing.getString("method"));
+        assertNull(routing.getString("route"));
+        assertEquals(405, only(events, "remast.marga.HandlerExecution", "DELETE").getInt("status"));
+    }
+
+    private interface Action {
+        void run() throws Exception;
+    }
+
+    private static List<RecordedEvent> record(Action action) throws Exception {
+        var file = Files.createTempFile("marga-events", ".jfr");
+        try (var recording = new Recording()) {
+            for (var event : EVENTS) {
+                recording.enable(event).withThreshold(Duration.ZERO);
+            }
+            recording.start();
+            action.run();
+            recording.stop();
+            recording.dump(file);
+            return RecordingFile.readAllEvents(file);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    /**
+     * Returns the single event of the type with a string field equal to {@code value}.
+     */
+    private static RecordedEvent only(List<RecordedEvent> events, String type, String value) {
+        var matching = events.stream()
+            .filter(event -> event.getEventType().getName().equals(type))
+            .filter(event -> event.getFields().stream()
+                .anyMatch(field -> field.getTypeName().equals("java.lang.String") && value.equals(event.getString(field.getName()))))
+            .toList();
+        assertEquals(1, matching.size(), type + " " + value + " in " + events);
+        return matching.get(0);
+    }
+
+    private static String exchange(int port, String request) throws IOException {
+        try (var socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5_000);
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private static void withServer(HttpRouter router, Action action) throws Exception {
+        var serverThread = Thread.ofVirtual().start(() -> {
+            try {
+                router.run();
+            } catch (IOException ignored) {
+            }
+        });
+        waitForServerPort(router);
+        try {
+            action.run();
+        } finally {
+            router.shutdown();
+            serverThread.join(2_000);
+        }
+    }
+
+    private static void waitForServerPort(HttpRouter router) throws InterruptedException {
+        for (var i = 0; i < 100; i++) {
+            if (router.getPort() > 0) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Server did not start in time");
+    }
+}
@@ -0,0 +1,400 @@
+package remast.marga;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.InflaterInputStream;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import remast.marga.handlers.StaticFileHandler;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StaticFileHandlerTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path root;
+    private byte[] image;
+
+    @BeforeEach
+    void createFiles() throws IOException {
+        root = Files.createDirectories(tempDir.resolve("public"));
+        image = new byte[300_000];
+        new Random(3).nextBytes(image);
+        Files.write(root.resolve("logo.png"), image);
+        Files.writeString(root.resolve("app.css"), "body { margin: 0; }");
+        Files.createDirectories(root.resolve("docs"));
+        Files.writeString(root.resolve("docs/index.html"), "<h1>Docs</h1>");
+        Files.writeString(root.resolve("my file+1.txt"), "spaces");
+        Files.writeString(tempDir.resolve("secret.txt"), "secret");
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void fileShouldBeSentWithTypeLengthAndLastModified(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(config().engine(engine).build());
+        router.mount("/assets", new StaticFileHandler(root));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                var in = socket.getInputStream();
+                send(socket, "GET /assets/logo.png HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                var head = readHead(in);
+                assertTrue(head.startsWith("HTTP/1.1 200 OK\r\n"), head);
+                assertTrue(head.contains("Content-Type: image/png\r\n"), head);
+                assertTrue(head.contains("Content-Length: " + image.length + "\r\n"), head);
+                assertTrue(head.contains("Last-Modified: "), head);
+                assertArrayEquals(image, in.readNBytes(image.length));
+
+                send(socket, "HEAD /assets/app.css HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                head = readHead(in);
+                assertTrue(head.contains("Content-Type: text/css; charset=UTF-8\r\n"), head);
+                assertTrue(head.contains("Content-Length: 19\r\n"), head);
+
+                // The HEAD answer had no body, so the next response follows right after its head.
+                send(socket, "GET /assets/app.css HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(readHead(in).startsWith("HTTP/1.1 200 OK\r\n"));
+                assertEquals("body { margin: 0; }", new String(in.readNBytes(19), StandardCharsets.UTF_8));
+            }
+        });
+    }
+
+    @Test
+    void directoryShouldServeItsIndex() {
+        var router = new Router();
+        router.mount("/", new StaticFileHandler(root));
+
+        var response = router.handleRequest("GET", "/docs");
+
+        assertEquals(200, response.getStatusCode());
+        assertEquals(MediaType.TEXT_HTML, response.getMediaType());
+        assertTrue(response.isStreaming());
+        assertEquals(404, router.handleRequest("GET", "/").getStatusCode());
+    }
+
+    @Test
+    void percentEncodedNamesShouldBeDecodedWithoutFormRules() {
+        var router = new Router();
+        router.mount("/assets", new StaticFileHandler(root));
+
+        assertEquals(200, router.handleRequest("GET", "/assets/my%20file+1.txt").getStatusCode());
+        assertEquals(404, router.handleRequest("GET", "/assets/my%2").getStatusCode());
+    }
+
+    @Test
+    void pathsOutsideTheRootShouldNotBeFound() throws IOException {
+        var router = new Router();
+        router.mount("/assets", new StaticFileHandler(root));
+
+        assertEquals(404, router.handleRequest("GET", "/assets/../secret.txt").getStatusCode());
+        assertEquals(404, router.handleRequest("GET", "/assets/%2e%2e/secret.txt").getStatusCode());
+        assertEquals(404, router.handleRequest("GET", "/assets/missing.png").getStatusCode());
+
+        try {
+            Files.createSymbolicLink(root.resolve("escape.txt"), tempDir.resolve("secret.txt"));
+        } catch (UnsupportedOperationException e) {
+            return;
+        }
+        assertEquals(404, router.handleRequest("GET", "/assets/escape.txt").getStatusCode());
+    }
+
+    @Test
+    void otherMethodsShouldNotBeAllowed() {
+        var router = new Router();
+        router.mount("/assets", new StaticFileHandler(root));
+
+        var response = router.handleRequest("POST", "/assets/app.css");
+
+        assertEquals(405, response.getStatusCode());
+        assertEquals("GET, HEAD", response.getHeader(HttpHeader.ALLOW));
+    }
+
+    @Test
+    void routesAndLongerPrefixesShouldTakePrecedence() {
+        var router = new Router();
+        router.mount("/assets", request -> Response.ok("assets " + request.pathParam(Router.MOUNTED_PATH)));
+        router.mount("/assets/admin/", request -> Response.ok("admin " + request.pathParam(Router.MOUNTED_PATH)));
+        router.GET("/assets/version", request -> Response.ok("route"));
+
+        assertEquals("route", router.handleRequest("GET", "/assets/version").getBody());
+        assertEquals("assets /css/app.css", router.handleRequest("GET", "/assets/css/app.css").getBody());
+        assertEquals("assets /", router.handleRequest("GET", "/assets").getBody());
+        assertEquals("admin /users", router.handleRequest("GET", "/assets/admin/users").getBody());
+        assertEquals(404, router.handleRequest("GET", "/assetsX/app.css").getStatusCode());
+    }
+
+    @Test
+    void invalidRootShouldBeRejected() {
+        assertThrows(IllegalArgumentException.class, () -> new StaticFileHandler(tempDir.resolve("missing")));
+        assertThrows(IllegalArgumentException.class, () -> new StaticFileHandler(tempDir.resolve("secret.txt")));
+        assertThrows(IllegalArgumentException.class, () -> new Router().mount("assets", request -> null));
+    }
+
+    @Test
+    void compressedVariantsShouldBeBuiltOnceAndKeptUntilTheFileChanges() throws IOException {
+        var file = root.resolve("site.css");
+        var css = ".button { color: red; }\n".repeat(500);
+        Files.writeString(file, css);
+        var modified = FileTime.fromMillis(1_700_000_000_000L);
+        Files.setLastModifiedTime(file, modified);
+        var handler = new StaticFileHandler(root);
+
+        var identity = handler.handle(new Request("GET", "/site.css"));
+        var gzip = handler.handle(new Request("GET", "/site.css", Map.of("Accept-Encoding", "gzip, deflate")));
+        var deflate = handler.handle(new Request("GET", "/site.css", Map.of("Accept-Encoding", "deflate")));
+
+        assertTrue(identity.isStreaming());
+        assertNull(identity.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertEquals("gzip", gzip.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertEquals(css, new String(new GZIPInputStream(new ByteArrayInputStream(gzip.getBodyBytes())).readAllBytes(), StandardCharsets.UTF_8));
+        assertEquals("deflate", deflate.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertEquals(css, new String(new InflaterInputStream(new ByteArrayInputStream(deflate.getBodyBytes())).readAllBytes(), StandardCharsets.UTF_8));
+        for (var response : new Response[] {identity, gzip, deflate}) {
+            assertEquals("Accept-Encoding", response.getHeader(HttpHeader.VARY));
+            assertFalse(response.getHeader(HttpHeader.ETAG).startsWith("W/"));
+        }
+        assertNotEquals(identity.getHeader(HttpHeader.ETAG), gzip.getHeader(HttpHeader.ETAG));
+        assertNotEquals(gzip.getHeader(HttpHeader.ETAG), deflate.getHeader(HttpHeader.ETAG));
+
+        // Same size and modification time: the cached variant is still used.
+        Files.writeString(file, css.replace("red", "tan"));
+        Files.setLastModifiedTime(file, modified);
+        var cached = handler.handle(new Request("GET", "/site.css", Map.of("Accept-Encoding", "gzip")));
+        assertEquals(gzip.getBodyBuffer(), cached.getBodyBuffer());
+
+        Files.setLastModifiedTime(file, FileTime.fromMillis(1_700_000_001_000L));
+        var changed = handler.handle(new Request("GET", "/site.css", Map.of("Accept-Encoding", "gzip")));
+        assertEquals(css.replace("red", "tan"),
+            new String(new GZIPInputStream(new ByteArrayInputStream(changed.getBodyBytes())).readAllBytes(), StandardCharsets.UTF_8));
+        assertNotEquals(gzip.getHeader(HttpHeader.ETAG), changed.getHeader(HttpHeader.ETAG));
+    }
+
+    @Test
+    void gzipFileNextToTheRequestedOneShouldBeSentAsItIs() throws IOException {
+        var compressed = new ByteArrayOutputStream();
+        try (var out = new GZIPOutputStream(compressed)) {
+            out.write(image);
+        }
+        var gzipFile = root.resolve("logo.png.gz");
+        Files.write(gzipFile, compressed.toByteArray());
+        var handler = new StaticFileHandler(root, 0);
+
+        var response = handler.handle(new Request("GET", "/logo.png", Map.of("Accept-Encoding", "gzip")));
+
+        assertTrue(response.isStreaming());
+        assertEquals("gzip", response.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertEquals(MediaType.IMAGE_PNG, response.getMediaType());
+        assertEquals("Accept-Encoding", response.getHeader(HttpHeader.VARY));
+        var out = new ByteArrayOutputStream();
+        response.getBodyWriter().writeTo(out);
+        assertArrayEquals(compressed.toByteArray(), out.toByteArray());
+
+        // Images are not compressed in memory, and an outdated .gz file is ignored.
+        Files.setLastModifiedTime(gzipFile, FileTime.fromMillis(Files.getLastModifiedTime(root.resolve("logo.png")).toMillis() - 60_000));
+        var stale = handler.handle(new Request("GET", "/logo.png", Map.of("Accept-Encoding", "gzip")));
+        assertNull(stale.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertNull(stale.getHeader(HttpHeader.VARY));
+    }
+
+    @Test
+    void filesShouldNotBeCompressedBeyondTheCacheSize() throws IOException {
+        Files.writeString(root.resolve("big.txt"), "abc".repeat(10_000));
+        var handler = new StaticFileHandler(root, 1024);
+
+        var response = handler.handle(new Request("GET", "/big.txt", Map.of("Accept-Encoding", "gzip")));
+
+        assertTrue(response.isStreaming());
+        assertNull(response.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertEquals("Accept-Encoding", response.getHeader(HttpHeader.VARY));
+        assertThrows(IllegalArgumentException.class, () -> new StaticFileHandler(root, -1));
+    }
+
+    @Test
+    void variantsOfDeletedFilesShouldBeDropped() throws IOException {
+        // Hex digits compress to a little over half, so the cache holds one of these variants but not two.
+        var random = new Random(42);
+        for (var name : new String[] {"a.txt", "b.txt"}) {
+            var text = new StringBuilder();
+            for (var i = 0; i < 2_000; i++) {
+                text.append(Character.forDigit(random.nextInt(16), 16));
+            }
+            Files.writeString(root.resolve(name), text);
+        }
+        var handler = new StaticFileHandler(root, 2_500);
+        var gzip = Map.of("Accept-Encoding", "gzip");
+
+        assertEquals("gzip", handler.handle(new Request("GET", "/a.txt", gzip)).getHeader(HttpHeader.CONTENT_ENCODING));
+        assertNull(handler.handle(new Request("GET", "/b.txt", gzip)).getHeader(HttpHeader.CONTENT_ENCODING));
+
+        Files.delete(root.resolve("a.txt"));
+        assertEquals(404, handler.handle(new Request("GET", "/a.txt", gzip)).getStatusCode());
+        assertEquals("gzip", handler.handle(new Request("GET", "/b.txt", gzip)).getHeader(HttpHeader.CONTENT_ENCODING));
+    }
+
+    @Test
+    void concurrentFirstRequestsShouldShareOneVariant() throws Exception {
+        Files.writeString(root.resolve("shared.css"), ".a { color: red; }\n".repeat(5_000));
+        var handler = new StaticFileHandler(root);
+        var bodies = new ConcurrentLinkedQueue<ByteBuffer>();
+
+        var threads = new Thread[8];
+        for (var i = 0; i < threads.length; i++) {
+            threads[i] = Thread.ofVirtual().start(() ->
+                bodies.add(handler.handle(new Request("GET", "/shared.css", Map.of("Accept-Encoding", "gzip"))).getBodyBuffer()));
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(threads.length, bodies.size());
+        assertEquals(1, bodies.stream().distinct().count());
+    }
+
+    @Test
+    void conditionalRequestsShouldBeAnsweredWithNotModified() {
+        var handler = new StaticFileHandler(root);
+        var response = handler.handle(new Request("GET", "/app.css"));
+        var etag = response.getHeader(HttpHeader.ETAG);
+        var lastModified = response.getHeader(HttpHeader.LAST_MODIFIED);
+
+        assertEquals(304, handler.handle(new Request("GET", "/app.css", Map.of("If-None-Match", "\"other\", " + etag))).getStatusCode());
+        assertEquals(304, handler.handle(new Request("GET", "/app.css", Map.of("If-None-Match", "W/" + etag))).getStatusCode());
+        assertEquals(304, handler.handle(new Request("GET", "/app.css", Map.of("If-Modified-Since", lastModified))).getStatusCode());
+        assertEquals(200, handler.handle(new Request("GET", "/app.css", Map.of("If-None-Match", "\"other\""))).getStatusCode());
+        assertEquals(200, handler.handle(new Request("GET", "/app.css",
+            Map.of("If-None-Match", "\"other\"", "If-Modified-Since", lastModified))).getStatusCode());
+        assertEquals(200, handler.handle(new Request("GET", "/app.css", Map.of("If-Modified-Since", "Thu, 01 Jan 1970 00:00:00 GMT"))).getStatusCode());
+        assertEquals(200, handler.handle(new Request("GET", "/app.css", Map.of("If-Modified-Since", "yesterday"))).getStatusCode());
+
+        var notModified = handler.handle(new Request("GET", "/app.css", Map.of("If-None-Match", etag)));
+        assertEquals(etag, notModified.getHeader(HttpHeader.ETAG));
+        assertEquals(lastModified, notModified.getHeader(HttpHeader.LAST_MODIFIED));
+        assertEquals("Accept-Encoding", notModified.getHeader(HttpHeader.VARY));
+        assertNull(notModified.getHeader(HttpHeader.CONTENT_TYPE));
+        assertNull(notModified.getMediaType());
+        assertEquals(0, notModified.getBodyLength());
+
+        var gzipEtag = handler.handle(new Request("GET", "/app.css", Map.of("Accept-Encoding", "gzip"))).getHeader(HttpHeader.ETAG);
+        var gzipNotModified = handler.handle(new Request("GET", "/app.css", Map.of("Accept-Encoding", "gzip", "If-None-Match", gzipEtag)));
+        assertEquals(304, gzipNotModified.getStatusCode());
+        assertNull(gzipNotModified.getHeader(HttpHeader.CONTENT_ENCODING));
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void notModifiedShouldEndWithItsHead(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(config().engine(engine).build());
+        var handler = new StaticFileHandler(root);
+        router.mount("/assets", handler);
+        var etag = handler.handle(new Request("GET", "/app.css")).getHeader(HttpHeader.ETAG);
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                var in = socket.getInputStream();
+                send(socket, "GET /assets/app.css HTTP/1.1\r\nHost: localhost\r\nIf-None-Match: " + etag + "\r\n\r\n");
+                var head = readHead(in);
+                assertTrue(head.startsWith("HTTP/1.1 304 Not Modified\r\n"), head);
+                assertTrue(head.contains("ETag: " + etag + "\r\n"), head);
+                assertFalse(head.contains("Content-Length"), head);
+                assertFalse(head.contains("Content-Type"), head);
+
+                send(socket, "GET /assets/app.css HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(readHead(in).startsWith("HTTP/1.1 200 OK\r\n"));
+                assertEquals("body { margin: 0; }", new String(in.readNBytes(19), StandardCharsets.UTF_8));
+            }
+        });
+    }
+
+    @Test
+    void fileBodyShouldBeTransferredFromTheChannel() throws IOException {
+        var out = new RecordingTransferTarget();
+
+        new HttpResponseWriter().write(out, Response.file(root.resolve("logo.png"), MediaType.IMAGE_PNG), true);
+
+        assertEquals(image.length, out.transferred);
+        assertTrue(out.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n"));
+    }
+
+    private static final class RecordingTransferTarget extends ByteArrayOutputStream implements FileTransferTarget {
+        private long transferred;
+
+        @Override
+        public void transferFrom(FileChannel file, long position, long count) {
+            transferred += count;
+        }
+    }
+
+    private static Socket connect(int port) throws IOException {
+        var socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(5_000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String request) throws IOException {
+        socket.getOutputStream().write(request.getBytes(StandardCharsets.US_ASCII));
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        var head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            var b = in.read();
+            if (b < 0) {
+                fail("Connection closed while reading response head: " + head);
+            }
+            head.append((char) b);
+        }
+        return head.toString();
+    }
+
+    private static Config.Builder config() {
+        return Config.builder().host("127.0.0.1").port(0).readTimeoutMs(3_000);
+    }
+
+    private interface ServerAction {
+        void run() throws Exception;
+    }
+
+    private static void withServer(HttpRouter router, ServerAction action) throws Exception {
+        var serverThread = Thread.ofVirtual().start(() -> {
+            try {
+                router.run();
+            } catch (IOException ignored) {
+            }
+        });
+        waitForServerPort(router);
+        try {
+            action.run();
+        } finally {
+            router.shutdown();
+            serverThread.join(2_000);
+        }
+    }
+
+    private static void waitForServerPort(HttpRouter router) throws InterruptedException {
+        for (var i = 0; i < 100; i++) {
+            if (router.getPort() > 0) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Server did not start in time");
+    }
+}
@@ -0,0 +1,346 @@
+package remast.marga;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import remast.marga.middleware.GzipCompressionMiddleware;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class StreamingResponseTest {
+
+    @TempDir
+    Path tempDir;
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void inputStreamOfUnknownLengthShouldBeChunkedAndKeepTheConnection(ServerEngine engine) throws Exception {
+        var content = randomBytes(3 * 1024 * 1024);
+        var router = new HttpRouter(config().engine(engine).build());
+        router.GET("/export", request -> Response.stream(new ByteArrayInputStream(content), MediaType.APPLICATION_OCTET_STREAM));
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                var in = socket.getInputStream();
+                send(socket, "GET /export HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                var head = readHead(in);
+                assertTrue(head.contains("Transfer-Encoding: chunked"), head);
+                assertFalse(head.contains("Content-Length"), head);
+                assertTrue(head.contains("Connection: keep-alive"), head);
+                assertArrayEquals(content, readChunked(in));
+
+                send(socket, "GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(readHead(in).startsWith("HTTP/1.1 200 OK"));
+                assertEquals("pong", new String(in.readNBytes(4), StandardCharsets.US_ASCII));
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void inputStreamOfKnownLengthShouldUseContentLength(ServerEngine engine) throws Exception {
+        var content = randomBytes(100_000);
+        var router = new HttpRouter(config().engine(engine).build());
+        // The stream holds more than declared; only the declared bytes are sent.
+        router.GET("/export", request -> Response.stream(new ByteArrayInputStream(content), 60_000, MediaType.APPLICATION_OCTET_STREAM));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                var in = socket.getInputStream();
+                send(socket, "GET /export HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                var head = readHead(in);
+                assertTrue(head.contains("Content-Length: 60000"), head);
+                assertFalse(head.contains("Transfer-Encoding"), head);
+                assertArrayEquals(Arrays.copyOf(content, 60_000), in.readNBytes(60_000));
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void fileShouldBeSentWithItsLength(ServerEngine engine) throws Exception {
+        var content = randomBytes(2 * 1024 * 1024 + 17);
+        var file = Files.write(tempDir.resolve("data.bin"), content);
+        var router = new HttpRouter(config().engine(engine).build());
+        router.GET("/file", request -> Response.file(file, MediaType.APPLICATION_OCTET_STREAM));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                var in = socket.getInputStream();
+                send(socket, "GET /file HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                var head = readHead(in);
+                assertTrue(head.contains("Content-Length: " + content.length), head);
+                assertArrayEquals(content, in.readNBytes(content.length));
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void bodyWriterOutputShouldBeCollectedIntoChunks(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(config().engine(engine).build());
+        router.GET("/lines", request -> Response.stream(out -> {
+            for (var i = 0; i < 10_000; i++) {
+                out.write(("line " + i + "\n").getBytes(StandardCharsets.US_ASCII));
+            }
+            out.close();
+        }, MediaType.TEXT_PLAIN));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                var in = socket.getInputStream();
+                send(socket, "GET /lines HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                var head = readHead(in);
+                assertTrue(head.contains("Transfer-Encoding: chunked"), head);
+                var chunks = new int[1];
+                var body = new String(readChunked(in, chunks), StandardCharsets.US_ASCII);
+                assertTrue(body.startsWith("line 0\nline 1\n"));
+                assertTrue(body.endsWith("line 9999\n"));
+                assertTrue(chunks[0] < 20, "chunks: " + chunks[0]);
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void bodilessStatusesShouldNotSendTheStreamedBody(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(config().engine(engine).build());
+        router.GET("/empty", request -> new Response(out -> out.write("ignored".getBytes(StandardCharsets.US_ASCII)), 204, null));
+        router.GET("/cached", request -> new Response(out -> out.write(randomBytes(1_000)), 304, MediaType.APPLICATION_OCTET_STREAM));
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                var in = socket.getInputStream();
+                send(socket, "GET /empty HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                var head = readHead(in);
+                assertTrue(head.startsWith("HTTP/1.1 204 "), head);
+                assertFalse(head.contains("Transfer-Encoding"), head);
+                assertTrue(head.contains("Connection: keep-alive"), head);
+
+                send(socket, "GET /cached HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                head = readHead(in);
+                assertTrue(head.startsWith("HTTP/1.1 304 "), head);
+                assertFalse(head.contains("Transfer-Encoding"), head);
+
+                send(socket, "GET /ping HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                assertTrue(readHead(in).startsWith("HTTP/1.1 200 OK"));
+                assertEquals("pong", new String(in.readNBytes(4), StandardCharsets.US_ASCII));
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void http10ClientShouldGetCloseDelimitedBody(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(config().engine(engine).build());
+        router.GET("/export", request -> Response.stream(out -> out.write("streamed".getBytes(StandardCharsets.US_ASCII)), MediaType.TEXT_PLAIN));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                send(socket, "GET /export HTTP/1.0\r\nConnection: keep-alive\r\n\r\n");
+                var raw = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+                assertTrue(raw.contains("Connection: close"), raw);
+                assertFalse(raw.contains("Transfer-Encoding"), raw);
+                assertFalse(raw.contains("Content-Length"), raw);
+                assertTrue(raw.endsWith("\r\n\r\nstreamed"), raw);
+            }
+        });
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void failingBodyShouldDropTheConnectionWithoutTerminatingChunk(ServerEngine engine) throws Exception {
+        var router = new HttpRouter(config().engine(engine).build());
+        router.GET("/broken", request -> Response.stream(out -> {
+            out.write("partial".getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            throw new IllegalStateException("database went away");
+        }, MediaType.TEXT_PLAIN));
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        withServer(router, () -> {
+            try (var socket = connect(router.getPort())) {
+                send(socket, "GET /broken HTTP/1.1\r\nHost: localhost\r\n\r\n");
+                var raw = new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+                assertTrue(raw.contains("Transfer-Encoding: chunked"), raw);
+                assertTrue(raw.endsWith("7\r\npartial\r\n"), raw);
+            }
+            try (var socket = connect(router.getPort())) {
+                send(socket, "GET /ping HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+                assertTrue(new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1).endsWith("pong"));
+            }
+        });
+    }
+
+    @Test
+    void streamShouldBeClosedAfterWriting() throws IOException {
+        var closed = new AtomicBoolean();
+        var response = Response.stream(trackingStream("data", closed), MediaType.TEXT_PLAIN);
+        var out = new ByteArrayOutputStream();
+
+        assertTrue(new HttpResponseWriter().write(out, response, true));
+
+        assertTrue(closed.get());
+        assertTrue(out.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n4\r\ndata\r\n0\r\n\r\n"));
+    }
+
+    @Test
+    void streamShouldBeClosedWhenHeadersAreInvalid() {
+        var closed = new AtomicBoolean();
+        var response = Response.stream(trackingStream("data", closed), MediaType.TEXT_PLAIN).header("X-Bad", "a\r\nb");
+
+        assertThrows(IllegalArgumentException.class, () -> new HttpResponseWriter().write(new ByteArrayOutputStream(), response, true));
+        assertTrue(closed.get());
+    }
+
+    @Test
+    void handlerSuppliedFramingHeadersShouldBeReplaced() throws IOException {
+        var response = Response.stream(new ByteArrayInputStream(new byte[3]), 3, MediaType.APPLICATION_OCTET_STREAM)
+            .header("content-length", "999")
+            .header("Transfer-Encoding", "chunked");
+        var out = new ByteArrayOutputStream();
+
+        new HttpResponseWriter().write(out, response, true);
+
+        var raw = out.toString(StandardCharsets.ISO_8859_1);
+        assertTrue(raw.contains("Content-Length: 3\r\n"), raw);
+        assertFalse(raw.contains("999"), raw);
+        assertFalse(raw.contains("Transfer-Encoding"), raw);
+    }
+
+    @Test
+    void streamingResponseShouldHaveNoInMemoryBody() {
+        var response = Response.stream(out -> out.write(new byte[4096]), MediaType.APPLICATION_JSON);
+        var compressed = new GzipCompressionMiddleware().create().apply(request -> response).handle(new Request("GET", "/"));
+
+        assertTrue(response.isStreaming());
+        assertEquals("", response.getBody());
+        assertSame(response, compressed);
+        assertNull(compressed.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertFalse(Response.ok("text").isStreaming());
+    }
+
+    @Test
+    void negativeContentLengthShouldBeRejected() {
+        assertThrows(IllegalArgumentException.class, () -> Response.stream(InputStream.nullInputStream(), -1, MediaType.TEXT_PLAIN));
+    }
+
+    private static InputStream trackingStream(String content, AtomicBoolean closed) {
+        return new ByteArrayInputStream(content.getBytes(StandardCharsets.US_ASCII)) {
+            @Override
+            public void close() {
+                closed.set(true);
+            }
+        };
+    }
+
+    private static byte[] randomBytes(int size) {
+        var bytes = new byte[size];
+        new Random(7).nextBytes(bytes);
+        return bytes;
+    }
+
+    private static Socket connect(int port) throws IOException {
+        var socket = new Socket("127.0.0.1", port);
+        socket.setSoTimeout(5_000);
+        return socket;
+    }
+
+    private static void send(Socket socket, String request) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(request.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+    }
+
+    private static String readHead(InputStream in) throws IOException {
+        var head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            var b = in.read();
+            if (b < 0) {
+                fail("Connection closed while reading response head: " + head);
+            }
+            head.append((char) b);
+        }
+        return head.toString();
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        var line = new StringBuilder();
+        for (var b = in.read(); b != '\n'; b = in.read()) {
+            if (b < 0) {
+                fail("Connection closed while reading chunk size");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    private static byte[] readChunked(InputStream in) throws IOException {
+        return readChunked(in, new int[1]);
+    }
+
+    private static byte[] readChunked(InputStream in, int[] chunkCount) throws IOException {
+        var body = new ByteArrayOutputStream();
+        while (true) {
+            var size = Integer.parseInt(readLine(in), 16);
+            if (size == 0) {
+                assertEquals("", readLine(in));
+                return body.toByteArray();
+            }
+            body.write(in.readNBytes(size));
+            assertEquals("", readLine(in));
+            chunkCount[0]++;
+        }
+    }
+
+    private static Config.Builder config() {
+        return Config.builder().host("127.0.0.1").port(0).readTimeoutMs(3_000);
+    }
+
+    private interface ServerAction {
+        void run() throws Exception;
+    }
+
+    private static void withServer(HttpRouter router, ServerAction action) throws Exception {
+        var serverThread = Thread.ofVirtual().start(() -> {
+            try {
+                router.run();
+            } catch (IOException ignored) {
+            }
+        });
+        waitForServerPort(router);
+        try {
+            action.run();
+        } finally {
+            router.shutdown();
+            serverThread.join(2_000);
+        }
+    }
+
+    private static void waitForServerPort(HttpRouter router) throws InterruptedException {
+        for (var i = 0; i < 100; i++) {
+            if (router.getPort() > 0) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Server did not start in time");
+    }
+}
@@ -0,0 +1,80 @@
+package remast.marga.metrics;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class LatencyHistogramTest {
+
+    @Test
+    void bucketsShouldBeContiguousAndNarrowRelativeToTheirValues() {
+        var previousUpper = LatencyHistogram.upperBound(0);
+        assertEquals(0, LatencyHistogram.bucketIndex(0));
+        assertEquals(0, LatencyHistogram.bucketIndex(previousUpper - 1));
+        for (var index = 1; LatencyHistogram.upperBound(index) != Long.MAX_VALUE; index++) {
+            var upper = LatencyHistogram.upperBound(index);
+            assertEquals(index, LatencyHistogram.bucketIndex(previousUpper));
+            assertEquals(index, LatencyHistogram.bucketIndex(upper - 1));
+            assertTrue(upper - previousUpper <= previousUpper / LatencyHistogram.SUB_BUCKETS);
+            previousUpper = upper;
+        }
+        assertEquals(LatencyHistogram.bucketIndex(previousUpper), LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+    }
+
+    @Test
+    void snapshotShouldSummarizeRecordedDurations() {
+        var histogram = new LatencyHistogram();
+        for (var millis = 1; millis <= 100; millis++) {
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(millis));
+        }
+        histogram.record(-5);
+
+        var snapshot = histogram.snapshot();
+
+        assertEquals(101, snapshot.getCount());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(5050), snapshot.getSum());
+        assertEquals(TimeUnit.MILLISECONDS.toNanos(100), snapshot.getMax());
+        assertEquals(1, snapshot.countAtMost(0));
+        assertEquals(0, snapshot.countAtMost(-1));
+        assertEquals(101, snapshot.countAtMost(Long.MAX_VALUE));
+    }
+
+    @Test
+    void percentilesShouldBeWithinABucketOfTheExactValue() {
+        var histogram = new LatencyHistogram();
+        for (var micros = 1; micros <= 10_000; micros++) {
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(micros));
+        }
+        var snapshot = histogram.snapshot();
+
+        assertWithinBucket(TimeUnit.MICROSECONDS.toNanos(5_000), snapshot.getPercentile(0.5));
+        assertWithinBucket(TimeUnit.MICROSECONDS.toNanos(9_900), snapshot.getPercentile(0.99));
+        assertEquals(TimeUnit.MICROSECONDS.toNanos(10_000), snapshot.getPercentile(1.0));
+        assertEquals(0, new LatencyHistogram().snapshot().getPercentile(0.5));
+        assertThrows(IllegalArgumentException.class, () -> snapshot.getPercentile(1.5));
+    }
+
+    @Test
+    void recordingFromManyThreadsShouldLoseNothing() throws Exception {
+        var histogram = new LatencyHistogram();
+        var threads = new Thread[8];
+        for (var i = 0; i < threads.length; i++) {
+            threads[i] = Thread.ofPlatform().start(() -> {
+                for (var j = 0; j < 10_000; j++) {
+                    histogram.record(j * 1_000L);
+                }
+            });
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(80_000, histogram.snapshot().getCount());
+    }
+
+    private static void assertWithinBucket(long expected, long actual) {
+        assertTrue(actual >= expected && actual <= expected + expected / LatencyHistogram.SUB_BUCKETS,
+            "expected about " + expected + " but was " + actual);
+    }
+}
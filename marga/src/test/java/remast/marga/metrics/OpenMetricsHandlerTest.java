@@ -0,0 +1,190 @@
+package remast.marga.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+import remast.marga.Config;
+import remast.marga.HttpRouter;
+import remast.marga.Request;
+import remast.marga.Response;
+import remast.marga.ServerEngine;
+import remast.marga.middleware.MetricsMiddleware;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OpenMetricsHandlerTest {
+
+    @Test
+    void routeMetricsShouldBeRenderedAsCountersGaugesAndHistograms() throws IOException {
+        var registry = new MetricsRegistry();
+        var users = registry.started("GET", "/users/${id}");
+        registry.completed(users, 200, TimeUnit.MICROSECONDS.toNanos(50));
+        users = registry.started("GET", "/users/${id}");
+        registry.completed(users, 404, TimeUnit.MILLISECONDS.toNanos(3));
+        registry.started("POST", "/upload");
+
+        var text = render(new OpenMetricsHandler(registry));
+
+        assertTrue(text.startsWith("# TYPE marga_http_requests counter\n"), text);
+        assertTrue(text.contains("\nmarga_http_requests_total{method=\"GET\",route=\"/users/${id}\",status=\"2xx\"} 1\n"), text);
+        assertTrue(text.contains("\nmarga_http_requests_total{method=\"GET\",route=\"/users/${id}\",status=\"4xx\"} 1\n"), text);
+        assertFalse(text.contains("status=\"5xx\""), text);
+        assertTrue(text.contains("\nmarga_http_requests_in_flight{method=\"POST\",route=\"/upload\"} 1\n"), text);
+        assertTrue(text.contains("\n# UNIT marga_http_request_duration_seconds seconds\n"), text);
+        var series = "marga_http_request_duration_seconds_bucket{method=\"GET\",route=\"/users/${id}\",";
+        assertTrue(text.contains("\n" + series + "le=\"0.000065536\"} 1\n"), text);
+        assertTrue(text.contains("\n" + series + "le=\"0.002097152\"} 1\n"), text);
+        assertTrue(text.contains("\n" + series + "le=\"0.004194304\"} 2\n"), text);
+        assertTrue(text.contains("\n" + series + "le=\"34.359738368\"} 2\n"), text);
+        assertTrue(text.contains("\n" + series + "le=\"+Inf\"} 2\n"), text);
+        assertTrue(text.contains("\nmarga_http_request_duration_seconds_count{method=\"GET\",route=\"/users/${id}\"} 2\n"), text);
+        assertTrue(text.contains("\nmarga_http_request_duration_seconds_sum{method=\"GET\",route=\"/users/${id}\"} 0.00305\n"), text);
+        assertTrue(text.endsWith("\n# EOF\n"), text);
+        assertFalse(text.contains("marga_server_"), text);
+    }
+
+    @Test
+    void labelValuesShouldBeEscaped() throws IOException {
+        var registry = new MetricsRegistry();
+        registry.completed(registry.started("GET", "/say/\"hi\"\\"), 200, 1);
+
+        var text = render(new OpenMetricsHandler(registry));
+
+        assertTrue(text.contains("route=\"/say/\\\"hi\\\"\\\\\""), text);
+    }
+
+    @Test
+    void repeatedScrapesShouldReuseTheBuffer() throws IOException {
+        var registry = new MetricsRegistry();
+        for (var i = 0; i < 50; i++) {
+            registry.completed(registry.started("GET", "/route/" + i), 200, i * 10_000L);
+        }
+        var handler = new OpenMetricsHandler(registry);
+        for (var i = 0; i < 200; i++) {
+            handler.writeTo(OutputStream.nullOutputStream());
+        }
+
+        var before = allocatedBytes();
+        handler.writeTo(OutputStream.nullOutputStream());
+        var allocated = allocatedBytes() - before;
+
+        var size = render(handler).length();
+        assertTrue(size > 50_000, "size " + size);
+        assertTrue(allocated < size / 10, "allocated " + allocated + " bytes for " + size + " bytes of text");
+
+        // A response whose body is never written, as for HEAD, gives the buffer back as well.
+        var response = handler.handle(new Request("HEAD", "/metrics"));
+        assertEquals(size, response.getContentLength());
+        before = allocatedBytes();
+        handler.writeTo(OutputStream.nullOutputStream());
+        allocated = allocatedBytes() - before;
+        assertTrue(allocated < size / 10, "allocated " + allocated + " bytes after a response that was not written");
+    }
+
+    @ParameterizedTest
+    @EnumSource(ServerEngine.class)
+    void serverCountersShouldBeExposed(ServerEngine engine) throws Exception {
+        var registry = new MetricsRegistry();
+        var router = new HttpRouter(Config.builder().engine(engine).host("127.0.0.1").port(0).readTimeoutMs(3_000)
+            .maxRequestBodyBytes(16).build());
+        router.use(MetricsMiddleware.create(registry));
+        router.GET("/metrics", new OpenMetricsHandler(registry, router.getStats()));
+        router.GET("/ping", request -> Response.ok("pong"));
+
+        withServer(router, () -> {
+            assertTrue(exchange(router.getPort(), "GET /ping HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n").endsWith("pong"));
+            assertTrue(exchange(router.getPort(), "BROKEN\r\n\r\n").startsWith("HTTP/1.1 400 "));
+            assertTrue(exchange(router.getPort(), "POST /ping HTTP/1.1\r\nContent-Length: 100\r\n\r\n").startsWith("HTTP/1.1 413 "));
+            waitFor(() -> router.getStats().getActiveConnections() == 0);
+
+            var response = exchange(router.getPort(), "GET /metrics HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n");
+
+            assertTrue(response.startsWith("HTTP/1.1 200 OK\r\n"), response);
+            assertTrue(response.contains("\r\nContent-Type: application/openmetrics-text; version=1.0.0; charset=utf-8\r\n"), response);
+            var body = response.substring(response.indexOf("\r\n\r\n") + 4);
+            assertTrue(response.contains("\r\nContent-Length: " + body.length() + "\r\n"), response);
+            assertTrue(body.contains("\nmarga_http_requests_total{method=\"GET\",route=\"/ping\",status=\"2xx\"} 1\n"), body);
+            assertTrue(body.contains("\nmarga_server_connections_accepted_total 4\n"), body);
+            assertTrue(body.contains("\nmarga_server_connections_active 1\n"), body);
+            assertTrue(body.contains("\nmarga_server_parse_errors_total 1\n"), body);
+            assertTrue(body.contains("\nmarga_server_payload_too_large_total 1\n"), body);
+            assertTrue(body.contains("\nmarga_server_requests_in_flight 1\n"), body);
+            assertTrue(body.contains("\n# UNIT marga_server_received_bytes bytes\n"), body);
+            assertTrue(router.getStats().getBytesReceived() > 0);
+            assertTrue(router.getStats().getBytesSent() > 0);
+            assertTrue(body.endsWith("# EOF\n"), body);
+        });
+    }
+
+    @Test
+    void registryShouldBeRequired() {
+        assertThrows(IllegalArgumentException.class, () -> new OpenMetricsHandler(null));
+    }
+
+    private static String render(OpenMetricsHandler handler) throws IOException {
+        var out = new ByteArrayOutputStream();
+        handler.writeTo(out);
+        return out.toString(StandardCharsets.UTF_8);
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        for (var i = 0; i < 500; i++) {
+            if (condition.getAsBoolean()) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Condition not met in time");
+    }
+
+    private static long allocatedBytes() {
+        var threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return threads.getCurrentThreadAllocatedBytes();
+    }
+
+    private static String exchange(int port, String request) throws IOException {
+        try (var socket = new Socket("127.0.0.1", port)) {
+            socket.setSoTimeout(5_000);
+            socket.getOutputStream().write(request.getBytes(StandardCharsets.ISO_8859_1));
+            return new String(socket.getInputStream().readAllBytes(), StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    private interface ServerAction {
+        void run() throws Exception;
+    }
+
+    private static void withServer(HttpRouter router, ServerAction action) throws Exception {
+        var serverThread = Thread.ofVirtual().start(() -> {
+            try {
+                router.run();
+            } catch (IOException ignored) {
+            }
+        });
+        waitForServerPort(router);
+        try {
+            action.run();
+        } finally {
+            router.shutdown();
+            serverThread.join(2_000);
+        }
+    }
+
+    private static void waitForServerPort(HttpRouter router) throws InterruptedException {
+        for (var i = 0; i < 100; i++) {
+            if (router.getPort() > 0) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Server did not start in time");
+    }
+}
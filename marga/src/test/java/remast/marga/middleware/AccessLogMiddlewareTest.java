@@ -0,0 +1,218 @@
+package remast.marga.middleware;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import remast.marga.Config;
+import remast.marga.HttpRouter;
+import remast.marga.MediaType;
+import remast.marga.Request;
+import remast.marga.RequestHandler;
+import remast.marga.Response;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AccessLogMiddlewareTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void commonFormatShouldLogRequestLineStatusSizeAndDuration() throws IOException {
+        var lines = log(AccessLogMiddleware.Format.COMMON, request -> Response.ok("hello"), new Request("GET", "/users/42"));
+
+        assertEquals(1, lines.size());
+        assertTrue(lines.get(0).matches("- - - \\[\\d\\d/[A-Z][a-z]{2}/\\d{4}:\\d\\d:\\d\\d:\\d\\d \\+0000] \"GET /users/42\" 200 5 \\d+"),
+            lines.get(0));
+    }
+
+    @Test
+    void combinedFormatShouldQuoteRefererAndUserAgent() throws IOException {
+        var request = new Request("GET", "/search", Map.of("Referer", "https://example.com/", "User-Agent", "curl \"8\"\u0001"));
+
+        var lines = log(AccessLogMiddleware.Format.COMBINED, ignored -> Response.notFound("none"), request);
+
+        assertTrue(lines.get(0).contains("\"GET /search\" 404 4 \"https://example.com/\" \"curl \\\"8\\\"\\x01\" "), lines.get(0));
+        assertTrue(lines.get(0).matches(".* \\d+"), lines.get(0));
+    }
+
+    @Test
+    void jsonFormatShouldWriteOneObjectPerLine() throws IOException {
+        var lines = log(AccessLogMiddleware.Format.JSON,
+            request -> Response.stream(out -> out.write(1), MediaType.APPLICATION_OCTET_STREAM),
+            new Request("POST", "/caf\u00e9", Map.of("User-Agent", "test")));
+
+        assertTrue(lines.get(0).matches("\\{\"time\":\"\\d{4}-\\d\\d-\\d\\dT\\d\\d:\\d\\d:\\d\\d\\.\\d{3}Z\",\"method\":\"POST\","
+            + "\"path\":\"/caf\u00e9\",\"status\":200,\"bytes\":null,\"duration_us\":\\d+,\"user_agent\":\"test\"}"),
+            lines.get(0));
+    }
+
+    @Test
+    void requestsReadFromConnectionsShouldBeLoggedWithTheirQuery() throws Exception {
+        var file = directory.resolve("access.log");
+        var accessLog = AccessLogMiddleware.builder().path(file).format(AccessLogMiddleware.Format.JSON).build();
+        var router = new HttpRouter(Config.builder().host("127.0.0.1").port(0).readTimeoutMs(3_000).build());
+        router.use(accessLog.create());
+        router.GET("/users/42", request -> Response.ok("user"));
+
+        var serverThread = Thread.ofVirtual().start(() -> {
+            try {
+                router.run();
+            } catch (IOException ignored) {
+            }
+        });
+        try {
+            for (var i = 0; i < 100 && router.getPort() <= 0; i++) {
+                Thread.sleep(10);
+            }
+            for (var target : List.of("/users/42", "/users/42?", "/users/42?tab=posts")) {
+                try (var socket = new Socket("127.0.0.1", router.getPort())) {
+                    socket.setSoTimeout(5_000);
+                    socket.getOutputStream().write(("GET " + target + " HTTP/1.1\r\nHost: localhost\r\nConnection: close\r\n\r\n")
+                        .getBytes(StandardCharsets.ISO_8859_1));
+                    socket.getInputStream().readAllBytes();
+                }
+            }
+        } finally {
+            router.shutdown();
+            serverThread.join(2_000);
+        }
+        accessLog.close();
+
+        var lines = Files.readAllLines(file);
+        assertEquals(3, lines.size());
+        assertFalse(lines.get(0).contains("\"query\""), lines.get(0));
+        assertFalse(lines.get(1).contains("\"query\""), lines.get(1));
+        assertTrue(lines.get(2).contains("\"path\":\"/users/42\",\"query\":\"tab=posts\""), lines.get(2));
+    }
+
+    @Test
+    void sizeShouldBeTheBodySent() throws IOException {
+        var file = directory.resolve("access.log");
+        var body = directory.resolve("body.bin");
+        Files.write(body, new byte[300]);
+        var accessLog = AccessLogMiddleware.builder().path(file).zone(ZoneOffset.UTC).build();
+        var handler = accessLog.create().apply(request -> switch (request.getPath()) {
+            case "/file" -> Response.file(body, MediaType.APPLICATION_OCTET_STREAM);
+            case "/empty" -> Response.noContent();
+            default -> Response.ok("hello");
+        });
+
+        handler.handle(new Request("GET", "/text"));
+        handler.handle(new Request("HEAD", "/text"));
+        handler.handle(new Request("GET", "/empty"));
+        handler.handle(new Request("GET", "/file"));
+        accessLog.close();
+
+        var lines = Files.readAllLines(file);
+        assertTrue(lines.get(0).contains("\"GET /text\" 200 5 "), lines.get(0));
+        assertTrue(lines.get(1).contains("\"HEAD /text\" 200 0 "), lines.get(1));
+        assertTrue(lines.get(2).contains("\"GET /empty\" 204 0 "), lines.get(2));
+        assertTrue(lines.get(3).contains("\"GET /file\" 200 - "), lines.get(3));
+    }
+
+    @Test
+    void failedRequestsShouldBeLoggedAsServerErrors() throws IOException {
+        var file = directory.resolve("access.log");
+        var accessLog = AccessLogMiddleware.builder().path(file).zone(ZoneOffset.UTC).build();
+        RequestHandler handler = accessLog.create().apply(request -> {
+            throw new IllegalStateException("boom");
+        });
+
+        assertThrows(IllegalStateException.class, () -> handler.handle(new Request("GET", "/fail")));
+        accessLog.close();
+
+        assertTrue(Files.readString(file).contains("\"GET /fail\" 500 - "));
+    }
+
+    @Test
+    void recordsFromManyThreadsShouldAllBeWrittenWhenBlocking() throws Exception {
+        var file = directory.resolve("access.log");
+        var accessLog = AccessLogMiddleware.builder()
+            .path(file)
+            .capacity(4)
+            .overflow(AccessLogMiddleware.Overflow.BLOCK)
+            .build();
+        var handler = accessLog.create().apply(request -> Response.ok("ok"));
+
+        var threads = new Thread[8];
+        for (var i = 0; i < threads.length; i++) {
+            var path = "/thread/" + i;
+            threads[i] = Thread.ofPlatform().start(() -> {
+                for (var j = 0; j < 1_000; j++) {
+                    handler.handle(new Request("GET", path));
+                }
+            });
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+        accessLog.close();
+
+        var lines = Files.readAllLines(file);
+        assertEquals(8_000, lines.size());
+        assertEquals(0, accessLog.getDropped());
+        for (var i = 0; i < threads.length; i++) {
+            var path = "\"GET /thread/" + i + "\" ";
+            assertEquals(1_000, lines.stream().filter(line -> line.contains(path)).count());
+        }
+    }
+
+    @Test
+    void aRecordThatCannotBeFormattedShouldNotStopTheWriter() throws IOException {
+        var file = directory.resolve("access.log");
+        var accessLog = AccessLogMiddleware.builder()
+            .path(file)
+            .capacity(4)
+            .overflow(AccessLogMiddleware.Overflow.BLOCK)
+            .build();
+        var handler = accessLog.create().apply(request -> Response.ok("ok"));
+
+        // A request without a path fails in the writer thread.
+        handler.handle(new Request("GET", null));
+        for (var i = 0; i < 100; i++) {
+            handler.handle(new Request("GET", "/after"));
+        }
+        accessLog.close();
+
+        var lines = Files.readAllLines(file);
+        assertEquals(100, lines.size());
+        assertTrue(lines.stream().allMatch(line -> line.contains("\"GET /after\" 200 2 ")), lines.get(0));
+        assertEquals(1, accessLog.getDropped());
+    }
+
+    @Test
+    void recordsAfterCloseShouldBeDropped() throws IOException {
+        var file = directory.resolve("access.log");
+        var accessLog = AccessLogMiddleware.builder().path(file).build();
+        var handler = accessLog.create().apply(request -> Response.ok("ok"));
+        handler.handle(new Request("GET", "/before"));
+        accessLog.close();
+
+        handler.handle(new Request("GET", "/after"));
+
+        assertEquals(1, accessLog.getDropped());
+        assertEquals(1, Files.readAllLines(file).size());
+    }
+
+    @Test
+    void capacityShouldBeAPowerOfTwo() {
+        assertThrows(IllegalArgumentException.class,
+            () -> AccessLogMiddleware.builder().path(directory.resolve("access.log")).capacity(1000).build());
+        assertThrows(IllegalArgumentException.class, () -> AccessLogMiddleware.builder().build());
+    }
+
+    private List<String> log(AccessLogMiddleware.Format format, RequestHandler handler, Request request) throws IOException {
+        var file = directory.resolve("access.log");
+        var accessLog = AccessLogMiddleware.builder().path(file).format(format).zone(ZoneOffset.UTC).build();
+        accessLog.create().apply(handler).handle(request);
+        accessLog.close();
+        return Files.readAllLines(file);
+    }
+}
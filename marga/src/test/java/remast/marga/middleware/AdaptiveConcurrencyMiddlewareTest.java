@@ -0,0 +1,147 @@
+package remast.marga.middleware;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import remast.marga.Request;
+import remast.marga.RequestHandler;
+import remast.marga.Response;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AdaptiveConcurrencyMiddlewareTest {
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    void requestsBeyondTheLimitShouldBeRejectedRightAway() throws Exception {
+        var limiter = limiter().initialLimit(2).minLimit(1).maxLimit(10).build();
+        var entered = new CountDownLatch(2);
+        var release = new CountDownLatch(1);
+        var handler = limiter.create().apply(request -> {
+            entered.countDown();
+            await(release);
+            return Response.ok("done");
+        });
+
+        var threads = new ArrayList<Thread>();
+        for (var i = 0; i < 2; i++) {
+            threads.add(Thread.ofVirtual().start(() -> handle(handler)));
+        }
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+
+        var rejected = handler.handle(new Request("GET", "/"));
+        assertEquals(503, rejected.getStatusCode());
+        assertEquals("1", rejected.getHeader("Retry-After"));
+        assertEquals(1, limiter.getRejected());
+        assertEquals(2, limiter.getInFlight());
+
+        release.countDown();
+        for (var thread : threads) {
+            thread.join(5_000);
+        }
+        assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    void risingLatencyShouldShrinkTheLimit() throws Exception {
+        var limiter = limiter().initialLimit(20).build();
+        var latency = new AtomicLong(10);
+        var handler = limiter.create().apply(advancing(latency));
+
+        for (var i = 0; i < 20; i++) {
+            handler.handle(new Request("GET", "/"));
+        }
+        assertEquals(20, limiter.getLimit());
+
+        latency.set(100);
+        for (var i = 0; i < 20; i++) {
+            handler.handle(new Request("GET", "/"));
+        }
+
+        assertTrue(limiter.getLimit() < 10, "limit " + limiter.getLimit());
+        assertTrue(limiter.getLimit() >= 1);
+    }
+
+    @Test
+    void steadyLatencyUnderFullUseShouldGrowTheLimitUpToTheMaximum() throws Exception {
+        var limiter = limiter().initialLimit(4).maxLimit(8).build();
+
+        for (var round = 0; round < 30; round++) {
+            var entered = new CountDownLatch(limiter.getLimit());
+            var release = new CountDownLatch(1);
+            var handler = limiter.create().apply(request -> {
+                entered.countDown();
+                await(release);
+                return Response.ok("done");
+            });
+            var threads = new ArrayList<Thread>();
+            for (var i = 0; i < limiter.getLimit(); i++) {
+                threads.add(Thread.ofVirtual().start(() -> handle(handler)));
+            }
+            assertTrue(entered.await(5, TimeUnit.SECONDS));
+            // Every request of the round takes the same 10ms.
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(10));
+            release.countDown();
+            for (var thread : threads) {
+                thread.join(5_000);
+            }
+        }
+
+        assertEquals(8, limiter.getLimit());
+        assertEquals(0, limiter.getRejected());
+    }
+
+    @Test
+    void lightLoadShouldNotGrowTheLimit() throws Exception {
+        var limiter = limiter().initialLimit(10).build();
+        var handler = limiter.create().apply(advancing(new AtomicLong(10)));
+
+        for (var i = 0; i < 50; i++) {
+            handler.handle(new Request("GET", "/"));
+        }
+
+        assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    void invalidSettingsShouldBeRejected() {
+        assertThrows(IllegalArgumentException.class, () -> AdaptiveConcurrencyMiddleware.builder().minLimit(0).build());
+        assertThrows(IllegalArgumentException.class, () -> AdaptiveConcurrencyMiddleware.builder().minLimit(5).maxLimit(4).build());
+        assertThrows(IllegalArgumentException.class, () -> AdaptiveConcurrencyMiddleware.builder().initialLimit(2_000).build());
+        assertThrows(IllegalArgumentException.class, () -> AdaptiveConcurrencyMiddleware.builder().window(Duration.ZERO).build());
+        assertThrows(IllegalArgumentException.class, () -> AdaptiveConcurrencyMiddleware.builder().rttTolerance(0.5).build());
+        assertThrows(IllegalArgumentException.class, () -> AdaptiveConcurrencyMiddleware.builder().smoothing(0).build());
+    }
+
+    /**
+     * A limiter on a fake clock that closes a window with every completed request.
+     */
+    private AdaptiveConcurrencyMiddleware.Builder limiter() {
+        return AdaptiveConcurrencyMiddleware.builder()
+            .window(Duration.ofNanos(1))
+            .minWindowSamples(1)
+            .clock(now::get);
+    }
+
+    private RequestHandler advancing(AtomicLong latencyMs) {
+        return request -> {
+            now.addAndGet(TimeUnit.MILLISECONDS.toNanos(latencyMs.get()));
+            return Response.ok("done");
+        };
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void handle(RequestHandler handler) {
+        handler.handle(new Request("GET", "/"));
+    }
+}
@@ -1,6 +1,23 @@
 package remast.marga.middleware;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
 import org.junit.jupiter.api.Test;
+import remast.marga.BodyWriter;
+import remast.marga.HttpHeader;
 import remast.marga.MediaType;
 import remast.marga.Request;
 import remast.marga.Response;
@@ -14,7 +31,7 @@ class GzipCompressionMiddlewareTest {
         var middleware = new GzipCompressionMiddleware(100); // Low threshold for testing
         var handler = middleware.create().apply(request -> Response.ok(createLargeTextContent()));
         
-        var request = new Request("GET", "/test");
+        var request = new Request("GET", "/test", Map.of("Accept-Encoding", "gzip"));
         var response = handler.handle(request);
         
         assertEquals("gzip", response.getHeader("Content-Encoding"));
@@ -27,7 +44,7 @@ class GzipCompressionMiddlewareTest {
         var middleware = new GzipCompressionMiddleware(1000);
         var handler = middleware.create().apply(request -> Response.ok("Small content"));
         
-        var request = new Request("GET", "/test");
+        var request = new Request("GET", "/test", Map.of("Accept-Encoding", "gzip"));
         var response = handler.handle(request);
         
         assertNull(response.getHeader("Content-Encoding"));
@@ -39,7 +56,7 @@ class GzipCompressionMiddlewareTest {
         var middleware = new GzipCompressionMiddleware(100);
         var handler = middleware.create().apply(request -> Response.ok(createLargeTextContent(), MediaType.APPLICATION_GZIP));
         
-        var request = new Request("GET", "/test");
+        var request = new Request("GET", "/test", Map.of("Accept-Encoding", "gzip"));
         var response = handler.handle(request);
         
         assertNull(response.getHeader("Content-Encoding"));
@@ -50,7 +67,7 @@ class GzipCompressionMiddlewareTest {
         var middleware = new GzipCompressionMiddleware(100);
         var handler = middleware.create().apply(request -> Response.ok(createLargeTextContent(), MediaType.IMAGE_JPEG));
         
-        var request = new Request("GET", "/test");
+        var request = new Request("GET", "/test", Map.of("Accept-Encoding", "gzip"));
         var response = handler.handle(request);
         
         assertNull(response.getHeader("Content-Encoding"));
@@ -61,7 +78,7 @@ class GzipCompressionMiddlewareTest {
         var middleware = new GzipCompressionMiddleware(100);
         var handler = middleware.create().apply(request -> Response.serverError(createLargeTextContent()));
         
-        var request = new Request("GET", "/test");
+        var request = new Request("GET", "/test", Map.of("Accept-Encoding", "gzip"));
         var response = handler.handle(request);
         
         assertNull(response.getHeader("Content-Encoding"));
@@ -72,7 +89,7 @@ class GzipCompressionMiddlewareTest {
         var middleware = new GzipCompressionMiddleware(100);
         var handler = middleware.create().apply(request -> Response.noContent());
         
-        var request = new Request("GET", "/test");
+        var request = new Request("GET", "/test", Map.of("Accept-Encoding", "gzip"));
         var response = handler.handle(request);
         
         assertNull(response.getHeader("Content-Encoding"));
@@ -84,7 +101,7 @@ class GzipCompressionMiddlewareTest {
         var jsonContent = createLargeJsonContent();
         var handler = middleware.create().apply(request -> Response.json(jsonContent));
         
-        var request = new Request("GET", "/test");
+        var request = new Request("GET", "/test", Map.of("Accept-Encoding", "gzip"));
         var response = handler.handle(request);
         
         assertEquals("gzip", response.getHeader("Content-Encoding"));
@@ -98,7 +115,7 @@ class GzipCompressionMiddlewareTest {
         var htmlContent = createLargeHtmlContent();
         var handler = middleware.create().apply(request -> Response.html(htmlContent));
         
-        var request = new Request("GET", "/test");
+        var request = new Request("GET", "/test", Map.of("Accept-Encoding", "gzip"));
         var response = handler.handle(request);
         
         assertEquals("gzip", response.getHeader("Content-Encoding"));
@@ -112,7 +129,7 @@ class GzipCompressionMiddlewareTest {
         var originalContent = createLargeTextContent();
         var handler = middleware.create().apply(request -> Response.ok(originalContent));
         
-        var request = new Request("GET", "/test");
+        var request = new Request("GET", "/test", Map.of("Accept-Encoding", "gzip"));
         var response = handler.handle(request);
         
         // Should still have a response, even if compression fails
@@ -126,13 +143,230 @@ class GzipCompressionMiddlewareTest {
         var content = createMediumTextContent();
         var handler = middleware.create().apply(request -> Response.ok(content));
         
-        var request = new Request("GET", "/test");
+        var request = new Request("GET", "/test", Map.of("Accept-Encoding", "gzip"));
         var response = handler.handle(request);
         
         assertEquals("gzip", response.getHeader("Content-Encoding"));
         assertTrue(response.isBinary());
     }
     
+    @Test
+    void shouldNegotiateTheCodingByQValue() {
+        assertNull(GzipCompressionMiddleware.negotiate(null));
+        assertNull(GzipCompressionMiddleware.negotiate("identity"));
+        assertNull(GzipCompressionMiddleware.negotiate("gzip;q=0, deflate;q=0.000"));
+        assertEquals("gzip", GzipCompressionMiddleware.negotiate("deflate, gzip"));
+        assertEquals("gzip", GzipCompressionMiddleware.negotiate("br, x-gzip"));
+        assertEquals("gzip", GzipCompressionMiddleware.negotiate("GZIP ; Q=1.000"));
+        assertEquals("deflate", GzipCompressionMiddleware.negotiate("gzip;q=0.5, deflate"));
+        assertEquals("deflate", GzipCompressionMiddleware.negotiate("*;q=0.3, gzip;q=0"));
+        assertEquals("gzip", GzipCompressionMiddleware.negotiate("*"));
+        assertNull(GzipCompressionMiddleware.negotiate("gzip;q=high"));
+    }
+
+    @Test
+    void shouldRoundTripGzipAndDeflate() throws IOException {
+        var content = createLargeJsonContent();
+        var handler = new GzipCompressionMiddleware(100).create().apply(request -> Response.json(content));
+
+        var gzip = handler.handle(new Request("GET", "/test", Map.of("Accept-Encoding", "gzip")));
+        var deflate = handler.handle(new Request("GET", "/test", Map.of("Accept-Encoding", "deflate")));
+
+        assertEquals("gzip", gzip.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertEquals(content, decode(new GZIPInputStream(new ByteArrayInputStream(gzip.getBodyBytes()))));
+        assertEquals("deflate", deflate.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertEquals(content, decode(new InflaterInputStream(new ByteArrayInputStream(deflate.getBodyBytes()))));
+        assertEquals("Accept-Encoding", gzip.getHeader(HttpHeader.VARY));
+    }
+
+    @Test
+    void shouldVaryButNotCompressWithoutAcceptEncoding() {
+        var handler = new GzipCompressionMiddleware(100).create().apply(request -> Response.ok(createLargeTextContent())
+            .header(HttpHeader.VARY, "Origin"));
+
+        var response = handler.handle(new Request("GET", "/test"));
+
+        assertNull(response.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertEquals("Origin, Accept-Encoding", response.getHeader(HttpHeader.VARY));
+    }
+
+    @Test
+    void shouldCompressBinaryCompressibleTypesOnly() {
+        var body = createLargeTextContent().getBytes(StandardCharsets.UTF_8);
+        var request = new Request("GET", "/test", Map.of("Accept-Encoding", "gzip"));
+
+        var wasm = new GzipCompressionMiddleware(100).create()
+            .apply(ignored -> Response.wrap(body, 200, new MediaType("application/wasm"))).handle(request);
+        var png = new GzipCompressionMiddleware(100).create()
+            .apply(ignored -> Response.wrap(body, 200, MediaType.IMAGE_PNG)).handle(request);
+
+        assertEquals("gzip", wasm.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertNull(png.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertNull(png.getHeader(HttpHeader.VARY));
+    }
+
+    @Test
+    void shouldSendIncompressibleBodiesAsTheyAre() {
+        var body = new byte[4096];
+        new Random(42).nextBytes(body);
+        var original = Response.wrap(body, 200, MediaType.APPLICATION_JSON);
+        var handler = new GzipCompressionMiddleware(100).create().apply(request -> original);
+
+        var response = handler.handle(new Request("GET", "/test", Map.of("Accept-Encoding", "gzip")));
+
+        assertSame(original, response);
+        assertNull(response.getHeader(HttpHeader.CONTENT_ENCODING));
+    }
+
+    @Test
+    void shouldWeakenStrongETags() {
+        var handler = new GzipCompressionMiddleware(100).create()
+            .apply(request -> Response.ok(createLargeTextContent()).header(HttpHeader.ETAG, "\"v1\""));
+
+        var response = handler.handle(new Request("GET", "/test", Map.of("Accept-Encoding", "gzip")));
+
+        assertEquals("W/\"v1\"", response.getHeader(HttpHeader.ETAG));
+    }
+
+    @Test
+    void shouldCompressStreamingBodiesWhileTheyAreWritten() throws IOException {
+        var content = createLargeTextContent();
+        var closed = new AtomicBoolean();
+        var body = new ClosingWriter(out -> {
+            var bytes = content.getBytes(StandardCharsets.UTF_8);
+            out.write(bytes, 0, bytes.length / 2);
+            out.flush();
+            out.write(bytes, bytes.length / 2, bytes.length - bytes.length / 2);
+        }, closed);
+        var handler = new GzipCompressionMiddleware(100).create()
+            .apply(request -> Response.stream(body, MediaType.TEXT_PLAIN).header(HttpHeader.CACHE_CONTROL, "no-cache"));
+
+        var response = handler.handle(new Request("GET", "/test", Map.of("Accept-Encoding", "gzip")));
+        var out = new ByteArrayOutputStream();
+        response.getBodyWriter().writeTo(out);
+        ((Closeable) response.getBodyWriter()).close();
+
+        assertTrue(response.isStreaming());
+        assertEquals("gzip", response.getHeader(HttpHeader.CONTENT_ENCODING));
+        assertEquals("no-cache", response.getHeader(HttpHeader.CACHE_CONTROL));
+        assertEquals(content, decode(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray()))));
+        assertTrue(out.size() < content.length() / 2);
+        assertTrue(closed.get());
+    }
+
+    @Test
+    void shouldCompressAtTheLevelThePolicyChooses() throws IOException {
+        var words = new StringBuilder();
+        var random = new Random(1);
+        for (var i = 0; i < 5_000; i++) {
+            words.append("word").append(random.nextInt(500)).append(' ');
+        }
+        var content = words.toString();
+        var level = new AtomicInteger();
+        var handler = new GzipCompressionMiddleware(100, candidate -> level.get()).create().apply(request -> Response.ok(content));
+
+        // The same pooled compressor is used at different levels in turn.
+        for (var current : new int[] {Deflater.BEST_COMPRESSION, Deflater.BEST_SPEED, Deflater.BEST_COMPRESSION}) {
+            level.set(current);
+            var response = handler.handle(new Request("GET", "/test", Map.of("Accept-Encoding", "gzip")));
+
+            assertEquals(content, decode(new GZIPInputStream(new ByteArrayInputStream(response.getBodyBytes()))));
+            // gzip adds a 10 byte header and an 8 byte trailer to the deflate data.
+            assertEquals(deflatedSize(content, current) + 18, response.getBodyLength());
+        }
+    }
+
+    @Test
+    void shouldSendTheResponseAsItIsWhenThePolicySkipsIt() {
+        var original = Response.ok(createLargeTextContent());
+        var handler = new GzipCompressionMiddleware(100, candidate -> CompressionPolicy.SKIP).create().apply(request -> original);
+
+        var response = handler.handle(new Request("GET", "/test", Map.of("Accept-Encoding", "gzip")));
+
+        assertSame(original, response);
+        assertEquals("Accept-Encoding", response.getHeader(HttpHeader.VARY));
+    }
+
+    @Test
+    void shouldStopTryingMediaTypesThatDoNotShrink() {
+        var body = new byte[4096];
+        new Random(7).nextBytes(body);
+        var candidates = new ArrayList<CompressionPolicy.Candidate>();
+        var fixed = CompressionPolicy.fixed(6);
+        var handler = new GzipCompressionMiddleware(100, candidate -> {
+            candidates.add(candidate);
+            return fixed.level(candidate);
+        }).create().apply(request -> Response.wrap(body, 200, MediaType.APPLICATION_JSON));
+
+        for (var i = 0; i < 50; i++) {
+            handler.handle(new Request("GET", "/test", Map.of("Accept-Encoding", "gzip")));
+        }
+
+        var first = candidates.get(0);
+        assertEquals(MediaType.APPLICATION_JSON, first.mediaType());
+        assertEquals(4096, first.length());
+        assertEquals(0, first.inFlight());
+        assertTrue(first.cpuLoad() >= 0 && first.cpuLoad() <= 1, String.valueOf(first.cpuLoad()));
+        for (var i = 0; i < 8; i++) {
+            assertTrue(Double.isNaN(candidates.get(i).expectedRatio()));
+        }
+        assertEquals(1.0, candidates.get(8).expectedRatio());
+        assertEquals(CompressionPolicy.SKIP, fixed.level(candidates.get(8)));
+        // Every 32nd response is sampled again.
+        assertEquals(1, candidates.subList(8, 50).stream().filter(candidate -> Double.isNaN(candidate.expectedRatio())).count());
+        assertTrue(Double.isNaN(candidates.get(8 + 31).expectedRatio()));
+    }
+
+    @Test
+    void adaptivePolicyShouldBackOffUnderLoad() {
+        var policy = CompressionPolicy.adaptive();
+        var json = MediaType.APPLICATION_JSON;
+
+        assertEquals(6, policy.level(new CompressionPolicy.Candidate(json, 10_000, Double.NaN, 0.2, 0)));
+        assertEquals(6, policy.level(new CompressionPolicy.Candidate(json, 10_000, 0.3, 0.2, 0)));
+        assertEquals(4, policy.level(new CompressionPolicy.Candidate(json, 2_000_000, 0.3, 0.2, 0)));
+        assertEquals(Deflater.BEST_SPEED, policy.level(new CompressionPolicy.Candidate(json, 10_000, 0.3, 0.75, 0)));
+        assertEquals(Deflater.BEST_SPEED, policy.level(new CompressionPolicy.Candidate(json, 10_000, 0.3, 0.2, 1_000)));
+        assertEquals(CompressionPolicy.SKIP, policy.level(new CompressionPolicy.Candidate(json, 10_000, 0.3, 0.95, 0)));
+        assertEquals(CompressionPolicy.SKIP, policy.level(new CompressionPolicy.Candidate(json, 10_000, 0.97, 0.2, 0)));
+        assertThrows(IllegalArgumentException.class, () -> CompressionPolicy.fixed(0));
+        assertThrows(IllegalArgumentException.class, () -> new GzipCompressionMiddleware(100, null));
+    }
+
+    private static int deflatedSize(String content, int level) {
+        var deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(content.getBytes(StandardCharsets.UTF_8));
+            deflater.finish();
+            var buffer = new byte[content.length()];
+            var size = 0;
+            while (!deflater.finished()) {
+                size += deflater.deflate(buffer);
+            }
+            return size;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private record ClosingWriter(BodyWriter writer, AtomicBoolean closed) implements BodyWriter, Closeable {
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            writer.writeTo(out);
+        }
+
+        @Override
+        public void close() {
+            closed.set(true);
+        }
+    }
+
+    private static String decode(InputStream in) throws IOException {
+        try (in) {
+            return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+        }
+    }
+
     private String createLargeTextContent() {
         var sb = new StringBuilder();
         for (int i = 0; i < 1000; i++) {
@@ -20,6 +20,9 @@ class LoggingMiddlewareTest {
     private HttpRouter router;
     private ByteArrayOutputStream logOutput;
     private Handler logHandler;
+    // Loggers are held weakly; without this reference the handler could be collected with its logger
+    // before LoggingMiddleware gets the logger.
+    private Logger logger;
     
     @BeforeEach
     void setUp() {
@@ -27,7 +30,7 @@ class LoggingMiddlewareTest {
         logOutput = new ByteArrayOutputStream();
         logHandler = new StreamHandler(new PrintStream(logOutput), new java.util.logging.SimpleFormatter());
         
-        var logger = Logger.getLogger(LoggingMiddleware.class.getName());
+        logger = Logger.getLogger(LoggingMiddleware.class.getName());
         logger.addHandler(logHandler);
         logger.setUseParentHandlers(false);
     }
@@ -0,0 +1,107 @@
+package remast.marga.middleware;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.jupiter.api.Test;
+import remast.marga.Response;
+import remast.marga.Router;
+import remast.marga.metrics.MetricsRegistry;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MetricsMiddlewareTest {
+
+    @Test
+    void requestsShouldBeGroupedByRoutePatternAndStatusClass() {
+        var metrics = new MetricsRegistry();
+        var router = new Router();
+        router.use(MetricsMiddleware.create(metrics));
+        router.GET("/users/${id}", request -> "0".equals(request.pathParam("id")) ? Response.notFound("no") : Response.ok("user"));
+        router.GET("/health", request -> Response.ok("up"));
+
+        router.handleRequest("GET", "/users/1");
+        router.handleRequest("GET", "/users/2");
+        router.handleRequest("GET", "/users/0");
+        router.handleRequest("GET", "/health");
+
+        var users = metrics.route("GET", "/users/${id}");
+        assertEquals(3, users.getRequests());
+        assertEquals(2, users.getRequests(2));
+        assertEquals(1, users.getRequests(4));
+        assertEquals(3, users.getLatency().snapshot().getCount());
+        assertEquals(1, metrics.route("GET", "/health").getRequests());
+        assertEquals(2, metrics.getRoutes().size());
+    }
+
+    @Test
+    void unmatchedRequestsAndUnknownMethodsShouldShareASeries() {
+        var metrics = new MetricsRegistry();
+        var router = new Router();
+        router.use(MetricsMiddleware.create(metrics));
+        router.GET("/items", request -> Response.ok("items"));
+        router.mount("/static", request -> Response.ok("file"));
+
+        router.handleRequest("GET", "/missing/1");
+        router.handleRequest("GET", "/missing/2");
+        router.handleRequest("POST", "/items");
+        router.handleRequest("BREW", "/static/pot");
+        router.handleRequest("GET", "/static/css/site.css");
+
+        var unmatched = metrics.route("GET", null);
+        assertEquals(MetricsRegistry.UNMATCHED, unmatched.getRoute());
+        assertEquals(2, unmatched.getRequests(4));
+        assertEquals(1, metrics.route("POST", null).getRequests(4));
+        assertEquals(MetricsRegistry.OTHER_METHOD, metrics.route("BREW", "/static/*").getMethod());
+        assertEquals(1, metrics.route("BREW", "/static/*").getRequests());
+        assertEquals(1, metrics.route("GET", "/static/*").getRequests());
+    }
+
+    @Test
+    void throwingHandlerShouldCountAsServerError() {
+        var metrics = new MetricsRegistry();
+        var router = new Router();
+        router.use(MetricsMiddleware.create(metrics));
+        router.GET("/boom", request -> {
+            throw new IllegalStateException("boom");
+        });
+
+        assertThrows(IllegalStateException.class, () -> router.handleRequest("GET", "/boom"));
+
+        var boom = metrics.route("GET", "/boom");
+        assertEquals(1, boom.getRequests(5));
+        assertEquals(0, boom.getInFlight());
+    }
+
+    @Test
+    void inFlightShouldCountRunningRequests() throws Exception {
+        var metrics = new MetricsRegistry();
+        var router = new Router();
+        router.use(MetricsMiddleware.create(metrics));
+        var entered = new CountDownLatch(1);
+        var release = new CountDownLatch(1);
+        router.GET("/slow", request -> {
+            entered.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return Response.ok("done");
+        });
+
+        var thread = Thread.ofVirtual().start(() -> router.handleRequest("GET", "/slow"));
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        assertEquals(1, metrics.getInFlight());
+        assertEquals(1, metrics.route("GET", "/slow").getInFlight());
+
+        release.countDown();
+        thread.join(5_000);
+        assertEquals(0, metrics.getInFlight());
+        assertTrue(metrics.route("GET", "/slow").getLatency().snapshot().getSum() > 0);
+    }
+
+    @Test
+    void registryShouldBeRequired() {
+        assertThrows(IllegalArgumentException.class, () -> MetricsMiddleware.create(null));
+    }
+}
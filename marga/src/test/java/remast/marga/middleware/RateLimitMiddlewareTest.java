@@ -0,0 +1,161 @@
+package remast.marga.middleware;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.junit.jupiter.api.Test;
+import remast.marga.Request;
+import remast.marga.RequestHandler;
+import remast.marga.Response;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimitMiddlewareTest {
+    private final AtomicLong now = new AtomicLong(1_000);
+
+    @Test
+    void burstShouldPassAndFurtherRequestsShouldBeRejected() {
+        var limiter = limiter().rate(1, Duration.ofSeconds(2)).burst(3).build();
+        var handler = wrap(limiter);
+
+        for (var i = 0; i < 3; i++) {
+            assertEquals(200, handler.handle(apiRequest("a")).getStatusCode());
+        }
+        var rejected = handler.handle(apiRequest("a"));
+
+        assertEquals(429, rejected.getStatusCode());
+        assertEquals("2", rejected.getHeader("Retry-After"));
+        assertEquals(1, limiter.getRejected());
+    }
+
+    @Test
+    void tokensShouldRefillWithTime() {
+        var limiter = limiter().rate(10, Duration.ofSeconds(1)).burst(2).build();
+
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+
+        advance(100);
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+
+        // A long pause refills no more than the burst.
+        advance(10_000);
+        assertTrue(limiter.tryAcquire("a"));
+        assertTrue(limiter.tryAcquire("a"));
+        assertFalse(limiter.tryAcquire("a"));
+    }
+
+    @Test
+    void keysShouldHaveSeparateBuckets() {
+        var limiter = limiter().rate(1, Duration.ofSeconds(1)).burst(1).build();
+        var handler = wrap(limiter);
+
+        assertEquals(200, handler.handle(apiRequest("a")).getStatusCode());
+        assertEquals(429, handler.handle(apiRequest("a")).getStatusCode());
+        assertEquals(200, handler.handle(apiRequest("b")).getStatusCode());
+    }
+
+    @Test
+    void requestsWithoutKeyShouldNotBeLimited() {
+        var limiter = limiter().rate(1, Duration.ofSeconds(1)).burst(1).build();
+        var handler = wrap(limiter);
+
+        for (var i = 0; i < 5; i++) {
+            assertEquals(200, handler.handle(new Request("GET", "/")).getStatusCode());
+        }
+        assertEquals(0, limiter.getTrackedKeys());
+    }
+
+    @Test
+    void refilledBucketsShouldBeDroppedOnceMaxKeysIsExceeded() {
+        var limiter = limiter().rate(10, Duration.ofSeconds(1)).burst(1).maxKeys(2).build();
+
+        limiter.tryAcquire("a");
+        limiter.tryAcquire("b");
+        advance(100);
+        limiter.tryAcquire("c");
+
+        assertEquals(1, limiter.getTrackedKeys());
+    }
+
+    @Test
+    void activeBucketsShouldNotExceedMaxKeys() {
+        var limiter = limiter().rate(1, Duration.ofSeconds(1)).burst(1).maxKeys(3).build();
+
+        for (var i = 0; i < 10; i++) {
+            assertTrue(limiter.tryAcquire("key-" + i));
+            assertTrue(limiter.getTrackedKeys() <= 3);
+        }
+        assertFalse(limiter.tryAcquire("key-9"));
+    }
+
+    @Test
+    void sweepsOverMaxKeysShouldLeaveRoomForNewKeys() {
+        var limiter = limiter().rate(1, Duration.ofSeconds(1)).burst(1).maxKeys(100).build();
+        for (var i = 0; i <= 100; i++) {
+            limiter.tryAcquire("key-" + i);
+        }
+        assertEquals(75, limiter.getTrackedKeys());
+
+        // The next quarter of new keys is added without another pass over the map.
+        for (var i = 101; i < 126; i++) {
+            limiter.tryAcquire("key-" + i);
+        }
+        assertEquals(100, limiter.getTrackedKeys());
+        limiter.tryAcquire("key-126");
+        assertEquals(75, limiter.getTrackedKeys());
+    }
+
+    @Test
+    void idleBucketsShouldBeDroppedAfterARefillPeriod() {
+        var limiter = limiter().rate(10, Duration.ofSeconds(1)).burst(5).build();
+        for (var i = 0; i < 100; i++) {
+            limiter.tryAcquire("key-" + i);
+        }
+        assertEquals(100, limiter.getTrackedKeys());
+
+        advance(500);
+        limiter.tryAcquire("new");
+
+        assertEquals(1, limiter.getTrackedKeys());
+    }
+
+    @Test
+    void keyExtractorsShouldDeriveClientKeys() {
+        var direct = new Request("GET", "/");
+        var proxied = new Request("GET", "/", Map.of("x-forwarded-for", " 203.0.113.7 , 10.0.0.1"));
+
+        assertNull(RateLimitMiddleware.clientAddress().apply(direct));
+        assertNull(RateLimitMiddleware.forwardedFor().apply(direct));
+        assertEquals("203.0.113.7", RateLimitMiddleware.forwardedFor().apply(proxied));
+        assertEquals("key", RateLimitMiddleware.header("X-Api-Key").apply(apiRequest("key")));
+    }
+
+    @Test
+    void invalidSettingsShouldBeRejected() {
+        assertThrows(IllegalArgumentException.class, () -> RateLimitMiddleware.builder().rate(0, Duration.ofSeconds(1)).build());
+        assertThrows(IllegalArgumentException.class, () -> RateLimitMiddleware.builder().rate(1, Duration.ZERO).build());
+        assertThrows(IllegalArgumentException.class, () -> RateLimitMiddleware.builder().burst(0).build());
+        assertThrows(IllegalArgumentException.class, () -> RateLimitMiddleware.builder().maxKeys(0).build());
+        assertThrows(IllegalArgumentException.class, () -> RateLimitMiddleware.builder().key(null).build());
+    }
+
+    private RateLimitMiddleware.Builder limiter() {
+        return RateLimitMiddleware.builder().key(RateLimitMiddleware.header("X-Api-Key")).clock(now::get);
+    }
+
+    private static RequestHandler wrap(RateLimitMiddleware limiter) {
+        return limiter.create().apply(request -> Response.ok("ok"));
+    }
+
+    private static Request apiRequest(String key) {
+        return new Request("GET", "/", Map.of("X-Api-Key", key));
+    }
+
+    private void advance(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+}
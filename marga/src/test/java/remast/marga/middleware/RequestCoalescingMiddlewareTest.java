@@ -0,0 +1,242 @@
+package remast.marga.middleware;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import org.junit.jupiter.api.Test;
+import remast.marga.HttpHeader;
+import remast.marga.MediaType;
+import remast.marga.Request;
+import remast.marga.RequestHandler;
+import remast.marga.Response;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestCoalescingMiddlewareTest {
+    private final AtomicInteger calls = new AtomicInteger();
+    private final CountDownLatch release = new CountDownLatch(1);
+
+    @Test
+    void identicalConcurrentRequestsShouldRunTheHandlerOnce() throws Exception {
+        var coalescing = RequestCoalescingMiddleware.builder().build();
+        var handler = coalescing.create().apply(blocking(() -> Response.json("{\"id\":42}").header(HttpHeader.ETAG, "\"v1\"")));
+        var responses = new ConcurrentLinkedQueue<Response>();
+
+        var leader = start(() -> responses.add(handler.handle(new Request("GET", "/users/42"))));
+        awaitCalls(1);
+        var followers = new ArrayList<Thread>();
+        for (var i = 0; i < 9; i++) {
+            followers.add(start(() -> responses.add(handler.handle(new Request("GET", "/users/42")))));
+        }
+        awaitWaiting(followers);
+        release.countDown();
+        leader.join();
+        for (var follower : followers) {
+            follower.join();
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(9, coalescing.getCoalesced());
+        assertEquals(10, responses.size());
+        for (var response : responses) {
+            assertEquals("{\"id\":42}", response.getBody());
+            assertEquals(MediaType.APPLICATION_JSON, response.getMediaType());
+            assertEquals("\"v1\"", response.getHeader(HttpHeader.ETAG));
+        }
+        // Each request gets a response of its own.
+        responses.peek().header(HttpHeader.ETAG, "\"changed\"");
+        assertEquals(9, responses.stream().filter(response -> "\"v1\"".equals(response.getHeader(HttpHeader.ETAG))).count());
+        assertEquals(10, responses.stream().distinct().count());
+    }
+
+    @Test
+    void requestsDifferingInKeyHeadersShouldNotWaitForEachOther() throws Exception {
+        var handler = RequestCoalescingMiddleware.builder().headers("Accept-Language").build().create()
+            .apply(blocking(() -> Response.ok("hello")));
+
+        var english = start(() -> handler.handle(new Request("GET", "/", Map.of("Accept-Language", "en"))));
+        var german = start(() -> handler.handle(new Request("GET", "/", Map.of("Accept-Language", "de"))));
+        var post = start(() -> handler.handle(new Request("POST", "/", Map.of("Accept-Language", "en"))));
+        awaitCalls(3);
+        release.countDown();
+        english.join();
+        german.join();
+        post.join();
+
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void requestsOfDifferentUsersShouldNotShareResponses() throws Exception {
+        var coalescing = RequestCoalescingMiddleware.builder().build();
+        var handler = coalescing.create().apply(blocking(() -> Response.ok("account")));
+        var bodies = new ConcurrentLinkedQueue<String>();
+
+        var alice = start(() -> bodies.add(handler.handle(new Request("GET", "/me", Map.of("Authorization", "Bearer alice"))).getBody()));
+        var bob = start(() -> bodies.add(handler.handle(new Request("GET", "/me", Map.of("Authorization", "Bearer bob"))).getBody()));
+        var cookie = start(() -> bodies.add(handler.handle(new Request("GET", "/me", Map.of("Cookie", "session=carol"))).getBody()));
+        awaitCalls(3);
+        release.countDown();
+        alice.join();
+        bob.join();
+        cookie.join();
+
+        assertEquals(3, calls.get());
+        assertEquals(3, bodies.size());
+        assertEquals(0, coalescing.getCoalesced());
+    }
+
+    @Test
+    void privateResponsesShouldNotBeShared() throws Exception {
+        var coalescing = RequestCoalescingMiddleware.builder().build();
+        var responses = Map.<String, Supplier<Response>>of(
+            "/cookie", () -> Response.ok("a").header(HttpHeader.SET_COOKIE, "session=1"),
+            "/private", () -> Response.ok("b").header(HttpHeader.CACHE_CONTROL, "private, max-age=60"));
+        var handler = coalescing.create().apply(request -> blocking(responses.get(request.getPath())).handle(request));
+
+        var threads = new ArrayList<Thread>();
+        for (var path : responses.keySet()) {
+            threads.add(start(() -> handler.handle(new Request("GET", path))));
+        }
+        awaitCalls(2);
+        for (var path : responses.keySet()) {
+            threads.add(start(() -> handler.handle(new Request("GET", path))));
+        }
+        awaitWaiting(threads.subList(2, 4));
+        release.countDown();
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(4, calls.get());
+        assertEquals(0, coalescing.getCoalesced());
+    }
+
+    @Test
+    void handlerExceptionsShouldReachEveryWaitingRequest() throws Exception {
+        var failure = new IllegalStateException("database down");
+        var handler = RequestCoalescingMiddleware.builder().build().create().apply(blocking(() -> {
+            throw failure;
+        }));
+        var thrown = new ConcurrentLinkedQueue<Throwable>();
+
+        var threads = new ArrayList<Thread>();
+        threads.add(start(() -> capture(thrown, () -> handler.handle(new Request("GET", "/report")))));
+        awaitCalls(1);
+        for (var i = 0; i < 3; i++) {
+            threads.add(start(() -> capture(thrown, () -> handler.handle(new Request("GET", "/report")))));
+        }
+        awaitWaiting(threads.subList(1, threads.size()));
+        release.countDown();
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(1, calls.get());
+        assertEquals(4, thrown.size());
+        thrown.forEach(throwable -> assertSame(failure, throwable));
+    }
+
+    @Test
+    void waitingRequestsShouldGiveUpAfterTheTimeout() throws Exception {
+        var coalescing = RequestCoalescingMiddleware.builder().timeout(Duration.ofMillis(50)).build();
+        var handler = coalescing.create().apply(blocking(() -> Response.ok("slow")));
+
+        var leader = start(() -> handler.handle(new Request("GET", "/slow")));
+        awaitCalls(1);
+        var response = handler.handle(new Request("GET", "/slow"));
+        release.countDown();
+        leader.join();
+
+        assertEquals(503, response.getStatusCode());
+        assertEquals("1", response.getHeader(HttpHeader.RETRY_AFTER));
+        assertEquals(1, coalescing.getTimedOut());
+        assertEquals(1, calls.get());
+    }
+
+    @Test
+    void streamedResponsesShouldNotBeShared() throws Exception {
+        var handler = RequestCoalescingMiddleware.builder().build().create()
+            .apply(blocking(() -> Response.stream(out -> out.write(1), MediaType.APPLICATION_OCTET_STREAM)));
+
+        var threads = new ArrayList<Thread>();
+        threads.add(start(() -> handler.handle(new Request("GET", "/export"))));
+        awaitCalls(1);
+        threads.add(start(() -> handler.handle(new Request("GET", "/export"))));
+        awaitWaiting(threads.subList(1, 2));
+        release.countDown();
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void laterRequestsShouldRunTheHandlerAgain() {
+        var handler = RequestCoalescingMiddleware.builder().build().create().apply(request -> {
+            calls.incrementAndGet();
+            return Response.ok("fresh");
+        });
+
+        handler.handle(new Request("GET", "/"));
+        handler.handle(new Request("GET", "/"));
+
+        assertEquals(2, calls.get());
+        assertThrows(IllegalArgumentException.class, () -> RequestCoalescingMiddleware.builder().timeout(Duration.ZERO).build());
+    }
+
+    /**
+     * Counts the calls and holds each until the test releases them.
+     */
+    private RequestHandler blocking(Supplier<Response> response) {
+        return request -> {
+            calls.incrementAndGet();
+            try {
+                assertTrue(release.await(5, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return response.get();
+        };
+    }
+
+    private static Thread start(Runnable action) {
+        return Thread.ofVirtual().start(action);
+    }
+
+    private static void capture(ConcurrentLinkedQueue<Throwable> thrown, Runnable action) {
+        try {
+            action.run();
+        } catch (RuntimeException e) {
+            thrown.add(e);
+        }
+    }
+
+    private void awaitCalls(int expected) throws InterruptedException {
+        for (var i = 0; i < 500 && calls.get() < expected; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(expected, calls.get());
+    }
+
+    /**
+     * Waits until the threads are parked, waiting for the leader's response.
+     */
+    private static void awaitWaiting(List<Thread> threads) throws InterruptedException {
+        for (var i = 0; i < 500; i++) {
+            // A virtual thread in a timed CompletableFuture.get reports WAITING on some JDKs.
+            if (threads.stream().allMatch(thread -> thread.getState() == Thread.State.WAITING || thread.getState() == Thread.State.TIMED_WAITING)) {
+                return;
+            }
+            Thread.sleep(10);
+        }
+        fail("Requests did not start waiting");
+    }
+}
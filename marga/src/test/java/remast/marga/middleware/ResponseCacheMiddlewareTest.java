@@ -0,0 +1,250 @@
+package remast.marga.middleware;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import org.junit.jupiter.api.Test;
+import remast.marga.HttpHeader;
+import remast.marga.MediaType;
+import remast.marga.Request;
+import remast.marga.RequestHandler;
+import remast.marga.Response;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResponseCacheMiddlewareTest {
+    private final AtomicLong now = new AtomicLong();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    @Test
+    void hitsShouldSkipTheHandlerUntilMaxAgeExpires() {
+        var cache = builder().build();
+        var handler = cache.create().apply(counting(request -> Response.json("{}").header(HttpHeader.CACHE_CONTROL, "max-age=60")));
+
+        var first = handler.handle(new Request("GET", "/users"));
+        advanceSeconds(30);
+        var second = handler.handle(new Request("GET", "/users"));
+
+        assertEquals(1, calls.get());
+        assertEquals("{} 1", first.getBody());
+        assertEquals("{} 1", second.getBody());
+        assertEquals(MediaType.APPLICATION_JSON, second.getMediaType());
+        assertEquals("max-age=60", second.getHeader(HttpHeader.CACHE_CONTROL));
+        assertEquals("30", second.getHeader(HttpHeader.AGE));
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+
+        advanceSeconds(30);
+        assertEquals("{} 2", handler.handle(new Request("GET", "/users")).getBody());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void hitsShouldNotShareHeaders() {
+        var handler = builder().build().create().apply(request -> Response.ok("ok").header(HttpHeader.CACHE_CONTROL, "max-age=60"));
+        handler.handle(new Request("GET", "/"));
+
+        handler.handle(new Request("GET", "/")).header("X-Request-ID", "1");
+
+        assertNull(handler.handle(new Request("GET", "/")).getHeader("X-Request-ID"));
+    }
+
+    @Test
+    void sharedMaxAgeShouldTakePrecedence() {
+        var handler = builder().build().create()
+            .apply(counting(request -> Response.ok("ok").header(HttpHeader.CACHE_CONTROL, "max-age=600, s-maxage=\"10\"")));
+
+        handler.handle(new Request("GET", "/"));
+        advanceSeconds(11);
+        handler.handle(new Request("GET", "/"));
+
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void responsesWithoutMaxAgeShouldUseTheDefaultTtl() {
+        var uncached = builder().build().create().apply(counting(request -> Response.ok("ok")));
+        uncached.handle(new Request("GET", "/"));
+        uncached.handle(new Request("GET", "/"));
+        assertEquals(2, calls.get());
+
+        var cached = builder().defaultTtl(Duration.ofSeconds(5)).build().create().apply(counting(request -> Response.ok("ok")));
+        cached.handle(new Request("GET", "/"));
+        cached.handle(new Request("GET", "/"));
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void uncacheableResponsesShouldBePassedThrough() {
+        var responses = Map.<String, Function<Request, Response>>of(
+            "/no-store", request -> Response.ok("a").header(HttpHeader.CACHE_CONTROL, "no-store"),
+            "/private", request -> Response.ok("b").header(HttpHeader.CACHE_CONTROL, "private, max-age=60"),
+            "/cookie", request -> Response.ok("c").header(HttpHeader.SET_COOKIE, "id=1"),
+            "/vary", request -> Response.ok("d").header(HttpHeader.VARY, "*"),
+            "/error", request -> Response.serverError("e"),
+            "/stream", request -> Response.stream(out -> out.write(1), MediaType.APPLICATION_OCTET_STREAM));
+        var cache = builder().defaultTtl(Duration.ofMinutes(1)).build();
+        var handler = cache.create().apply(counting(request -> responses.get(request.getPath()).apply(request)));
+
+        for (var path : responses.keySet()) {
+            handler.handle(new Request("GET", path));
+            handler.handle(new Request("GET", path));
+        }
+
+        assertEquals(2 * responses.size(), calls.get());
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getBytes());
+    }
+
+    @Test
+    void uncacheableRequestsShouldGoToTheHandler() {
+        var handler = builder().defaultTtl(Duration.ofMinutes(1)).build().create().apply(counting(request -> Response.ok("ok")));
+
+        handler.handle(new Request("POST", "/"));
+        handler.handle(new Request("POST", "/"));
+        handler.handle(new Request("GET", "/", Map.of("Authorization", "Bearer x")));
+        handler.handle(new Request("GET", "/", Map.of("Authorization", "Bearer x")));
+        handler.handle(new Request("GET", "/", Map.of("Cache-Control", "no-store")));
+        assertEquals(5, calls.get());
+
+        // no-cache refreshes the entry, which later requests then get.
+        handler.handle(new Request("GET", "/", Map.of("Cache-Control", "no-cache")));
+        handler.handle(new Request("GET", "/", Map.of("Cache-Control", "no-cache")));
+        assertEquals("ok 7", handler.handle(new Request("GET", "/")).getBody());
+        assertEquals(7, calls.get());
+    }
+
+    @Test
+    void requestsWithCookiesShouldNeitherGetNorStoreCachedResponses() {
+        var handler = builder().defaultTtl(Duration.ofMinutes(1)).build().create().apply(counting(request -> Response.ok("ok")));
+        var withCookie = new Request("GET", "/", Map.of("Cookie", "session=alice"));
+
+        assertEquals("ok 1", handler.handle(new Request("GET", "/")).getBody());
+        assertEquals("ok 2", handler.handle(withCookie).getBody());
+        assertEquals("ok 3", handler.handle(withCookie).getBody());
+        assertEquals("ok 1", handler.handle(new Request("GET", "/")).getBody());
+        assertEquals(3, calls.get());
+    }
+
+    @Test
+    void varyingHeadersShouldKeepVariantsApart() {
+        var handler = builder().build().create().apply(counting(request -> Response.ok(String.valueOf(request.header("Accept-Encoding")))
+            .header(HttpHeader.CACHE_CONTROL, "max-age=60")
+            .header(HttpHeader.VARY, "Accept-Encoding")));
+
+        var gzip = new Request("GET", "/", Map.of("Accept-Encoding", "gzip"));
+        var plain = new Request("GET", "/");
+        assertEquals("gzip 1", handler.handle(gzip).getBody());
+        assertEquals("null 2", handler.handle(plain).getBody());
+        assertEquals("gzip 1", handler.handle(gzip).getBody());
+        assertEquals("null 2", handler.handle(plain).getBody());
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    void keysShouldUseTheSelectedQueryParams() {
+        var all = builder().build().create().apply(counting(request -> Response.ok("ok").header(HttpHeader.CACHE_CONTROL, "max-age=60")));
+        all.handle(new Request("GET", "/items", Map.of(), Map.of("page", "1", "utm", "a")));
+        all.handle(new Request("GET", "/items", Map.of(), Map.of("page", "1", "utm", "b")));
+        assertEquals(2, calls.get());
+
+        var selected = builder().queryParams("page").build().create()
+            .apply(counting(request -> Response.ok("ok").header(HttpHeader.CACHE_CONTROL, "max-age=60")));
+        selected.handle(new Request("GET", "/items", Map.of(), Map.of("page", "1", "utm", "a")));
+        selected.handle(new Request("GET", "/items", Map.of(), Map.of("page", "1", "utm", "b")));
+        selected.handle(new Request("GET", "/items", Map.of(), Map.of("page", "2")));
+        assertEquals(4, calls.get());
+
+        // A path cannot pass for another path with a query.
+        selected.handle(new Request("GET", "/items&4:page=1:1"));
+        assertEquals(5, calls.get());
+    }
+
+    @Test
+    void leastRecentlyUsedKeysShouldBeEvictedBeyondTheSizeLimit() {
+        var bodySize = 1000;
+        var entrySize = bodySize + ResponseCacheMiddleware.ENTRY_OVERHEAD;
+        var cache = builder().stripes(1).maxBytes(3L * entrySize).build();
+        var handler = cache.create().apply(counting(request -> Response.wrap(new byte[bodySize], 200, MediaType.APPLICATION_OCTET_STREAM)
+            .header(HttpHeader.CACHE_CONTROL, "max-age=60")));
+
+        handler.handle(new Request("GET", "/a"));
+        handler.handle(new Request("GET", "/b"));
+        handler.handle(new Request("GET", "/c"));
+        handler.handle(new Request("GET", "/a"));
+        handler.handle(new Request("GET", "/d"));
+        assertEquals(4, calls.get());
+        assertEquals(3L * entrySize, cache.getBytes());
+
+        handler.handle(new Request("GET", "/a"));
+        handler.handle(new Request("GET", "/c"));
+        handler.handle(new Request("GET", "/d"));
+        assertEquals(4, calls.get());
+        handler.handle(new Request("GET", "/b"));
+        assertEquals(5, calls.get());
+
+        var tooLarge = builder().stripes(1).maxBytes(bodySize).build();
+        tooLarge.create().apply(request -> Response.wrap(new byte[bodySize], 200, null).header(HttpHeader.CACHE_CONTROL, "max-age=60"))
+            .handle(new Request("GET", "/"));
+        assertEquals(0, tooLarge.getBytes());
+    }
+
+    @Test
+    void concurrentRequestsShouldBeServedConsistently() throws InterruptedException {
+        var cache = builder().maxBytes(64 * 1024).build();
+        RequestHandler handler = cache.create().apply(request -> Response.ok(request.getPath()).header(HttpHeader.CACHE_CONTROL, "max-age=60"));
+        var failures = new AtomicInteger();
+
+        var threads = new Thread[8];
+        for (var i = 0; i < threads.length; i++) {
+            var seed = i;
+            threads[i] = Thread.ofPlatform().start(() -> {
+                for (var j = 0; j < 5_000; j++) {
+                    var path = "/item/" + (j * 31 + seed) % 200;
+                    if (!handler.handle(new Request("GET", path)).getBody().equals(path)) {
+                        failures.incrementAndGet();
+                    }
+                }
+            });
+        }
+        for (var thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(0, failures.get());
+        assertTrue(cache.getHits() > 0);
+        assertTrue(cache.getBytes() <= 64 * 1024);
+    }
+
+    @Test
+    void invalidSettingsShouldBeRejected() {
+        assertThrows(IllegalArgumentException.class, () -> ResponseCacheMiddleware.builder().maxBytes(0).build());
+        assertThrows(IllegalArgumentException.class, () -> ResponseCacheMiddleware.builder().stripes(3).build());
+        assertThrows(IllegalArgumentException.class, () -> ResponseCacheMiddleware.builder().defaultTtl(Duration.ofSeconds(-1)).build());
+    }
+
+    private ResponseCacheMiddleware.Builder builder() {
+        return ResponseCacheMiddleware.builder().clock(now::get);
+    }
+
+    private void advanceSeconds(long seconds) {
+        now.addAndGet(TimeUnit.SECONDS.toNanos(seconds));
+    }
+
+    /**
+     * Counts the calls and appends the count to text bodies.
+     */
+    private RequestHandler counting(Function<Request, Response> handler) {
+        return request -> {
+            var call = calls.incrementAndGet();
+            var response = handler.apply(request);
+            if (response.isStreaming() || response.isBinary()) {
+                return response;
+            }
+            return new Response(response.getBody() + " " + call, response.getStatusCode(), response.getMediaType()).headersFrom(response);
+        };
+    }
+}